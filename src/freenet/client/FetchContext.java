@@ -11,6 +11,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import freenet.client.async.BlockSet;
+import freenet.client.async.StreamingFetchCallback;
 import freenet.client.events.ClientEventProducer;
 import freenet.client.events.SimpleEventProducer;
 import freenet.client.filter.FoundURICallback;
@@ -109,6 +110,9 @@ public class FetchContext implements Cloneable, Serializable {
 	public FoundURICallback prefetchHook;
 	/**Callback needed for web-pushing*/
 	public TagReplacerCallback tagReplacer;
+	/**If set, the client wants to read the data while it is still downloading, where possible.
+	 * Only used for transient requests, so not persisted. See StreamingFetchCallback. */
+	public transient StreamingFetchCallback streamingCallback;
 	/**Force the content fiter to use this MIME type*/
 	public String overrideMIME;
 	/** Number of attempts before we go into cooldown. Must be less than or equal to
@@ -223,6 +227,7 @@ public class FetchContext implements Cloneable, Serializable {
 		this.canWriteClientCache = ctx.canWriteClientCache;
 		this.prefetchHook = ctx.prefetchHook;
 		this.tagReplacer = ctx.tagReplacer;
+		this.streamingCallback = ctx.streamingCallback;
 		this.overrideMIME = ctx.overrideMIME;
 		this.cooldownRetries = ctx.cooldownRetries;
 		this.cooldownTime = ctx.cooldownTime;
@@ -326,6 +331,7 @@ public class FetchContext implements Cloneable, Serializable {
         dos.writeBoolean(canWriteClientCache);
         if(prefetchHook != null) throw new UnsupportedOperationException("Prefetch hook not supported");
         if(tagReplacer != null) throw new UnsupportedOperationException("Tag replacer not supported");
+        if(streamingCallback != null) throw new UnsupportedOperationException("Streaming not supported");
         if(overrideMIME != null)
             dos.writeUTF(overrideMIME);
         else
@@ -24,6 +24,8 @@ import freenet.support.Fields;
 import freenet.support.IdentityHashSet;
 import freenet.support.Logger;
 import freenet.support.io.NativeThread;
+import freenet.support.jfr.JFR;
+import freenet.support.jfr.RequestSelectionEvent;
 
 /**
  * Every X seconds, the RequestSender calls the ClientRequestScheduler to
@@ -62,7 +64,7 @@ public class ClientRequestScheduler implements RequestScheduler {
 	public static final String PRIORITY_NONE = "NONE";
 	public static final String PRIORITY_SOFT = "SOFT";
 	public static final String PRIORITY_HARD = "HARD";
-	private String choosenPriorityScheduler; 
+	private volatile String choosenPriorityScheduler; 
 	
 	public ClientRequestScheduler(boolean forInserts, boolean forSSKs, boolean forRT, RandomSource random, RequestStarter starter, Node node, NodeClientCore core, String name, ClientContext context) {
 		this.isInsertScheduler = forInserts;
@@ -95,7 +97,7 @@ public class ClientRequestScheduler implements RequestScheduler {
 	 * 
 	 * @param val
 	 */
-	public synchronized void setPriorityScheduler(String val){
+	public void setPriorityScheduler(String val){
 		choosenPriorityScheduler = val;
 	}
 	
@@ -236,7 +238,13 @@ public class ClientRequestScheduler implements RequestScheduler {
 	        fuzz = -1;
 	    else if(PRIORITY_HARD.equals(choosenPriorityScheduler))
 	        fuzz = 0;
-	    return selector.chooseRequest(fuzz, random, offeredKeys, starter, isRTScheduler, clientContext);
+	    if(!JFR.AVAILABLE)
+	        return selector.chooseRequest(fuzz, random, offeredKeys, starter, isRTScheduler, clientContext);
+	    RequestSelectionEvent event = RequestSelectionEvent.start();
+	    ChosenBlock block = selector.chooseRequest(fuzz, random, offeredKeys, starter, isRTScheduler, clientContext);
+	    event.finish(isRTScheduler, isInsertScheduler, isSSKScheduler, block != null,
+	            block == null ? -1 : block.getPriority());
+	    return block;
 	}
 	
 	/**
@@ -276,8 +284,10 @@ public class ClientRequestScheduler implements RequestScheduler {
 
 	static final int TRIP_PENDING_PRIORITY = NativeThread.HIGH_PRIORITY-1;
 	
+	/** Not synchronized: The selector has its own lock for the recent successes list, and the 
+	 * request starters should not have to wait for each other here. */
 	@Override
-	public synchronized void succeeded(final BaseSendableGet succeeded, boolean persistent) {
+	public void succeeded(final BaseSendableGet succeeded, boolean persistent) {
 	    selector.succeeded(succeeded);
 	}
 
@@ -355,6 +365,11 @@ public class ClientRequestScheduler implements RequestScheduler {
 	    return selector.countQueuedRequests(clientContext);
 	}
 
+	/** @return The number of requests queued at each priority class. */
+	public int[] countQueuedRequestsByPriority() {
+	    return selector.countQueuedRequestsByPriority();
+	}
+
 	@Override
 	public KeysFetchingLocally fetchingKeys() {
 		return selector;
@@ -3,9 +3,11 @@ package freenet.client.async;
 import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import freenet.client.FetchContext;
 import freenet.crypt.RandomSource;
@@ -26,6 +28,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItemExclusionList;
 import freenet.support.RandomGrabArrayWithObject;
 import freenet.support.RemoveRandom.RemoveRandomReturn;
 import freenet.support.RemoveRandomParent;
@@ -52,6 +55,16 @@ import freenet.support.TimeUtil;
  * 
  * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
  * 
+ * Everything else is kept off the tree lock so that it does not serialize the request starters:
+ * keysFetching and runningInserts are concurrent sets, the priorities are an atomic array, and
+ * recentSuccesses has its own lock. choosePriority() doesn't take the tree lock at all: The SRGA
+ * for each priority keeps its children in a copy-on-write array and its wakeup time in a volatile,
+ * so getWakeupTime() and isEmpty() can be read while another thread is walking the tree. The 
+ * result is only a hint, chooseRequestInner() checks again. The tree lock is only held while actually
+ * walking or changing the tree, i.e. in removeRandom() and when adding a request; choosing the
+ * key, checking whether it is already being fetched, and creating the ChosenBlock all happen 
+ * outside it.
+ * 
  * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
  * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
  * selection, e.g. by making sure that each structure always does a bottom-up update when something
@@ -94,7 +107,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	/**
      * The base of the tree.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final AtomicReferenceArray<RequestClientRGANode> priorities;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -104,16 +117,15 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 		this.isSSKScheduler = isSSKScheduler;
 		this.isRTScheduler = isRTScheduler;
 		if(!isInsertScheduler) {
-			keysFetching = new HashSet<Key>();
-			transientRequestsWaitingForKeysFetching = new HashMap<Key, WeakReference<BaseSendableGet>[]>();
+			keysFetching = new ConcurrentHashMap<Key, WeakReference<BaseSendableGet>[]>();
 			runningInserts = null;
 			recentSuccesses = new ArrayDeque<BaseSendableGet>();
 		} else {
 			keysFetching = null;
-			runningInserts = new HashSet<SendableRequestItemKey>();
+			runningInserts = Collections.newSetFromMap(new ConcurrentHashMap<SendableRequestItemKey, Boolean>());
 			recentSuccesses = null;
 		}
-		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		priorities = new AtomicReferenceArray<RequestClientRGANode>(RequestStarter.NUMBER_OF_PRIORITY_CLASSES);
 	}
 	
 	private static volatile boolean logMINOR;
@@ -135,19 +147,27 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	 * but that thread hasn't started yet. FIXME: Both issues can be avoided: first we'd get 
 	 * rid of the SenderThread and start the requests directly and asynchronously, secondly
 	 * we'd move this to node but only track keys we are fetching at max HTL.
-	 * LOCKING: Always lock this LAST.
+	 * The value is the transient requests waiting for the key to finish fetching (usually an 
+	 * empty array), which we wake up when it is removed. 
+	 * LOCKING: Concurrent. Entries are only changed atomically (putIfAbsent(), replace(), 
+	 * remove()), so a request can't be added to the waiting list after the key has been removed
+	 * and its waiters woken.
 	 */
-	private transient HashSet<Key> keysFetching;
+	private transient final ConcurrentHashMap<Key, WeakReference<BaseSendableGet>[]> keysFetching;
 	
-	private transient HashMap<Key, WeakReference<BaseSendableGet>[]> transientRequestsWaitingForKeysFetching;
+	@SuppressWarnings("unchecked")
+	private static final WeakReference<BaseSendableGet>[] NO_WAITERS = 
+		(WeakReference<BaseSendableGet>[]) new WeakReference<?>[0];
 	
-	private transient final HashSet<SendableRequestItemKey> runningInserts;
+	/** LOCKING: Concurrent set. */
+	private transient final Set<SendableRequestItemKey> runningInserts;
 	
 	/** Choose a priority to start requests from.
 	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * LOCKING: Does not lock. Priorities are only ever added, and the wakeup time and emptiness 
+	 * of each priority can be read without the tree lock, so the worst case is we return a 
+	 * priority which has just become empty, which chooseRequestInner() will deal with. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -159,7 +179,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 		// TWEAKED will do rand%6,0,1,2,3,4,5,6
 		while(iteration++ < RequestStarter.NUMBER_OF_PRIORITY_CLASSES + 1){
 			priority = fuzz<0 ? tweakedPrioritySelector[random.nextInt(tweakedPrioritySelector.length)] : prioritySelector[Math.abs(fuzz % prioritySelector.length)];
-			result = priorities[priority];
+			result = priorities.get(priority);
 			if(result != null) {
 			    long cooldownTime = result.getWakeupTime(context, now);
 			    if(cooldownTime > 0) {
@@ -309,7 +329,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	 * most of the time.
 	 * @return Either a chosen request or the time at which we should try again if all priorities 
 	 * are waiting for requests to finish / cooldown periods to expire. */
-	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context, long now) {
+	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RandomGrabArrayItemExclusionList starter, boolean realTime, ClientContext context, long now) {
 		// Priorities start at 0
 		if(logMINOR) Logger.minor(this, "removeFirst()");
 		boolean tryOfferedKeys = offeredKeys != null && random.nextBoolean();
@@ -336,7 +356,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 		long wakeupTime = Long.MAX_VALUE;
 outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS;choosenPriorityClass++) {
 			if(logMINOR) Logger.minor(this, "Using priority "+choosenPriorityClass);
-			RequestClientRGANode chosenTracker = priorities[choosenPriorityClass];
+			RequestClientRGANode chosenTracker = priorities.get(choosenPriorityClass);
 			if(chosenTracker == null) {
 				if(logMINOR) Logger.minor(this, "No requests to run: chosen priority empty");
 				continue; // Try next priority
@@ -503,42 +523,33 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 	 * @return True unless the key was already present.
 	 */
 	public boolean addToFetching(Key key) {
-		synchronized(keysFetching) {
-			boolean retval = keysFetching.add(key);
-			if(!retval) {
-				Logger.normal(this, "Already in keysFetching: "+key);
-			} else {
-				if(logMINOR)
-					Logger.minor(this, "Added to keysFetching: "+key);
-			}
-			return retval;
+		boolean retval = keysFetching.putIfAbsent(key, NO_WAITERS) == null;
+		if(!retval) {
+			Logger.normal(this, "Already in keysFetching: "+key);
+		} else {
+			if(logMINOR)
+				Logger.minor(this, "Added to keysFetching: "+key);
 		}
+		return retval;
 	}
 	
 	@Override
-	@SuppressWarnings("unchecked")
 	public boolean hasKey(Key key, BaseSendableGet getterWaiting) {
 		if(keysFetching == null) {
 			throw new NullPointerException();
 		}
-		synchronized(keysFetching) {
-			boolean ret = keysFetching.contains(key);
-			if(!ret) return ret;
+		while(true) {
+			WeakReference<BaseSendableGet>[] waiting = keysFetching.get(key);
+			if(waiting == null) return false;
 			// It is being fetched. Add the BaseSendableGet to the wait list so it gets woken up when the request finishes.
-			if(getterWaiting != null) {
-			    WeakReference<BaseSendableGet>[] waiting = transientRequestsWaitingForKeysFetching.get(key);
-			    if(waiting == null) {
-			        transientRequestsWaitingForKeysFetching.put(key, (WeakReference<BaseSendableGet>[])new WeakReference<?>[] { new WeakReference<BaseSendableGet>(getterWaiting) });
-			    } else {
-			        for(WeakReference<BaseSendableGet> ref : waiting) {
-			            if(ref.get() == getterWaiting) return true;
-			        }
-			        WeakReference<BaseSendableGet>[] newWaiting = Arrays.copyOf(waiting, waiting.length+1);
-			        newWaiting[waiting.length] = new WeakReference<BaseSendableGet>(getterWaiting);
-			        transientRequestsWaitingForKeysFetching.put(key, newWaiting);
-			    }
+			if(getterWaiting == null) return true;
+			for(WeakReference<BaseSendableGet> ref : waiting) {
+				if(ref.get() == getterWaiting) return true;
 			}
-			return true;
+			WeakReference<BaseSendableGet>[] newWaiting = Arrays.copyOf(waiting, waiting.length+1);
+			newWaiting[waiting.length] = new WeakReference<BaseSendableGet>(getterWaiting);
+			// Fails if the key has been removed or someone else has added a waiter. Try again.
+			if(keysFetching.replace(key, waiting, newWaiting)) return true;
 		}
 	}
 
@@ -548,17 +559,12 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 		if(logMINOR)
 			Logger.minor(this, "Removing from keysFetching: "+key);
 		if(key != null) {
-			synchronized(keysFetching) {
-				keysFetching.remove(key);
-				transientWaiting = this.transientRequestsWaitingForKeysFetching.remove(key);
-			}
+			transientWaiting = keysFetching.remove(key);
 			if(transientWaiting != null) {
-				if(transientWaiting != null) {
-					for(WeakReference<BaseSendableGet> ref : transientWaiting) {
-						BaseSendableGet get = ref.get();
-						if(get == null) continue;
-						get.clearWakeupTime(sched.getContext());
-					}
+				for(WeakReference<BaseSendableGet> ref : transientWaiting) {
+					BaseSendableGet get = ref.get();
+					if(get == null) continue;
+					get.clearWakeupTime(sched.getContext());
 				}
 			}
 		}
@@ -566,31 +572,25 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 
 	@Override
 	public boolean hasInsert(SendableRequestItemKey token) {
-		synchronized(runningInserts) {
-			return runningInserts.contains(token);
-		}
+		return runningInserts.contains(token);
 	}
 
 	public boolean addRunningInsert(SendableRequestItemKey token) {
-		synchronized(runningInserts) {
-			boolean retval = runningInserts.add(token);
-			if(!retval) {
-			    // This shouldn't happen often, because the chooseBlock()'s should check for it...
-				Logger.error(this, "Already in runningInserts: "+token);
-			} else {
-				if(logMINOR)
-					Logger.minor(this, "Added to runningInserts: "+token);
-			}
-			return retval;
+		boolean retval = runningInserts.add(token);
+		if(!retval) {
+		    // This shouldn't happen often, because the chooseBlock()'s should check for it...
+			Logger.error(this, "Already in runningInserts: "+token);
+		} else {
+			if(logMINOR)
+				Logger.minor(this, "Added to runningInserts: "+token);
 		}
+		return retval;
 	}
 	
 	public void removeRunningInsert(SendableRequestItemKey token) {
 		if(logMINOR)
 			Logger.minor(this, "Removing from runningInserts: "+token);
-		synchronized(runningInserts) {
-			runningInserts.remove(token);
-		}
+		runningInserts.remove(token);
 	}
 
 	@Override
@@ -627,10 +627,11 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
-        RequestClientRGANode clientGrabber = priorities[priorityClass];
+        RequestClientRGANode clientGrabber = priorities.get(priorityClass);
         if(clientGrabber == null) {
+            // Only created here, with the tree lock held.
             clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
+            priorities.set(priorityClass, clientGrabber);
             if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
         }
         // Request
@@ -655,7 +656,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
         synchronized(this) {
             // First by priority
-            RequestClientRGANode clientGrabber = priorities[oldPrio];
+            RequestClientRGANode clientGrabber = priorities.get(oldPrio);
             if(clientGrabber == null) {
                 // Normal as most of the schedulers aren't relevant to any given insert/request.
                 if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
@@ -683,10 +684,30 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         }
     }
 
+    /** @return The number of requests (not keys) queued at each priority. Unlike
+     * countQueuedRequests(), this doesn't ask each request how many keys it has, so it is
+     * cheap enough to call from monitoring. */
+    public synchronized int[] countQueuedRequestsByPriority() {
+        int[] counts = new int[priorities.length()];
+        for(int i=0;i<priorities.length();i++) {
+            RequestClientRGANode prio = priorities.get(i);
+            if(prio == null) continue;
+            for(int k=0;k<prio.size();k++) {
+                ClientRequestRGANode requestGrabber = prio.getGrabber(prio.getClient(k));
+                if(requestGrabber == null) continue;
+                for(int l=0;l<requestGrabber.size();l++) {
+                    RandomGrabArray rga = requestGrabber.getGrabber(requestGrabber.getClient(l));
+                    if(rga != null) counts[i] += rga.size();
+                }
+            }
+        }
+        return counts;
+    }
+
     public synchronized long countQueuedRequests(ClientContext context) {
         long total = 0;
-        for(int i=0;i<priorities.length;i++) {
-            RequestClientRGANode prio = priorities[i];
+        for(int i=0;i<priorities.length();i++) {
+            RequestClientRGANode prio = priorities.get(i);
             if(prio == null || prio.isEmpty())
                 System.out.println("Priority "+i+" : empty");
             else {
@@ -1,5 +1,8 @@
 package freenet.client.async;
 
+import java.util.Collections;
+import java.util.Map;
+
 import freenet.crypt.HashResult;
 import freenet.support.api.Bucket;
 import freenet.support.api.RandomAccessBucket;
@@ -10,8 +13,18 @@ class CompressionOutput {
 		this.data = bestCompressedData;
 		this.bestCodec = bestCodec2;
 		this.hashes = hashes;
+		this.codecTimes = Collections.emptyMap();
+	}
+	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec, HashResult[] hashes,
+			Map<COMPRESSOR_TYPE, Long> codecTimes) {
+		this.data = bestCompressedData;
+		this.bestCodec = bestCodec;
+		this.hashes = hashes;
+		this.codecTimes = codecTimes;
 	}
 	final RandomAccessBucket data;
 	final COMPRESSOR_TYPE bestCodec;
 	final HashResult[] hashes;
+	/** Time spent on each codec which was tried, in milliseconds. */
+	final Map<COMPRESSOR_TYPE, Long> codecTimes;
 }
\ No newline at end of file
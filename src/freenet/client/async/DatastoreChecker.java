@@ -182,18 +182,26 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 		sched = getter.getScheduler(context);
 		boolean anyValid = false;
-		for(Key key : keys) {
+		// Look up all the keys at once, so the store can read the slots in order rather than 
+		// seeking for every key. A big splitfile can have hundreds of thousands of keys, and on
+		// a hard disk doing them one at a time delays the first network request for minutes.
+		KeyBlock[] found;
+		if(blocks != null) {
+			found = new KeyBlock[keys.length];
+			for(int i=0;i<keys.length;i++)
+				found[i] = blocks.get(keys[i]);
+		} else {
+			found = node.fetchAll(keys, true, true, false, false);
+		}
+		for(int i=0;i<keys.length;i++) {
+			Key key = keys[i];
 			if(random != null) {
 				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
 					anyValid = true;
 					continue;
 				}
 			}
-			KeyBlock block;
-			if(blocks != null)
-				block = blocks.get(key);
-			else
-				block = node.fetch(key, true, true, false, false, null);
+			KeyBlock block = found[i];
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
 				if(key instanceof NodeSSK)
@@ -1,14 +1,23 @@
 package freenet.client.async;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
 import freenet.config.Config;
 import freenet.crypt.HashResult;
 import freenet.crypt.MultiHashInputStream;
+import freenet.crypt.MultiHashOutputStream;
 import freenet.keys.CHKBlock;
 import freenet.node.PrioRunnable;
 import freenet.support.LogThresholdCallback;
@@ -22,8 +31,13 @@ import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.CompressionRatioException;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.LimitedCompressionOutputStream;
+import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
+import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.io.NullOutputStream;
 
 /**
  * Compress a file in order to insert it. This class acts as a tag in the database to ensure that inserts
@@ -50,6 +64,12 @@ public class InsertCompressor implements CompressJob {
 	private final boolean pre1254;
 	private final Config config;
 
+	/** If the data is at least this big, and sampleCompressionRatio is enabled, compress some
+	 * samples with each codec first, and skip codecs which don't look worthwhile. */
+	static final long MIN_SIZE_FOR_SAMPLING = 4*1024*1024;
+	static final int SAMPLES = 8;
+	static final int SAMPLE_LENGTH = 64*1024;
+
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
 
@@ -93,128 +113,84 @@ public class InsertCompressor implements CompressJob {
 		long origNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
 		COMPRESSOR_TYPE bestCodec = null;
 		RandomAccessBucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
 		long bestNumberOfBlocks = origNumberOfBlocks;
+		List<CompressionTrial> trials = new ArrayList<CompressionTrial>();
 
 		HashResult[] hashes = null;
 
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
 		// Try to compress the data.
-		// Try each algorithm, starting with the fastest and weakest.
-		// Stop when run out of algorithms, or the compressed data fits in a single block.
+		// Try all the algorithms in parallel, as far as the number of compressor threads allows;
+		// if we only have one thread, they run in order, starting with the fastest and weakest.
+		// Give up on an algorithm as soon as it can't beat one which comes before it in that order,
+		// so we always get the same result as running them one at a time would: The first which
+		// fits in a single block, otherwise the first with the fewest blocks. The codec
+		// determines the CHK, so this must not depend on which thread finishes first.
 		try {
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor);
-			boolean first = true;
 			long amountOfDataToCheckCompressionRatio = config.get("node").getLong("amountOfDataToCheckCompressionRatio");
 			int minimumCompressionPercentage = config.get("node").getInt("minimumCompressionPercentage");
 			int maxTimeForSingleCompressor = config.get("node").getInt("maxTimeForSingleCompressor");
-			for (final COMPRESSOR_TYPE comp : comps) {
-				long compressionStartTime = System.currentTimeMillis();
-				boolean shouldFreeOnFinally = true;
-				RandomAccessBucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+			if(config.get("node").getBoolean("sampleCompressionRatio"))
+				comps = sampleCodecs(comps, origSize, minimumCompressionPercentage);
+			AtomicInteger firstTooSlow = new AtomicInteger(Integer.MAX_VALUE);
+			for(int i=0;i<comps.length;i++) {
+				trials.add(new CompressionTrial(context, comps[i], i, trials, i == 0 && generateHashes != 0,
+						origSize, firstTooSlow, amountOfDataToCheckCompressionRatio,
+						minimumCompressionPercentage, maxTimeForSingleCompressor));
+			}
+			context.rc.runInParallel(trials);
+
+			IOException failure = null;
+			boolean persistenceDisabled = false;
+			for(CompressionTrial trial : trials) {
+				if(trial.failure != null && failure == null) failure = trial.failure;
+				persistenceDisabled |= trial.persistenceDisabled;
+				if(trial.hashes != null) hashes = trial.hashes;
+			}
+			if(persistenceDisabled) {
+				freeResults(trials, null);
+				throw new PersistenceDisabledException();
+			}
+			if(failure != null) {
+				freeResults(trials, null);
+				throw failure;
+			}
 
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
-					try {
-						is = origData.getInputStream();
-						result = bucketFactory.makeBucket(-1);
-						os = result.getOutputStream();
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
-						try {
-							comp.compress(is, os, origSize, bestCompressedDataSize,
-									amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
-						} catch (CompressionOutputSizeException | CompressionRatioException e) {
-							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
-								hashes = hasher.getResults();
-								first = false;
-							}
-							continue; // try next compressor type
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
-						}
-						if(hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
-						}
-					} finally {
-						Closer.close(is);
-						Closer.close(os);
-					}
-					long resultSize = result.size();
-					long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size " + resultSize + " smaller then minSize " + minSize);
-
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultNumberOfBlocks < bestNumberOfBlocks) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch (PersistenceDisabledException e) {
-				    if(!context.jobRunner.shuttingDown())
-				        Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
+			// Prefer the first (fastest) codec which fits in one block, otherwise the smallest, and
+			// the earlier codec if two have the same number of blocks. Ignore any codecs after one
+			// which took too long, as they wouldn't have been tried if we had run them in order.
+			CompressionTrial best = null;
+			for(CompressionTrial trial : trials) {
+				if(trial.order > firstTooSlow.get()) break;
+				if(trial.result == null) continue;
+				long resultNumberOfBlocks = trial.resultSize/CHKBlock.DATA_LENGTH;
+				// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+				if(trial.resultSize <= minSize) {
+					if(logMINOR)
+						Logger.minor(this, "New size " + trial.resultSize + " smaller then minSize " + minSize);
+					best = trial;
+					break;
+				}
+				if(resultNumberOfBlocks < bestNumberOfBlocks) {
+					if(logMINOR)
+						Logger.minor(this, "New size "+trial.resultSize+" ("+resultNumberOfBlocks+" blocks) with "+trial.comp+" better than old best "+bestNumberOfBlocks+" blocks");
+					best = trial;
+					bestNumberOfBlocks = resultNumberOfBlocks;
 				}
+			}
+			freeResults(trials, best);
+			if(best != null) {
+				bestCodec = best.comp;
+				bestCompressedData = best.result;
+			}
 
-				// if one iteration of compression took a lot of time, then we will not try other algorithms
-				if (System.currentTimeMillis() - compressionStartTime > maxTimeForSingleCompressor)
-					break;
+			if(hashes == null && generateHashes != 0) {
+				// The codec which was generating the hashes was skipped or failed.
+				hashes = generateHashes();
 			}
 
-			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
+			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes, getCodecTimes(trials));
 
 			if(persistent) {
 
@@ -250,7 +226,8 @@ public class InsertCompressor implements CompressJob {
 				}, "Insert thread for "+this);
 			}
 		} catch (PersistenceDisabledException e) {
-			Logger.error(this, "Database disabled compressing data", new Exception("error"));
+		    if(!context.jobRunner.shuttingDown())
+		        Logger.error(this, "Database disabled compressing data", new Exception("error"));
 			if(bestCompressedData != null && bestCompressedData != origData)
 				bestCompressedData.free();
 		} catch (InvalidCompressionCodecException e) {
@@ -260,6 +237,247 @@ public class InsertCompressor implements CompressJob {
 		}
 	}
 
+	/** Free the compressed data from all the trials except the one we are going to use. */
+	private void freeResults(List<CompressionTrial> trials, CompressionTrial keep) {
+		for(CompressionTrial trial : trials) {
+			if(trial != keep && trial.result != null) {
+				// Don't need to removeFrom() : we haven't stored it.
+				trial.result.free();
+				trial.result = null;
+			}
+		}
+	}
+
+	private static Map<COMPRESSOR_TYPE, Long> getCodecTimes(List<CompressionTrial> trials) {
+		Map<COMPRESSOR_TYPE, Long> times = new EnumMap<COMPRESSOR_TYPE, Long>(COMPRESSOR_TYPE.class);
+		for(CompressionTrial trial : trials) {
+			if(trial.started)
+				times.put(trial.comp, trial.time);
+		}
+		return times;
+	}
+
+	private HashResult[] generateHashes() throws IOException {
+		MultiHashOutputStream hasher = new MultiHashOutputStream(new NullOutputStream(), generateHashes);
+		BucketTools.copyTo(origData, hasher, origData.size());
+		return hasher.getResults();
+	}
+
+	/**
+	 * Compress a few samples spread across the data with each codec, and drop the codecs which
+	 * don't achieve the minimum compression ratio on them, e.g. because the data is already
+	 * compressed media. This is much cheaper than finding out on the whole file, and unlike the
+	 * ratio check in the codecs, it looks at more than just the beginning of the data.
+	 */
+	private COMPRESSOR_TYPE[] sampleCodecs(COMPRESSOR_TYPE[] comps, long origSize,
+			int minimumCompressionPercentage) throws IOException {
+		if(origSize < MIN_SIZE_FOR_SAMPLING || minimumCompressionPercentage <= 0 || comps.length == 0)
+			return comps;
+		byte[] sample = readSamples(origSize);
+		List<COMPRESSOR_TYPE> keep = new ArrayList<COMPRESSOR_TYPE>(comps.length);
+		for(COMPRESSOR_TYPE comp : comps) {
+			CountedOutputStream cos = new CountedOutputStream(new NullOutputStream());
+			try {
+				comp.compress(new ByteArrayInputStream(sample), cos, sample.length, Long.MAX_VALUE, Long.MAX_VALUE, 0);
+			} catch (IOException | CompressionRatioException | RuntimeException e) {
+				// Let the real attempt deal with it.
+				Logger.normal(this, "Unable to compress sample with "+comp+" : "+e, e);
+				keep.add(comp);
+				continue;
+			}
+			long percentage = 100 - cos.written() * 100 / sample.length;
+			if(percentage < minimumCompressionPercentage) {
+				if(logMINOR) Logger.minor(this, "Skipping "+comp+" for "+this+" : samples only compressed by "+percentage+"%");
+			} else {
+				keep.add(comp);
+			}
+		}
+		return keep.toArray(new COMPRESSOR_TYPE[keep.size()]);
+	}
+
+	/** Read SAMPLES blocks of SAMPLE_LENGTH bytes, evenly spaced from the start to the end of
+	 * the data. */
+	private byte[] readSamples(long origSize) throws IOException {
+		byte[] sample = new byte[SAMPLES * SAMPLE_LENGTH];
+		long stride = (origSize - SAMPLE_LENGTH) / (SAMPLES - 1);
+		DataInputStream dis = new DataInputStream(origData.getInputStream());
+		try {
+			long pos = 0;
+			for(int i=0;i<SAMPLES;i++) {
+				long offset = i * stride;
+				FileUtil.skipFully(dis, offset - pos);
+				dis.readFully(sample, i * SAMPLE_LENGTH, SAMPLE_LENGTH);
+				pos = offset + SAMPLE_LENGTH;
+			}
+		} finally {
+			dis.close();
+		}
+		return sample;
+	}
+
+	/**
+	 * Compresses the whole of the data with one codec. Several of these may run at the same
+	 * time. Each has a limit on the output size, which is lowered whenever a trial before it in
+	 * the list finishes, to the largest size which would still have fewer blocks, so that it
+	 * stops as soon as it can't beat that result. A trial never affects the ones before it.
+	 */
+	private class CompressionTrial implements Runnable {
+
+		final COMPRESSOR_TYPE comp;
+		/** Index in the list of trials. Earlier codecs are preferred. */
+		final int order;
+		private final List<CompressionTrial> trials;
+		private final ClientContext context;
+		/** Generate the hashes while we are reading the data anyway. */
+		private final boolean generateHashes;
+		/** Maximum output size in bytes, or -1 if an earlier codec fits in one block. */
+		private final AtomicLong limit;
+		/** The order of the first codec which took too long. We don't start any after it. */
+		private final AtomicInteger firstTooSlow;
+		private final long amountOfDataToCheckCompressionRatio;
+		private final int minimumCompressionPercentage;
+		private final int maxTimeForSingleCompressor;
+		/** The compressed data, if it is smaller than the original data. */
+		RandomAccessBucket result;
+		long resultSize;
+		HashResult[] hashes;
+		/** False if the trial was skipped because we already have a good enough result. */
+		boolean started;
+		/** Time taken in milliseconds. */
+		long time;
+		IOException failure;
+		boolean persistenceDisabled;
+
+		CompressionTrial(ClientContext context, COMPRESSOR_TYPE comp, int order,
+				List<CompressionTrial> trials, boolean generateHashes, long origSize,
+				AtomicInteger firstTooSlow, long amountOfDataToCheckCompressionRatio,
+				int minimumCompressionPercentage, int maxTimeForSingleCompressor) {
+			this.context = context;
+			this.comp = comp;
+			this.order = order;
+			this.trials = trials;
+			this.generateHashes = generateHashes;
+			this.limit = new AtomicLong(origSize);
+			this.firstTooSlow = firstTooSlow;
+			this.amountOfDataToCheckCompressionRatio = amountOfDataToCheckCompressionRatio;
+			this.minimumCompressionPercentage = minimumCompressionPercentage;
+			this.maxTimeForSingleCompressor = maxTimeForSingleCompressor;
+		}
+
+		@Override
+		public void run() {
+			// if one compressor took a lot of time, then we will not try other algorithms
+			if(firstTooSlow.get() < order || limit.get() < 0) return;
+			started = true;
+			long startTime = System.currentTimeMillis();
+			try {
+				compress();
+			} catch (PersistenceDisabledException e) {
+				persistenceDisabled = true;
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				time = System.currentTimeMillis() - startTime;
+				if(time > maxTimeForSingleCompressor)
+					lower(firstTooSlow, order);
+			}
+		}
+
+		/** Lower a limit, unless it is already lower. */
+		private void lower(AtomicLong limit, long newLimit) {
+			while(true) {
+				long oldLimit = limit.get();
+				if(newLimit >= oldLimit || limit.compareAndSet(oldLimit, newLimit)) return;
+			}
+		}
+
+		private void lower(AtomicInteger limit, int newLimit) {
+			while(true) {
+				int oldLimit = limit.get();
+				if(newLimit >= oldLimit || limit.compareAndSet(oldLimit, newLimit)) return;
+			}
+		}
+
+		private void compress() throws IOException, PersistenceDisabledException {
+			if(logMINOR)
+				Logger.minor(this, "Attempt to compress using " + comp);
+			// Only produce if we are compressing *the original data*
+			if(persistent) {
+				context.jobRunner.queue(new PersistentJob() {
+
+					@Override
+					public boolean run(ClientContext context) {
+						inserter.onStartCompression(comp, context);
+						return false;
+					}
+
+				}, NativeThread.NORM_PRIORITY+1);
+			} else {
+				try {
+					inserter.onStartCompression(comp, context);
+				} catch (Throwable t) {
+					Logger.error(this, "Transient insert callback threw "+t, t);
+				}
+			}
+
+			long origSize = origData.size();
+			RandomAccessBucket bucket = bucketFactory.makeBucket(-1);
+			boolean success = false;
+			InputStream is = null;
+			OutputStream os = null;
+			MultiHashInputStream hasher = null;
+			try {
+				is = origData.getInputStream();
+				os = new LimitedCompressionOutputStream(bucket.getOutputStream(), limit);
+				if(generateHashes) {
+					if(logMINOR) Logger.minor(this, "Generating hashes: "+InsertCompressor.this.generateHashes);
+					is = hasher = new MultiHashInputStream(is, InsertCompressor.this.generateHashes);
+				}
+				try {
+					comp.compress(is, os, origSize, limit.get(),
+							amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+				} catch (CompressionOutputSizeException | CompressionRatioException e) {
+					if(logMINOR) Logger.minor(this, "Giving up on "+comp+" : "+e);
+					if(hasher != null) {
+						is.skip(Long.MAX_VALUE);
+						hashes = hasher.getResults();
+					}
+					return;
+				} catch (RuntimeException e) {
+					// ArithmeticException has been seen in bzip2 codec.
+					Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+					// RuntimeException is iffy, so lets not try the hasher.
+					return;
+				}
+				if(hasher != null)
+					hashes = hasher.getResults();
+				success = true;
+			} finally {
+				Closer.close(is);
+				Closer.close(os);
+				if(!success)
+					bucket.free();
+			}
+			resultSize = bucket.size();
+			result = bucket;
+			// Later codecs now have to beat this, i.e. produce fewer blocks or fit in one block,
+			// and if it fits in one block, they can stop.
+			long newLimit;
+			if(resultSize <= minSize)
+				newLimit = -1;
+			else
+				newLimit = Math.max(resultSize / CHKBlock.DATA_LENGTH * CHKBlock.DATA_LENGTH - 1, minSize);
+			for(int i=order+1;i<trials.size();i++)
+				lower(trials.get(i).limit, newLimit);
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+comp+" for "+InsertCompressor.this;
+		}
+
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
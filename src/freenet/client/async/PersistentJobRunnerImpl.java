@@ -8,6 +8,8 @@ import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.io.NativeThread;
+import freenet.support.jfr.CheckpointEvent;
+import freenet.support.jfr.JFR;
 
 /** Runs PersistentJob's and periodically, or on demand, suspends all jobs and calls 
  * innerCheckpoint(). */
@@ -201,6 +203,7 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
                 return;
             }
         }
+        CheckpointEvent event = JFR.AVAILABLE ? CheckpointEvent.start() : null;
         synchronized(serializeCheckpoints) {
             try {
                 innerCheckpoint(shutdown);
@@ -208,10 +211,12 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
                 Logger.error(this, "Unable to save: "+t, t);
             }
         }
+        int queued;
         synchronized(sync) {
             mustCheckpoint = false;
             writing = false;
             QueuedJob[] jobs = queuedJobs.toArray(new QueuedJob[queuedJobs.size()]);
+            queued = jobs.length;
             if(logDEBUG) Logger.debug(this, "Starting "+jobs.length+" queued jobs");
             for(QueuedJob job : jobs) {
                 runningJobs++;
@@ -221,6 +226,7 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
             queuedJobs.clear();
             sync.notifyAll();
         }
+        if(event != null) event.finish(shutdown, queued);
         if(logMINOR) Logger.minor(this, "Completed writing checkpoint");
     }
     
@@ -167,8 +167,10 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         raf = storage.getRAF();
         if(logMINOR)
             Logger.minor(this, "Created "+(persistent?"persistent" : "transient")+" download for "+
-                    thisKey+" on "+raf+" for "+this);
+                    thisKey+" on "+raf+" for "+this+(storage.stream != null ? " (streaming)" : ""));
         lastNotifiedStoreFetch = System.currentTimeMillis();
+        if(storage.stream != null)
+            fetchContext.streamingCallback.onStreamStart(storage.stream);
     }
     
     protected SplitFileFetcher() {
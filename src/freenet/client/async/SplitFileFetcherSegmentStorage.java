@@ -927,14 +927,31 @@ public class SplitFileFetcherSegmentStorage {
         // FIXME if we use readAllBlocks() we'll need to run on the memory limited queue???
         for(int i=0;i<dataBlocks;i++) { // Don't include cross-check blocks.
             byte[] buf = readBlock(i);
-            if(i == dataBlocks-1 && this.segNo == parent.segments.length-1) {
-                int length = (int) (parent.finalLength % CHKBlock.DATA_LENGTH);
-                if(length == 0) length = CHKBlock.DATA_LENGTH;
-                os.write(buf, 0, length);
-            } else {
-                os.write(buf);
-            }
+            os.write(buf, 0, dataBlockLength(i));
+        }
+    }
+    
+    /** Read a single decoded data block, e.g. for streaming the download before the whole 
+     * splitfile has completed. Only valid once the segment has succeeded, at which point the data
+     * blocks are in their final positions and will not be changed. The caller must hold a RAF lock.
+     * @return The block, truncated to the final length if it is the last block of the file. */
+    byte[] readDecodedDataBlock(int i) throws IOException {
+        if(i < 0 || i >= dataBlocks) throw new IllegalArgumentException();
+        byte[] buf = readBlock(i);
+        int length = dataBlockLength(i);
+        if(length == buf.length) return buf;
+        return Arrays.copyOf(buf, length);
+    }
+    
+    /** Number of bytes of data block i which are part of the final data. Only the last block of 
+     * the last segment is truncated. */
+    int dataBlockLength(int i) {
+        if(i == dataBlocks-1 && this.segNo == parent.segments.length-1) {
+            int length = (int) (parent.finalLength % CHKBlock.DATA_LENGTH);
+            if(length == 0) length = CHKBlock.DATA_LENGTH;
+            return length;
         }
+        return CHKBlock.DATA_LENGTH;
     }
 
     /** Read a single block from a specific slot, which could be any block number. 
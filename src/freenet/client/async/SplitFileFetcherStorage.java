@@ -227,6 +227,11 @@ public class SplitFileFetcherStorage {
      * startup. */
     private List<SplitFileFetcherSegmentStorage> segmentsToTryDecode;
     
+    /** Non-null if the client wants to read the data while the download is in progress. In that
+     * case we fetch the segments in order. Only for transient downloads where the data on disk is
+     * exactly the final data. */
+    final SplitFileFetcherStream stream;
+    
     /** Construct a new SplitFileFetcherStorage from metadata. Creates the RandomAccessBuffer and
      * writes the initial data to it. There is another constructor for resuming a download. 
      * @param metadata
@@ -454,6 +459,11 @@ public class SplitFileFetcherStorage {
             assert(crossCheckBlocksOffset == storedCrossCheckBlocksLength + storedBlocksLength);
         assert(segmentKeysOffset == storedBlocksLength + storedCrossCheckBlocksLength + storedKeysLength);
         assert(segmentStatusOffset == storedBlocksLength + storedCrossCheckBlocksLength + storedKeysLength + storedSegmentStatusLength);
+        if(origFetchContext.streamingCallback != null && isFinalFetch && decompressors.isEmpty() &&
+                !origFetchContext.filterData && !persistent && storageFile == null)
+            stream = new SplitFileFetcherStream(this);
+        else
+            stream = null;
         /* Lie about the required number of blocks. For a cross-segment splitfile, the actual 
          * number of blocks needed is somewhere between splitfileDataBlocks and 
          * splitfileDataBlocks + totalCrossCheckBlocks depending on what order we fetch them in. 
@@ -634,6 +644,7 @@ public class SplitFileFetcherStorage {
         this.cooldownLength = origContext.getCooldownTime();
         this.errors = new FailureCodeTracker(false); // FIXME persist???
         this.completeViaTruncation = completeViaTruncation;
+        this.stream = null; // Persistent, never streamed.
         // FIXME this is hideous! Rewrite the writing/parsing code here in a less ugly way. However, it works...
         rafLength = raf.size();
         if(raf.size() < 8 /* FIXME more! */)
@@ -1131,6 +1142,7 @@ public class SplitFileFetcherStorage {
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "finishedSuccess on "+this+" from "+segment+" for "+fetcher, new Exception("debug"));
+        if(stream != null) stream.onSegmentSucceeded();
         if(!(completeViaTruncation || fetcher.wantBinaryBlob()))
             maybeComplete();
     }
@@ -1312,6 +1324,8 @@ public class SplitFileFetcherStorage {
     /** Shutdown and free resources. CONCURRENCY: Caller is responsible for making sure this is 
      * not called on a MemoryLimitedJob thread. */
     void close() {
+        // Will be called again when the last streaming reader is closed.
+        if(stream != null && !stream.canClose()) return;
         if(logMINOR) Logger.minor(this, "Finishing "+this+" for "+fetcher, new Exception("debug"));
         raf.close();
         raf.free();
@@ -1357,6 +1371,7 @@ public class SplitFileFetcherStorage {
      */
     public void fail(final FetchException e) {
         if(logMINOR) Logger.minor(this, "Failing "+this+" with error "+e+" and codes "+errors);
+        if(stream != null) stream.onFailed(e);
         jobRunner.queueNormalOrDrop(new PersistentJob() {
             
             @Override
@@ -1378,6 +1393,7 @@ public class SplitFileFetcherStorage {
 
     public void failOnDiskError(final IOException e) {
         Logger.error(this, "Failing on disk error: "+e, e);
+        if(stream != null) stream.onFailed(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
         jobRunner.queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -1391,6 +1407,7 @@ public class SplitFileFetcherStorage {
 
     public void failOnDiskError(final ChecksumFailedException e) {
         Logger.error(this, "Failing on unrecoverable corrupt data: "+e, e);
+        if(stream != null) stream.onFailed(new FetchException(FetchExceptionMode.BUCKET_ERROR, e));
         jobRunner.queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -1494,6 +1511,29 @@ public class SplitFileFetcherStorage {
         synchronized(this) {
             if(finishedFetcher) return null;
         }
+        if(stream != null) {
+            // Streaming: First fetch the segments a range reader is waiting for, e.g. an HTTP
+            // range request after a seek. Then fetch the earliest segment that has anything to 
+            // fetch, so the data becomes readable in order. Keys already being fetched are skipped
+            // by the segment, so we still run many requests in parallel, and move on to later 
+            // segments once all of an earlier segment's keys are running or in cooldown.
+            if(stream.hasWantedSegments()) {
+                for(SplitFileFetcherSegmentStorage segment : segments) {
+                    if(!stream.isWanted(segment.segNo)) continue;
+                    int ret = segment.chooseRandomKey();
+                    if (ret != -1) {
+                        return new MyKey(ret, segment.segNo, this);
+                    }
+                }
+            }
+            for(SplitFileFetcherSegmentStorage segment : segments) {
+                int ret = segment.chooseRandomKey();
+                if (ret != -1) {
+                    return new MyKey(ret, segment.segNo, this);
+                }
+            }
+            return null;
+        }
         // Generally segments are fairly well balanced, so we can usually pick a random segment 
         // then a random key from it.
         // FIXME OPT SCALABILITY A simpler option might be just to have one SplitFileFetcherGet per
@@ -1516,6 +1556,7 @@ public class SplitFileFetcherStorage {
         synchronized(this) {
             cancelled = true;
         }
+        if(stream != null) stream.onFailed(new FetchException(FetchExceptionMode.CANCELLED));
         for(SplitFileFetcherSegmentStorage segment : segments)
             segment.cancel();
         if(crossSegments != null) {
@@ -0,0 +1,382 @@
+package freenet.client.async;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import freenet.client.FetchException;
+import freenet.keys.CHKBlock;
+import freenet.support.Logger;
+import freenet.support.api.LockableRandomAccessBuffer.RAFLock;
+
+/** Read access to a transient splitfile download while it is still running. A reader blocks until
+ * the segment it needs has been fetched and decoded. When a stream exists, 
+ * SplitFileFetcherStorage.chooseRandomKey() prefers blocks from segments which a reader is blocked
+ * waiting for, and after that from earlier segments, so the start of the file, or the range
+ * requested e.g. by a video player seeking, is usually readable long before the whole file has 
+ * been downloaded. A reader only asks for the segment it is waiting for and the next
+ * READAHEAD_SEGMENTS of its range, and only while it is waiting, so a reader which has been opened
+ * but isn't reading, or which is reading the whole file in order, doesn't take priority away from
+ * a seek.
+ *
+ * The storage will not be freed while there are open readers, so callers must always close() the
+ * InputStream.
+ *
+ * LOCKING: Synchronizes on itself. Must not be held while calling the storage or the segments.
+ */
+public class SplitFileFetcherStream {
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(SplitFileFetcherStream.class);
+    }
+
+    /** Notified when more of the data can be read without blocking. */
+    public interface ReadableListener {
+        /** Called without holding any locks, on the thread which decoded the segment, so must
+         * not block. */
+        void onReadable();
+    }
+
+    /** Number of segments after the one a blocked reader is waiting for which are also wanted. */
+    static final int READAHEAD_SEGMENTS = 1;
+
+    private final SplitFileFetcherStorage storage;
+    /** When the stream was created, i.e. when the splitfile fetch started. */
+    private final long startTime;
+    /** When the first segment became readable, or 0 if it isn't yet. */
+    private long firstSegmentTime;
+    /** Offset of the first byte of each segment in the data. */
+    private final long[] segmentOffsets;
+    /** Readiness map: True for each segment which has been decoded and can be read. */
+    private final boolean[] readable;
+    /** Number of segments at the start of the file which have been decoded and can be read. */
+    private int readableSegments;
+    /** Number of readers which need each segment and don't have it yet. */
+    private final int[] wanted;
+    /** Sum of wanted[]. Volatile so the fetcher can check it cheaply for every key. */
+    private volatile int totalWanted;
+    /** Set if the download failed or was cancelled. No more data will become readable. */
+    private FetchException failed;
+    /** Number of open InputStream's. */
+    private int readers;
+    /** The storage wanted to close while readers were open. The last reader will close it. */
+    private boolean closeDeferred;
+    /** The storage has been closed and freed. No more readers can be opened. */
+    private boolean closed;
+    private final CopyOnWriteArrayList<ReadableListener> listeners =
+        new CopyOnWriteArrayList<ReadableListener>();
+
+    /** Must be called after the storage has created its segments. */
+    SplitFileFetcherStream(SplitFileFetcherStorage storage) {
+        this.storage = storage;
+        this.startTime = System.currentTimeMillis();
+        SplitFileFetcherSegmentStorage[] segments = storage.segments;
+        segmentOffsets = new long[segments.length];
+        long offset = 0;
+        for(int i=0;i<segments.length;i++) {
+            segmentOffsets[i] = offset;
+            offset += (long)segments[i].dataBlocks * CHKBlock.DATA_LENGTH;
+        }
+        readable = new boolean[segments.length];
+        wanted = new int[segments.length];
+    }
+
+    /** Length of the data. Known in advance, since we only stream if the data on disk is exactly
+     * the data the client will get. */
+    public long size() {
+        return storage.finalLength;
+    }
+
+    /** The MIME type from the metadata, if any. */
+    public String getMIMEType() {
+        return storage.clientMetadata.getMIMEType();
+    }
+
+    /** @return The number of milliseconds between the start of the splitfile fetch and the first
+     * segment becoming readable, i.e. roughly the time to first byte for a streaming client, or
+     * -1 if nothing is readable yet. */
+    public synchronized long getTimeToFirstSegment() {
+        if(firstSegmentTime == 0) return -1;
+        return firstSegmentTime - startTime;
+    }
+
+    /** @return The number of segments, counting from the start of the file, which can be read
+     * without blocking. */
+    public synchronized int countReadableSegments() {
+        return readableSegments;
+    }
+
+    /** @return A copy of the readiness map: True for each segment which can be read. */
+    public synchronized boolean[] getReadableSegments() {
+        return readable.clone();
+    }
+
+    /** @return The number of bytes at the start of the data which can be read without
+     * blocking. */
+    public synchronized long getReadableLength() {
+        if(readableSegments == readable.length) return size();
+        return segmentOffsets[readableSegments];
+    }
+
+    /** Call the listener whenever more segments become readable. */
+    public void addReadableListener(ReadableListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeReadableListener(ReadableListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** @return True if the given range of bytes can be read without blocking. */
+    public synchronized boolean isRangeReadable(long offset, long length) {
+        checkRange(offset, length);
+        if(length == 0) return true;
+        for(int i=segmentFor(offset);i<=segmentFor(offset+length-1);i++) {
+            if(!readable[i]) return false;
+        }
+        return true;
+    }
+
+    /** Wait until the given range of bytes can be read. The segments covering it will be fetched
+     * before any others while we are waiting.
+     * @throws IOException If the download fails or is cancelled, or we are interrupted. */
+    public void awaitRange(long offset, long length) throws IOException {
+        checkRange(offset, length);
+        if(length == 0) return;
+        int first = segmentFor(offset);
+        int last = segmentFor(offset+length-1);
+        want(first, last, 1);
+        try {
+            for(int i=first;i<=last;i++)
+                waitForSegment(i);
+        } finally {
+            want(first, last, -1);
+        }
+    }
+
+    /** Open a new reader, starting at the beginning of the data. The caller must close() it.
+     * @throws IOException If the download has already completed and been freed. */
+    public InputStream getInputStream() throws IOException {
+        return getInputStream(0, size());
+    }
+
+    /** Open a new reader for part of the data. While the reader is blocked, the segment it is
+     * waiting for will be fetched before any others. The caller must close() it.
+     * @throws IOException If the download has already completed and been freed. */
+    public InputStream getInputStream(long offset, long length) throws IOException {
+        checkRange(offset, length);
+        synchronized(this) {
+            if(closed) throw new IOException("Download has already finished and been freed");
+            readers++;
+        }
+        return new SegmentInputStream(offset, length);
+    }
+
+    private void checkRange(long offset, long length) {
+        if(offset < 0 || length < 0 || offset + length > size())
+            throw new IllegalArgumentException("Invalid range "+offset+" length "+length+" of "+size());
+    }
+
+    /** @return The segment containing the given byte offset. */
+    private int segmentFor(long offset) {
+        int i = Arrays.binarySearch(segmentOffsets, offset);
+        if(i < 0) i = -i - 2;
+        return i;
+    }
+
+    /** Register or unregister interest in a range of segments. */
+    private synchronized void want(int first, int last, int delta) {
+        for(int i=first;i<=last;i++)
+            wanted[i] += delta;
+        totalWanted += delta * (last - first + 1);
+    }
+
+    /** Called by the fetcher for each key it chooses, so should be cheap.
+     * @return True if any reader is waiting for a specific segment. */
+    boolean hasWantedSegments() {
+        return totalWanted > 0;
+    }
+
+    /** @return True if a reader is waiting for the segment and it has not been decoded yet. */
+    synchronized boolean isWanted(int segmentNumber) {
+        return wanted[segmentNumber] > 0 && !readable[segmentNumber];
+    }
+
+    /** Called by the storage when a segment has been decoded. */
+    void onSegmentSucceeded() {
+        SplitFileFetcherSegmentStorage[] segments = storage.segments;
+        boolean[] succeeded = new boolean[segments.length];
+        for(int i=0;i<segments.length;i++)
+            succeeded[i] = segments[i].hasSucceeded();
+        synchronized(this) {
+            boolean changed = false;
+            for(int i=0;i<segments.length;i++) {
+                if(succeeded[i] && !readable[i]) {
+                    readable[i] = true;
+                    changed = true;
+                }
+            }
+            if(!changed) return;
+            if(firstSegmentTime == 0) {
+                firstSegmentTime = System.currentTimeMillis();
+                if(logMINOR) Logger.minor(this, "First segment readable after "+
+                        (firstSegmentTime - startTime)+"ms for "+storage);
+            }
+            while(readableSegments < readable.length && readable[readableSegments])
+                readableSegments++;
+            notifyAll();
+        }
+        for(ReadableListener listener : listeners)
+            listener.onReadable();
+    }
+
+    /** Called by the storage when the download fails or is cancelled. Readers waiting for data
+     * will get an IOException. */
+    synchronized void onFailed(FetchException e) {
+        if(failed == null) failed = e;
+        notifyAll();
+    }
+
+    /** Called by the storage when it wants to close and free the underlying storage.
+     * @return True if it can do so now. False if there are readers, in which case the last
+     * reader to close will call SplitFileFetcherStorage.close() again. */
+    synchronized boolean canClose() {
+        if(readers > 0) {
+            if(logMINOR) Logger.minor(this, "Deferring close of "+storage+" for "+readers+" readers");
+            closeDeferred = true;
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    private void readerClosed() {
+        synchronized(this) {
+            readers--;
+            if(readers > 0 || !closeDeferred) return;
+            closeDeferred = false;
+        }
+        storage.close();
+    }
+
+    private synchronized void waitForSegment(int segmentNumber) throws IOException {
+        while(!readable[segmentNumber]) {
+            if(failed != null)
+                throw new IOException("Download failed: "+failed.getMessage(), failed);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /** Wait for the segment a reader is at, wanting it and the next READAHEAD_SEGMENTS segments up
+     * to lastSegment while we are blocked. */
+    private void awaitSegment(int segmentNumber, int lastSegment) throws IOException {
+        synchronized(this) {
+            if(readable[segmentNumber]) return;
+        }
+        int last = Math.min(segmentNumber + READAHEAD_SEGMENTS, lastSegment);
+        want(segmentNumber, last, 1);
+        try {
+            waitForSegment(segmentNumber);
+        } finally {
+            want(segmentNumber, last, -1);
+        }
+    }
+
+    private class SegmentInputStream extends InputStream {
+
+        private int segmentNumber;
+        private int blockNumber;
+        private byte[] buf;
+        private int bufOffset;
+        /** Bytes to skip at the start of the first block read. */
+        private int skip;
+        /** Bytes left to return. */
+        private long remaining;
+        /** The last segment we need. Readahead doesn't go past it. */
+        private final int lastSegment;
+        private volatile boolean closedStream;
+
+        SegmentInputStream(long offset, long length) {
+            remaining = length;
+            if(length == 0) {
+                segmentNumber = lastSegment = storage.segments.length;
+                return;
+            }
+            segmentNumber = segmentFor(offset);
+            long inSegment = offset - segmentOffsets[segmentNumber];
+            blockNumber = (int) (inSegment / CHKBlock.DATA_LENGTH);
+            skip = (int) (inSegment % CHKBlock.DATA_LENGTH);
+            lastSegment = segmentFor(offset + length - 1);
+        }
+
+        /** Make sure we have some data in the buffer, blocking if necessary.
+         * @return False if we have reached the end of the data. */
+        private boolean fill() throws IOException {
+            if(closedStream) throw new IOException("Already closed");
+            if(remaining == 0) return false;
+            SplitFileFetcherSegmentStorage[] segments = storage.segments;
+            while(buf == null || bufOffset == buf.length) {
+                SplitFileFetcherSegmentStorage segment = segments[segmentNumber];
+                if(blockNumber == segment.dataBlocks) {
+                    // Finished with this segment.
+                    segmentNumber++;
+                    blockNumber = 0;
+                    continue;
+                }
+                awaitSegment(segmentNumber, lastSegment);
+                RAFLock lock = storage.lockRAFOpen();
+                try {
+                    buf = segment.readDecodedDataBlock(blockNumber);
+                } finally {
+                    lock.unlock();
+                }
+                blockNumber++;
+                bufOffset = skip;
+                skip = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!fill()) return -1;
+            remaining--;
+            return buf[bufOffset++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            if(length == 0) return 0;
+            if(!fill()) return -1;
+            length = (int) Math.min(Math.min(length, buf.length - bufOffset), remaining);
+            System.arraycopy(buf, bufOffset, data, offset, length);
+            bufOffset += length;
+            remaining -= length;
+            return length;
+        }
+
+        @Override
+        public int available() {
+            if(buf == null || closedStream) return 0;
+            return (int) Math.min(buf.length - bufOffset, remaining);
+        }
+
+        @Override
+        public void close() {
+            synchronized(this) {
+                if(closedStream) return;
+                closedStream = true;
+            }
+            readerClosed();
+        }
+
+    }
+
+}
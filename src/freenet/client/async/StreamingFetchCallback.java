@@ -0,0 +1,20 @@
+package freenet.client.async;
+
+/** Callback for clients which want to read a download while it is still in progress. Set via
+ * FetchContext.streamingCallback. Only used for transient, unfiltered, uncompressed splitfiles
+ * which are the final fetch of the request, i.e. the data on disk is exactly what the client
+ * will get. In that case the splitfile fetcher prefers to fetch earlier segments first, and calls
+ * onStreamStart() once the storage has been created.
+ *
+ * Not persisted: It only makes sense while the original client is connected.
+ */
+public interface StreamingFetchCallback {
+
+    /** Called when a streamable splitfile fetch has started. Called at most once per splitfile,
+     * but a request may in rare cases create more than one splitfile fetcher (e.g. if it is
+     * restarted), so the callee should ignore later calls if it is already reading. The callee
+     * should call getInputStream() promptly if it wants the data: Once the fetch completes and
+     * nobody is reading, the storage will be freed. */
+    void onStreamStart(SplitFileFetcherStream stream);
+
+}
@@ -3,6 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.events;
 
+import java.util.Collections;
+import java.util.Map;
+
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
 public class FinishedCompressionEvent implements ClientEvent {
 
 	static final int code = 0x09;
@@ -13,16 +18,24 @@ public class FinishedCompressionEvent implements ClientEvent {
 	public final long originalSize;
 	/** Compressed size */
 	public final long compressedSize;
+	/** Time spent on each codec which was tried, in milliseconds. Codecs which were skipped
+	 * are not included. */
+	public final Map<COMPRESSOR_TYPE, Long> codecTimes;
 
 	public FinishedCompressionEvent(int codec, long origSize, long compressedSize) {
+		this(codec, origSize, compressedSize, Collections.<COMPRESSOR_TYPE, Long>emptyMap());
+	}
+
+	public FinishedCompressionEvent(int codec, long origSize, long compressedSize, Map<COMPRESSOR_TYPE, Long> codecTimes) {
 		this.codec = codec;
 		this.originalSize = origSize;
 		this.compressedSize = compressedSize;
+		this.codecTimes = codecTimes;
 	}
 
 	@Override
 	public String getDescription() {
-		return "Compressed data: codec="+codec+", origSize="+originalSize+", compressedSize="+compressedSize;
+		return "Compressed data: codec="+codec+", origSize="+originalSize+", compressedSize="+compressedSize+", times="+codecTimes;
 	}
 
 	@Override
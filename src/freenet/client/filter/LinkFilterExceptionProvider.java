@@ -44,4 +44,14 @@ public interface LinkFilterExceptionProvider {
 	 */
 	public boolean isLinkExcepted(URI link);
 
+	/**
+	 * Returns a number which changes whenever the answer of
+	 * {@link #isLinkExcepted(URI)} may have changed for some link, e.g. because
+	 * a plugin has registered a toadlet, so that the output of the filter can
+	 * be cached.
+	 *
+	 * @return The version of the link filter exceptions
+	 */
+	public int getExceptionsVersion();
+
 }
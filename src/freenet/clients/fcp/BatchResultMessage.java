@@ -0,0 +1,148 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+
+/**
+ * The results of some of the requests in a ClientGetBatch or ClientPutBatch. Each result is the
+ * message which would have been sent for a single request (DataFound, GetFailed, PutSuccessful,
+ * PutFailed, or ProtocolError if the request could not be started), under Result.[n], with the
+ * message name as Type. For a fetch with ReturnType=direct, the data for each DataFound follows
+ * the message in order, and Result.[n].DataLength is its length.
+ *
+ * Example:
+ *
+ * BatchResult
+ * Identifier=Index fetch 1
+ * Global=false
+ * Count=2
+ * Finished=false
+ * Result.0.Type=DataFound
+ * Result.0.Identifier=Index fetch 1-0
+ * Result.0.DataLength=1234
+ * Result.0.Metadata.ContentType=text/plain
+ * Result.1.Type=GetFailed
+ * Result.1.Identifier=Index fetch 1-1
+ * Result.1.Code=13
+ * ...
+ * DataLength=1234
+ * Data
+ * [1234 bytes of data]
+ *
+ * Finished=true on the last BatchResult for the batch.
+ */
+public class BatchResultMessage extends BaseDataCarryingMessage {
+
+	static final String NAME = "BatchResult";
+
+	final String identifier;
+	final boolean global;
+	private final List<FCPMessage> results = new ArrayList<FCPMessage>();
+	/** The data for each result, or null. */
+	private final List<Bucket> data = new ArrayList<Bucket>();
+	private long dataLength;
+	private boolean finished;
+	private boolean freeOnSent;
+
+	BatchResultMessage(String identifier, boolean global) {
+		this.identifier = identifier;
+		this.global = global;
+	}
+
+	void add(FCPMessage result, Bucket resultData) {
+		results.add(result);
+		data.add(resultData);
+		if(resultData != null)
+			dataLength += resultData.size();
+	}
+
+	int count() {
+		return results.size();
+	}
+
+	void setFinished() {
+		finished = true;
+	}
+
+	void setFreeOnSent() {
+		freeOnSent = true;
+	}
+
+	/** Free the data if we were supposed to free it after sending it, but won't send it now. */
+	void freeData() {
+		if(!freeOnSent) return;
+		for(Bucket b : data)
+			if(b != null) b.free();
+	}
+
+	@Override
+	long dataLength() {
+		return dataLength;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Global", global);
+		fs.put("Count", results.size());
+		fs.put("Finished", finished);
+		SimpleFieldSet all = new SimpleFieldSet(true);
+		for(int i=0;i<results.size();i++) {
+			FCPMessage result = results.get(i);
+			SimpleFieldSet r = result.getFieldSet();
+			r.removeValue("Global");
+			r.putSingle("Type", result.getName());
+			Bucket b = data.get(i);
+			if(b != null)
+				r.putOverwrite("DataLength", Long.toString(b.size()));
+			all.put(Integer.toString(i), r);
+		}
+		fs.tput("Result", all);
+		if(dataLength > 0)
+			fs.put("DataLength", dataLength);
+		return fs;
+	}
+
+	@Override
+	String getEndString() {
+		return dataLength > 0 ? "Data" : "EndMessage";
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	protected void writeData(OutputStream os) throws IOException {
+		for(Bucket b : data) {
+			if(b == null) continue;
+			if(b.size() > 0)
+				DataCarryingMessage.writeBucket(b, os, b.size());
+			if(freeOnSent) b.free(); // Always transient so no removeFrom() needed.
+		}
+	}
+
+	@Override
+	public void readFrom(InputStream is, BucketFactory bf, FCPServer server) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, global);
+	}
+
+}
@@ -7,6 +7,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.util.Date;
 import java.util.HashMap;
@@ -28,6 +29,8 @@ import freenet.client.async.CompatibilityAnalyser;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentClientCallback;
 import freenet.client.async.PersistentJob;
+import freenet.client.async.SplitFileFetcherStream;
+import freenet.client.async.StreamingFetchCallback;
 import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.EnterFiniteCooldownEvent;
@@ -60,7 +63,7 @@ import freenet.support.io.StorageFormatException;
  * A simple client fetch. This can of course fetch arbitrarily large
  * files, including splitfiles, redirects, etc.
  */
-public class ClientGet extends ClientRequest implements ClientGetCallback, ClientEventListener, PersistentClientCallback {
+public class ClientGet extends ClientRequest implements ClientGetCallback, ClientEventListener, PersistentClientCallback, StreamingFetchCallback {
 
     private static final long serialVersionUID = 1L;
     /** Fetch context. Never passed in: always created new by the ClientGet. Therefore, we
@@ -97,6 +100,13 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	private GetFailedMessage getFailedMessage;
 	/** Last progress message. Not persistent, ClientGetter will update on onResume(). */
 	private transient SimpleProgressMessage progressPending;
+	/** True if we are sending the data while the download is still running, in which case we
+	 * don't send an ordinary AllData. Only for Stream=true, which implies Persistence=connection. */
+	private transient boolean streamedAllData;
+	/** Sends the data while the download is running, until it has finished or we close it. */
+	private transient StreamedDataSender streamSender;
+	/** The StreamedDataSender has sent all the data. DataFound is sent after that. */
+	private transient boolean streamFinished;
 	/** Have we received a SendingToNetworkEvent? */
 	private boolean sentToNetwork;
 	/** Current compatibility mode. This is updated over time as the request progresses, and can be
@@ -228,6 +238,8 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		fctx.canWriteClientCache = message.writeToClientCache;
 		fctx.filterData = message.filterData;
 		fctx.ignoreUSKDatehints = message.ignoreUSKDatehints;
+		if(message.stream)
+			fctx.streamingCallback = this;
 		compatMode = new CompatibilityAnalyser();
 
 		if(message.allowedMIMETypes != null) {
@@ -323,7 +335,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 				if(finished) return;
 			}
 			getter.start(context);
-			if(persistence != Persistence.CONNECTION && !finished) {
+			if(persistence != Persistence.CONNECTION && !finished && batch == null) {
 				FCPMessage msg = persistentTagMessage();
 				client.queueClientRequestMessage(msg, 0);
 			}
@@ -351,8 +363,11 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 
 	@Override
 	public void onLostConnection(ClientContext context) {
-		if(persistence == Persistence.CONNECTION)
+		if(persistence == Persistence.CONNECTION) {
 			cancel(context);
+			// May have succeeded already.
+			closeStreamData();
+		}
 		// Otherwise ignore
 	}
 
@@ -360,6 +375,8 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	public void onSuccess(FetchResult result, ClientGetter state) {
 		Logger.minor(this, "Succeeded: "+identifier);
 		Bucket data = binaryBlob ? state.getBlobBucket() : result.asBucket();
+		boolean freeData = false;
+		boolean sendDataFound = true;
 		synchronized(this) {
 			if(succeeded) {
 				Logger.error(this, "onSuccess called twice for "+this+" ("+identifier+ ')');
@@ -379,12 +396,24 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			this.foundDataLength = data.size();
 			this.succeeded = true;
 			finished = true;
-			if(returnType == ReturnType.DIRECT)
+			if(streamedAllData) {
+			    // Sent, or being sent, by the StreamedDataSender, which will close it.
+			    freeData = true;
+			    // DataFound goes after the data.
+			    sendDataFound = streamFinished;
+			} else if(returnType == ReturnType.DIRECT)
 			    returnBucketDirect = data;
 		}
-		trySendDataFoundOrGetFailed(null, null);
-		trySendAllDataMessage(null, null);
-		finish();
+		if(freeData) data.free();
+		if(!trySendToBatch()) {
+			if(sendDataFound)
+				trySendDataFoundOrGetFailed(null, null);
+			trySendAllDataMessage(null, null);
+		}
+		// If we are still streaming, stay on the connection until we have finished, so we are
+		// told if it is closed.
+		if(sendDataFound)
+			finish();
 		if(client != null)
 			client.notifySuccess(this);
 	}
@@ -408,6 +437,25 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
         }
     }
 
+	/** If we were started by a ClientGetBatch, give the result to the batch.
+	 * @return True if the batch will send the result, false if we should send it ourselves. */
+	private boolean trySendToBatch() {
+		FCPBatch b = batch;
+		if(b == null) return false;
+		FCPMessage msg;
+		Bucket data = null;
+		synchronized(this) {
+			if(succeeded) {
+				msg = new DataFoundMessage(foundDataLength, foundDataMimeType, identifier, global, startupTime, completionTime);
+				if(returnType == ReturnType.DIRECT)
+					data = returnBucketDirect;
+			} else {
+				msg = getFailedMessage;
+			}
+		}
+		return b.onFinished(msg, data);
+	}
+
 	private void trySendDataFoundOrGetFailed(FCPConnectionOutputHandler handler, String listRequestIdentifier) {
 		FCPMessage msg;
 
@@ -432,6 +480,8 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	private synchronized AllDataMessage getAllDataMessage() {
 	    if(returnType != ReturnType.DIRECT)
 	        return null;
+	    if(streamedAllData)
+	        return null;
 	    AllDataMessage msg = new AllDataMessage(returnBucketDirect, identifier, global, startupTime, 
 	            completionTime, foundDataMimeType);
         if(persistence == Persistence.CONNECTION)
@@ -540,7 +590,9 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		}
 		if(logMINOR)
 			Logger.minor(this, "Caught "+e, e);
-		trySendDataFoundOrGetFailed(null, null);
+		closeStreamData();
+		if(!trySendToBatch())
+			trySendDataFoundOrGetFailed(null, null);
 		// We do not want the data to be removed on failure, because the request
 		// may be restarted, and the bucket persists on the getter, even if we get rid of it here.
 		//freeData(container);
@@ -549,6 +601,52 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			client.notifyFailure(this);
 	}
 
+	@Override
+	public void onStreamStart(SplitFileFetcherStream stream) {
+		StreamedDataSender sender;
+		synchronized(this) {
+			if(streamedAllData || finished) return;
+			InputStream is;
+			try {
+				is = stream.getInputStream();
+			} catch (IOException e) {
+				// Too late, will send AllData as usual.
+				return;
+			}
+			streamedAllData = true;
+			// Persistence=connection so we always have origHandler.
+			sender = streamSender = new StreamedDataSender(stream, is, origHandler,
+					origHandler.server.core.clientContext.ticker, identifier, global, startupTime, this);
+		}
+		if(logMINOR) Logger.minor(this, "Streaming "+stream.size()+" bytes for "+identifier);
+		sender.start();
+	}
+
+	/** Called by the StreamedDataSender when it has sent all the data. */
+	void onStreamFinished() {
+		boolean sendDataFound;
+		synchronized(this) {
+			streamFinished = true;
+			streamSender = null;
+			sendDataFound = succeeded;
+		}
+		if(sendDataFound) {
+			trySendDataFoundOrGetFailed(null, null);
+			finish();
+		}
+	}
+
+	/** Stop sending the data on failure, and release it so the storage can be freed. A chunk
+	 * which is being sent is finished first. */
+	private void closeStreamData() {
+		StreamedDataSender sender;
+		synchronized(this) {
+			sender = streamSender;
+			streamSender = null;
+		}
+		if(sender != null) sender.close();
+	}
+
 	@Override
 	public void requestWasRemoved(ClientContext context) {
 		// if request is still running, send a GetFailed with code=cancelled
@@ -559,7 +657,8 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 				FetchException cancelled = new FetchException(FetchExceptionMode.CANCELLED);
 				getFailedMessage = new GetFailedMessage(cancelled, identifier, global);
 			}
-			trySendDataFoundOrGetFailed(null, null);
+			if(!trySendToBatch())
+				trySendDataFoundOrGetFailed(null, null);
 		}
 		// notify client that request was removed
 		FCPMessage msg = new PersistentRequestRemovedMessage(getIdentifier(), global);
@@ -697,6 +796,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 
 	@Override
 	protected void freeData() {
+	    closeStreamData();
 	    // We don't remove the data if written to a file.
 		Bucket data;
 		synchronized(this) {
@@ -0,0 +1,168 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * ClientGetBatch message: Many fetches with the same options in one message. This is much
+ * cheaper than a ClientGet per key when fetching lots of small keys, e.g. when building an index:
+ * The requests are created together (in a single job if they are persistent), no PersistentGet
+ * is sent for each one, and the results come back a few hundred at a time in BatchResult
+ * messages rather than as a DataFound/GetFailed (and AllData) each.
+ *
+ * Takes the same fields as ClientGet, which apply to every request in the batch, except Stream
+ * and InitialMetadata, which are not supported. Each request has a URI, and may have its own
+ * Identifier, ClientToken and Filename (for ReturnType=disk). Requests without an Identifier are
+ * called [batch identifier]-[index]. The batch's own Identifier is used on the BatchResult's.
+ *
+ * Example:
+ *
+ * ClientGetBatch
+ * Identifier=Index fetch 1
+ * ReturnType=direct
+ * MaxSize=65536
+ * Persistence=connection
+ * Request.0.URI=CHK@...
+ * Request.1.URI=SSK@.../index-1
+ * Request.1.Identifier=Index part 1
+ * EndMessage
+ *
+ * Invalid requests, e.g. with a bad URI or a duplicate identifier, do not fail the whole batch:
+ * They are reported as a ProtocolError in the first BatchResult.
+ */
+public class ClientGetBatchMessage extends FCPMessage {
+
+	public final static String NAME = "ClientGetBatch";
+	/** Maximum number of requests in a single batch. */
+	static final int MAX_REQUESTS = 65536;
+	/** Fields which can be set separately for each request. Everything else is shared. */
+	private static final String[] PER_REQUEST_FIELDS =
+		new String[] { "URI", "Identifier", "ClientToken", "Filename" };
+
+	final String identifier;
+	final boolean global;
+	final Persistence persistence;
+	/** The requests, or null if the request is invalid. */
+	final ClientGetMessage[] requests;
+	/** Why each invalid request is invalid. */
+	final MessageInvalidException[] errors;
+	/** The identifier of each request, even if it is invalid. */
+	final String[] requestIdentifiers;
+
+	public ClientGetBatchMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		identifier = fs.get("Identifier");
+		global = fs.getBoolean("Global", false);
+		if(identifier == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No Identifier", null, global);
+		persistence = Persistence.parseOrThrow(fs.get("Persistence"), identifier, global);
+		if(global && persistence == Persistence.CONNECTION)
+			throw new MessageInvalidException(ProtocolErrorMessage.NOT_SUPPORTED, "Global requests must be persistent", identifier, global);
+		if(fs.getBoolean("Stream", false))
+			throw new MessageInvalidException(ProtocolErrorMessage.NOT_SUPPORTED, "Stream is not supported in a batch", identifier, global);
+		if(fs.get("InitialMetadata.DataLength") != null)
+			throw new MessageInvalidException(ProtocolErrorMessage.NOT_SUPPORTED, "InitialMetadata is not supported in a batch", identifier, global);
+		SimpleFieldSet[] entries = getRequests(fs, identifier, global);
+		Map<String, String> shared = getSharedFields(fs);
+		int count = entries.length;
+		requests = new ClientGetMessage[count];
+		errors = new MessageInvalidException[count];
+		requestIdentifiers = new String[count];
+		for(int i=0;i<count;i++) {
+			SimpleFieldSet merged = mergeRequest(shared, entries[i], PER_REQUEST_FIELDS, identifier, i);
+			requestIdentifiers[i] = merged.get("Identifier");
+			try {
+				requests[i] = new ClientGetMessage(merged);
+			} catch (MessageInvalidException e) {
+				errors[i] = e;
+			}
+		}
+	}
+
+	/**
+	 * Get the Request.0, Request.1, ... subsets of a batch message.
+	 * @throws MessageInvalidException If there are none, or too many.
+	 */
+	static SimpleFieldSet[] getRequests(SimpleFieldSet fs, String identifier, boolean global) throws MessageInvalidException {
+		SimpleFieldSet requests = fs.subset("Request");
+		if(requests == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No Request.0", identifier, global);
+		int count = 0;
+		while(requests.subset(Integer.toString(count)) != null) {
+			count++;
+			if(count > MAX_REQUESTS)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Too many requests in a batch (maximum is "+MAX_REQUESTS+")", identifier, global);
+		}
+		if(count == 0)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No Request.0", identifier, global);
+		SimpleFieldSet[] ret = new SimpleFieldSet[count];
+		for(int i=0;i<count;i++)
+			ret[i] = requests.subset(Integer.toString(i));
+		return ret;
+	}
+
+	/** @return All the fields of a batch message except the Request.* subsets, flattened. */
+	static Map<String, String> getSharedFields(SimpleFieldSet fs) {
+		Map<String, String> shared = new HashMap<String, String>();
+		Iterator<String> it = fs.keyIterator();
+		while(it.hasNext()) {
+			String key = it.next();
+			if(!key.startsWith("Request."))
+				shared.put(key, fs.get(key));
+		}
+		return shared;
+	}
+
+	/**
+	 * Make the SimpleFieldSet for a single request in a batch, so it can be parsed as an ordinary
+	 * ClientGet or ClientPut.
+	 * @param shared The fields shared by all requests in the batch.
+	 * @param request The request's own fields. Only those in perRequestFields are used.
+	 */
+	static SimpleFieldSet mergeRequest(Map<String, String> shared, SimpleFieldSet request,
+			String[] perRequestFields, String batchIdentifier, int index) {
+		SimpleFieldSet merged = new SimpleFieldSet(true);
+		for(Map.Entry<String, String> entry : shared.entrySet())
+			merged.putSingle(entry.getKey(), entry.getValue());
+		for(String key : perRequestFields) {
+			String value = request.get(key);
+			if(value != null)
+				merged.putOverwrite(key, value);
+		}
+		if(request.get("Identifier") == null)
+			merged.putOverwrite("Identifier", batchIdentifier + '-' + index);
+		return merged;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Global", global);
+		fs.putSingle("Persistence", persistence.toString().toLowerCase());
+		for(int i=0;i<requests.length;i++) {
+			if(requests[i] == null) continue;
+			fs.putSingle("Request."+i+".Identifier", requestIdentifiers[i]);
+			fs.putSingle("Request."+i+".URI", requests[i].uri.toString(false, false));
+		}
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) {
+		handler.startClientGetBatch(this);
+	}
+
+}
@@ -45,6 +45,9 @@ import freenet.support.io.BucketTools;
  * ClientToken=hello // returned in PersistentGet, a hint to the client, so the client 
  *    doesn't need to maintain its own state
  * IgnoreUSKDatehints=false // true = don't use USK datehints
+ * Stream=false // true = send the data in parts while still downloading, if possible, as
+ *    AllData messages with Streamed=true. Only for ReturnType=direct and
+ *    Persistence=connection. See StreamedAllDataMessage.
  * EndMessage
  */
 public class ClientGetMessage extends BaseDataCarryingMessage {
@@ -71,6 +74,7 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 	final boolean filterData;
 	final boolean realTimeFlag;
 	final boolean ignoreUSKDatehints;
+	final boolean stream;
 	private Bucket initialMetadata;
 	private final long initialMetadataLength;
 	
@@ -202,6 +206,9 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 		if(initialMetadataLength < 0)
 		    throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid data length for initial metadata", identifier, global);
 		ignoreUSKDatehints = fs.getBoolean("IgnoreUSKDatehints", false);
+		stream = fs.getBoolean("Stream", false);
+		if(stream && !(returnType == ReturnType.DIRECT && persistence == Persistence.CONNECTION))
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Stream is only supported with ReturnType=direct and Persistence=connection", identifier, global);
 	}
 
 	@Override
@@ -218,6 +225,7 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 		fs.put("MaxTempSize", maxTempSize);
 		fs.put("MaxRetries", maxRetries);
 		fs.put("BinaryBlob", binaryBlob);
+		fs.put("Stream", stream);
 		return fs;
 	}
 
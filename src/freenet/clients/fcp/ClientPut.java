@@ -294,7 +294,7 @@ public class ClientPut extends ClientPutBase {
 		}
 		try {
 			putter.start(false, context);
-			if(persistence != Persistence.CONNECTION && !finished) {
+			if(persistence != Persistence.CONNECTION && !finished && batch == null) {
 				FCPMessage msg = persistentTagMessage();
 				client.queueClientRequestMessage(msg, 0);
 			}
@@ -180,7 +180,8 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
       freeData();
     }
 		finish();
-		trySendFinalMessage(null, null);
+		if(!trySendToBatch())
+			trySendFinalMessage(null, null);
 		if(client != null)
 			client.notifySuccess(this);
 	}
@@ -198,7 +199,8 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
       freeData();
     }
 		finish();
-		trySendFinalMessage(null, null);
+		if(!trySendToBatch())
+			trySendFinalMessage(null, null);
 		if(client != null)
 			client.notifyFailure(this);
 	}
@@ -215,7 +217,9 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				generatedURI = uri;
 			}
 		}
-		trySendGeneratedURIMessage(null, null);
+		// The URI will be in the batch's result.
+		if(batch == null)
+			trySendGeneratedURIMessage(null, null);
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
 			if(cache != null) {
@@ -257,7 +261,8 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				InsertException cancelled = new InsertException(InsertExceptionMode.CANCELLED);
 				putFailedMessage = new PutFailedMessage(cancelled, identifier, global);
 			}
-			trySendFinalMessage(null, null);
+			if(!trySendToBatch())
+				trySendFinalMessage(null, null);
 		}
 		// notify client that request was removed
 		FCPMessage msg = new PersistentRequestRemovedMessage(getIdentifier(), global);
@@ -344,6 +349,21 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 		}
 	}
 
+	/** If we were started by a ClientPutBatch, give the result to the batch.
+	 * @return True if the batch will send the result, false if we should send it ourselves. */
+	private boolean trySendToBatch() {
+		FCPBatch b = batch;
+		if(b == null) return false;
+		FCPMessage msg;
+		synchronized(this) {
+			if(succeeded)
+				msg = new PutSuccessfulMessage(identifier, global, generatedURI, startupTime, completionTime);
+			else
+				msg = putFailedMessage;
+		}
+		return b.onFinished(msg, null);
+	}
+
 	private void trySendFinalMessage(FCPConnectionOutputHandler handler, String listRequestIdentifier) {
 
 		FCPMessage msg;
@@ -0,0 +1,162 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * ClientPutBatch message: Many inserts with the same options in one message. See
+ * {@link ClientGetBatchMessage}; the results come back in BatchResult messages containing a
+ * PutSuccessful or PutFailed for each insert. No PersistentPut or URIGenerated is sent for the
+ * individual inserts.
+ *
+ * Takes the same fields as ClientPut, which apply to every insert in the batch. Each insert has
+ * a URI, and may have its own Identifier, ClientToken, Metadata.ContentType, TargetFilename,
+ * and, depending on UploadFrom, DataLength, Filename, FileHash or TargetURI. For
+ * UploadFrom=direct, the data for all the inserts follows the message, in order, and DataLength
+ * (if given) is the total.
+ *
+ * Example:
+ *
+ * ClientPutBatch
+ * Identifier=Index insert 1
+ * Persistence=forever
+ * Request.0.URI=CHK@
+ * Request.0.DataLength=100
+ * Request.1.URI=CHK@
+ * Request.1.DataLength=200
+ * DataLength=300
+ * Data
+ * [300 bytes of data]
+ */
+public class ClientPutBatchMessage extends BaseDataCarryingMessage {
+
+	public final static String NAME = "ClientPutBatch";
+	private static final String[] PER_REQUEST_FIELDS =
+		new String[] { "URI", "Identifier", "ClientToken", "Metadata.ContentType", "TargetFilename",
+			"DataLength", "Filename", ClientPutBase.FILE_HASH, "TargetURI" };
+
+	final String identifier;
+	final boolean global;
+	final Persistence persistence;
+	/** The inserts, or null if the insert is invalid. */
+	final ClientPutMessage[] requests;
+	/** Why each invalid insert is invalid. */
+	final MessageInvalidException[] errors;
+	/** The identifier of each insert, even if it is invalid. */
+	final String[] requestIdentifiers;
+	/** The length of the data following the message for each insert. */
+	private final long[] dataLengths;
+	private final long totalDataLength;
+
+	public ClientPutBatchMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		identifier = fs.get("Identifier");
+		global = fs.getBoolean("Global", false);
+		if(identifier == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No Identifier", null, global);
+		persistence = Persistence.parseOrThrow(fs.get("Persistence"), identifier, global);
+		String uploadFrom = fs.get("UploadFrom");
+		boolean direct = uploadFrom == null || uploadFrom.equalsIgnoreCase("direct");
+		SimpleFieldSet[] entries = ClientGetBatchMessage.getRequests(fs, identifier, global);
+		Map<String, String> shared = ClientGetBatchMessage.getSharedFields(fs);
+		// DataLength is the total, not the default for each insert.
+		shared.remove("DataLength");
+		int count = entries.length;
+		requests = new ClientPutMessage[count];
+		errors = new MessageInvalidException[count];
+		requestIdentifiers = new String[count];
+		dataLengths = new long[count];
+		long total = 0;
+		for(int i=0;i<count;i++) {
+			SimpleFieldSet merged = ClientGetBatchMessage.mergeRequest(shared, entries[i], PER_REQUEST_FIELDS, identifier, i);
+			requestIdentifiers[i] = merged.get("Identifier");
+			if(direct) {
+				// We need the length even if the rest is invalid, to skip the data.
+				dataLengths[i] = merged.getLong("DataLength", -1);
+				if(dataLengths[i] < 0)
+					throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "Missing or invalid DataLength for Request."+i, identifier, global);
+				total += dataLengths[i];
+			}
+			try {
+				requests[i] = new ClientPutMessage(merged);
+			} catch (MessageInvalidException e) {
+				errors[i] = e;
+			}
+		}
+		totalDataLength = total;
+		String s = fs.get("DataLength");
+		if(s != null && fs.getLong("DataLength", -1) != totalDataLength)
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "DataLength must be the total of the DataLength's of the requests", identifier, global);
+	}
+
+	@Override
+	long dataLength() {
+		return totalDataLength;
+	}
+
+	/** Read the data for each insert in turn. If an insert is invalid, or we can't store its
+	 * data, skip its data and carry on with the rest. */
+	@Override
+	public void readFrom(InputStream is, BucketFactory bf, FCPServer server) throws IOException {
+		for(int i=0;i<requests.length;i++) {
+			if(requests[i] == null) {
+				if(dataLengths[i] > 0)
+					FileUtil.copy(is, new NullOutputStream(), dataLengths[i]);
+				continue;
+			}
+			try {
+				requests[i].readFrom(is, bf, server);
+			} catch (MessageInvalidException e) {
+				// Data has already been skipped.
+				requests[i] = null;
+				errors[i] = e;
+			}
+		}
+	}
+
+	@Override
+	protected void writeData(OutputStream os) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	String getEndString() {
+		return totalDataLength > 0 ? "Data" : "EndMessage";
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Global", global);
+		fs.putSingle("Persistence", persistence.toString().toLowerCase());
+		for(int i=0;i<requests.length;i++) {
+			if(requests[i] == null) continue;
+			fs.putSingle("Request."+i+".Identifier", requestIdentifiers[i]);
+			fs.putSingle("Request."+i+".URI", requests[i].uri.toString());
+		}
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) {
+		handler.startClientPutBatch(this);
+	}
+
+}
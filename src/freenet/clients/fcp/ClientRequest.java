@@ -64,6 +64,10 @@ public abstract class ClientRequest implements Serializable {
 	protected long completionTime;
 
 	protected transient RequestClient lowLevelClient;
+	/** The ClientGetBatch or ClientPutBatch this request was started by, if any, and the client
+	 * is still connected. If set, the final result goes to the batch instead of being sent
+	 * directly, and we don't send the Persistent* message. Not persisted. */
+	protected transient FCPBatch batch;
 	private final int hashCode; // for debugging it is good to have a persistent id
 	
 	@Override
@@ -13,6 +13,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.io.BucketTools;
+import freenet.support.io.FileRegionWriter;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NullBucket;
 import freenet.support.io.NullOutputStream;
@@ -62,12 +63,27 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 		this.bucket = tempBucket;
 	}
 	
+	/** When we are writing to a socket, read and decrypt the data in big chunks. */
+	private static final int SOCKET_COPY_BUFFER = 256 * 1024;
+
 	@Override
 	protected void writeData(OutputStream os) throws IOException {
 		long len = dataLength();
-		if(len > 0) BucketTools.copyTo(bucket, os, len);
+		if(len > 0)
+			writeBucket(bucket, os, len);
 		if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
 	}
+
+	/** Write the first len bytes of a bucket to the client. */
+	static void writeBucket(Bucket bucket, OutputStream os, long len) throws IOException {
+		if(os instanceof FileRegionWriter) {
+			// Send it straight from the file to the socket if we can.
+			if(!BucketTools.writeFileRegion(bucket, (FileRegionWriter) os, len))
+				BucketTools.copyTo(bucket, os, len, SOCKET_COPY_BUFFER);
+		} else {
+			BucketTools.copyTo(bucket, os, len);
+		}
+	}
 	
 	@Override
 	String getEndString() {
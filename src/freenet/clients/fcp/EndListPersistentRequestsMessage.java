@@ -10,15 +10,31 @@ public class EndListPersistentRequestsMessage extends FCPMessage {
 
 	static final String name = "EndListPersistentRequests";
 	private final String listRequestIdentifier;
+	/** Number of requests listed, or -1 for a full listing. */
+	private final int count;
+	/** Cursor for the next page, or null if this is the last page or a full listing. */
+	private final String nextCursor;
 
 	public EndListPersistentRequestsMessage(String listRequestIdentifier) {
+		this(listRequestIdentifier, -1, null);
+	}
+
+	/** End of a page of a paged listing.
+	 * @param nextCursor Pass as Cursor to get the next page. Null if there are no more. */
+	public EndListPersistentRequestsMessage(String listRequestIdentifier, int count, String nextCursor) {
 		this.listRequestIdentifier = listRequestIdentifier;
+		this.count = count;
+		this.nextCursor = nextCursor;
 	}
 
 	@Override
 	public SimpleFieldSet getFieldSet() {
 		SimpleFieldSet simpleFieldSet = new SimpleFieldSet(true);
 		simpleFieldSet.putSingle("Identifier", listRequestIdentifier);
+		if(count >= 0)
+			simpleFieldSet.put("Count", count);
+		if(nextCursor != null)
+			simpleFieldSet.putSingle("NextCursor", nextCursor);
 		return simpleFieldSet;
 	}
 
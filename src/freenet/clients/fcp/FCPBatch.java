@@ -0,0 +1,147 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.api.Bucket;
+
+/**
+ * Collects the results of the requests started by a ClientGetBatch or ClientPutBatch, and sends
+ * them to the client in BatchResult messages. A BatchResult is sent when MAX_RESULTS results, or
+ * MAX_DATA bytes of data, have accumulated, FLUSH_DELAY after the first result in it, or when
+ * the last request in the batch has finished. So the client gets a few big messages rather than
+ * one or two per request, and no message is much bigger than MAX_DATA (unless a single result
+ * is).
+ *
+ * Results only go to the connection which started the batch, and only while it is open. The
+ * batch is not persisted: After a restart, or once the client has disconnected, persistent
+ * requests report completion individually, as usual.
+ *
+ * LOCKING: Synchronized on itself, including while queueing messages, so they are in order and
+ * the one with Finished=true is the last. Must not be called with the FCPConnectionHandler
+ * locked.
+ */
+class FCPBatch {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(FCPBatch.class);
+	}
+
+	/** Maximum number of results in a single BatchResult. */
+	static final int MAX_RESULTS = 256;
+	/** Maximum amount of data in a single BatchResult, unless a single result is bigger. */
+	static final long MAX_DATA = 1024 * 1024;
+	/** How long to wait for more results before sending what we have, in milliseconds. */
+	static final long FLUSH_DELAY = 100;
+
+	private final FCPConnectionHandler handler;
+	private final Ticker ticker;
+	final String identifier;
+	final boolean global;
+	/** Free the data after sending it, i.e. the requests are not persistent. */
+	private final boolean freeData;
+	/** Number of requests which have not yet reported their result. */
+	private int remaining;
+	/** Results which have not been sent yet. */
+	private BatchResultMessage pending;
+	private boolean flushScheduled;
+
+	private final Runnable flusher = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized(FCPBatch.this) {
+				flushScheduled = false;
+				if(pending != null)
+					sendPending();
+			}
+		}
+
+	};
+
+	/**
+	 * @param count The number of requests in the batch, including any which could not be
+	 * started.
+	 * @param freeData True if the requests are not persistent, so the data returned should be
+	 * freed once it has been sent.
+	 */
+	FCPBatch(FCPConnectionHandler handler, Ticker ticker, String identifier, boolean global, int count, boolean freeData) {
+		this.handler = handler;
+		this.ticker = ticker;
+		this.identifier = identifier;
+		this.global = global;
+		this.remaining = count;
+		this.freeData = freeData;
+	}
+
+	/**
+	 * Called when a request in the batch has finished.
+	 * @param result The DataFound, GetFailed, PutSuccessful or PutFailed message for the request.
+	 * @param data The data, for a fetch with ReturnType=direct which succeeded, otherwise null.
+	 * @return False if the client has gone away, in which case the caller should send the result
+	 * as it would for a single request.
+	 */
+	boolean onFinished(FCPMessage result, Bucket data) {
+		boolean closed = isClosed();
+		synchronized(this) {
+			if(closed) {
+				if(pending != null) {
+					pending.freeData();
+					pending = null;
+				}
+				return false;
+			}
+			add(result, data);
+		}
+		return true;
+	}
+
+	/** Called for a request which could not be started.
+	 * @param error The ProtocolError or IdentifierCollision which would have been sent for a
+	 * single request. */
+	synchronized void onNotStarted(FCPMessage error) {
+		add(error, null);
+	}
+
+	private void add(FCPMessage result, Bucket data) {
+		remaining--;
+		long size = data == null ? 0 : data.size();
+		if(pending != null && pending.dataLength() + size > MAX_DATA)
+			sendPending();
+		if(pending == null) {
+			pending = new BatchResultMessage(identifier, global);
+			if(freeData) pending.setFreeOnSent();
+		}
+		pending.add(result, data);
+		if(remaining <= 0) {
+			pending.setFinished();
+			sendPending();
+		} else if(pending.count() >= MAX_RESULTS || pending.dataLength() >= MAX_DATA) {
+			sendPending();
+		} else if(!flushScheduled) {
+			flushScheduled = true;
+			ticker.queueTimedJob(flusher, FLUSH_DELAY);
+		}
+	}
+
+	private void sendPending() {
+		BatchResultMessage msg = pending;
+		pending = null;
+		if(logMINOR) Logger.minor(this, "Sending "+msg.count()+" results for batch "+identifier);
+		send(msg);
+	}
+
+	/** Queue a BatchResult on the connection. Overridden by tests. */
+	void send(BatchResultMessage msg) {
+		handler.send(msg);
+	}
+
+	/** Overridden by tests. */
+	boolean isClosed() {
+		return handler.isClosed();
+	}
+
+}
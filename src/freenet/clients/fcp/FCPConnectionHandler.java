@@ -7,7 +7,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
@@ -20,6 +22,8 @@ import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
 import freenet.client.async.TooManyFilesInsertException;
 import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.io.SelectorConnection;
+import freenet.io.SelectorLoop;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
 import freenet.pluginmanager.PluginManager;
@@ -69,6 +73,9 @@ public class FCPConnectionHandler implements Closeable {
 
 	final FCPServer server;
 	final Socket sock;
+	/** If the server uses non-blocking I/O, the connection registered with a SelectorLoop. The
+	 * input and output handlers then only use a thread while they have something to do. */
+	volatile SelectorConnection connection;
 	final FCPConnectionInputHandler inputHandler;
 	final Map<String, SubscribeUSK> uskSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
@@ -171,6 +178,16 @@ public class FCPConnectionHandler implements Closeable {
     }
 
 	void start() {
+		SelectorLoop loop = server.chooseSelectorLoop();
+		if(loop != null && sock.getChannel() != null) {
+			try {
+				connection = loop.register(sock.getChannel(), inputHandler);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to register FCP connection with "+loop+" : "+e, e);
+				Closer.close(sock);
+				return;
+			}
+		}
 		inputHandler.start();
 		outputHandler.start();
 	}
@@ -242,6 +259,10 @@ public class FCPConnectionHandler implements Closeable {
 			inputClosed = true;
 			if(!outputClosed) return;
 		}
+		if(connection != null) {
+			connection.close();
+			return;
+		}
 		try {
 			sock.close();
 		} catch (IOException e) {
@@ -259,6 +280,10 @@ public class FCPConnectionHandler implements Closeable {
 			outputClosed = true;
 			if(!inputClosed) return;
 		}
+		if(connection != null) {
+			connection.close();
+			return;
+		}
 		try {
 			sock.close();
 		} catch (IOException e) {
@@ -502,6 +527,150 @@ public class FCPConnectionHandler implements Closeable {
 		}
 	}
 
+	public void startClientGetBatch(final ClientGetBatchMessage message) {
+		FCPBatch batch = new FCPBatch(this, server.core.clientContext.ticker, message.identifier, 
+				message.global, message.requests.length, message.persistence == Persistence.CONNECTION);
+		startBatch(batch, message.persistence, message.errors, message.requestIdentifiers, new BatchRequestMaker() {
+
+			@Override
+			public ClientRequest make(int i) throws IdentifierCollisionException, MessageInvalidException {
+				return new ClientGet(FCPConnectionHandler.this, message.requests[i], server.core);
+			}
+
+			@Override
+			public void notStarted(int i, ClientRequest request) {
+				// Nothing to free.
+			}
+
+		});
+	}
+
+	public void startClientPutBatch(final ClientPutBatchMessage message) {
+		FCPBatch batch = new FCPBatch(this, server.core.clientContext.ticker, message.identifier, 
+				message.global, message.requests.length, message.persistence == Persistence.CONNECTION);
+		startBatch(batch, message.persistence, message.errors, message.requestIdentifiers, new BatchRequestMaker() {
+
+			@Override
+			public ClientRequest make(int i) throws IdentifierCollisionException, MessageInvalidException, IOException {
+				return new ClientPut(FCPConnectionHandler.this, message.requests[i], server);
+			}
+
+			@Override
+			public void notStarted(int i, ClientRequest request) {
+				if(request != null)
+					request.freeData();
+				else
+					message.requests[i].freeData();
+			}
+
+		});
+	}
+
+	/** Creates the requests in a ClientGetBatch or ClientPutBatch. */
+	private interface BatchRequestMaker {
+		/** Create the i'th request in the batch. Only called for valid requests. */
+		ClientRequest make(int i) throws IdentifierCollisionException, MessageInvalidException, IOException;
+		/** Called if the i'th request could not be started.
+		 * @param request The request, if it was created. */
+		void notStarted(int i, ClientRequest request);
+	}
+
+	/**
+	 * Start the requests in a batch. Persistent requests are all created, registered and started
+	 * in a single job. The requests report their results to the batch, as do any which can't be
+	 * started.
+	 * @param errors For each request in the batch, the reason it is invalid, or null.
+	 * @param identifiers The identifier of each request in the batch.
+	 */
+	private void startBatch(final FCPBatch batch, final Persistence persistence, 
+			final MessageInvalidException[] errors, final String[] identifiers, final BatchRequestMaker maker) {
+		for(int i=0;i<errors.length;i++) {
+			MessageInvalidException e = errors[i];
+			if(e != null)
+				batch.onNotStarted(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), identifiers[i], batch.global));
+		}
+		if(persistence == Persistence.FOREVER) {
+			try {
+				server.core.clientContext.jobRunner.queue(new PersistentJob() {
+
+					@Override
+					public boolean run(ClientContext context) {
+						List<ClientRequest> requests = makeBatchRequests(batch, persistence, errors, identifiers, maker);
+						for(ClientRequest request : requests)
+							request.start(context);
+						return !requests.isEmpty();
+					}
+
+				}, NativeThread.HIGH_PRIORITY-1);
+			} catch (PersistenceDisabledException e) {
+				for(int i=0;i<errors.length;i++)
+					if(errors[i] == null) maker.notStarted(i, null);
+				send(new ProtocolErrorMessage(ProtocolErrorMessage.PERSISTENCE_DISABLED, false, "Persistence is disabled", batch.identifier, batch.global));
+			}
+		} else {
+			for(ClientRequest request : makeBatchRequests(batch, persistence, errors, identifiers, maker))
+				request.start(server.core.clientContext);
+		}
+	}
+
+	private List<ClientRequest> makeBatchRequests(FCPBatch batch, Persistence persistence, 
+			MessageInvalidException[] errors, String[] identifiers, BatchRequestMaker maker) {
+		List<ClientRequest> requests = new ArrayList<ClientRequest>(errors.length);
+		List<Integer> indexes = new ArrayList<Integer>(errors.length);
+		// Don't call the batch while holding the lock.
+		List<FCPMessage> failures = new ArrayList<FCPMessage>();
+		synchronized(this) {
+			for(int i=0;i<errors.length;i++) {
+				if(errors[i] != null) continue;
+				String id = identifiers[i];
+				if(isClosed) {
+					maker.notStarted(i, null);
+					continue;
+				}
+				if(persistence == Persistence.CONNECTION && requestsByIdentifier.containsKey(id)) {
+					maker.notStarted(i, null);
+					failures.add(new IdentifierCollisionMessage(id, batch.global));
+					continue;
+				}
+				try {
+					ClientRequest request = maker.make(i);
+					request.batch = batch;
+					if(persistence == Persistence.CONNECTION)
+						requestsByIdentifier.put(id, request);
+					requests.add(request);
+					indexes.add(i);
+				} catch (IdentifierCollisionException e) {
+					maker.notStarted(i, null);
+					failures.add(new IdentifierCollisionMessage(id, batch.global));
+				} catch (MessageInvalidException e) {
+					maker.notStarted(i, null);
+					failures.add(new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), id, batch.global));
+				} catch (IOException e) {
+					maker.notStarted(i, null);
+					failures.add(new ProtocolErrorMessage(ProtocolErrorMessage.IO_ERROR, false, e.getMessage(), id, batch.global));
+				}
+			}
+		}
+		if(persistence != Persistence.CONNECTION) {
+			for(int i=0;i<requests.size();) {
+				ClientRequest request = requests.get(i);
+				try {
+					// No PersistentGet/PersistentPut for each request.
+					request.register(true);
+					i++;
+				} catch (IdentifierCollisionException e) {
+					maker.notStarted(indexes.get(i), request);
+					failures.add(new IdentifierCollisionMessage(request.getIdentifier(), batch.global));
+					requests.remove(i);
+					indexes.remove(i);
+				}
+			}
+		}
+		for(FCPMessage failure : failures)
+			batch.onNotStarted(failure);
+		return requests;
+	}
+
 	public void startClientPutDir(final ClientPutDirMessage message, final HashMap<String, Object> buckets, final boolean wasDiskPut) {
 		if(logMINOR)
 			Logger.minor(this, "Start ClientPutDir");
@@ -9,6 +9,7 @@ import java.io.InputStream;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
+import freenet.io.SelectorConnection;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
@@ -17,7 +18,7 @@ import freenet.support.io.Closer;
 import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.TooLongException;
 
-public class FCPConnectionInputHandler implements Runnable {
+public class FCPConnectionInputHandler implements Runnable, SelectorConnection.Callback {
 	private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
 
@@ -32,6 +33,11 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	/** Kept between runs when the connection is non-blocking and the input handler gives up its
+	 * thread while waiting for the next message. */
+	private InputStream is;
+	private LineReadingInputStream lis;
+	private boolean firstMessage = true;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
@@ -43,11 +49,17 @@ public class FCPConnectionInputHandler implements Runnable {
 		handler.server.node.executor.execute(this, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
 	}
 
+	/** Called by the SelectorLoop when more data arrives after we have suspended ourselves. */
+	@Override
+	public void onReadable() {
+		start();
+	}
+
 	@Override
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
 		try {
-			realRun();
+			if(realRun()) return; // Suspended, will be restarted when there is more data.
 		} catch (TooLongException e) {
 			Logger.normal(this, "Caught "+e.getMessage(), e);
 		} catch (IOException e) {
@@ -61,25 +73,33 @@ public class FCPConnectionInputHandler implements Runnable {
 		handler.closedInput();
 	}
 
-	public void realRun() throws IOException {
-		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
-		LineReadingInputStream lis = new LineReadingInputStream(is);
-
-		boolean firstMessage = true;
+	/** @return True if we are using a non-blocking connection and there is no more data for
+	 * now. In that case onReadable() will restart us. */
+	public boolean realRun() throws IOException {
+		SelectorConnection connection = handler.connection;
+		if(is == null) {
+			if(connection != null)
+				is = new BufferedInputStream(connection.getInputStream(), 4096);
+			else
+				is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
+			lis = new LineReadingInputStream(is);
+		}
 
 		while(true) {
+			if(connection != null && lis.available() == 0 && connection.suspendReaderIfIdle())
+				return true;
 			SimpleFieldSet fs;
 			if(WrapperManager.hasShutdownHookBeenTriggered()) {
 				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
 				handler.send(msg);
 				Closer.close(is);
-				return;
+				return false;
 			}
 			// Read a message
 			String messageType = lis.readLine(128, 128, true);
 			if(messageType == null) {
 				Closer.close(is);
-				return;
+				return false;
 			}
 			if(messageType.equals(""))
 				continue;
@@ -104,7 +124,7 @@ public class FCPConnectionInputHandler implements Runnable {
 					handler.send(err);
 					handler.close();
 					Closer.close(is);
-					return;
+					return false;
 				} else {
 					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 					handler.send(err);
@@ -116,7 +136,7 @@ public class FCPConnectionInputHandler implements Runnable {
 				handler.send(err);
 				handler.close();
 				Closer.close(is);
-				return;
+				return false;
 			}
 			if(msg instanceof BaseDataCarryingMessage) {
 				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
@@ -145,7 +165,7 @@ public class FCPConnectionInputHandler implements Runnable {
 			firstMessage = false;
 			if(handler.isClosed()) {
 				Closer.close(is);
-				return;
+				return false;
 			}
 		}
 	}
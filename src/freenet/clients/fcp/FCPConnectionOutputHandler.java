@@ -3,16 +3,18 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 
 import freenet.support.LogThresholdCallback;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.FileRegionOutputStream;
 
 public class FCPConnectionOutputHandler implements Runnable {
 
@@ -20,6 +22,17 @@ public class FCPConnectionOutputHandler implements Runnable {
 	final Deque<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** Non-blocking connections only: A writer has been scheduled and hasn't finished yet.
+	 * Synced on outQueue. */
+	private boolean writerRunning;
+	/** Non-blocking connections only: Kept between runs of the writer. */
+	private OutputStream nonBlockingOutput;
+	/** Merges and holds back SimpleProgress messages. Synced on outQueue. */
+	private final ProgressCoalescer progress;
+	/** The progress flusher is scheduled on the ticker. Synced on outQueue. */
+	private boolean progressFlushScheduled;
+	/** Minimum delay between runs of the progress flusher, in milliseconds. */
+	static final long MIN_PROGRESS_FLUSH_DELAY = 100;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -36,11 +49,15 @@ public class FCPConnectionOutputHandler implements Runnable {
 	public FCPConnectionOutputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
 		this.outQueue = new ArrayDeque<FCPMessage>();
+		this.progress = new ProgressCoalescer();
 	}
 
 	void start() {
 		if (handler.sock == null)
 			return;
+		// Non-blocking connections only start a writer when there is something to write.
+		if (handler.connection != null)
+			return;
 		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
 	}
 	
@@ -67,7 +84,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 	}
  
 	private void realRun() throws IOException {
-		OutputStream os = new BufferedOutputStream(handler.sock.getOutputStream(), 4096);
+		OutputStream os = new FileRegionOutputStream(handler.sock.getOutputStream(), 4096);
 		while(true) {
 			boolean closed;
 			FCPMessage msg = null;
@@ -93,7 +110,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 							continue;
 						}
 					} else {
-						msg = outQueue.removeFirst();
+						msg = progress.onDequeue(outQueue.removeFirst(), System.currentTimeMillis());
 					}
 				}
 				if(shouldFlush) {
@@ -119,6 +136,79 @@ public class FCPConnectionOutputHandler implements Runnable {
 		}
 	}
 
+	/** Runs while a non-blocking connection has messages to send, then returns its thread. */
+	private final Runnable nonBlockingWriter = new Runnable() {
+
+		@Override
+		public void run() {
+			boolean finished = true;
+			try {
+				finished = writeQueued();
+			} catch (IOException e) {
+				if(logMINOR)
+					Logger.minor(this, "Caught "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			} finally {
+				if(finished) {
+					synchronized(outQueue) {
+						closedOutputQueue = true;
+						outQueue.notifyAll();
+					}
+				}
+			}
+			if(!finished) {
+				// We may have missed onClosed() while we were finishing.
+				if(handler.isClosed()) scheduleWriter();
+				return;
+			}
+			handler.close();
+			handler.closedOutput();
+		}
+
+	};
+
+	private void scheduleWriter() {
+		synchronized(outQueue) {
+			if(writerRunning || closedOutputQueue) return;
+			writerRunning = true;
+		}
+		handler.server.node.executor.execute(nonBlockingWriter, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
+	}
+
+	/** Send everything in the queue, for a non-blocking connection.
+	 * @return True if the connection has been closed and there is nothing more to send. False
+	 * if there is nothing to send for now, in which case queue() will restart us. */
+	private boolean writeQueued() throws IOException {
+		if(nonBlockingOutput == null)
+			nonBlockingOutput = new FileRegionOutputStream(handler.connection.getOutputStream(), 4096);
+		OutputStream os = nonBlockingOutput;
+		while(true) {
+			FCPMessage msg;
+			synchronized(outQueue) {
+				msg = outQueue.pollFirst();
+				if(msg != null)
+					msg = progress.onDequeue(msg, System.currentTimeMillis());
+			}
+			if(msg != null) {
+				if(logMINOR) Logger.minor(this, "Sending "+msg);
+				msg.send(os);
+				continue;
+			}
+			if(logMINOR) Logger.minor(this, "Flushing");
+			os.flush();
+			boolean closed = handler.isClosed();
+			synchronized(outQueue) {
+				if(!outQueue.isEmpty()) continue;
+				if(!closed) {
+					writerRunning = false;
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
     /**
      * @deprecated
      *     Use {@link FCPConnectionHandler#send(FCPMessage)} instead of using public access to the
@@ -139,6 +229,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 		if(msg == null) throw new NullPointerException();
 		boolean neverDropAMessage = handler.server.neverDropAMessage();
 		int MAX_QUEUE_LENGTH = handler.server.maxMessageQueueLength();
+		boolean scheduleFlush = false;
 		synchronized(outQueue) {
 			if(closedOutputQueue) {
 				Logger.error(this, "Closed already: "+this+" queueing message "+msg);
@@ -153,12 +244,72 @@ public class FCPConnectionOutputHandler implements Runnable {
 					return;
 				}
 			}
-			outQueue.add(msg);
-			outQueue.notifyAll();
+			if(msg instanceof SimpleProgressMessage) {
+				msg = progress.offer((SimpleProgressMessage) msg, System.currentTimeMillis(), handler.server.progressInterval());
+				if(msg == null) {
+					// Merged into the queued progress for the request, or held back.
+					if(progress.hasHeld() && !progressFlushScheduled)
+						scheduleFlush = progressFlushScheduled = true;
+				}
+			} else {
+				List<FCPMessage> held = new ArrayList<FCPMessage>();
+				progress.beforeOther(held);
+				outQueue.addAll(held);
+			}
+			if(msg != null) {
+				outQueue.add(msg);
+				outQueue.notifyAll();
+			}
+		}
+		if(scheduleFlush) {
+			handler.server.core.clientContext.ticker.queueTimedJob(progressFlusher, getProgressFlushDelay());
+			return;
+		}
+		if(msg != null && handler.connection != null)
+			scheduleWriter();
+	}
+
+	private long getProgressFlushDelay() {
+		return Math.max(MIN_PROGRESS_FLUSH_DELAY, handler.server.progressInterval());
+	}
+
+	/** Queues held back progress once its interval is up. Runs on the ticker while there is any. */
+	private final Runnable progressFlusher = new Runnable() {
+
+		@Override
+		public void run() {
+			boolean added;
+			boolean reschedule;
+			synchronized(outQueue) {
+				progressFlushScheduled = false;
+				if(closedOutputQueue) return;
+				List<FCPMessage> out = new ArrayList<FCPMessage>();
+				progress.flush(System.currentTimeMillis(), handler.server.progressInterval(), out);
+				outQueue.addAll(out);
+				added = !out.isEmpty();
+				if(added) outQueue.notifyAll();
+				reschedule = progressFlushScheduled = progress.hasHeld();
+			}
+			if(reschedule)
+				handler.server.core.clientContext.ticker.queueTimedJob(this, getProgressFlushDelay());
+			if(added && handler.connection != null)
+				scheduleWriter();
+		}
+
+	};
+
+	/** If enabled, send progress as one ProgressSnapshot for all requests at most once per
+	 * interval, instead of SimpleProgress for each request. */
+	void setProgressSnapshots(boolean snapshots) {
+		synchronized(outQueue) {
+			progress.setSnapshots(snapshots);
 		}
 	}
 
 	public void onClosed() {
+		// The writer will notice that we are closed, send what is left, and finish.
+		if(handler.connection != null)
+			scheduleWriter();
 		synchronized(outQueue) {
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
@@ -77,6 +77,8 @@ public abstract class FCPMessage {
 			return new AddPeer(fs);
 		if(name.equals(ClientGetMessage.NAME))
 			return new ClientGetMessage(fs);
+		if(name.equals(ClientGetBatchMessage.NAME))
+			return new ClientGetBatchMessage(fs);
 		if(name.equals(ClientHelloMessage.NAME))
 			return new ClientHelloMessage(fs);
 		if(name.equals(ClientPutComplexDirMessage.NAME))
@@ -85,6 +87,8 @@ public abstract class FCPMessage {
 			return new ClientPutDiskDirMessage(fs);
 		if(name.equals(ClientPutMessage.NAME))
 			return new ClientPutMessage(fs);
+		if(name.equals(ClientPutBatchMessage.NAME))
+			return new ClientPutBatchMessage(fs);
 		if(name.equals(SendBookmarkMessage.NAME))
 			return new SendBookmarkMessage(fs);
 		if(name.equals(SendURIMessage.NAME))
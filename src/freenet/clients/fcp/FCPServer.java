@@ -13,6 +13,7 @@ import java.util.UUID;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -33,8 +34,10 @@ import freenet.config.InvalidConfigValueException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
+import freenet.io.SelectorLoop;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.Node;
@@ -84,6 +87,14 @@ public class FCPServer implements Runnable, DownloadCache {
 	private boolean assumeUploadDDAIsAllowed;
 	private boolean neverDropAMessage;
 	private int maxMessageQueueLength;
+	/** Minimum interval between SimpleProgress messages for a request on a connection, and
+	 * between ProgressSnapshot's, in milliseconds. */
+	private volatile int progressInterval;
+	/** Use non-blocking I/O for new connections. Takes effect on restart. */
+	private boolean nio;
+	/** Non-null if we are using non-blocking I/O. */
+	private SelectorLoop[] selectorLoops;
+	private final AtomicInteger nextSelectorLoop = new AtomicInteger();
 
 	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, PersistentRequestRoot persistentRoot) throws IOException, InvalidConfigValueException {
 		this.bindTo = ipToBindTo;
@@ -121,8 +132,17 @@ public class FCPServer implements Runnable, DownloadCache {
 		NetworkInterface tempNetworkInterface = null;
 		try {
 			if(ssl) {
+				if(nio)
+					Logger.normal(this, "Non-blocking FCP is not supported with SSL, using a thread per connection");
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+			} else if(nio) {
+				// Sockets with channels, for non-blocking I/O. This also lets us send files with
+				// FileChannel.transferTo().
+				tempNetworkInterface = ChannelNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				startSelectorLoops();
 			} else {
+				// Not a channel's socket adaptor: On older JVMs it can't read and write at the
+				// same time, so the output thread would wait for the input thread's read.
 				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			}
 		} catch (IOException be) {
@@ -134,6 +154,26 @@ public class FCPServer implements Runnable, DownloadCache {
 
 	}
 
+	private void startSelectorLoops() throws IOException {
+		// The selector threads only shuffle bytes, the actual work is done on the executor.
+		int count = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		SelectorLoop[] loops = new SelectorLoop[count];
+		for(int i=0;i<count;i++) {
+			loops[i] = new SelectorLoop("FCP selector "+i);
+			loops[i].start();
+		}
+		selectorLoops = loops;
+		Logger.normal(this, "Using non-blocking FCP with "+count+" selector threads");
+	}
+
+	/** @return The SelectorLoop for a new connection, or null if we are using a thread per
+	 * connection. */
+	SelectorLoop chooseSelectorLoop() {
+		SelectorLoop[] loops = selectorLoops;
+		if(loops == null) return null;
+		return loops[(nextSelectorLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
 	public void maybeStart() {
 		if (this.enabled) {
 			maybeGetNetworkInterface();
@@ -405,6 +445,37 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	static class NIOCallback extends BooleanCallback {
+		FCPServer server;
+
+		@Override
+		public Boolean get() {
+			return server.nio;
+		}
+
+		@Override
+		public void set(Boolean val) throws InvalidConfigValueException {
+			// Takes effect on restart.
+			server.nio = val;
+		}
+	}
+
+	static class ProgressIntervalCallback extends IntCallback {
+		FCPServer server;
+
+		@Override
+		public Integer get() {
+			return server.progressInterval;
+		}
+
+		@Override
+		public void set(Integer val) throws InvalidConfigValueException {
+			if(val < 0)
+				throw new InvalidConfigValueException(l10n("progressIntervalMustBePositive"));
+			server.progressInterval = val;
+		}
+	}
+
 	static class MaxMessageQueueLengthCallback extends IntCallback {
 		FCPServer server;
 
@@ -440,6 +511,10 @@ public class FCPServer implements Runnable, DownloadCache {
 		fcpConfig.register("assumeUploadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeUploadDDAIsAllowed", "FcpServer.assumeUploadDDAIsAllowedLong", cb5 = new AssumeDDAUploadIsAllowedCallback());
 		fcpConfig.register("maxMessageQueueLength", 1024, sortOrder++, true, false, "FcpServer.maxMessageQueueLength", "FcpServer.maxMessageQueueLengthLong", cb7 = new MaxMessageQueueLengthCallback(), false);
 		fcpConfig.register("neverDropAMessage", false, sortOrder++, true, false, "FcpServer.neverDropAMessage", "FcpServer.neverDropAMessageLong", cb6 = new NeverDropAMessageCallback());
+		NIOCallback cb8;
+		fcpConfig.register("nio", false, sortOrder++, true, false, "FcpServer.nio", "FcpServer.nioLong", cb8 = new NIOCallback());
+		ProgressIntervalCallback cb9;
+		fcpConfig.register("progressInterval", 1000, sortOrder++, true, false, "FcpServer.progressInterval", "FcpServer.progressIntervalLong", cb9 = new ProgressIntervalCallback(), false);
 
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
@@ -452,6 +527,10 @@ public class FCPServer implements Runnable, DownloadCache {
 			cb5.server = fcp;
 			cb6.server = fcp;
 			cb7.server = fcp;
+			cb8.server = fcp;
+			cb9.server = fcp;
+			fcp.nio = fcpConfig.getBoolean("nio");
+			fcp.progressInterval = fcpConfig.getInt("progressInterval");
 		}
 
 		fcpConfig.finishedInitialization();
@@ -466,6 +545,10 @@ public class FCPServer implements Runnable, DownloadCache {
 		return maxMessageQueueLength;
 	}
 
+	public int progressInterval() {
+		return progressInterval;
+	}
+
 	private static String l10n(String key) {
 		return NodeL10n.getBase().getString("FcpServer."+key);
 	}
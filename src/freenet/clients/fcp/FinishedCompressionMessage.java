@@ -3,10 +3,13 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import java.util.Map;
+
 import freenet.client.events.FinishedCompressionEvent;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 import freenet.support.compress.Compressor;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 
 public class FinishedCompressionMessage extends FCPMessage {
 
@@ -15,12 +18,14 @@ public class FinishedCompressionMessage extends FCPMessage {
 	final int codec;
 	final long origSize;
 	final long compressedSize;
+	final Map<COMPRESSOR_TYPE, Long> codecTimes;
 
 	public FinishedCompressionMessage(String identifier, boolean global, FinishedCompressionEvent event) {
 		this.identifier = identifier;
 		this.codec = event.codec;
 		this.compressedSize = event.compressedSize;
 		this.origSize = event.originalSize;
+		this.codecTimes = event.codecTimes;
 		this.global = global;
 	}
 
@@ -36,6 +41,9 @@ public class FinishedCompressionMessage extends FCPMessage {
 		fs.put("OriginalSize", origSize);
 		fs.put("CompressedSize", compressedSize);
 		fs.put("Global", global);
+		// Milliseconds spent on each codec tried, e.g. CompressionTime.LZMA_NEW=1234
+		for(Map.Entry<COMPRESSOR_TYPE, Long> entry : codecTimes.entrySet())
+			fs.put("CompressionTime."+entry.getKey().name, entry.getValue());
 		return fs;
 	}
 
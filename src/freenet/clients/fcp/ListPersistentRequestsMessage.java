@@ -10,13 +10,44 @@ import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 import freenet.support.io.NativeThread;
 
+/**
+ * ListPersistentRequests: List the client's persistent requests, and the global queue's if it is
+ * watching it, by sending the Persistent* message and pending progress messages for each, then
+ * EndListPersistentRequests.
+ *
+ * With any of the following, only one page of the requests which match is listed, in order of
+ * identifier (see {@link PagedRequestList}):
+ * MaxResults (default 100, at most 1000), Cursor (NextCursor from the previous page's
+ * EndListPersistentRequests), Status (comma separated: pending, running, finished, succeeded,
+ * failed), MinPriorityClass, MaxPriorityClass, IdentifierPrefix, Persistence (reboot or forever),
+ * and Compact=true, to send PersistentRequestSummaries with one line per request instead of the
+ * Persistent* messages.
+ */
 public class ListPersistentRequestsMessage extends FCPMessage {
 
 	static final String NAME = "ListPersistentRequests";
 	private final String identifier;
-
-	public ListPersistentRequestsMessage(SimpleFieldSet fs) {
+	/** True if any of the paging, filtering or compact options were given. */
+	final boolean paged;
+	final int maxResults;
+	/** Null for the first page. */
+	final PagedRequestList.Entry cursor;
+	final PagedRequestList.Filter filter;
+	final boolean compact;
+
+	public ListPersistentRequestsMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		identifier = fs.get("Identifier");
+		paged = fs.get("MaxResults") != null || fs.get("Cursor") != null ||
+			fs.get("Status") != null || fs.get("MinPriorityClass") != null ||
+			fs.get("MaxPriorityClass") != null || fs.get("IdentifierPrefix") != null ||
+			fs.get("Persistence") != null || fs.get("Compact") != null;
+		maxResults = fs.getInt("MaxResults", PagedRequestList.DEFAULT_MAX_RESULTS);
+		if(maxResults <= 0 || maxResults > PagedRequestList.MAX_MAX_RESULTS)
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "MaxResults must be between 1 and "+PagedRequestList.MAX_MAX_RESULTS, identifier, false);
+		String s = fs.get("Cursor");
+		cursor = s == null ? null : PagedRequestList.Entry.parseCursor(s, identifier);
+		filter = PagedRequestList.Filter.parse(fs, identifier);
+		compact = fs.getBoolean("Compact", false);
 	}
 	
 	@Override
@@ -136,6 +167,12 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 	public void run(final FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
 		
+		if(paged) {
+			new PagedRequestList(handler, node.clientCore.clientContext, identifier, filter,
+					cursor, maxResults, compact).run();
+			return;
+		}
+
 		PersistentRequestClient rebootClient = handler.getRebootClient();
 
 		TransientListJob job = new TransientListJob(rebootClient, handler.outputHandler, node.clientCore.clientContext, identifier) {
@@ -0,0 +1,366 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.PersistenceDisabledException;
+import freenet.client.async.PersistentJob;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.NativeThread;
+
+/**
+ * Sends one page of a ListPersistentRequests with MaxResults, Cursor, a filter or Compact=true.
+ * The requests which match the filter are ordered by identifier, and the first MaxResults after
+ * the Cursor are sent, either as the usual Persistent* messages, or with Compact=true, as
+ * PersistentRequestSummaries with one line per request. Then EndListPersistentRequests gives the
+ * number sent, and if there are more, NextCursor, to pass as Cursor to get the next page. The
+ * cursor is the position in the ordering, not an index, so requests being added or removed
+ * between pages don't cause requests to be skipped or listed twice.
+ *
+ * Only a few fields of each request are looked at to find the page, and only the page is kept.
+ * It is sent a chunk at a time, waiting while the connection's queue is half full, like the full
+ * listing.
+ */
+class PagedRequestList implements PersistentJob, Runnable {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(PagedRequestList.class);
+	}
+
+	static final int DEFAULT_MAX_RESULTS = 100;
+	static final int MAX_MAX_RESULTS = 1000;
+	/** Number of requests sent between checks of the queue, and in each
+	 * PersistentRequestSummaries. */
+	static final int CHUNK_SIZE = 50;
+	/** How long to wait when the queue is half full, in milliseconds. */
+	static final long RESCHEDULE_DELAY = 100;
+
+	enum Status {
+		PENDING,
+		RUNNING,
+		SUCCEEDED,
+		FAILED
+	}
+
+	/** The fields of a request which we filter and sort on, and the compact form. */
+	static class Entry {
+		final String identifier;
+		final boolean global;
+		final boolean forever;
+		final short priorityClass;
+		final Status status;
+		final RequestIdentifier.RequestType type;
+		final FreenetURI uri;
+		final int done;
+		final int required;
+		/** Null for a cursor. */
+		final ClientRequest request;
+
+		Entry(ClientRequest req) {
+			this(req.getIdentifier(), req.global, req.isPersistentForever(), req.getPriority(),
+					getStatus(req), req.getType(), req.uri, (int) req.getFetchedBlocks(),
+					(int) req.getMinBlocks(), req);
+		}
+
+		Entry(String identifier, boolean global, boolean forever, short priorityClass,
+				Status status, RequestIdentifier.RequestType type, FreenetURI uri, int done,
+				int required, ClientRequest request) {
+			this.identifier = identifier;
+			this.global = global;
+			this.forever = forever;
+			this.priorityClass = priorityClass;
+			this.status = status;
+			this.type = type;
+			this.uri = uri;
+			this.done = done;
+			this.required = required;
+			this.request = request;
+		}
+
+		private static Status getStatus(ClientRequest req) {
+			if(req.hasFinished())
+				return req.hasSucceeded() ? Status.SUCCEEDED : Status.FAILED;
+			return req.isStarted() ? Status.RUNNING : Status.PENDING;
+		}
+
+		/** @return The cursor for the page after this entry. */
+		String getCursor() {
+			return (global ? "G" : "C") + (forever ? "F" : "R") + identifier;
+		}
+
+		/**
+		 * @return One line: Type, persistence, global, priority class, status, blocks done /
+		 * blocks required, URI, and last, as it may contain spaces, identifier. E.g.
+		 * "Get forever false 2 running 12/40 CHK@... My download".
+		 */
+		String toCompactString() {
+			StringBuilder sb = new StringBuilder();
+			switch(type) {
+			case GET:
+				sb.append("Get");
+				break;
+			case PUT:
+				sb.append("Put");
+				break;
+			case PUTDIR:
+				sb.append("PutDir");
+				break;
+			}
+			sb.append(' ').append(forever ? "forever" : "reboot");
+			sb.append(' ').append(global);
+			sb.append(' ').append(priorityClass);
+			sb.append(' ').append(status.name().toLowerCase());
+			sb.append(' ').append(done).append('/').append(required);
+			sb.append(' ').append(uri == null ? "-" : uri.toString(false, false));
+			sb.append(' ').append(identifier);
+			return sb.toString();
+		}
+
+		/** Parse a cursor from getCursor(). */
+		static Entry parseCursor(String cursor, String listIdentifier) throws MessageInvalidException {
+			if(cursor.length() < 2 || "GC".indexOf(cursor.charAt(0)) < 0 || "FR".indexOf(cursor.charAt(1)) < 0)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid Cursor", listIdentifier, false);
+			return new Entry(cursor.substring(2), cursor.charAt(0) == 'G', cursor.charAt(1) == 'F',
+					(short) 0, null, null, null, 0, 0, null);
+		}
+	}
+
+	/** By identifier, then own requests before global ones, then reboot before forever. */
+	static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry a, Entry b) {
+			int cmp = a.identifier.compareTo(b.identifier);
+			if(cmp != 0) return cmp;
+			if(a.global != b.global) return a.global ? 1 : -1;
+			if(a.forever != b.forever) return a.forever ? 1 : -1;
+			return 0;
+		}
+
+	};
+
+	/** Which requests to list. Everything is optional. */
+	static class Filter {
+		/** Null to list requests with any status. */
+		final EnumSet<Status> statuses;
+		final short minPriorityClass;
+		final short maxPriorityClass;
+		final String identifierPrefix;
+		/** Null to list both reboot and forever requests. */
+		final Persistence persistence;
+
+		Filter(EnumSet<Status> statuses, short minPriorityClass, short maxPriorityClass,
+				String identifierPrefix, Persistence persistence) {
+			this.statuses = statuses;
+			this.minPriorityClass = minPriorityClass;
+			this.maxPriorityClass = maxPriorityClass;
+			this.identifierPrefix = identifierPrefix;
+			this.persistence = persistence;
+		}
+
+		/**
+		 * Parse Status (a comma separated list of pending, running, finished, succeeded and
+		 * failed), MinPriorityClass, MaxPriorityClass, IdentifierPrefix and Persistence (reboot
+		 * or forever).
+		 */
+		static Filter parse(SimpleFieldSet fs, String listIdentifier) throws MessageInvalidException {
+			EnumSet<Status> statuses = null;
+			String s = fs.get("Status");
+			if(s != null) {
+				statuses = EnumSet.noneOf(Status.class);
+				for(String status : s.split(",")) {
+					status = status.trim();
+					if(status.equalsIgnoreCase("finished")) {
+						statuses.add(Status.SUCCEEDED);
+						statuses.add(Status.FAILED);
+						continue;
+					}
+					try {
+						statuses.add(Status.valueOf(status.toUpperCase()));
+					} catch (IllegalArgumentException e) {
+						throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid Status: "+status, listIdentifier, false);
+					}
+				}
+			}
+			short min = parsePriorityClass(fs, "MinPriorityClass", RequestStarter.MAXIMUM_PRIORITY_CLASS, listIdentifier);
+			short max = parsePriorityClass(fs, "MaxPriorityClass", RequestStarter.PAUSED_PRIORITY_CLASS, listIdentifier);
+			Persistence persistence = null;
+			s = fs.get("Persistence");
+			if(s != null) {
+				persistence = Persistence.parseOrThrow(s, listIdentifier, false);
+				if(persistence == Persistence.CONNECTION)
+					throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Only reboot and forever requests can be listed", listIdentifier, false);
+			}
+			return new Filter(statuses, min, max, fs.get("IdentifierPrefix"), persistence);
+		}
+
+		private static short parsePriorityClass(SimpleFieldSet fs, String key, short def, String listIdentifier) throws MessageInvalidException {
+			String s = fs.get(key);
+			if(s == null) return def;
+			try {
+				short prio = Short.parseShort(s);
+				if(RequestStarter.isValidPriorityClass(prio))
+					return prio;
+			} catch (NumberFormatException e) {
+				// Fall through.
+			}
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid "+key+": "+s, listIdentifier, false);
+		}
+
+		boolean wantPersistence(Persistence p) {
+			return persistence == null || persistence == p;
+		}
+
+		boolean matches(Entry e) {
+			if(statuses != null && !statuses.contains(e.status)) return false;
+			if(e.priorityClass < minPriorityClass || e.priorityClass > maxPriorityClass) return false;
+			if(identifierPrefix != null && !e.identifier.startsWith(identifierPrefix)) return false;
+			if(persistence != null && e.forever != (persistence == Persistence.FOREVER)) return false;
+			return true;
+		}
+	}
+
+	/** Finds the first maxResults matching entries after the cursor, without sorting the rest. */
+	static class PageBuilder {
+		private final Filter filter;
+		/** Null for the first page. */
+		private final Entry after;
+		private final int maxResults;
+		/** The last entry in the page so far is at the head. */
+		private final PriorityQueue<Entry> page;
+		private int matched;
+
+		PageBuilder(Filter filter, Entry after, int maxResults) {
+			this.filter = filter;
+			this.after = after;
+			this.maxResults = maxResults;
+			this.page = new PriorityQueue<Entry>(maxResults + 1, Collections.reverseOrder(ORDER));
+		}
+
+		void add(Entry e) {
+			if(after != null && ORDER.compare(e, after) <= 0) return;
+			if(!filter.matches(e)) return;
+			matched++;
+			if(page.size() < maxResults) {
+				page.add(e);
+			} else if(ORDER.compare(e, page.peek()) < 0) {
+				page.poll();
+				page.add(e);
+			}
+		}
+
+		/** @return The page, in order. */
+		List<Entry> getPage() {
+			List<Entry> ret = new ArrayList<Entry>(page);
+			Collections.sort(ret, ORDER);
+			return ret;
+		}
+
+		/** @return True if there are matching entries after the page. */
+		boolean hasMore() {
+			return matched > page.size();
+		}
+	}
+
+	private final FCPConnectionHandler handler;
+	private final ClientContext context;
+	private final String listIdentifier;
+	private final Filter filter;
+	private final Entry after;
+	private final int maxResults;
+	private final boolean compact;
+	private boolean persistenceDisabled;
+	/** Null until we've looked at the requests. */
+	private List<Entry> page;
+	private String nextCursor;
+	private int sent;
+
+	PagedRequestList(FCPConnectionHandler handler, ClientContext context, String listIdentifier,
+			Filter filter, Entry after, int maxResults, boolean compact) {
+		this.handler = handler;
+		this.context = context;
+		this.listIdentifier = listIdentifier;
+		this.filter = filter;
+		this.after = after;
+		this.maxResults = maxResults;
+		this.compact = compact;
+	}
+
+	/** Run on the persistent job runner, because we look at persistent requests, or directly if
+	 * persistence is disabled. */
+	@Override
+	public void run() {
+		try {
+			context.jobRunner.queue(this, NativeThread.HIGH_PRIORITY-1);
+		} catch (PersistenceDisabledException e) {
+			synchronized(this) {
+				persistenceDisabled = true;
+			}
+			run(context);
+		}
+	}
+
+	@Override
+	public synchronized boolean run(ClientContext context) {
+		if(handler.isClosed()) return false;
+		if(page == null) makePage();
+		FCPConnectionOutputHandler outputHandler = handler.outputHandler;
+		while(sent < page.size()) {
+			if(outputHandler.isQueueHalfFull()) {
+				context.ticker.queueTimedJob(this, RESCHEDULE_DELAY);
+				return false;
+			}
+			List<Entry> chunk = page.subList(sent, Math.min(page.size(), sent + CHUNK_SIZE));
+			if(compact) {
+				handler.send(new PersistentRequestSummariesMessage(listIdentifier, chunk));
+			} else {
+				for(Entry e : chunk)
+					e.request.sendPendingMessages(outputHandler, listIdentifier, false, false);
+			}
+			sent += chunk.size();
+		}
+		handler.send(new EndListPersistentRequestsMessage(listIdentifier, sent, nextCursor));
+		return false;
+	}
+
+	private void makePage() {
+		List<PersistentRequestClient> clients = new ArrayList<PersistentRequestClient>(4);
+		boolean watchGlobal = handler.getRebootClient().watchGlobal;
+		if(filter.wantPersistence(Persistence.REBOOT)) {
+			clients.add(handler.getRebootClient());
+			if(watchGlobal) clients.add(handler.server.globalRebootClient);
+		}
+		if(filter.wantPersistence(Persistence.FOREVER) && !persistenceDisabled) {
+			clients.add(handler.getForeverClient());
+			if(watchGlobal) clients.add(handler.server.globalForeverClient);
+		}
+		PageBuilder builder = new PageBuilder(filter, after, maxResults);
+		List<ClientRequest> reqs = new ArrayList<ClientRequest>();
+		for(PersistentRequestClient client : clients) {
+			if(client == null) continue;
+			reqs.clear();
+			client.addPersistentRequests(reqs, false);
+			for(ClientRequest req : reqs)
+				builder.add(new Entry(req));
+		}
+		page = builder.getPage();
+		if(builder.hasMore() && !page.isEmpty())
+			nextCursor = page.get(page.size()-1).getCursor();
+		if(logMINOR)
+			Logger.minor(this, "Listing "+page.size()+" requests for "+listIdentifier+(nextCursor != null ? ", more to come" : ""));
+	}
+
+}
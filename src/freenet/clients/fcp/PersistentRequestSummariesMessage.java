@@ -0,0 +1,61 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.List;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Part of the reply to a ListPersistentRequests with Compact=true: One line per request, instead
+ * of a Persistent* message and the progress messages for each. Each line is the type (Get, Put or
+ * PutDir), persistence, whether it is on the global queue, priority class, status (pending,
+ * running, succeeded or failed), blocks done / blocks required, URI, and the identifier, which
+ * is last as it may contain spaces.
+ *
+ * Example:
+ *
+ * PersistentRequestSummaries
+ * Identifier=list1
+ * Count=2
+ * Request.0=Get forever false 2 running 12/40 CHK@.../file.txt My download
+ * Request.1=Put reboot true 4 succeeded 3/3 CHK@ upload-1
+ * EndMessage
+ */
+public class PersistentRequestSummariesMessage extends FCPMessage {
+
+	static final String NAME = "PersistentRequestSummaries";
+	private final String listRequestIdentifier;
+	private final String[] summaries;
+
+	PersistentRequestSummariesMessage(String listRequestIdentifier, List<PagedRequestList.Entry> entries) {
+		this.listRequestIdentifier = listRequestIdentifier;
+		summaries = new String[entries.size()];
+		for(int i=0;i<summaries.length;i++)
+			summaries[i] = entries.get(i).toCompactString();
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", listRequestIdentifier);
+		fs.put("Count", summaries.length);
+		for(int i=0;i<summaries.length;i++)
+			fs.putSingle("Request."+i, summaries[i]);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", null, false);
+	}
+
+}
@@ -0,0 +1,177 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Cuts down the SimpleProgress messages queued for an FCP connection. Splitfile progress is
+ * reported for every block, so a client watching many big requests would otherwise spend most
+ * of its bandwidth, and ours, on progress which is already out of date:
+ * <ul>
+ * <li>Only the latest progress for each request is kept in the queue. A newer SimpleProgress
+ * replaces the one waiting to be sent, rather than being queued behind it.</li>
+ * <li>Progress for a request is sent at most once per interval. Progress which arrives sooner
+ * is held back, and sent (only the latest) when the interval is up.</li>
+ * <li>With snapshots enabled (WatchGlobal with ProgressSnapshots=true), all progress is held
+ * back, and sent once per interval as a single ProgressSnapshot with the latest progress for
+ * every request which has changed.</li>
+ * </ul>
+ * Held back progress is queued before any other message, so a client never sees progress for a
+ * request after its DataFound, GetFailed etc.
+ *
+ * LOCKING: Not thread-safe. FCPConnectionOutputHandler calls it with outQueue locked.
+ */
+class ProgressCoalescer {
+
+	/** A queued SimpleProgress which can be replaced by a newer one until it is sent. */
+	static class Slot extends FCPMessage {
+		final String key;
+		SimpleProgressMessage latest;
+
+		Slot(String key, SimpleProgressMessage latest) {
+			this.key = key;
+			this.latest = latest;
+		}
+
+		@Override
+		public SimpleFieldSet getFieldSet() {
+			return latest.getFieldSet();
+		}
+
+		@Override
+		public String getName() {
+			return latest.getName();
+		}
+
+		@Override
+		public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+			latest.run(handler, node);
+		}
+	}
+
+	/** Progress which is in the queue, by request. */
+	private final Map<String, Slot> queued = new HashMap<String, Slot>();
+	/** Progress which we are holding back, by request, in the order first held. */
+	private final Map<String, SimpleProgressMessage> held = new LinkedHashMap<String, SimpleProgressMessage>();
+	/** When we last sent progress for each request. Only kept for an interval. */
+	private final Map<String, Long> lastSent = new HashMap<String, Long>();
+	private boolean snapshots;
+	/** Forget old entries in lastSent when there are more than this, even if we are not
+	 * holding anything back. */
+	private static final int MAX_LAST_SENT = 1024;
+
+	static String getKey(SimpleProgressMessage msg) {
+		return (msg.isGlobal() ? "G" : "C") + msg.getIdentifier();
+	}
+
+	void setSnapshots(boolean snapshots) {
+		this.snapshots = snapshots;
+	}
+
+	boolean isSnapshots() {
+		return snapshots;
+	}
+
+	/** @return True if we are holding back progress, i.e. flush() needs to be called. */
+	boolean hasHeld() {
+		return !held.isEmpty();
+	}
+
+	/**
+	 * A SimpleProgress is to be queued.
+	 * @param interval The minimum interval between progress messages for a request, or between
+	 * snapshots, in milliseconds.
+	 * @return The message to add to the queue, or null if it has been merged into one which is
+	 * already queued, or held back.
+	 */
+	FCPMessage offer(SimpleProgressMessage msg, long now, long interval) {
+		String key = getKey(msg);
+		if(!queued.containsKey(key)) {
+			Long sent = lastSent.get(key);
+			if(snapshots || held.containsKey(key) || (sent != null && now - sent < interval)) {
+				held.put(key, msg);
+				return null;
+			}
+			if(lastSent.size() > MAX_LAST_SENT)
+				pruneLastSent(now, interval);
+		}
+		return enqueue(key, msg);
+	}
+
+	/**
+	 * Another message is to be queued: Queue everything we are holding back first.
+	 * @param out Messages to add to the queue, in order, before the other message.
+	 */
+	void beforeOther(List<FCPMessage> out) {
+		if(held.isEmpty()) return;
+		if(snapshots) {
+			out.add(new ProgressSnapshotMessage(held.values()));
+		} else {
+			for(Map.Entry<String, SimpleProgressMessage> entry : held.entrySet()) {
+				FCPMessage msg = enqueue(entry.getKey(), entry.getValue());
+				if(msg != null) out.add(msg);
+			}
+		}
+		held.clear();
+	}
+
+	/** Replace or add to the queued slot for a request. */
+	private FCPMessage enqueue(String key, SimpleProgressMessage msg) {
+		Slot slot = queued.get(key);
+		if(slot != null) {
+			slot.latest = msg;
+			return null;
+		}
+		slot = new Slot(key, msg);
+		queued.put(key, slot);
+		return slot;
+	}
+
+	/**
+	 * Called periodically while hasHeld(): Queue held back progress whose interval is up.
+	 * @param out Messages to add to the queue.
+	 */
+	void flush(long now, long interval, List<FCPMessage> out) {
+		if(snapshots) {
+			beforeOther(out);
+		} else {
+			for(Iterator<Map.Entry<String, SimpleProgressMessage>> it = held.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, SimpleProgressMessage> entry = it.next();
+				Long sent = lastSent.get(entry.getKey());
+				if(sent != null && now - sent < interval) continue;
+				FCPMessage msg = enqueue(entry.getKey(), entry.getValue());
+				if(msg != null) out.add(msg);
+				it.remove();
+			}
+		}
+		pruneLastSent(now, interval);
+	}
+
+	private void pruneLastSent(long now, long interval) {
+		for(Iterator<Long> it = lastSent.values().iterator(); it.hasNext();) {
+			if(now - it.next() >= interval) it.remove();
+		}
+	}
+
+	/**
+	 * A message has been taken off the queue to be sent.
+	 * @return The message to actually send.
+	 */
+	FCPMessage onDequeue(FCPMessage msg, long now) {
+		if(!(msg instanceof Slot)) return msg;
+		Slot slot = (Slot) msg;
+		queued.remove(slot.key);
+		lastSent.put(slot.key, now);
+		return slot.latest;
+	}
+
+}
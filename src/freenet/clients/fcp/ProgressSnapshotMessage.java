@@ -0,0 +1,66 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * The latest progress of every request which has made progress since the last snapshot, sent
+ * instead of individual SimpleProgress messages if the client asked for it with
+ * WatchGlobal ProgressSnapshots=true. Each Progress.[n] has the fields of a SimpleProgress.
+ *
+ * Example:
+ *
+ * ProgressSnapshot
+ * Count=2
+ * Progress.0.Identifier=My download
+ * Progress.0.Global=false
+ * Progress.0.Total=200
+ * Progress.0.Required=100
+ * Progress.0.Succeeded=37
+ * ...
+ * Progress.1.Identifier=Other download
+ * ...
+ * EndMessage
+ */
+public class ProgressSnapshotMessage extends FCPMessage {
+
+	static final String NAME = "ProgressSnapshot";
+	private final List<SimpleProgressMessage> progress;
+
+	ProgressSnapshotMessage(Collection<SimpleProgressMessage> progress) {
+		this.progress = new ArrayList<SimpleProgressMessage>(progress);
+	}
+
+	int count() {
+		return progress.size();
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("Count", progress.size());
+		SimpleFieldSet all = new SimpleFieldSet(true);
+		for(int i=0;i<progress.size();i++)
+			all.put(Integer.toString(i), progress.get(i).getFieldSet());
+		fs.tput("Progress", all);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", null, false);
+	}
+
+}
@@ -99,6 +99,14 @@ public class SimpleProgressMessage extends FCPMessage {
 		return event.finalizedTotal;
 	}
 
+	String getIdentifier() {
+		return ident;
+	}
+
+	boolean isGlobal() {
+		return global;
+	}
+
 	SplitfileProgressEvent getEvent() {
 		return event;
 	}
@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Part of the data for a ClientGet with Stream=true, sent while the download is still in
+ * progress. The data is sent in order, in one or more AllData messages with Streamed=true, each
+ * with the Offset of its first byte and the TotalLength of the data. Other messages may be sent
+ * between them. See StreamedDataSender.
+ *
+ * A chunk is only queued once its data has been fetched, so writing it doesn't block the
+ * connection. If the download fails after we have started sending, the client gets a GetFailed
+ * after the last chunk sent. On success, the client gets a DataFound after the last chunk. It
+ * will not get an ordinary AllData.
+ */
+public class StreamedAllDataMessage extends DataCarryingMessage {
+
+    private static final long serialVersionUID = 1L;
+    final long offset;
+    final long dataLength;
+    final long totalLength;
+    final boolean global;
+    final String identifier;
+    final long startupTime;
+    final String mimeType;
+    /** Not persisted: Streaming is only supported for Persistence=connection. */
+    private transient final StreamedDataSender sender;
+
+    StreamedAllDataMessage(StreamedDataSender sender, long offset, long dataLength,
+            long totalLength, String identifier, boolean global, long startupTime, String mimeType) {
+        this.sender = sender;
+        this.offset = offset;
+        this.dataLength = dataLength;
+        this.totalLength = totalLength;
+        this.identifier = identifier;
+        this.global = global;
+        this.startupTime = startupTime;
+        this.mimeType = mimeType;
+    }
+
+    @Override
+    long dataLength() {
+        return dataLength;
+    }
+
+    @Override
+    protected void writeData(OutputStream os) throws IOException {
+        sender.writeChunk(os, dataLength);
+    }
+
+    @Override
+    public SimpleFieldSet getFieldSet() {
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.put("DataLength", dataLength);
+        fs.put("Offset", offset);
+        fs.put("TotalLength", totalLength);
+        fs.putSingle("Identifier", identifier);
+        fs.put("Global", global);
+        fs.put("StartupTime", startupTime);
+        fs.put("Streamed", true);
+        if(mimeType!=null) fs.putSingle("Metadata.ContentType", mimeType);
+        return fs;
+    }
+
+    @Override
+    public String getName() {
+        return "AllData";
+    }
+
+    @Override
+    public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+        throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "AllData goes from server to client not the other way around", identifier, global);
+    }
+
+    @Override
+    String getIdentifier() {
+        return identifier;
+    }
+
+    @Override
+    boolean isGlobal() {
+        return global;
+    }
+
+}
@@ -0,0 +1,185 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.client.async.SplitFileFetcherStream;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.FileUtil;
+
+/**
+ * Sends the data for a ClientGet with Stream=true while it is still downloading, as a series of
+ * StreamedAllDataMessage's, each covering the next part of the data.
+ *
+ * The connection's output handler sends messages one at a time, so a message which waited for
+ * the download would hold up everything else on the connection. So a chunk is only queued once
+ * the data it covers has been decoded and can be read without blocking, and only one chunk is
+ * queued at a time: The next one is queued when the previous one has been written, behind
+ * whatever else was queued meanwhile.
+ *
+ * LOCKING: Synchronizes on itself. Must not be held while queueing a message.
+ */
+class StreamedDataSender implements SplitFileFetcherStream.ReadableListener {
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(StreamedDataSender.class);
+    }
+
+    /** Maximum size of a chunk. */
+    static final long CHUNK_SIZE = 1024 * 1024;
+    /** If the connection's queue is half full, try again after this long. */
+    static final long RESCHEDULE_DELAY = 100;
+
+    private final SplitFileFetcherStream stream;
+    /** Reads the whole file in order, across all the chunks. Open until we have finished, so
+     * the storage isn't freed. */
+    private final InputStream data;
+    private final FCPConnectionHandler handler;
+    private final Ticker ticker;
+    private final String identifier;
+    private final boolean global;
+    private final long startupTime;
+    private final String mimeType;
+    private final ClientGet get;
+    /** Number of bytes in the chunks queued so far. */
+    private long queuedBytes;
+    /** A chunk has been queued and not yet written. */
+    private boolean chunkQueued;
+    private boolean closed;
+
+    private final Runnable retry = new Runnable() {
+
+        @Override
+        public void run() {
+            maybeQueueChunk();
+        }
+
+    };
+
+    StreamedDataSender(SplitFileFetcherStream stream, InputStream data, FCPConnectionHandler handler,
+            Ticker ticker, String identifier, boolean global, long startupTime, ClientGet get) {
+        this.stream = stream;
+        this.data = data;
+        this.handler = handler;
+        this.ticker = ticker;
+        this.identifier = identifier;
+        this.global = global;
+        this.startupTime = startupTime;
+        this.mimeType = stream.getMIMEType();
+        this.get = get;
+    }
+
+    void start() {
+        stream.addReadableListener(this);
+        maybeQueueChunk();
+    }
+
+    @Override
+    public void onReadable() {
+        maybeQueueChunk();
+    }
+
+    /** Queue the next chunk, if it can be read and the previous one has been written. */
+    private void maybeQueueChunk() {
+        long offset;
+        long length;
+        synchronized(this) {
+            if(closed || chunkQueued || queuedBytes == stream.size()) return;
+            long readable = stream.getReadableLength();
+            if(readable <= queuedBytes) return;
+            if(isQueueHalfFull()) {
+                ticker.queueTimedJob(retry, "Retry streaming "+identifier, RESCHEDULE_DELAY, false, true);
+                return;
+            }
+            offset = queuedBytes;
+            length = Math.min(CHUNK_SIZE, readable - queuedBytes);
+            queuedBytes += length;
+            chunkQueued = true;
+        }
+        if(logMINOR) Logger.minor(this, "Streaming "+length+" bytes at "+offset+" for "+identifier);
+        send(new StreamedAllDataMessage(this, offset, length, stream.size(), identifier, global,
+                startupTime, mimeType));
+    }
+
+    /** Called by StreamedAllDataMessage to write its data.
+     * @throws IOException If we can't write to the client, or we have been closed because the
+     * connection has been closed. */
+    void writeChunk(OutputStream os, long length) throws IOException {
+        boolean written = false;
+        try {
+            FileUtil.copy(data, os, length);
+            written = true;
+        } finally {
+            onChunkWritten(written);
+        }
+    }
+
+    private void onChunkWritten(boolean written) {
+        boolean finished = false;
+        boolean release;
+        synchronized(this) {
+            chunkQueued = false;
+            if(!written) {
+                closed = true;
+            } else if(!closed && queuedBytes == stream.size()) {
+                closed = true;
+                finished = true;
+            }
+            release = closed;
+        }
+        if(release) {
+            closeData();
+            if(finished) onFinished();
+            return;
+        }
+        maybeQueueChunk();
+    }
+
+    /** Stop sending chunks and release the data. A chunk which is being written is finished
+     * first, unless the connection has been closed, in which case it will fail. */
+    void close() {
+        boolean closeNow;
+        synchronized(this) {
+            if(closed && !chunkQueued) return;
+            closed = true;
+            closeNow = !chunkQueued || isConnectionClosed();
+        }
+        if(closeNow) closeData();
+    }
+
+    private void closeData() {
+        stream.removeReadableListener(this);
+        try {
+            data.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /** Queue a message on the connection. Overridden by tests. */
+    void send(FCPMessage msg) {
+        handler.send(msg);
+    }
+
+    /** Overridden by tests. */
+    boolean isQueueHalfFull() {
+        return handler.outputHandler.isQueueHalfFull();
+    }
+
+    /** Overridden by tests. */
+    boolean isConnectionClosed() {
+        return handler.isClosed();
+    }
+
+    /** Called once all the data has been written. Overridden by tests. */
+    void onFinished() {
+        get.onStreamFinished();
+    }
+
+}
@@ -6,10 +6,17 @@ package freenet.clients.fcp;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 
+/**
+ * WatchGlobal: Start or stop watching the global queue, i.e. getting messages for global requests
+ * as well as the client's own. ProgressSnapshots=true asks for progress on this connection,
+ * for both, to be sent as a ProgressSnapshot for all requests once per progress interval,
+ * instead of a SimpleProgress for each request.
+ */
 public class WatchGlobal extends FCPMessage {
 
 	final boolean enabled;
 	final int verbosityMask;
+	final boolean progressSnapshots;
 	static final String NAME = "WatchGlobal";
 
 	public WatchGlobal(SimpleFieldSet fs) throws MessageInvalidException {
@@ -23,6 +30,7 @@ public class WatchGlobal extends FCPMessage {
 			}
 		else
 			verbosityMask = Integer.MAX_VALUE;
+		progressSnapshots = fs.getBoolean("ProgressSnapshots", false);
 	}
 	
 	@Override
@@ -30,6 +38,7 @@ public class WatchGlobal extends FCPMessage {
 		SimpleFieldSet fs = new SimpleFieldSet(true);
 		fs.put("Enabled", enabled);
 		fs.put("VerbosityMask", verbosityMask);
+		fs.put("ProgressSnapshots", progressSnapshots);
 		return fs;
 	}
 
@@ -41,6 +50,7 @@ public class WatchGlobal extends FCPMessage {
 	@Override
 	public void run(final FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
+		handler.outputHandler.setProgressSnapshots(progressSnapshots);
 		if(!handler.getRebootClient().setWatchGlobal(enabled, verbosityMask, node.clientCore.getFCPServer())) {
 			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.PERSISTENCE_DISABLED, false, "Persistence disabled", null, true);
 			handler.send(err);
@@ -469,9 +469,44 @@ public abstract class ConnectionsToadlet extends Toadlet {
 				for(PeerNodeStatus status : allPeerNodeStatuses) {
 					totalSelectionRate += status.getSelectionRate();
 				}
-				for (PeerNodeStatus peerNodeStatus: peerNodeStatuses) {
-					drawRow(peerTable, peerNodeStatus, advancedMode, fProxyJavascriptEnabled, now, path, enablePeerActions, endCols, drawMessageTypes, totalSelectionRate, fix1);
-				}
+				// Rows are drawn as the page is sent, so we don't need them all in memory at once.
+				final PeerNodeStatus[] rowStatuses = peerNodeStatuses;
+				final double rowTotalSelectionRate = totalSelectionRate;
+				final long rowNow = now;
+				final String rowPath = path;
+				final boolean rowEnablePeerActions = enablePeerActions;
+				final SimpleColumn[] rowEndCols = endCols;
+				final boolean rowDrawMessageTypes = drawMessageTypes;
+				peerTable.addChild(new HTMLNode.LazyNodes(new Iterable<HTMLNode>() {
+
+					@Override
+					public Iterator<HTMLNode> iterator() {
+						return new Iterator<HTMLNode>() {
+
+							private int i;
+
+							@Override
+							public boolean hasNext() {
+								return i < rowStatuses.length;
+							}
+
+							@Override
+							public HTMLNode next() {
+								if(!hasNext()) throw new NoSuchElementException();
+								HTMLNode rows = new HTMLNode("#");
+								drawRow(rows, rowStatuses[i++], advancedMode, fProxyJavascriptEnabled, rowNow, rowPath, rowEnablePeerActions, rowEndCols, rowDrawMessageTypes, rowTotalSelectionRate, fix1);
+								return rows;
+							}
+
+							@Override
+							public void remove() {
+								throw new UnsupportedOperationException();
+							}
+
+						};
+					}
+
+				}));
 
 				if(peerForm != null) {
 					drawPeerActionSelectBox(peerForm, advancedMode);
@@ -588,7 +623,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			drawNoderefBox(contentNode, getNoderef(), true);
 		}
 		
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	protected abstract boolean acceptRefPosts();
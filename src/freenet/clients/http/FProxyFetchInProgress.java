@@ -22,6 +22,8 @@ import freenet.client.async.ClientContext;
 import freenet.client.async.ClientGetCallback;
 import freenet.client.async.ClientGetter;
 import freenet.client.async.PersistenceDisabledException;
+import freenet.client.async.SplitFileFetcherStream;
+import freenet.client.async.StreamingFetchCallback;
 import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.ExpectedFileSizeEvent;
@@ -45,7 +47,7 @@ import freenet.support.io.Closer;
  * 
  * LOCKING: The lock on this object is always taken last.
  */
-public class FProxyFetchInProgress implements ClientEventListener, ClientGetCallback {
+public class FProxyFetchInProgress implements ClientEventListener, ClientGetCallback, StreamingFetchCallback {
 	
 	/** What to do when we find data which matches the request but it has already been 
 	 * filtered, assuming we want a filtered copy. */
@@ -123,6 +125,15 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private FetchContext fctx;
 	private boolean cancelled = false;
 	private final RequestClient rc;
+	/** If the data is unfiltered, we may be able to send it to the browser while it is still 
+	 * downloading. This is a reader opened when the splitfile fetch started, waiting to be taken
+	 * by the first FProxyToadlet request that can use it. */
+	private InputStream streamData;
+	/** Length of the data in streamData */
+	private long streamSize;
+	/** The download in progress, for opening further readers, e.g. for range requests. Cleared
+	 * when the fetch finishes. */
+	private SplitFileFetcherStream stream;
 	
 	public FProxyFetchInProgress(FProxyFetchTracker tracker, FreenetURI key, long maxSize2, long identifier, ClientContext context, FetchContext fctx, RequestClient rc, REFILTER_POLICY refilter) {
 		this.refilterPolicy = refilter;
@@ -135,6 +146,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		FetchContext alteredFctx = new FetchContext(fctx, FetchContext.IDENTICAL_MASK);
 		alteredFctx.maxOutputLength = fctx.maxTempLength = maxSize;
 		alteredFctx.eventProducer.addEventListener(this);
+		if(!fctx.filterData)
+			alteredFctx.streamingCallback = this;
 		waiters = new ArrayList<FProxyFetchWaiter>();
 		results = new ArrayList<FProxyFetchResult>();
 		getter = new ClientGetter(this, uri, alteredFctx, FProxyToadlet.PRIORITY, null, null, null);
@@ -196,6 +209,18 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private boolean checkCache(ClientContext context) {
 		// Fproxy uses lookupInstant() with mustCopy = false. I.e. it can reuse stuff unsafely. If the user frees it it's their fault.
 		if(bogusUSK(context)) return false;
+		if(refilterPolicy != REFILTER_POLICY.RE_FETCH) {
+			// The output of the current filter, so as good as re-filtering.
+			FetchResult filtered = tracker.filteredCache.get(uri, fctx, refilterPolicy, context.linkFilterExceptionProvider);
+			if(filtered != null) {
+				if(filtered.size() <= maxSize) {
+					if(logMINOR) Logger.minor(this, "Using cached filtered data for "+uri);
+					onSuccess(filtered, null);
+					return true;
+				}
+				filtered.asBucket().free();
+			}
+		}
 		CacheFetchResult result = context.downloadCache == null ? null : context.downloadCache.lookupInstant(uri, !fctx.filterData, false, null);
 		if(result == null) return false;
 		Bucket data = null;
@@ -266,6 +291,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				os.close();
 				os = null;
 				// Since we are not re-using the data bucket, we can happily stay in the FProxyFetchTracker.
+				output = tracker.filteredCache.put(uri, fctx, refilterPolicy, context.linkFilterExceptionProvider, fullMimeType, output);
 				this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
 				output = null;
 				return true;
@@ -378,6 +404,105 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	@Override
+	public void onStreamStart(SplitFileFetcherStream stream) {
+		InputStream is;
+		try {
+			is = stream.getInputStream();
+		} catch (IOException e) {
+			// Already finished.
+			return;
+		}
+		synchronized(this) {
+			if(streamData != null || finished || cancelled) {
+				// Already have one, or too late.
+				closeStream(is);
+				return;
+			}
+			streamData = is;
+			streamSize = stream.size();
+			this.stream = stream;
+		}
+		if(logMINOR) Logger.minor(this, "Can stream "+uri+" : "+stream.size()+" bytes");
+		wakeWaiters(false);
+	}
+
+	/** Is there a stream available for sending the data before the download has finished? */
+	public synchronized boolean hasStream() {
+		return stream != null;
+	}
+
+	/** Get a reader for the whole file, if the download can be streamed. The caller must close it,
+	 * and must not close its FProxyFetchResult until it has finished with the stream, to prevent
+	 * the fetch being cancelled. */
+	public InputStream takeStream() {
+		SplitFileFetcherStream s;
+		synchronized(this) {
+			InputStream is = streamData;
+			streamData = null;
+			if(is != null) return is;
+			s = stream;
+		}
+		if(s == null) return null;
+		try {
+			return s.getInputStream();
+		} catch (IOException e) {
+			// Already finished.
+			return null;
+		}
+	}
+
+	/** Get a reader for part of the file, if the download can be streamed. It will wait for, and
+	 * make the download prefer, the segments covering the range. Same rules as takeStream().
+	 * @param start The first byte.
+	 * @param end The last byte, inclusive. Clipped to the end of the data.
+	 * @return Null if we can't stream, or if start is beyond the end of the data. */
+	public InputStream openRange(long start, long end) {
+		SplitFileFetcherStream s;
+		synchronized(this) {
+			s = stream;
+		}
+		if(s == null) return null;
+		end = Math.min(end, s.size() - 1);
+		if(start < 0 || start > end) return null;
+		try {
+			return s.getInputStream(start, end - start + 1);
+		} catch (IOException e) {
+			// Already finished.
+			return null;
+		}
+	}
+
+	/** The length of the data that takeStream() will return. */
+	public synchronized long getStreamSize() {
+		return streamSize;
+	}
+
+	/** The MIME type of the data that takeStream() will return, from the splitfile's metadata,
+	 * i.e. the same type the buffered download would have. */
+	public synchronized String getStreamMIMEType() {
+		return stream == null ? null : stream.getMIMEType();
+	}
+
+	/** Release the stream if nobody has taken it, so the storage can be freed. */
+	private void dropStream() {
+		InputStream is;
+		synchronized(this) {
+			is = streamData;
+			streamData = null;
+			stream = null;
+		}
+		if(is != null) closeStream(is);
+	}
+
+	private static void closeStream(InputStream is) {
+		try {
+			is.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
 	@Override
 	public void onFailure(FetchException e, ClientGetter state) {
 		synchronized(this) {
@@ -385,20 +510,25 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 			this.finished = true;
 			this.timeFailed = System.currentTimeMillis();
 		}
+		dropStream();
 		wakeWaiters(true);
 	}
 
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
+		Bucket resultData = result.asBucket();
+		if(state != null)
+			resultData = tracker.filteredCache.put(uri, fctx, refilterPolicy, tracker.context.linkFilterExceptionProvider, result.getMimeType(), resultData);
 		Bucket droppedData = null;
 		synchronized(this) {
 			if(cancelled)
-				droppedData = result.asBucket();
+				droppedData = resultData;
 			else
-				this.data = result.asBucket();
+				this.data = resultData;
 			this.mimeType = result.getMimeType();
 			this.finished = true;
 		}
+		dropStream();
 		wakeWaiters(true);
 		if(droppedData != null)
 			droppedData.free();
@@ -454,6 +584,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 			d = data;
 			cancelled = true;
 		}
+		dropStream();
 		if(d != null) {
 			try {
 				d.free();
@@ -30,6 +30,8 @@ public class FProxyFetchTracker implements Runnable {
 	
 	final MultiValueTable<FreenetURI, FProxyFetchInProgress> fetchers;
 	final ClientContext context;
+	/** Filtered data of recently shown pages. */
+	final FilteredContentCache filteredCache = new FilteredContentCache();
 	private long fetchIdentifiers;
 	private final FetchContext fctx;
 	private final RequestClient rc;
@@ -20,11 +20,17 @@ public class FProxyFetchWaiter {
 	}
 	
 	public FProxyFetchResult getResult(boolean waitForever) {
+		return getResult(waitForever, false);
+	}
+	
+	/** @param wantStream If true, and waitForever is true, also stop waiting when the data can be 
+	 * streamed, i.e. when FProxyFetchInProgress.takeStream() will return something. */
+	public FProxyFetchResult getResult(boolean waitForever, boolean wantStream) {
 		boolean waited;
 		synchronized(this) {
 			if(waitForever) {
 				// FIXME findbugs thinks this will never exit. It should given wakeUp().
-				while(!finished) {
+				while(!(finished || (wantStream && progress.hasStream()))) {
 					try {
 						wait();
 						hasWaited = true;
@@ -296,6 +296,51 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
+	/** Send unfiltered data to the browser while it is still being downloaded. Only used for 
+	 * splitfiles where the data on disk is the final data. Blocks until all the data has been sent.
+	 * If the download fails, we throw, and the connection will be closed, since we have already 
+	 * sent the headers.
+	 * @param size The length of the whole file.
+	 * @param range If non-null, the first and last byte (inclusive) of the range the stream will 
+	 * return, which we send as a 206 Partial content. */
+	private void handleStreamingDownload(ToadletContext context, InputStream is, long size, 
+			long[] range, String mimeType, boolean forceDownload, FreenetURI key) throws ToadletContextClosedException, IOException {
+		long startTime = System.currentTimeMillis();
+		if(mimeType == null || mimeType.length() == 0) mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		if(forceDownload) {
+			// See handleDownload().
+			headers.put("Content-Disposition", "attachment; filename=\"" + key.getPreferredFilename() + '"');
+			headers.put("Cache-Control", "private");
+			headers.put("Content-Transfer-Encoding", "binary");
+			mimeType = "application/force-download";
+		} else {
+			headers.put("Content-Encoding", "identity");
+		}
+		headers.put("X-Content-Type-Options", "nosniff");
+		// Tell players they can seek, even before the download has finished.
+		headers.put("Accept-Ranges", "bytes");
+		long length = size;
+		if(range != null) {
+			length = range[1] - range[0] + 1;
+			headers.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+			context.sendReplyHeadersFProxy(206, "Partial content", headers, mimeType, length);
+		} else {
+			context.sendReplyHeadersFProxy(200, "OK", headers, mimeType, length);
+		}
+		byte[] buf = new byte[32768];
+		long written = 0;
+		while(written < length) {
+			int read = is.read(buf, 0, (int)Math.min(buf.length, length - written));
+			if(read < 0) throw new IOException("Stream ended early at "+written+" of "+length+" bytes");
+			if(written == 0 && logMINOR)
+				Logger.minor(this, "First data for "+key+" after "+(System.currentTimeMillis() - startTime)+"ms");
+			context.writeData(buf, 0, read);
+			written += read;
+		}
+		if(logMINOR) Logger.minor(this, "Streamed "+written+" bytes of "+key+" in "+(System.currentTimeMillis() - startTime)+"ms");
+	}
+
 	static final HTMLNode DOWNLOADS_LINK = QueueToadlet.DOWNLOADS_LINK;
 
 	private static void addDownloadOptions(ToadletContext ctx, HTMLNode optionList, FreenetURI key, String mimeType,
@@ -547,9 +592,10 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		//first check of httprange before get
 		// only valid number format is checked here
 		String rangeStr = ctx.getHeaders().get("range");
+		long[] requestedRange = null;
 		if (rangeStr != null) {
 			try {
-				parseRange(rangeStr);
+				requestedRange = parseRange(rangeStr);
 			} catch (HTTPRangeException e) {
 				Logger.normal(this, "Invalid Range Header: "+rangeStr, e);
 				ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
@@ -674,9 +720,11 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			} catch (FetchException e) {
             fe = e;
 			}
+			InputStream streamData = null;
+			boolean canStream = !fctx.filterData;
 			if(fetch != null)
 			while(true) {
-			fr = fetch.getResult(!canSendProgress);
+			fr = fetch.getResult(!canSendProgress, canStream);
 			if(fr.hasData()) {
 
 				if(fr.getFetchCount() > 1 && !fr.hasWaited() && fr.getFetchCount() > 1 && key.isUSK() && context.uskManager.lookupKnownGood(USK.create(key)) > key.getSuggestedEdition()) {
@@ -703,6 +751,40 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				fe = fr.failed;
 				fetch.close(); // Not waiting any more, but still locked the results until sent
 				break;
+			} else if(canStream && fetch.progress.hasStream()) {
+				// Unfiltered splitfile: Send the data as it arrives rather than waiting for the
+				// whole file. For a range request, the segments covering the range are fetched 
+				// first, so e.g. seeking in a video doesn't have to wait for everything before it.
+				long streamSize = fetch.progress.getStreamSize();
+				String streamMimeType = fetch.progress.getStreamMIMEType();
+				long[] range = null;
+				if(requestedRange == null) {
+					streamData = fetch.progress.takeStream();
+				} else {
+					range = new long[] { requestedRange[0], 
+							(requestedRange[1] == -1 || requestedRange[1] >= streamSize) ? streamSize - 1 : requestedRange[1] };
+					streamData = fetch.progress.openRange(range[0], range[1]);
+				}
+				if(streamData == null) {
+					// Finished in the meantime, or the range is beyond the end of the data. 
+					// Wait for the whole file.
+					canStream = false;
+					fr.close();
+					continue;
+				}
+				fetch.close();
+				try (InputStream is = streamData) {
+					if(logMINOR) Logger.minor(this, "Streaming "+key+" ("+streamSize+" bytes)"+
+							(range == null ? "" : " range "+range[0]+"-"+range[1]));
+					handleStreamingDownload(ctx, is, streamSize, range, 
+							requestedMimeType != null ? requestedMimeType : streamMimeType, 
+							httprequest.isParameterSet("forcedownload"), key);
+				} finally {
+					// Must not close the result until we have finished, or the fetch might be
+					// cancelled.
+					fr.close();
+				}
+				return;
 			} else if(canSendProgress) {
 				if(logMINOR) Logger.minor(this, "Still in progress");
 				// Still in progress
@@ -1226,6 +1308,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		server.register(diagnosticToadlet, "FProxyToadlet.categoryStatus", "/diagnostic/", true,
 		        "FProxyToadlet.diagnosticTitle", "FProxyToadlet.diagnostic", true, null);
 
+		MetricsToadlet metricsToadlet = new MetricsToadlet(client, node);
+		server.register(metricsToadlet, null, MetricsToadlet.PATH, true, false);
+
 		ConnectivityToadlet connectivityToadlet = new ConnectivityToadlet(client, node);
 		server.register(connectivityToadlet, "FProxyToadlet.categoryStatus", "/connectivity/", true,
 		        "ConnectivityToadlet.connectivityTitle", "ConnectivityToadlet.connectivity", true, null);
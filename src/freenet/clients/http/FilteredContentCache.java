@@ -0,0 +1,230 @@
+package freenet.clients.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.client.filter.ContentFilter;
+import freenet.client.filter.FilterMIMEType;
+import freenet.client.filter.HTMLFilter;
+import freenet.client.filter.LinkFilterExceptionProvider;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.NoFreeBucket;
+
+/**
+ * Caches the output of the content filter for FProxy, so showing the same page again (going
+ * back to a freesite's index, reloading etc) doesn't run HTMLFilter, the CSS filter etc over it
+ * again once the fetch has been dropped from FProxyFetchTracker. Only data which actually had to
+ * be filtered is cached: Anything else is cheap to get from the download cache or the datastore.
+ *
+ * Entries are keyed by the URI, the MIME type override (?type=), the charset, the refilter
+ * policy, and everything the filter depends on which can change while the node is running: The
+ * meta refresh settings, and the link filter exceptions, which change when toadlets are added or
+ * removed. So changing any of them misses the old entries. The filter code itself can only change
+ * on restart, and the cache is not persistent. Requests which don't filter the data (?forcedownload
+ * and ?force=) never use the cache, nor do requests which rewrite the data for pushing, since the
+ * filter output then depends on the request.
+ *
+ * The data is kept in the (temp) buckets the fetches produced. An entry which is evicted while
+ * it is still being sent to a browser is freed when the last user frees its bucket.
+ *
+ * LOCKING: Synchronizes on itself, only briefly. Buckets are freed outside the lock.
+ */
+class FilteredContentCache {
+
+	/** Maximum total size of the cached data. */
+	static final long MAX_TOTAL_SIZE = 16*1024*1024;
+	/** Bigger files are not cached. */
+	static final long MAX_ENTRY_SIZE = 2*1024*1024;
+	private final LRUMap<Key, Entry> entries = new LRUMap<Key, Entry>();
+	private long totalSize;
+
+	private static class Key {
+		final FreenetURI uri;
+		final String overrideMIME;
+		final String charset;
+		final REFILTER_POLICY refilterPolicy;
+		/** Compared by identity. */
+		final LinkFilterExceptionProvider linkFilter;
+		final int linkFilterVersion;
+		final int metaRefreshSamePageMinInterval;
+		final int metaRefreshRedirectMinInterval;
+		private final int hashCode;
+
+		Key(FreenetURI uri, FetchContext fctx, REFILTER_POLICY refilterPolicy, LinkFilterExceptionProvider linkFilter) {
+			this.uri = uri;
+			this.overrideMIME = fctx.overrideMIME;
+			this.charset = fctx.charset;
+			this.refilterPolicy = refilterPolicy;
+			this.linkFilter = linkFilter;
+			this.linkFilterVersion = linkFilter == null ? 0 : linkFilter.getExceptionsVersion();
+			this.metaRefreshSamePageMinInterval = HTMLFilter.metaRefreshSamePageMinInterval;
+			this.metaRefreshRedirectMinInterval = HTMLFilter.metaRefreshRedirectMinInterval;
+			int hash = uri.hashCode();
+			hash = hash * 31 + (overrideMIME == null ? 0 : overrideMIME.hashCode());
+			hash = hash * 31 + (charset == null ? 0 : charset.hashCode());
+			hash = hash * 31 + (refilterPolicy == null ? 0 : refilterPolicy.hashCode());
+			hash = hash * 31 + System.identityHashCode(linkFilter);
+			hash = hash * 31 + linkFilterVersion;
+			hash = hash * 31 + metaRefreshSamePageMinInterval;
+			hash = hash * 31 + metaRefreshRedirectMinInterval;
+			hashCode = hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return hashCode == k.hashCode && uri.equals(k.uri) &&
+				(overrideMIME == null ? k.overrideMIME == null : overrideMIME.equals(k.overrideMIME)) &&
+				(charset == null ? k.charset == null : charset.equals(k.charset)) &&
+				refilterPolicy == k.refilterPolicy &&
+				linkFilter == k.linkFilter && linkFilterVersion == k.linkFilterVersion &&
+				metaRefreshSamePageMinInterval == k.metaRefreshSamePageMinInterval &&
+				metaRefreshRedirectMinInterval == k.metaRefreshRedirectMinInterval;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private static class Entry {
+		final Bucket data;
+		final String mimeType;
+		final long size;
+		/** Number of buckets returned and not yet freed. */
+		int users;
+		boolean evicted;
+
+		Entry(Bucket data, String mimeType) {
+			this.data = data;
+			this.mimeType = mimeType;
+			this.size = data.size();
+		}
+	}
+
+	/** The bucket given out for an entry. Read only, and frees the entry's data if it has
+	 * been evicted and this was the last user. */
+	private class CachedBucket extends NoFreeBucket {
+
+		private static final long serialVersionUID = 1L;
+		private final Entry entry;
+		private boolean freed;
+
+		CachedBucket(Entry entry) {
+			super(entry.data);
+			this.entry = entry;
+		}
+
+		@Override
+		public void free() {
+			synchronized(this) {
+				if(freed) return;
+				freed = true;
+			}
+			release(entry);
+		}
+
+	}
+
+	/** Could the result of a fetch with these settings be cached? */
+	static boolean canCache(FetchContext fctx) {
+		return fctx.filterData && fctx.tagReplacer == null;
+	}
+
+	/**
+	 * Get the filtered data.
+	 * @param linkFilter The link filter exceptions the data is filtered with, or null.
+	 * @return The data and its MIME type, or null. The caller must free the bucket.
+	 */
+	FetchResult get(FreenetURI uri, FetchContext fctx, REFILTER_POLICY refilterPolicy, LinkFilterExceptionProvider linkFilter) {
+		if(!canCache(fctx)) return null;
+		Key key = new Key(uri, fctx, refilterPolicy, linkFilter);
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(key);
+			if(entry == null) return null;
+			entries.push(key, entry);
+			entry.users++;
+		}
+		return new FetchResult(new ClientMetadata(entry.mimeType), new CachedBucket(entry));
+	}
+
+	/**
+	 * Add the output of the filter, if it is worth caching.
+	 * @param linkFilter The link filter exceptions the data was filtered with, or null.
+	 * @param mimeType The MIME type of the filtered data.
+	 * @param data The filtered data. If it is cached, the cache takes it over.
+	 * @return The bucket to use instead of data, which must be freed as usual. Either data itself,
+	 * or a bucket for the cached copy.
+	 */
+	Bucket put(FreenetURI uri, FetchContext fctx, REFILTER_POLICY refilterPolicy, LinkFilterExceptionProvider linkFilter, String mimeType, Bucket data) {
+		if(!canCache(fctx)) return data;
+		if(uri.isUSK() && uri.getSuggestedEdition() < 0) return data;
+		FilterMIMEType type = mimeType == null ? null : ContentFilter.getMIMEType(ContentFilter.stripMIMEType(mimeType));
+		if(type == null || type.safeToRead) return data; // Not filtered.
+		if(data.size() > MAX_ENTRY_SIZE) return data;
+		data.setReadOnly();
+		Key key = new Key(uri, fctx, refilterPolicy, linkFilter);
+		Entry entry = new Entry(data, mimeType);
+		List<Bucket> toFree = new ArrayList<Bucket>();
+		synchronized(this) {
+			Entry old = entries.get(key);
+			if(old != null) {
+				Bucket b = evict(key, old);
+				if(b != null) toFree.add(b);
+			}
+			entries.push(key, entry);
+			totalSize += entry.size;
+			entry.users++;
+			while(totalSize > MAX_TOTAL_SIZE) {
+				Key oldestKey = entries.peekKey();
+				Bucket b = evict(oldestKey, entries.get(oldestKey));
+				if(b != null) toFree.add(b);
+			}
+		}
+		for(Bucket b : toFree) {
+			try {
+				b.free();
+			} catch (Throwable t) {
+				Logger.error(this, "Failed to free "+b+" : "+t, t);
+			}
+		}
+		return new CachedBucket(entry);
+	}
+
+	/** Remove an entry.
+	 * @return The bucket to free, if it is no longer used. */
+	private synchronized Bucket evict(Key key, Entry entry) {
+		entries.removeKey(key);
+		entry.evicted = true;
+		totalSize -= entry.size;
+		return entry.users == 0 ? entry.data : null;
+	}
+
+	private void release(Entry entry) {
+		synchronized(this) {
+			entry.users--;
+			if(!(entry.evicted && entry.users == 0)) return;
+		}
+		entry.data.free();
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	synchronized long totalSize() {
+		return totalSize;
+	}
+
+}
@@ -0,0 +1,96 @@
+package freenet.clients.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import freenet.support.MultiValueTable;
+
+/**
+ * Content-Encoding negotiation and gzip compression for replies generated by the node: pages,
+ * CSS, javascript etc. Never used for content downloaded from Freenet, which is sent exactly as
+ * the content filter passed it.
+ */
+final class HTTPCompression {
+
+	private HTTPCompression() {}
+
+	/** Replies shorter than this are sent as they are. Compressing them doesn't save a packet,
+	 * and costs CPU on both ends. */
+	static final int MIN_COMPRESS_LENGTH = 1024;
+
+	static final String GZIP = "gzip";
+
+	/**
+	 * Does the client accept gzip? We don't bother with q-values other than q=0, which means
+	 * "not acceptable".
+	 * @param acceptEncoding The Accept-Encoding header, or null.
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if(acceptEncoding == null) return false;
+		boolean wildcard = false;
+		for(String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase(Locale.ENGLISH);
+			boolean refused = false;
+			for(int i=1;i<params.length;i++) {
+				String param = params[i].trim().toLowerCase(Locale.ENGLISH);
+				if(param.startsWith("q=")) {
+					try {
+						refused = Float.parseFloat(param.substring(2).trim()) <= 0.0f;
+					} catch (NumberFormatException e) {
+						refused = true;
+					}
+				}
+			}
+			if(name.equals(GZIP) || name.equals("x-gzip"))
+				return !refused;
+			if(name.equals("*"))
+				wildcard = !refused;
+		}
+		return wildcard;
+	}
+
+	/** Is it worth compressing a reply of this type? Images, archives etc are already
+	 * compressed. */
+	static boolean isCompressible(String mimeType) {
+		if(mimeType == null) return false;
+		String type = mimeType.toLowerCase(Locale.ENGLISH);
+		int semi = type.indexOf(';');
+		if(semi != -1) type = type.substring(0, semi);
+		type = type.trim();
+		return type.startsWith("text/") ||
+			type.equals("application/javascript") ||
+			type.equals("application/x-javascript") ||
+			type.equals("application/json") ||
+			type.equals("application/xml") ||
+			type.endsWith("+xml");
+	}
+
+	static byte[] gzip(byte[] data, int offset, int length) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 4 + 64);
+		try {
+			GZIPOutputStream gos = new GZIPOutputStream(baos);
+			gos.write(data, offset, length);
+			gos.close();
+		} catch (IOException e) {
+			// Impossible.
+			throw new Error(e);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Add the headers for a gzip'ed reply.
+	 * @param headers The headers to add to, or null.
+	 * @return The headers, possibly a new table.
+	 */
+	static MultiValueTable<String, String> addGzipHeaders(MultiValueTable<String, String> headers) {
+		if(headers == null) headers = new MultiValueTable<String, String>();
+		headers.put("content-encoding", GZIP);
+		headers.put("vary", "Accept-Encoding");
+		return headers;
+	}
+
+}
@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.URI;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.node.Node;
+import freenet.support.api.HTTPRequest;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * Serves the node's metrics (NodeMetrics) in the OpenMetrics text format, for Prometheus and
+ * similar monitoring systems to scrape. Only hosts in fproxy.allowedHostsMetrics may read them.
+ */
+public class MetricsToadlet extends Toadlet {
+
+	public static final String PATH = "/metrics";
+
+	private final Node node;
+
+	MetricsToadlet(HighLevelSimpleClient client, Node node) {
+		super(client);
+		this.node = node;
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+		if(!ctx.isAllowedMetricsAccess()) {
+			sendUnauthorizedPage(ctx);
+			return;
+		}
+		writeReply(ctx, 200, MetricsRegistry.CONTENT_TYPE, "OK", node.metrics.registry.toOpenMetrics());
+	}
+
+	@Override
+	public String path() {
+		return PATH;
+	}
+
+}
@@ -0,0 +1,197 @@
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import freenet.io.SelectorConnection;
+import freenet.io.SelectorLoop;
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NativeThread;
+
+/**
+ * An FProxy connection using non-blocking I/O (fproxy.nio). Requests are handled by
+ * {@link ToadletContextImpl#handle(Socket, LineReadingInputStream, OutputStream,
+ * ToadletContextImpl.Connection, ToadletContainer, PageMaker,
+ * freenet.node.useralerts.UserAlertManager, freenet.clients.http.bookmark.BookmarkManager)}
+ * as usual, but only while there is something to do: Between requests on a keep-alive
+ * connection, and while a request is parked (e.g. a push notification long poll, see
+ * {@link ToadletContext#parkRequest()}), we give up the thread. The number of connections being
+ * handled at once is limited by SimpleToadletServer, see dispatch().
+ *
+ * Idle connections are closed after IDLE_TIMEOUT.
+ *
+ * LOCKING: Synchronizes on itself, only briefly.
+ */
+class NonBlockingHTTPConnection implements SelectorConnection.Callback, PrioRunnable, ToadletContextImpl.Connection {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(NonBlockingHTTPConnection.class);
+	}
+
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+
+	private final SimpleToadletServer server;
+	private final Socket sock;
+	private final SelectorConnection connection;
+	private final LineReadingInputStream lis;
+	private final OutputStream os;
+	/** For the idle timeout. If null, use the node's, once we have it. */
+	private final Ticker ticker;
+	/** We are waiting for the next request. */
+	private boolean idle;
+	/** Incremented each time we go idle, so the idle timeout only closes the connection if it
+	 * has been idle ever since. */
+	private int idleGeneration;
+	/** The request which has been parked, if any. */
+	private ToadletContextImpl parked;
+	/** handle() has returned since the request was parked. */
+	private boolean parkedReturned;
+	/** The parked request has been finished, before handle() returned. */
+	private boolean parkedFinished;
+
+	NonBlockingHTTPConnection(SimpleToadletServer server, Socket sock, SelectorLoop loop) throws IOException {
+		this(server, sock, loop, null);
+	}
+
+	NonBlockingHTTPConnection(SimpleToadletServer server, Socket sock, SelectorLoop loop, Ticker ticker) throws IOException {
+		this.server = server;
+		this.sock = sock;
+		this.ticker = ticker;
+		// The callback is only called after we have suspended the reader, so this is safe.
+		connection = loop.register(sock.getChannel(), this);
+		lis = new LineReadingInputStream(new BufferedInputStream(connection.getInputStream(), 4096));
+		os = connection.getOutputStream();
+	}
+
+	/** Called by the selector when a request arrives on an idle connection. */
+	@Override
+	public void onReadable() {
+		synchronized(this) {
+			idle = false;
+		}
+		server.dispatch(this);
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		try {
+			while(true) {
+				if(!ToadletContextImpl.handle(sock, lis, os, this, server, server.getPageMaker(), server.getUserAlertManager(), server.getBookmarks())) {
+					connection.close();
+					return;
+				}
+				ToadletContextImpl ctx;
+				synchronized(this) {
+					// Idle: onReadable() will dispatch us again.
+					if(parked == null) return;
+					// Parked: parkedRequestFinished() will dispatch us again.
+					if(!parkedFinished) {
+						parkedReturned = true;
+						return;
+					}
+					// Parked and already finished: Carry on.
+					ctx = parked;
+					parked = null;
+					parkedFinished = false;
+				}
+				if(ctx.shouldDisconnect()) {
+					connection.close();
+					return;
+				}
+			}
+		} catch (Throwable t) {
+			Logger.error(this, "Caught in "+this+" : "+t, t);
+			connection.close();
+		} finally {
+			server.handlerFinished();
+		}
+	}
+
+	@Override
+	public boolean suspendIfIdle() {
+		try {
+			if(lis.available() > 0) return false;
+		} catch (IOException e) {
+			return false; // Let the reader see the error.
+		}
+		final int generation;
+		synchronized(this) {
+			idle = true;
+			generation = ++idleGeneration;
+		}
+		if(!connection.suspendReaderIfIdle()) {
+			synchronized(this) {
+				idle = false;
+			}
+			return false;
+		}
+		Ticker ticker = this.ticker != null ? this.ticker : server.maybeGetTicker();
+		if(ticker != null) {
+			ticker.queueTimedJob(new Runnable() {
+
+				@Override
+				public void run() {
+					synchronized(NonBlockingHTTPConnection.this) {
+						// Never close a connection with a parked request.
+						if(!idle || idleGeneration != generation || parked != null) return;
+					}
+					if(logMINOR) Logger.minor(this, "Closing idle connection "+NonBlockingHTTPConnection.this);
+					connection.close();
+				}
+
+			}, IDLE_TIMEOUT);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void park(ToadletContextImpl ctx) {
+		idle = false;
+		parked = ctx;
+		parkedReturned = false;
+		parkedFinished = false;
+	}
+
+	@Override
+	public void parkedRequestFinished(ToadletContextImpl ctx) {
+		synchronized(this) {
+			if(parked != ctx) throw new IllegalStateException("Not parked on "+this);
+			if(!parkedReturned) {
+				// run() will carry on when handle() returns.
+				parkedFinished = true;
+				return;
+			}
+			parked = null;
+			parkedReturned = false;
+		}
+		if(ctx.shouldDisconnect())
+			connection.close();
+		else
+			server.dispatch(this);
+	}
+
+	@Override
+	public void close() {
+		connection.close();
+	}
+
+	@Override
+	public int getPriority() {
+		return NativeThread.HIGH_PRIORITY-1;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+" for "+sock.getRemoteSocketAddress();
+	}
+
+}
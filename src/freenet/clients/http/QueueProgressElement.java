@@ -0,0 +1,95 @@
+package freenet.clients.http;
+
+import freenet.clients.fcp.RequestStatus;
+import freenet.clients.fcp.UploadFileRequestStatus;
+import freenet.clients.http.updateableelements.BaseUpdateableElement;
+import freenet.clients.http.updateableelements.UpdaterConstants;
+import freenet.support.Base64;
+import freenet.support.HTMLNode;
+
+/**
+ * The progress cell of a request on the queue page. When pushing is enabled, QueueToadlet
+ * periodically gives it the latest status of the request, and it is pushed to the browser if
+ * the progress has changed, so the user can watch the progress without reloading the page.
+ */
+class QueueProgressElement extends BaseUpdateableElement {
+
+	private final QueueToadlet toadlet;
+	private final String identifier;
+	private final boolean advancedMode;
+	private final boolean upload;
+	/** The latest status. */
+	private RequestStatus status;
+	/** The state last rendered, so we only push when something visible has changed. */
+	private String renderedState;
+
+	QueueProgressElement(QueueToadlet toadlet, RequestStatus status, boolean advancedMode, boolean upload, ToadletContext ctx, boolean pushed) {
+		super("td", "class", "request-progress", ctx);
+		this.toadlet = toadlet;
+		this.identifier = status.getIdentifier();
+		this.advancedMode = advancedMode;
+		this.upload = upload;
+		this.status = status;
+		init(pushed);
+		if(pushed)
+			toadlet.progressElementRendered(this);
+	}
+
+	String getIdentifier() {
+		return identifier;
+	}
+
+	@Override
+	public synchronized void updateState(boolean initial) {
+		children.clear();
+		HTMLNode cell = QueueToadlet.createProgressCell(status, advancedMode, upload);
+		for(HTMLNode child : cell.getChildren())
+			addChild(child);
+		renderedState = getState(status);
+	}
+
+	/** Push the new status to the browser if the progress has changed since we last rendered. */
+	void pushIfChanged(RequestStatus newStatus) {
+		synchronized(this) {
+			status = newStatus;
+			if(getState(newStatus).equals(renderedState)) return;
+		}
+		((SimpleToadletServer) ctx.getContainer()).pushDataManager.updateElement(getUpdaterId(ctx.getUniqueId()));
+	}
+
+	/** Everything createProgressCell() uses. */
+	private static String getState(RequestStatus status) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(status.isStarted()).append(':');
+		if(status instanceof UploadFileRequestStatus)
+			sb.append(((UploadFileRequestStatus)status).isCompressing()).append(':');
+		sb.append(status.getFetchedBlocks()).append(':');
+		sb.append(status.getFailedBlocks()).append(':');
+		sb.append(status.getFatalyFailedBlocks()).append(':');
+		sb.append(status.getMinBlocks()).append(':');
+		sb.append(status.getTotalBlocks()).append(':');
+		sb.append(status.isTotalFinalized());
+		return sb.toString();
+	}
+
+	@Override
+	public String getUpdaterId(String requestId) {
+		return Base64.encodeStandardUTF8("queueprogress[" + requestId + "][" + identifier + "]");
+	}
+
+	@Override
+	public String getUpdaterType() {
+		return UpdaterConstants.REPLACER_UPDATER;
+	}
+
+	@Override
+	public void dispose() {
+		toadlet.progressElementDisposed(this);
+	}
+
+	@Override
+	public String toString() {
+		return "QueueProgressElement[identifier:" + identifier + ",updaterId:" + getUpdaterId(ctx.getUniqueId()) + "]";
+	}
+
+}
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.http;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -21,15 +23,15 @@ import java.net.URISyntaxException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.CountDownLatch;
 
 import freenet.client.DefaultMIMETypes;
@@ -73,7 +75,6 @@ import freenet.node.RequestStarter;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
 import freenet.node.useralerts.StoringUserEvent;
 import freenet.node.useralerts.UserAlert;
-import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
@@ -135,6 +136,78 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		}
 	}
 
+	/** How the tables on the queue page are sorted, and which page of each table is shown. Each
+	 * table has its own page parameter, so paging through one table doesn't affect the others. */
+	private static class TablePaging {
+
+		final HTTPRequest request;
+		final RequestStatusSorter sorter;
+		final int pageSize;
+
+		TablePaging(HTTPRequest request) {
+			this.request = request;
+			sorter = RequestStatusSorter.fromRequest(request);
+			int size = request.getIntParam("pageSize", DEFAULT_PAGE_SIZE);
+			if(size <= 0) size = DEFAULT_PAGE_SIZE;
+			pageSize = Math.min(size, MAX_PAGE_SIZE);
+		}
+
+		int getPageCount(int requests) {
+			return Math.max(1, (requests + pageSize - 1) / pageSize);
+		}
+
+		/** The page shown of the given table, counting from 0. */
+		int getPage(String tableId, int pages) {
+			int page = request.getIntParam("page-" + tableId, 0);
+			if(page < 0) return 0;
+			return Math.min(page, pages - 1);
+		}
+
+		/** A link to sort the page by a column. Clicking the same column again reverses the
+		 * order. Starts again from the first page of every table. */
+		String getSortLink(RequestStatusSorter.SortBy sortBy) {
+			StringBuilder sb = new StringBuilder("?");
+			sb.append(new RequestStatusSorter(sortBy, !sorter.reversed).toQueryString());
+			if(pageSize != DEFAULT_PAGE_SIZE)
+				sb.append("&pageSize=").append(pageSize);
+			return sb.toString();
+		}
+
+		/** A link to show a different page of one table, keeping the order and the pages shown
+		 * of the other tables. */
+		String getPageLink(String tableId, int page) {
+			StringBuilder sb = new StringBuilder("?");
+			sb.append(sorter.toQueryString());
+			if(pageSize != DEFAULT_PAGE_SIZE)
+				sb.append("&pageSize=").append(pageSize);
+			for(String name : request.getParameterNames()) {
+				if(!name.startsWith("page-") || name.equals("page-" + tableId)) continue;
+				// Only copy parameters we could have generated.
+				if(!name.matches("page-[A-Za-z0-9-]+")) continue;
+				int otherPage = request.getIntParam(name, 0);
+				if(otherPage > 0)
+					sb.append("&").append(name).append("=").append(otherPage);
+			}
+			if(page > 0)
+				sb.append("&page-").append(tableId).append("=").append(page);
+			if(sb.length() > 1 && sb.charAt(1) == '&')
+				sb.deleteCharAt(1);
+			return sb.toString();
+		}
+
+		HTMLNode createPageLinks(String tableId, int page, int pages) {
+			HTMLNode div = new HTMLNode("div", "class", "request-table-pages");
+			if(page > 0)
+				div.addChild("a", "href", getPageLink(tableId, page - 1), l10n("previousPage"));
+			div.addChild("#", " " + l10n("pageOf", new String[] { "page", "pages" },
+					new String[] { Integer.toString(page + 1), Integer.toString(pages) }) + " ");
+			if(page < pages - 1)
+				div.addChild("a", "href", getPageLink(tableId, page + 1), l10n("nextPage"));
+			return div;
+		}
+
+	}
+
 	private static final int MAX_IDENTIFIER_LENGTH = 1024*1024;
 	static final int MAX_FILENAME_LENGTH = 1024*1024;
 	private static final int MAX_TYPE_LENGTH = 1024;
@@ -158,9 +231,31 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		this.fiw = fiw;
 	}
 
-	private boolean isReversed = false;
 	private final boolean uploads;
 
+	/** How long the queue page reuses the same snapshot of the global queue. Getting it clones
+	 * the status of every request, which is expensive with thousands of requests, and the page
+	 * is often loaded several times in quick succession (redirects after actions, paging etc). */
+	static final long REQUEST_STATUS_CACHE_TTL = SECONDS.toMillis(2);
+	/** Default number of requests shown in each table on the page. */
+	static final int DEFAULT_PAGE_SIZE = 100;
+	static final int MAX_PAGE_SIZE = 1000;
+	/** How often we push progress updates to open queue pages. */
+	static final long PROGRESS_UPDATE_INTERVAL = SECONDS.toMillis(5);
+
+	private final Object requestStatusCacheLock = new Object();
+	/** Snapshot of the global queue, or null. Protected by requestStatusCacheLock. */
+	private RequestStatus[] cachedRequests;
+	private long cachedRequestsTime;
+	/** Incremented whenever the snapshot is invalidated, so we don't cache a snapshot which was
+	 * taken before something changed. */
+	private long requestStatusCacheGeneration;
+
+	/** Progress cells on open queue pages which are being pushed. */
+	private final HashSet<QueueProgressElement> progressElements = new HashSet<QueueProgressElement>();
+	/** Protected by progressElements. */
+	private boolean progressUpdateScheduled;
+
     private static final String KEY_LIST_LOCATION = "listKeys.txt";
 
 	public QueueToadlet(NodeClientCore core, FCPServer fcp, HighLevelSimpleClient client, boolean uploads) {
@@ -177,7 +272,94 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		}
 	}
 	
+	/** Get the global queue, reusing a recent snapshot if possible. The result must not be
+	 * modified. */
+	private RequestStatus[] getCachedGlobalRequests() throws PersistenceDisabledException {
+		long generation;
+		synchronized(requestStatusCacheLock) {
+			if(cachedRequests != null &&
+					System.currentTimeMillis() - cachedRequestsTime < REQUEST_STATUS_CACHE_TTL)
+				return cachedRequests;
+			generation = requestStatusCacheGeneration;
+		}
+		long now = System.currentTimeMillis();
+		RequestStatus[] reqs = fcp.getGlobalRequests();
+		synchronized(requestStatusCacheLock) {
+			if(generation == requestStatusCacheGeneration) {
+				cachedRequests = reqs;
+				cachedRequestsTime = now;
+			}
+		}
+		return reqs;
+	}
+
+	/** Called when a request is added, removed, completes etc, so the next page shows it. */
+	private void invalidateRequestStatusCache() {
+		synchronized(requestStatusCacheLock) {
+			cachedRequests = null;
+			requestStatusCacheGeneration++;
+		}
+	}
+
+	void progressElementRendered(QueueProgressElement element) {
+		synchronized(progressElements) {
+			progressElements.add(element);
+			if(progressUpdateScheduled) return;
+			progressUpdateScheduled = true;
+		}
+		core.getTicker().queueTimedJob(progressUpdater, "Queue page progress updates", PROGRESS_UPDATE_INTERVAL, false, false);
+	}
+
+	void progressElementDisposed(QueueProgressElement element) {
+		synchronized(progressElements) {
+			progressElements.remove(element);
+		}
+	}
+
+	/** Pushes the progress of requests to open queue pages, while there are any. */
+	private final Runnable progressUpdater = new Runnable() {
+
+		@Override
+		public void run() {
+			QueueProgressElement[] elements;
+			synchronized(progressElements) {
+				if(progressElements.isEmpty()) {
+					progressUpdateScheduled = false;
+					return;
+				}
+				elements = progressElements.toArray(new QueueProgressElement[progressElements.size()]);
+			}
+			try {
+				RequestStatus[] reqs = getCachedGlobalRequests();
+				Map<String, RequestStatus> byIdentifier = new HashMap<String, RequestStatus>(reqs.length * 2);
+				for(RequestStatus req : reqs)
+					byIdentifier.put(req.getIdentifier(), req);
+				for(QueueProgressElement element : elements) {
+					RequestStatus status = byIdentifier.get(element.getIdentifier());
+					if(status != null)
+						element.pushIfChanged(status);
+				}
+			} catch (PersistenceDisabledException e) {
+				// Try again later.
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" pushing queue progress", t);
+			} finally {
+				core.getTicker().queueTimedJob(this, "Queue page progress updates", PROGRESS_UPDATE_INTERVAL, false, false);
+			}
+		}
+
+	};
+
 	public void handleMethodPOST(URI uri, HTTPRequest request, final ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
+		try {
+			innerHandleMethodPOST(uri, request, ctx);
+		} finally {
+			// Most actions change the queue, and are followed by a redirect to the queue page.
+			invalidateRequestStatusCache();
+		}
+	}
+
+	private void innerHandleMethodPOST(URI uri, HTTPRequest request, final ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
 
 		if(container.publicGatewayMode() && !ctx.isAllowedFullAccess()) {
 		    sendUnauthorizedPage(ctx);
@@ -1111,10 +1293,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		
 		if(!(count || keys)) {
 			try {
-				RequestStatus[] reqs = fcp.getGlobalRequests();
+				RequestStatus[] reqs = getCachedGlobalRequests();
 				MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 				HTMLNode pageNode = handleGetInner(pageMaker, reqs, core.clientContext, request, ctx);
-				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 				return;
 			} catch (PersistenceDisabledException e) {
 				sendPersistenceDisabledError(ctx);
@@ -1193,7 +1375,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 		MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 		if(pageNode != null)
-			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 		else if(plainText != null)
 			this.writeReply(ctx, 200, "text/plain", "OK", plainText);
 		else {
@@ -1355,75 +1537,18 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
 		Logger.minor(this, "Total queued uploads: "+SizeUtil.formatSize(totalQueuedUploadSize));
 
-		Comparator<RequestStatus> jobComparator = new Comparator<RequestStatus>() {
-			@Override
-			public int compare(RequestStatus firstRequest, RequestStatus secondRequest) {
-				
-				if(firstRequest == secondRequest) return 0; // Short cut.
-				
-				int result = 0;
-				boolean isSet = true;
-
-				if(request.isParameterSet("sortBy")){
-					final String sortBy = request.getParam("sortBy");
-
-					if(sortBy.equals("id")){
-						result = firstRequest.getIdentifier().compareToIgnoreCase(secondRequest.getIdentifier());
-						if(result == 0)
-							result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-					}else if(sortBy.equals("size")){
-						result = Fields.compare(firstRequest.getTotalBlocks(), secondRequest.getTotalBlocks());
-					}else if(sortBy.equals("progress")){
-						boolean firstFinalized = firstRequest.isTotalFinalized();
-						boolean secondFinalized = secondRequest.isTotalFinalized();
-						if(firstFinalized && !secondFinalized)
-							result = 1;
-						else if(secondFinalized && !firstFinalized)
-							result = -1;
-						else {
-							double firstProgress = ((double)firstRequest.getFetchedBlocks()) / ((double)firstRequest.getMinBlocks());
-							double secondProgress = ((double)secondRequest.getFetchedBlocks()) / ((double)secondRequest.getMinBlocks());
-							result = Fields.compare(firstProgress, secondProgress);
-						}
-					} else if (sortBy.equals("lastActivity")) {
-			result = Fields.compare(firstRequest.getLastSuccess(),
-						secondRequest.getLastSuccess());
-		    } else if (sortBy.equals("lastFailure")) {
-			result = Fields.compare(firstRequest.getLastFailure(),
-						secondRequest.getLastFailure());
-					}else
-						isSet=false;
-				}else
-					isSet=false;
-
-				if(!isSet){
-					result = Fields.compare(firstRequest.getPriority(), secondRequest.getPriority());
-					if(result == 0)
-						result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-				}
-
-				if(result == 0){
-					return 0;
-				}else if(request.isParameterSet("reversed")){
-					isReversed = true;
-					return result > 0 ? -1 : 1;
-				}else{
-					isReversed = false;
-					return result < 0 ? -1 : 1;
-				}
-			}
-		};
-
-		Collections.sort(completedDownloadToDisk, jobComparator);
-		Collections.sort(completedDownloadToTemp, jobComparator);
-		Collections.sort(completedUpload, jobComparator);
-		Collections.sort(completedDirUpload, jobComparator);
-		Collections.sort(failedDownload, jobComparator);
-		Collections.sort(failedUpload, jobComparator);
-		Collections.sort(failedDirUpload, jobComparator);
-		Collections.sort(uncompletedDownload, jobComparator);
-		Collections.sort(uncompletedUpload, jobComparator);
-		Collections.sort(uncompletedDirUpload, jobComparator);
+		final TablePaging paging = new TablePaging(request);
+		RequestStatusSorter sorter = paging.sorter;
+		sorter.sort(completedDownloadToDisk);
+		sorter.sort(completedDownloadToTemp);
+		sorter.sort(completedUpload);
+		sorter.sort(completedDirUpload);
+		sorter.sort(failedDownload);
+		sorter.sort(failedUpload);
+		sorter.sort(failedDirUpload);
+		sorter.sort(uncompletedDownload);
+		sorter.sort(uncompletedUpload);
+		sorter.sort(uncompletedDirUpload);
 
 		String pageName;
 		if(uploads)
@@ -1570,9 +1695,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToTemp");
 			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", l10n("completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, paging, "completed-temp", QueueType.CompletedDownloadToTemp));
 			} else {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "completed-temp", QueueType.CompletedDownloadToTemp));
 			}
 		}
 
@@ -1580,9 +1705,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToDisk");
 			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, paging, "completed-disk", QueueType.CompletedDownloadToDisk));
 			} else {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "completed-disk", QueueType.CompletedDownloadToDisk));
 			}
 		}
 
@@ -1590,9 +1715,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedUpload");
 			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "completed-upload-file", QueueType.CompletedUpload));
 			} else {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "completed-upload-file", QueueType.CompletedUpload));
 			}
 		}
 
@@ -1600,9 +1725,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDirUpload");
 			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", l10n("completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "completed-upload-dir", QueueType.CompletedDirUpload));
 			} else {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "completed-upload-dir", QueueType.CompletedDirUpload));
 			}
 		}
 
@@ -1610,9 +1735,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDownload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }), contentNode, "download-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, paging, "failed-download", QueueType.FailedDownload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, paging, "failed-download", QueueType.FailedDownload));
 			}
 		}
 
@@ -1620,9 +1745,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, paging, "failed-upload-file", QueueType.FailedUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, paging, "failed-upload-file", QueueType.FailedUpload));
 			}
 		}
 
@@ -1630,9 +1755,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDirUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "failed-upload-dir", QueueType.FailedDirUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "failed-upload-dir", QueueType.FailedDirUpload));
 			}
 		}
 
@@ -1655,11 +1780,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 						list.addChild("li", s);
 				}
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
+				sorter.sort(getters);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				}
 			}
 		}
@@ -1675,11 +1800,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				// FIXME add a class for easier styling.
 				failedContent.addChild("p", NodeL10n.getBase().getString("UnknownContentTypeException.explanation", "type", type));
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
+				sorter.sort(getters);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				}
 			}
 
@@ -1704,11 +1829,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			    // QueueColumn.LAST_FAILURE,
 			    QueueColumn.PERSISTENCE, QueueColumn.FILENAME,
 			    QueueColumn.KEY, QueueColumn.COMPAT_MODE },
-			priorityClasses, advancedModeEnabled, "uncompleted-download",
+			priorityClasses, advancedModeEnabled, paging, "uncompleted-download",
 			QueueType.UncompletedDownload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "uncompleted-download", QueueType.UncompletedDownload));
 			}
 		}
 
@@ -1731,11 +1856,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			    // QueueColumn.LAST_FAILURE,
 			    QueueColumn.PERSISTENCE, QueueColumn.FILENAME,
 			    QueueColumn.KEY },
-			priorityClasses, advancedModeEnabled, "uncompleted-upload-file",
+			priorityClasses, advancedModeEnabled, paging, "uncompleted-upload-file",
 			QueueType.UncompletedUpload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "uncompleted-upload-file", QueueType.UncompletedUpload));
 			}
 		}
 
@@ -1757,11 +1882,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			     * https://bugs.freenetproject.org/view.php?id=6526 */
 			    // QueueColumn.LAST_FAILURE,
 			    QueueColumn.PERSISTENCE, QueueColumn.KEY },
-			priorityClasses, advancedModeEnabled, "uncompleted-upload-dir",
+			priorityClasses, advancedModeEnabled, paging, "uncompleted-upload-dir",
 			QueueType.UncompletedDirUpload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, paging, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
 			}
 		}
 
@@ -1796,6 +1921,19 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return reasonCell;
 	}
 
+	static HTMLNode createProgressCell(RequestStatus clientRequest, boolean advancedMode, boolean upload) {
+		COMPRESS_STATE compressing = COMPRESS_STATE.WORKING;
+		if(clientRequest instanceof UploadFileRequestStatus)
+			compressing = ((UploadFileRequestStatus)clientRequest).isCompressing();
+		return createProgressCell(advancedMode,
+				clientRequest.isStarted(), compressing,
+				clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
+				clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
+				clientRequest.getTotalBlocks(),
+				clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
+				upload);
+	}
+
 	public static HTMLNode createProgressCell(boolean advancedMode, boolean started, COMPRESS_STATE compressing, int fetched, int failed, int fatallyFailed, int min, int total, boolean finalized, boolean upload) {
 		HTMLNode progressCell = new HTMLNode("td", "class", "request-progress");
 		if (!started) {
@@ -2093,13 +2231,14 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	return lastFailureCell;
     }
 
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
-		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, TablePaging paging, String id, QueueType queueType) {
+		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, paging, id, null, queueType);
 	}
 	
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
+	private HTMLNode createRequestTable(PageMaker pageMaker, final ToadletContext ctx, List<? extends RequestStatus> requests, final QueueColumn[] columns, final String[] priorityClasses, final boolean advancedModeEnabled, TablePaging paging, String id, String mimeType, final QueueType queueType) {
 		boolean hasFriends = core.node.getDarknetConnections().length > 0;
-		long now = System.currentTimeMillis();
+		final long now = System.currentTimeMillis();
+		final boolean pushed = ctx.getContainer().isFProxyJavascriptEnabled() && ctx.getContainer().isFProxyWebPushingEnabled();
 		
 		HTMLNode formDiv = new HTMLNode("div", "class", "request-table-form");
 		HTMLNode form = ctx.addFormChild(formDiv, path(), "request-table-form-"+id+(advancedModeEnabled?"-advanced":"-simple"));
@@ -2116,10 +2255,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		for (QueueColumn column : columns) {
 			switch (column) {
 				case IDENTIFIER:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=id" : "?sortBy=id&reversed")).addChild("#", l10n("identifier"));
+					headerRow.addChild("th").addChild("a", "href", paging.getSortLink(RequestStatusSorter.SortBy.ID)).addChild("#", l10n("identifier"));
 					break;
 				case SIZE:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=size" : "?sortBy=size&reversed")).addChild("#", l10n("size"));
+					headerRow.addChild("th").addChild("a", "href", paging.getSortLink(RequestStatusSorter.SortBy.SIZE)).addChild("#", l10n("size"));
 					break;
 				case MIME_TYPE:
 					headerRow.addChild("th", l10n("mimeType"));
@@ -2143,17 +2282,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					headerRow.addChild("th", l10n("totalSize"));
 					break;
 				case PROGRESS:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=progress" : "?sortBy=progress&reversed")).addChild("#", l10n("progress"));
+					headerRow.addChild("th").addChild("a", "href", paging.getSortLink(RequestStatusSorter.SortBy.PROGRESS)).addChild("#", l10n("progress"));
 					break;
 				case REASON:
 					headerRow.addChild("th", l10n("reason"));
 					break;
 				case LAST_ACTIVITY:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=lastActivity" : "?sortBy=lastActivity&reversed"), l10n("lastActivity"));
+					headerRow.addChild("th").addChild("a", "href", paging.getSortLink(RequestStatusSorter.SortBy.LAST_ACTIVITY), l10n("lastActivity"));
 					break;
 		case LAST_FAILURE:
 		    headerRow.addChild("th").addChild("a", "href",
-			    (isReversed ? "?sortBy=lastFailure" : "?sortBy=lastFailure&reversed"),
+			    paging.getSortLink(RequestStatusSorter.SortBy.LAST_FAILURE),
 			    l10n("lastFailure"));
 		    break;
 				case COMPAT_MODE:
@@ -2161,100 +2300,124 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					break;
 			}
 		}
-		//Add a row with a checkbox for each request.
-		int x = 0;
-		for (RequestStatus clientRequest : requests) {
-			HTMLNode requestRow = table.addChild("tr", "class", "priority" + clientRequest.getPriority());
-			requestRow.addChild(createCheckboxCell(clientRequest, x++));
-
-			for (QueueColumn column : columns) {
-				switch (column) {
-					case IDENTIFIER:
-						requestRow.addChild(createIdentifierCell(clientRequest.getURI(), clientRequest.getIdentifier(), clientRequest instanceof UploadDirRequestStatus));
-						break;
-					case SIZE:
-						boolean isFinal = true;
-						if(clientRequest instanceof DownloadRequestStatus)
-							isFinal = ((DownloadRequestStatus)clientRequest).isTotalFinalized();
-						requestRow.addChild(createSizeCell(clientRequest.getDataSize(), isFinal, advancedModeEnabled));
-						break;
-					case MIME_TYPE:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createTypeCell(((DownloadRequestStatus) clientRequest).getMIMEType()));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createTypeCell(((UploadFileRequestStatus) clientRequest).getMIMEType()));
-						}
-						break;
-					case PERSISTENCE:
-						requestRow.addChild(createPersistenceCell(clientRequest.isPersistent(), clientRequest.isPersistentForever()));
-						break;
-					case KEY:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createKeyCell(((DownloadRequestStatus) clientRequest).getURI(), false));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createKeyCell(((UploadFileRequestStatus) clientRequest).getFinalURI(), false));
-						}else {
-							requestRow.addChild(createKeyCell(((UploadDirRequestStatus) clientRequest).getFinalURI(), true));
-						}
-						break;
-					case FILENAME:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createFilenameCell(((DownloadRequestStatus) clientRequest).getDestFilename()));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createFilenameCell(((UploadFileRequestStatus) clientRequest).getOrigFilename()));
-						}
-						break;
-					case PRIORITY:
-						requestRow.addChild(createPriorityCell(clientRequest.getPriority(), priorityClasses));
-						break;
-					case FILES:
-						requestRow.addChild(createNumberCell(((UploadDirRequestStatus) clientRequest).getNumberOfFiles()));
-						break;
-					case TOTAL_SIZE:
-						requestRow.addChild(createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
-						break;
-					case PROGRESS:
-						if(clientRequest instanceof UploadFileRequestStatus)
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
-						else
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), COMPRESS_STATE.WORKING,
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
-						break;
-					case REASON:
-						requestRow.addChild(createReasonCell(clientRequest.getFailureReason(false)));
-						break;
-					case LAST_ACTIVITY:
-						requestRow.addChild(createLastActivityCell(now, clientRequest.getLastSuccess()));
-						break;
-		    case LAST_FAILURE:
-			requestRow.addChild(createLastFailureCell(now,
-				clientRequest.getLastFailure()));
-			break;
-					case COMPAT_MODE:
-						if(clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createCompatModeCell((DownloadRequestStatus)clientRequest));
-						} else {
-							requestRow.addChild("td");
-						}
-						break;
-				}
+		//Add a row with a checkbox for each request on this page.
+		String tableId = id + (mimeType == null ? "" : "-" + mimeType.replaceAll("[^A-Za-z0-9-]", "-"));
+		int pages = paging.getPageCount(requests.size());
+		int page = paging.getPage(tableId, pages);
+		if(pages > 1)
+			form.addChild(paging.createPageLinks(tableId, page, pages));
+		final List<? extends RequestStatus> rows = requests.subList(page * paging.pageSize, Math.min(requests.size(), (page + 1) * paging.pageSize));
+		// The rows are only created as the page is written out.
+		table.addChild(new HTMLNode.LazyNodes(new Iterable<HTMLNode>() {
+
+			@Override
+			public Iterator<HTMLNode> iterator() {
+				return new Iterator<HTMLNode>() {
+
+					private int x;
+
+					@Override
+					public boolean hasNext() {
+						return x < rows.size();
+					}
+
+					@Override
+					public HTMLNode next() {
+						if(!hasNext()) throw new NoSuchElementException();
+						RequestStatus clientRequest = rows.get(x);
+						return createRequestRow(clientRequest, x++, columns, priorityClasses, advancedModeEnabled, queueType, now, ctx, pushed);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+
+				};
 			}
-		}
+
+		}));
+		if(pages > 1)
+			form.addChild(paging.createPageLinks(tableId, page, pages));
 		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, false, queueType);
 		return formDiv;
 	}
 
+	private HTMLNode createRequestRow(RequestStatus clientRequest, int counter, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, QueueType queueType, long now, ToadletContext ctx, boolean pushed) {
+		HTMLNode requestRow = new HTMLNode("tr", "class", "priority" + clientRequest.getPriority());
+		requestRow.addChild(createCheckboxCell(clientRequest, counter));
+
+		for (QueueColumn column : columns) {
+			switch (column) {
+				case IDENTIFIER:
+					requestRow.addChild(createIdentifierCell(clientRequest.getURI(), clientRequest.getIdentifier(), clientRequest instanceof UploadDirRequestStatus));
+					break;
+				case SIZE:
+					boolean isFinal = true;
+					if(clientRequest instanceof DownloadRequestStatus)
+						isFinal = ((DownloadRequestStatus)clientRequest).isTotalFinalized();
+					requestRow.addChild(createSizeCell(clientRequest.getDataSize(), isFinal, advancedModeEnabled));
+					break;
+				case MIME_TYPE:
+					if (clientRequest instanceof DownloadRequestStatus) {
+						requestRow.addChild(createTypeCell(((DownloadRequestStatus) clientRequest).getMIMEType()));
+					} else if (clientRequest instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createTypeCell(((UploadFileRequestStatus) clientRequest).getMIMEType()));
+					}
+					break;
+				case PERSISTENCE:
+					requestRow.addChild(createPersistenceCell(clientRequest.isPersistent(), clientRequest.isPersistentForever()));
+					break;
+				case KEY:
+					if (clientRequest instanceof DownloadRequestStatus) {
+						requestRow.addChild(createKeyCell(((DownloadRequestStatus) clientRequest).getURI(), false));
+					} else if (clientRequest instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createKeyCell(((UploadFileRequestStatus) clientRequest).getFinalURI(), false));
+					}else {
+						requestRow.addChild(createKeyCell(((UploadDirRequestStatus) clientRequest).getFinalURI(), true));
+					}
+					break;
+				case FILENAME:
+					if (clientRequest instanceof DownloadRequestStatus) {
+						requestRow.addChild(createFilenameCell(((DownloadRequestStatus) clientRequest).getDestFilename()));
+					} else if (clientRequest instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createFilenameCell(((UploadFileRequestStatus) clientRequest).getOrigFilename()));
+					}
+					break;
+				case PRIORITY:
+					requestRow.addChild(createPriorityCell(clientRequest.getPriority(), priorityClasses));
+					break;
+				case FILES:
+					requestRow.addChild(createNumberCell(((UploadDirRequestStatus) clientRequest).getNumberOfFiles()));
+					break;
+				case TOTAL_SIZE:
+					requestRow.addChild(createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
+					break;
+				case PROGRESS:
+					requestRow.addChild(new QueueProgressElement(this, clientRequest, ctx.isAdvancedModeEnabled(), queueType.isUpload, ctx, pushed));
+					break;
+				case REASON:
+					requestRow.addChild(createReasonCell(clientRequest.getFailureReason(false)));
+					break;
+				case LAST_ACTIVITY:
+					requestRow.addChild(createLastActivityCell(now, clientRequest.getLastSuccess()));
+					break;
+	    case LAST_FAILURE:
+		requestRow.addChild(createLastFailureCell(now,
+			clientRequest.getLastFailure()));
+		break;
+				case COMPAT_MODE:
+					if(clientRequest instanceof DownloadRequestStatus) {
+						requestRow.addChild(createCompatModeCell((DownloadRequestStatus)clientRequest));
+					} else {
+						requestRow.addChild("td");
+					}
+					break;
+			}
+		}
+		return requestRow;
+	}
+
 	private boolean queueCannotRecommend(QueueType queueType) {
 		return queueType.isUpload && !queueType.isCompleted;
 	}
@@ -2332,10 +2495,12 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	@Override
 	public void notifyFailure(ClientRequest req) {
 		// FIXME do something???
+		invalidateRequestStatusCache();
 	}
 
 	@Override
 	public void notifySuccess(ClientRequest req) {
+		invalidateRequestStatusCache();
 		if(uploads == req instanceof ClientGet) return;
 		synchronized(completedRequestIdentifiers) {
 			completedRequestIdentifiers.add(req.getIdentifier());
@@ -2547,6 +2712,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 	@Override
 	public void onRemove(ClientRequest req) {
+		invalidateRequestStatusCache();
 		String identifier = req.getIdentifier();
 		synchronized(completedRequestIdentifiers) {
 			completedRequestIdentifiers.remove(identifier);
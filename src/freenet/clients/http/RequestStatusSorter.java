@@ -0,0 +1,150 @@
+package freenet.clients.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.ListIterator;
+
+import freenet.clients.fcp.RequestStatus;
+import freenet.support.Fields;
+import freenet.support.api.HTTPRequest;
+
+/**
+ * Sorts the requests on the queue page by the column chosen with the sortBy parameter. The
+ * sort key for each request is computed once before sorting, rather than in every comparison,
+ * so sorting thousands of requests is cheap.
+ */
+class RequestStatusSorter {
+
+	enum SortBy {
+		/** By priority, then identifier. */
+		DEFAULT(null),
+		ID("id"),
+		SIZE("size"),
+		PROGRESS("progress"),
+		LAST_ACTIVITY("lastActivity"),
+		LAST_FAILURE("lastFailure");
+
+		/** The value of the sortBy parameter. */
+		final String param;
+
+		private SortBy(String param) {
+			this.param = param;
+		}
+
+		static SortBy fromParam(String param) {
+			if(param == null) return DEFAULT;
+			for(SortBy sortBy : values())
+				if(param.equals(sortBy.param)) return sortBy;
+			return DEFAULT;
+		}
+	}
+
+	final SortBy sortBy;
+	final boolean reversed;
+
+	RequestStatusSorter(SortBy sortBy, boolean reversed) {
+		this.sortBy = sortBy;
+		this.reversed = reversed;
+	}
+
+	static RequestStatusSorter fromRequest(HTTPRequest request) {
+		return new RequestStatusSorter(SortBy.fromParam(request.getParam("sortBy", null)), request.isParameterSet("reversed"));
+	}
+
+	/** The query string to sort in this order, e.g. "sortBy=size&reversed", or "" for the
+	 * default order. */
+	String toQueryString() {
+		if(sortBy == SortBy.DEFAULT)
+			return reversed ? "reversed" : "";
+		return "sortBy=" + sortBy.param + (reversed ? "&reversed" : "");
+	}
+
+	/** A request and its precomputed sort key. */
+	private static class Key<T extends RequestStatus> {
+		final T status;
+		final String identifier;
+		final long primary;
+		final double secondary;
+
+		Key(T status, SortBy sortBy) {
+			this.status = status;
+			identifier = status.getIdentifier();
+			switch(sortBy) {
+			case SIZE:
+				primary = status.getTotalBlocks();
+				secondary = 0.0;
+				break;
+			case PROGRESS:
+				// Finalized after not finalized, then by the fraction fetched.
+				primary = status.isTotalFinalized() ? 1 : 0;
+				secondary = ((double)status.getFetchedBlocks()) / ((double)status.getMinBlocks());
+				break;
+			case LAST_ACTIVITY:
+				primary = getTime(status.getLastSuccess());
+				secondary = 0.0;
+				break;
+			case LAST_FAILURE:
+				primary = getTime(status.getLastFailure());
+				secondary = 0.0;
+				break;
+			case ID:
+				primary = 0;
+				secondary = 0.0;
+				break;
+			default:
+				primary = status.getPriority();
+				secondary = 0.0;
+			}
+		}
+
+		private static long getTime(Date date) {
+			return date == null ? 0 : date.getTime();
+		}
+	}
+
+	private int compare(Key<?> first, Key<?> second) {
+		int result;
+		switch(sortBy) {
+		case ID:
+			result = first.identifier.compareToIgnoreCase(second.identifier);
+			if(result == 0)
+				result = first.identifier.compareTo(second.identifier);
+			break;
+		case DEFAULT:
+			result = Fields.compare(first.primary, second.primary);
+			if(result == 0)
+				result = first.identifier.compareTo(second.identifier);
+			break;
+		default:
+			result = Fields.compare(first.primary, second.primary);
+			if(result == 0)
+				result = Fields.compare(first.secondary, second.secondary);
+		}
+		return reversed ? -result : result;
+	}
+
+	/** Sort the requests in place. The sort is stable. */
+	<T extends RequestStatus> void sort(List<T> requests) {
+		if(requests.size() < 2) return;
+		List<Key<T>> keys = new ArrayList<Key<T>>(requests.size());
+		for(T status : requests)
+			keys.add(new Key<T>(status, sortBy));
+		Collections.sort(keys, new Comparator<Key<T>>() {
+
+			@Override
+			public int compare(Key<T> first, Key<T> second) {
+				return RequestStatusSorter.this.compare(first, second);
+			}
+
+		});
+		ListIterator<T> it = requests.listIterator();
+		for(Key<T> key : keys) {
+			it.next();
+			it.set(key.status);
+		}
+	}
+
+}
@@ -11,10 +11,12 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.client.filter.HTMLFilter;
 import freenet.client.filter.LinkFilterExceptionProvider;
@@ -28,8 +30,10 @@ import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
+import freenet.io.SelectorLoop;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.Node;
@@ -62,6 +66,8 @@ import freenet.support.io.NativeThread;
 public final class SimpleToadletServer implements ToadletContainer, Runnable, LinkFilterExceptionProvider {
 	/** List of urlPrefix / Toadlet */ 
 	private final LinkedList<ToadletElement> toadlets;
+	/** Incremented whenever the toadlets change, see getExceptionsVersion(). */
+	private volatile int toadletsVersion;
 	private static class ToadletElement {
 		public ToadletElement(Toadlet t2, String urlPrefix, String menu, String name) {
 			t = t2;
@@ -85,6 +91,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	
 	// ACL
 	private final AllowedHosts allowedFullAccess;
+	/** Hosts allowed to scrape /metrics, or null if the metrics are disabled. */
+	private volatile AllowedHosts allowedMetricsAccess;
 	private boolean publicGatewayMode;
 	private final boolean wasPublicGatewayMode;
 	
@@ -122,6 +130,19 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private int maxFproxyConnections;
 	
 	private int fproxyConnections;
+
+	/** Gzip generated pages and static files if the browser accepts it. */
+	private volatile boolean compressReplies;
+
+	/** Use non-blocking I/O for new connections. Takes effect on restart. */
+	private boolean nio;
+	/** Non-null if we are using non-blocking I/O. */
+	private SelectorLoop[] selectorLoops;
+	private final AtomicInteger nextSelectorLoop = new AtomicInteger();
+	/** Non-blocking connections being handled. At most maxFproxyConnections. */
+	private int runningHandlers;
+	/** Non-blocking connections waiting for runningHandlers to go below maxFproxyConnections. */
+	private final ArrayDeque<NonBlockingHTTPConnection> waitingHandlers = new ArrayDeque<NonBlockingHTTPConnection>();
 	
 	private boolean finishedStartup;
 	
@@ -515,6 +536,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
 						if(get().equals(val)) return;
 						fproxyHasCompletedWizard = val;
+						// Changes which links findToadlet() redirects.
+						synchronized(toadlets) {
+							toadletsVersion++;
+						}
 					}
 		});
 		fproxyConfig.register("disableProgressPage", false, configItemOrder++, true, false, "SimpleToadletServer.disableProgressPage", "SimpleToadletServer.disableProgressPageLong",
@@ -687,6 +712,27 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			
 		});
 		allowedFullAccess = new AllowedHosts(fproxyConfig.getString("allowedHostsFullAccess"));
+		fproxyConfig.register("allowedHostsMetrics", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, false, "SimpleToadletServer.allowedMetrics",
+				"SimpleToadletServer.allowedMetricsLong",
+				new StringCallback() {
+
+					@Override
+					public String get() {
+						AllowedHosts hosts = allowedMetricsAccess;
+						return hosts == null ? "" : hosts.getAllowedHosts();
+					}
+
+					@Override
+					public void set(String val) throws InvalidConfigValueException {
+						try {
+							allowedMetricsAccess = createAllowedMetricsAccess(val);
+						} catch(IllegalArgumentException e) {
+							throw new InvalidConfigValueException(e);
+						}
+					}
+
+		});
+		allowedMetricsAccess = createAllowedMetricsAccess(fproxyConfig.getString("allowedHostsMetrics"));
 		fproxyConfig.register("doRobots", false, configItemOrder++, true, false, "SimpleToadletServer.doRobots", "SimpleToadletServer.doRobotsLong",
 				new BooleanCallback() {
 					@Override
@@ -721,6 +767,39 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			
 		}, false);
 		maxFproxyConnections = fproxyConfig.getInt("maxFproxyConnections");
+
+		fproxyConfig.register("nio", false, configItemOrder++, true, false, "SimpleToadletServer.nio", "SimpleToadletServer.nioLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return nio;
+					}
+
+					@Override
+					public void set(Boolean val) {
+						// Takes effect on restart.
+						nio = val;
+					}
+
+		});
+		nio = fproxyConfig.getBoolean("nio");
+
+		fproxyConfig.register("compressReplies", true, configItemOrder++, true, false, "SimpleToadletServer.compressReplies", "SimpleToadletServer.compressRepliesLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return compressReplies;
+					}
+
+					@Override
+					public void set(Boolean val) {
+						compressReplies = val;
+					}
+
+		});
+		compressReplies = fproxyConfig.getBoolean("compressReplies");
 		
 		fproxyConfig.register("metaRefreshSamePageInterval", 1, configItemOrder++, true, false, "SimpleToadletServer.metaRefreshSamePageInterval", "SimpleToadletServer.metaRefreshSamePageIntervalLong",
 				new IntCallback() {
@@ -844,16 +923,38 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private void maybeGetNetworkInterface() throws IOException {
 		if (this.networkInterface!=null) return;
 		if(ssl) {
+			if(nio)
+				Logger.normal(this, "Non-blocking FProxy is not supported with SSL, using a thread per connection");
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+		} else if(nio) {
+			this.networkInterface = ChannelNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			startSelectorLoops();
 		} else {
 			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
 	}		
 
+	private void startSelectorLoops() throws IOException {
+		// The selector threads only shuffle bytes, requests are handled on the executor.
+		int count = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		SelectorLoop[] loops = new SelectorLoop[count];
+		for(int i=0;i<count;i++) {
+			loops[i] = new SelectorLoop("FProxy selector "+i);
+			loops[i].start();
+		}
+		selectorLoops = loops;
+		Logger.normal(this, "Using non-blocking FProxy with "+count+" selector threads");
+	}
+
 	@Override
 	public boolean doRobots() {
 		return doRobots;
 	}
+
+	@Override
+	public boolean isCompressionEnabled() {
+		return compressReplies;
+	}
 	
 	@Override
 	public boolean publicGatewayMode() {
@@ -922,6 +1023,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			if(atFront) toadlets.addFirst(te);
 			else toadlets.addLast(te);
 			t.container = this;
+			toadletsVersion++;
 		}
 		if (menu != null && name != null) {
 			pageMaker.addNavigationLink(menu, urlPrefix, name, title, fullOnly, cb, l10n);
@@ -940,6 +1042,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				e = i.next();
 				if(e.t == t) {
 					i.remove();
+					toadletsVersion++;
 					break;
 				}
 			}
@@ -972,6 +1075,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			if (!(path.startsWith(FirstTimeWizardToadlet.TOADLET_URL) ||
 				path.startsWith(StaticToadlet.ROOT_URL) ||
 				path.startsWith(ExternalLinkToadlet.PATH) ||
+				path.equals(MetricsToadlet.PATH) ||
 				path.equals("/favicon.ico"))) {
 				try {
 					throw new PermanentRedirectException(new URI(null, null, null, -1, FirstTimeWizardToadlet.TOADLET_URL, uri.getQuery(), null));
@@ -1022,11 +1126,69 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            SelectorLoop[] loops = selectorLoops;
+            if(loops != null && conn.getChannel() != null) {
+                SelectorLoop loop = loops[(nextSelectorLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                try {
+                    dispatch(new NonBlockingHTTPConnection(this, conn, loop));
+                } catch (IOException e) {
+                    Logger.error(this, "Unable to register FProxy connection with "+loop+" : "+e, e);
+                    try {
+                        conn.close();
+                    } catch (IOException e1) {
+                        // Ignore
+                    }
+                }
+                continue;
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	/** Handle a non-blocking connection which has a request to read, or a parked request which
+	 * has been finished, once fewer than maxFproxyConnections are being handled. */
+	void dispatch(NonBlockingHTTPConnection conn) {
+		synchronized(this) {
+			if(runningHandlers >= maxFproxyConnections) {
+				waitingHandlers.add(conn);
+				return;
+			}
+			runningHandlers++;
+		}
+		execute(conn);
+	}
+
+	/** A non-blocking connection has given up its thread. */
+	void handlerFinished() {
+		NonBlockingHTTPConnection next;
+		synchronized(this) {
+			next = waitingHandlers.poll();
+			if(next == null) {
+				runningHandlers--;
+				return;
+			}
+		}
+		execute(next);
+	}
+
+	private void execute(NonBlockingHTTPConnection conn) {
+		boolean started;
+		synchronized(this) {
+			started = finishedStartup;
+		}
+		if(started)
+			executor.execute(conn, "HTTP connection handler for "+conn);
+		else
+			new Thread(conn).start();
+	}
+
+	/** @return The ticker, or null if we don't have the NodeClientCore yet. */
+	Ticker maybeGetTicker() {
+		NodeClientCore core = this.core;
+		return core == null ? null : core.node.getTicker();
+	}
+
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
@@ -1135,6 +1297,18 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	public boolean isAllowedFullAccess(InetAddress remoteAddr) {
 		return this.allowedFullAccess.allowed(remoteAddr);
 	}
+
+	@Override
+	public boolean isAllowedMetricsAccess(InetAddress remoteAddr) {
+		AllowedHosts hosts = allowedMetricsAccess;
+		return hosts != null && hosts.allowed(remoteAddr);
+	}
+
+	/** Empty means nobody, rather than AllowedHosts' default of localhost. */
+	private static AllowedHosts createAllowedMetricsAccess(String hosts) {
+		if(hosts == null || hosts.trim().isEmpty()) return null;
+		return new AllowedHosts(hosts);
+	}
 	
 	private static String l10n(String key, String pattern, String value) {
 		return NodeL10n.getBase().getString("SimpleToadletServer."+key, pattern, value);
@@ -1292,7 +1466,13 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		return false;
 	}
 
-
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getExceptionsVersion() {
+		return toadletsVersion;
+	}
 
 	@Override
 	public long generateUniqueID() {
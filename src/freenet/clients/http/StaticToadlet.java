@@ -1,22 +1,29 @@
 package freenet.clients.http;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
+import java.text.ParseException;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 
 import freenet.client.DefaultMIMETypes;
+import freenet.crypt.SHA256;
 import freenet.l10n.NodeL10n;
+import freenet.support.HexUtil;
+import freenet.support.MultiValueTable;
 import freenet.support.api.Bucket;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.FileBucket;
 
 /**
  * Static Toadlet.
- * Serve up static files
+ * Serve up static files. Files from the jar are cached in memory along with a gzip'ed copy, and
+ * have strong ETags, so conditional requests can be answered with 304 without reading the jar.
  */
 public class StaticToadlet extends Toadlet {
 	StaticToadlet() {
@@ -85,6 +92,116 @@ public class StaticToadlet extends Toadlet {
 			}
 		}
 		
+		StaticFile file = getStaticFile(path);
+		if(file == null) {
+			this.sendErrorPage(ctx, 404, l10n("pathNotFoundTitle"), l10n("pathNotFound"));
+			return;
+		}
+		if(file.data == null) {
+			sendUncached(ctx, path, file);
+			return;
+		}
+		boolean gzip = file.gzipped != null && ctx.shouldCompress(file.mimeType, file.data.length);
+		String etag = gzip ? file.gzipETag : file.etag;
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		headers.put("etag", etag);
+		if(file.gzipped != null)
+			headers.put("vary", "Accept-Encoding");
+		if(isNotModified(ctx.getHeaders(), etag, file.mTime)) {
+			ctx.sendReplyHeadersStatic(304, "Not Modified", headers, file.mimeType, -1, file.mTime);
+			return;
+		}
+		byte[] data = file.data;
+		if(gzip) {
+			headers.put("content-encoding", HTTPCompression.GZIP);
+			data = file.gzipped;
+		}
+		ctx.sendReplyHeadersStatic(200, "OK", headers, file.mimeType, data.length, file.mTime);
+		ctx.writeData(data);
+	}
+
+	/** A static file which has been read from the jar. Immutable. */
+	private static class StaticFile {
+		final String mimeType;
+		final Date mTime;
+		/** The content, or null if the file is too big to cache. */
+		final byte[] data;
+		/** The content gzip'ed, or null if it isn't worth it. */
+		final byte[] gzipped;
+		/** Strong ETags for the plain and the gzip'ed content. */
+		final String etag;
+		final String gzipETag;
+
+		StaticFile(String mimeType, Date mTime, byte[] data) {
+			this.mimeType = mimeType;
+			this.mTime = mTime;
+			this.data = data;
+			if(data == null) {
+				gzipped = null;
+				etag = null;
+				gzipETag = null;
+				return;
+			}
+			byte[] compressed = null;
+			if(data.length >= HTTPCompression.MIN_COMPRESS_LENGTH && HTTPCompression.isCompressible(mimeType)) {
+				compressed = HTTPCompression.gzip(data, 0, data.length);
+				if(compressed.length >= data.length) compressed = null;
+			}
+			gzipped = compressed;
+			byte[] hash = SHA256.digest(data);
+			String hex = HexUtil.bytesToHex(hash, 0, ETAG_BYTES);
+			etag = '"' + hex + '"';
+			gzipETag = '"' + hex + "-gz\"";
+		}
+	}
+
+	/** Files bigger than this are read from the jar for every request rather than cached. */
+	static final int MAX_CACHED_SIZE = 256*1024;
+	/** Bytes of the hash of the content to use in the ETag. */
+	private static final int ETAG_BYTES = 12;
+	/** Files we have read from the jar, by path. The jar doesn't change while we are running,
+	 * so we keep them forever: The whole of staticfiles/ is only a few megabytes. */
+	private static final ConcurrentHashMap<String, StaticFile> cache = new ConcurrentHashMap<String, StaticFile>();
+
+	/** @return The file, or null if there is no such file. */
+	private StaticFile getStaticFile(String path) throws IOException {
+		StaticFile file = cache.get(path);
+		if(file != null) return file;
+		URL url = getClass().getResource(ROOT_PATH+path);
+		if(url == null) return null;
+		Date mTime = getUrlMTime(url);
+		// Must have a time for sendReplyHeadersStatic().
+		if(mTime == null) mTime = STARTUP_TIME;
+		String mimeType = DefaultMIMETypes.guessMIMEType(path, false);
+		byte[] data = null;
+		InputStream strm = url.openStream();
+		try {
+			data = readFully(strm, MAX_CACHED_SIZE);
+		} finally {
+			strm.close();
+		}
+		file = new StaticFile(mimeType, mTime, data);
+		StaticFile old = cache.putIfAbsent(path, file);
+		return old == null ? file : old;
+	}
+
+	private static final Date STARTUP_TIME = new Date();
+
+	/** @return The contents of the stream, or null if it is longer than maxLength. */
+	private static byte[] readFully(InputStream strm, int maxLength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(maxLength, Math.max(strm.available(), 4096)));
+		byte[] cbuf = new byte[4096];
+		while(true) {
+			int r = strm.read(cbuf);
+			if(r == -1) break;
+			if(baos.size() + r > maxLength) return null;
+			baos.write(cbuf, 0, r);
+		}
+		return baos.toByteArray();
+	}
+
+	/** Send a file which is too big to cache straight from the jar, the old way. */
+	private void sendUncached(ToadletContext ctx, String path, StaticFile file) throws ToadletContextClosedException, IOException {
 		InputStream strm = getClass().getResourceAsStream(ROOT_PATH+path);
 		if (strm == null) {
 			this.sendErrorPage(ctx, 404, l10n("pathNotFoundTitle"), l10n("pathNotFound"));
@@ -104,13 +221,37 @@ public class StaticToadlet extends Toadlet {
 			os.close();
 		}
 		
-		URL url = getClass().getResource(ROOT_PATH+path);
-		Date mTime = getUrlMTime(url);
-		
-		ctx.sendReplyHeadersStatic(200, "OK", null, DefaultMIMETypes.guessMIMEType(path, false), data.size(), mTime);
+		ctx.sendReplyHeadersStatic(200, "OK", null, file.mimeType, data.size(), file.mTime);
 
 		ctx.writeData(data);
 	}
+
+	/**
+	 * Can we answer a conditional request with 304 Not Modified? If-None-Match takes
+	 * precedence over If-Modified-Since (RFC 7232).
+	 */
+	static boolean isNotModified(MultiValueTable<String, String> requestHeaders, String etag, Date mTime) {
+		String ifNoneMatch = requestHeaders.get("if-none-match");
+		if(ifNoneMatch != null) {
+			for(String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				// Weak comparison.
+				if(tag.startsWith("W/")) tag = tag.substring(2);
+				if(tag.equals("*") || tag.equals(etag)) return true;
+			}
+			return false;
+		}
+		String ifModifiedSince = requestHeaders.get("if-modified-since");
+		if(ifModifiedSince != null) {
+			try {
+				// HTTP dates only have a resolution of a second.
+				return ToadletContextImpl.parseHTTPDate(ifModifiedSince).getTime() >= mTime.getTime() / 1000 * 1000;
+			} catch (ParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
 	
 	/**
 	 * Try to find the modification time for a URL, or return null if not possible
@@ -25,6 +25,7 @@ import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
 import freenet.keys.FreenetURI;
+import freenet.node.HandshakeExecutor;
 import freenet.node.Location;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
@@ -438,6 +439,8 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
 			
+			drawHandshakeStatsBox(nextTableCell.addChild("div", "class", "infobox"));
+			
 			nextTableCell = overviewTableRow.addChild("td");
 
 			// thread usage box
@@ -525,7 +528,7 @@ public class StatisticsToadlet extends Toadlet {
 		
 		}
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void showRequesters(HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -627,12 +630,29 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 	
+	private void drawHandshakeStatsBox(HTMLNode box) {
+		HandshakeExecutor handshakes = node.handshakeExecutor;
+		box.addChild("div", "class", "infobox-header", l10n("handshakeTitle"));
+		HTMLNode list = box.addChild("div", "class", "infobox-content").addChild("ul");
+		list.addChild("li", l10n("handshakeThreads", "count", Integer.toString(handshakes.getThreads())));
+		list.addChild("li", l10n("handshakeQueued", "count", Integer.toString(handshakes.getQueueSize())));
+		list.addChild("li", l10n("handshakeProcessed", "count", Long.toString(handshakes.getProcessed())));
+		list.addChild("li", l10n("handshakeDropped", new String[] { "new", "full", "stale" },
+				new String[] { Long.toString(handshakes.getDroppedNew()), Long.toString(handshakes.getDroppedFull()),
+				Long.toString(handshakes.getDroppedStale()) }));
+		list.addChild("li", l10n("handshakeTimes", new String[] { "wait", "time" },
+				new String[] { TimeUtil.formatTime((long)handshakes.getAverageQueueTime(), 2, true),
+				TimeUtil.formatTime((long)handshakes.getAverageProcessingTime(), 2, true) }));
+	}
+
 	private void drawThreadPriorityStatsBox(HTMLNode node) {
 		
 		node.addChild("div", "class", "infobox-header", l10n("threadsByPriority"));
 		HTMLNode threadsInfoboxContent = node.addChild("div", "class", "infobox-content");
 		int[] activeThreadsByPriority = stats.getActiveThreadsByPriority();
 		int[] waitingThreadsByPriority = stats.getWaitingThreadsByPriority();
+		int[] queuedJobsByPriority = stats.getQueuedJobsByPriority();
+		double[] queueWaitTimesByPriority = stats.getQueueWaitTimesByPriority();
 		
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
@@ -640,12 +660,20 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		if(queuedJobsByPriority != null) {
+			row.addChild("th", l10n("queuedJobs"));
+			row.addChild("th", l10n("queueWaitTime"));
+		}
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(queuedJobsByPriority != null) {
+				row.addChild("td", String.valueOf(queuedJobsByPriority[i]));
+				row.addChild("td", TimeUtil.formatTime((long)queueWaitTimesByPriority[i], 2, true));
+			}
 		}
 	}
 
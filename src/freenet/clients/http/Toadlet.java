@@ -4,9 +4,12 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.net.URI;
 
@@ -194,8 +197,7 @@ public abstract class Toadlet {
 	 * @param length The number of bytes of data to send as the response body.
 	 */
 	protected void writeReply(ToadletContext ctx, int code, String mimeType, String desc, byte[] data, int offset, int length) throws ToadletContextClosedException, IOException {
-		ctx.sendReplyHeaders(code, desc, null, mimeType, length);
-		ctx.writeData(data, offset, length);
+		writeReply(ctx, code, mimeType, desc, null, data, offset, length, false);
 	}
 
 	/**
@@ -296,6 +298,42 @@ public abstract class Toadlet {
 		writeReply(ctx, code, "text/html; charset=utf-8", desc, headers, reply, forceDisableJavascript);
 	}
 	
+	/**
+	 * Write an HTTP response as HTML, rendering the page as it is sent rather than generating
+	 * it as one big String first. Better for big pages, especially those using
+	 * {@link HTMLNode.LazyNodes}.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param page The HTML page.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, HTMLNode page) throws ToadletContextClosedException, IOException {
+		writeHTMLReply(ctx, code, desc, null, page);
+	}
+
+	/**
+	 * Write an HTTP response as HTML, possibly with custom headers, rendering the page as it is
+	 * sent. See {@link #writeHTMLReply(ToadletContext, int, String, HTMLNode)}.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param headers The additional HTTP headers to send.
+	 * @param page The HTML page.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, MultiValueTable<String, String> headers, HTMLNode page) throws ToadletContextClosedException, IOException {
+		OutputStream os = ctx.sendReplyHeadersChunked(code, desc, headers, "text/html; charset=utf-8", false);
+		boolean finished = false;
+		try {
+			Writer w = new OutputStreamWriter(os, "UTF-8");
+			page.generate(w);
+			w.close();
+			finished = true;
+		} finally {
+			// Headers have been sent, so we can't send an error page.
+			if(!finished) ctx.forceDisconnect();
+		}
+	}
+	
 	/**
 	 * Write an HTTP response as plain text, possibly with custom headers, for example, we may want 
 	 * to send a redirect, or a file with a specified filename.
@@ -322,6 +360,8 @@ public abstract class Toadlet {
 	 * Write a generated HTTP response, e.g. a page, an image, an error message, possibly with 
 	 * custom headers, for example, we may want to send a redirect, or a file with a specified 
 	 * filename. This should not be used for fproxy content i.e. content downloaded from Freenet.
+	 * The reply is gzip'ed if the client accepts it, see
+	 * {@link ToadletContext#shouldCompress(String, long)}.
 	 * @param context The specific request to reply to.
 	 * @param code The HTTP reply code to use.
 	 * @param mimeType The MIME type of the data we are returning.
@@ -332,6 +372,15 @@ public abstract class Toadlet {
 	 * @param length The number of bytes of data to send as the response body.
 	 */
 	private void writeReply(ToadletContext context, int code, String mimeType, String desc, MultiValueTable<String, String> headers, byte[] buffer, int startIndex, int length, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException {
+	    if(context.shouldCompress(mimeType, length)) {
+	        byte[] compressed = HTTPCompression.gzip(buffer, startIndex, length);
+	        if(compressed.length < length) {
+	            headers = HTTPCompression.addGzipHeaders(headers);
+	            buffer = compressed;
+	            startIndex = 0;
+	            length = compressed.length;
+	        }
+	    }
 	    context.sendReplyHeaders(code, desc, headers, mimeType, length, forceDisableJavascript);
 		context.writeData(buffer, startIndex, length);
 	}
@@ -114,9 +114,15 @@ public interface ToadletContainer {
 	/** Is the given IP address allowed full access to the node? */
 	public boolean isAllowedFullAccess(InetAddress remoteAddr);
 
+	/** Is the given IP address allowed to read the node's metrics? */
+	public boolean isAllowedMetricsAccess(InetAddress remoteAddr);
+
 	/** Whether to tell spiders to go away */
 	public boolean doRobots();
 
+	/** Whether to gzip generated pages and static files for clients which accept it */
+	public boolean isCompressionEnabled();
+
 	public HTMLNode addFormChild(HTMLNode parentNode, String target, String name);
 
 	public boolean enablePersistentConnections();
@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.text.ParseException;
 import java.util.Date;
@@ -76,6 +77,21 @@ public interface ToadletContext {
 	 */
 	void sendReplyHeadersFProxy(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, long length) throws ToadletContextClosedException, IOException;
 
+	/**
+	 * Write reply headers for generated content whose length isn't known in advance, e.g. a page
+	 * which is rendered as it is sent. The reply is sent with chunked transfer encoding (or for
+	 * HTTP/1.0, by closing the connection afterwards), and gzip'ed if the client accepts it.
+	 * @param code HTTP code.
+	 * @param desc HTTP code description.
+	 * @param mvt Any extra headers. Can be null.
+	 * @param mimeType The MIME type of the reply.
+	 * @param forceDisableJavascript Disable javascript even if it is enabled for the web interface
+	 * as a whole.
+	 * @return The stream to write the reply to. Buffered. It must be closed to finish the reply,
+	 * which does not close the connection.
+	 */
+	OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException;
+
 	/**
 	 * Write data. Note you must send reply headers first.
 	 */
@@ -87,6 +103,19 @@ public interface ToadletContext {
 	 * been sent, how long the attached data should be, how much data has been sent etc.
 	 */
 	void forceDisconnect();
+
+	/**
+	 * Reply to this request later, without keeping a thread while waiting, e.g. for a long poll.
+	 * If this returns true, the toadlet must return without replying, and later, on any thread,
+	 * send the reply and then call {@link #finishParkedRequest()}. Until then the connection is
+	 * not used for anything else.
+	 * @return False if parking is not supported on this connection, in which case the toadlet
+	 * must reply before returning, as usual.
+	 */
+	boolean parkRequest();
+
+	/** The reply to a request parked with {@link #parkRequest()} has been sent. */
+	void finishParkedRequest();
 	
 	/**
 	 * Convenience method that simply calls {@link #writeData(byte[], int, int)}.
@@ -174,6 +203,15 @@ public interface ToadletContext {
 	
 	MultiValueTable<String, String> getHeaders();
 	
+	/**
+	 * Should a generated reply be sent gzip'ed? True if compression is enabled, the client
+	 * accepts gzip, and the reply is text and not too short to be worth it. Not for content
+	 * downloaded from Freenet.
+	 * @param mimeType The MIME type of the reply.
+	 * @param length The length of the reply, uncompressed.
+	 */
+	boolean shouldCompress(String mimeType, long length);
+	
 	/**
 	 * Get an existing {@link Cookie} (sent by the client) from the headers.
 	 */
@@ -197,6 +235,9 @@ public interface ToadletContext {
 	/** Is this Toadlet allowed full access to the node, including the ability to reconfigure it,
 	 * restart it etc? */
 	boolean isAllowedFullAccess();
+
+	/** Is this client allowed to read the node's metrics (MetricsToadlet)? */
+	boolean isAllowedMetricsAccess();
 	
 	/**
 	 * Is the web interface in advanced mode?
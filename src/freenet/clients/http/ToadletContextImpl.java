@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,6 +21,8 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
 
 import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
 import freenet.clients.http.annotation.AllowData;
@@ -38,8 +41,10 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
+import freenet.support.io.ChunkedOutputStream;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NoCloseProxyOutputStream;
 import freenet.support.io.TooLongException;
 
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -98,14 +103,41 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** The request was HTTP/1.0, so we can't use chunked encoding. */
+	private boolean http10;
+	/** Non-null if the connection can give up its thread while idle, and for parked requests. */
+	private final Connection connection;
+	/** The toadlet will reply later, see {@link #parkRequest()}. */
+	private volatile boolean parked;
+
+	/**
+	 * A connection which gives up its thread between requests, and while a request is parked.
+	 * See {@link NonBlockingHTTPConnection}.
+	 */
+	interface Connection {
+		/** Called between requests.
+		 * @return True if there is no more data for now. The reader has been suspended, and
+		 * handle() should return its thread. */
+		boolean suspendIfIdle();
+		/** A toadlet has parked a request. handle() will return shortly. */
+		void park(ToadletContextImpl ctx);
+		/** A toadlet has finished a request it parked. Called after handle() has returned. */
+		void parkedRequestFinished(ToadletContextImpl ctx);
+		void close();
+	}
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
+		this(sock, sock.getOutputStream(), null, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, uniqueID);
+	}
+
+	ToadletContextImpl(Socket sock, OutputStream os, Connection connection, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) {
 		this.headers = headers;
 		this.cookies = null;
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
-		sockOutputStream = sock.getOutputStream();
+		sockOutputStream = os;
+		this.connection = connection;
 		remoteAddr = sock.getInetAddress();
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
@@ -487,17 +519,36 @@ public class ToadletContextImpl implements ToadletContext {
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
 	public static void handle(Socket sock, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		InputStream is;
+		OutputStream os;
+		try {
+			is = new BufferedInputStream(sock.getInputStream(), 4096);
+			os = sock.getOutputStream();
+		} catch (IOException e) {
+			return;
+		}
+		handle(sock, new LineReadingInputStream(is), os, null, container, pageMaker, userAlertManager, bookmarkManager);
+	}
+
+	/**
+	 * Handle requests on a connection until it is closed, or, if connection is non-null, there
+	 * is no more data for now or a request has been parked.
+	 * @param lis The input, which must be kept between calls for the same connection.
+	 * @return True if the connection is still open, i.e. the reader has been suspended or a
+	 * request has been parked. The connection will call us again.
+	 */
+	static boolean handle(Socket sock, LineReadingInputStream lis, OutputStream os, Connection connection, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		InputStream is = lis;
 		try {
-			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
-			
-			LineReadingInputStream lis = new LineReadingInputStream(is);
-			
 			while(true) {
 				
+				if(connection != null && connection.suspendIfIdle())
+					return true;
+
 				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
-					sock.close();
-					return;
+					close(sock, connection);
+					return false;
 				} else if (firstLine.equals("")) {
 					continue;
 				}
@@ -518,8 +569,8 @@ public class ToadletContextImpl implements ToadletContext {
 					uri = URIPreEncoder.encodeURI(split[1]).normalize();
 					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
 				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
+					sendURIParseError(os, true, e);
+					return false;
 				}
 				String method = split[0];
 				
@@ -528,8 +579,8 @@ public class ToadletContextImpl implements ToadletContext {
 				while(true) {
 					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
 					if (line == null) {
-						sock.close();
-						return;
+						close(sock, connection);
+						return false;
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.length() == 0) break;
@@ -543,13 +594,15 @@ public class ToadletContextImpl implements ToadletContext {
 					headers.put(before, after);
 				}
 				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				boolean isHTTP10 = split[2].equals("HTTP/1.0");
+				boolean disconnect = shouldDisconnectAfterHandled(isHTTP10, headers) || !container.enablePersistentConnections();
 
 				boolean allowPost = container.allowPosts();
 				BucketFactory bf = container.getBucketFactory();
 				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
+				ToadletContextImpl ctx = new ToadletContextImpl(sock, os, connection, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
 				ctx.shouldDisconnect = disconnect;
+				ctx.http10 = isHTTP10;
 				
 				/*
 				 * copy the data into a bucket now,
@@ -568,7 +621,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen == null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
 					// <method> can not have data
@@ -576,7 +629,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen != null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				}
 
@@ -588,7 +641,7 @@ public class ToadletContextImpl implements ToadletContext {
 					} catch (NumberFormatException e) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
 						data = bf.makeBucket(len);
@@ -598,10 +651,10 @@ public class ToadletContextImpl implements ToadletContext {
 						if (method.equals("POST")) {
 							ctx.sendMethodNotAllowed("POST", true);
 						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
+							sendError(os, 403, "Forbidden", "Content not allowed in this configuration", true, null);
 						}
 						ctx.close();
-						return;
+						return false;
 					}
 				} else {
 					// we're not doing to use it, but we have to keep
@@ -611,8 +664,8 @@ public class ToadletContextImpl implements ToadletContext {
 
 				if (!container.enableExtendedMethodHandling()) {
 					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
+						sendError(os, 403, "Forbidden", "Method not allowed in this configuration", true, null);
+						return false;
 					}
 				}
 
@@ -657,17 +710,23 @@ public class ToadletContextImpl implements ToadletContext {
 						}
 						
 						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
+							callToadletMethod(t, method, uri, req, ctx, data, os, redirect);
 						} catch (RedirectException re) {
 							uri = re.newuri;
 							redirect = true;
 						} finally {
 							req.freeParts();
 						}
+						if(ctx.parked) {
+							// The toadlet will reply later. Don't read the next request, even if
+							// it has already arrived, as its reply would go out first. The
+							// connection will call us again once the parked reply has been sent.
+							return true;
+						}
 					}
 					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
+						close(sock, connection);
+						return false;
 					}
 				} finally {
 					if(data != null) data.free();
@@ -676,13 +735,13 @@ public class ToadletContextImpl implements ToadletContext {
 			
 		} catch (ParseException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+				sendError(os, 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
 		} catch (TooLongException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+				sendError(os, 400, "Bad Request", l10n("headersLineTooLong"), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
@@ -701,21 +760,29 @@ public class ToadletContextImpl implements ToadletContext {
 				pw.flush();
 				msg = msg + sw.toString() + "</pre></body></html>";
 				byte[] messageBytes = msg.getBytes("UTF-8");
-				sendReplyHeaders(sock.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
-				sock.getOutputStream().write(messageBytes);
+				sendReplyHeaders(os, 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
+				os.write(messageBytes);
 			} catch (IOException e1) {
 				// ignore and return
 			}
 		}
+		return false;
 	}
 	
+	private static void close(Socket sock, Connection connection) throws IOException {
+		if(connection != null)
+			connection.close();
+		else
+			sock.close();
+	}
+
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
-			ToadletContextImpl ctx, Bucket data, Socket sock, boolean methodIsConfigurable) throws Throwable {
+			ToadletContextImpl ctx, Bucket data, OutputStream os, boolean methodIsConfigurable) throws Throwable {
 		String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
 		if("GET".equals(method)) {
 			// Short cut the common case.
 			if (data != null) {
-				sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+				sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 				ctx.close();
 				return;
 			}
@@ -730,13 +797,13 @@ public class ToadletContextImpl implements ToadletContext {
 				AllowData anno = m.getAnnotation(AllowData.class);
 				if (anno == null) {
 					if (data != null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+						sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 						ctx.close();
 						return;
 					}
 				} else if (anno.value()) {
 					if (data == null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+						sendError(os, 400, "Bad Request", "Missing Content", true, null);
 						ctx.close();
 						return;
 					}
@@ -781,6 +848,31 @@ public class ToadletContextImpl implements ToadletContext {
 			return false;
 	}
 	
+	@Override
+	public OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException {
+		boolean gzip = shouldCompress(mimeType, Long.MAX_VALUE);
+		if(gzip)
+			mvt = HTTPCompression.addGzipHeaders(mvt);
+		OutputStream os;
+		if(http10) {
+			// No chunked encoding, the end of the reply is the end of the connection.
+			shouldDisconnect = true;
+			os = new NoCloseProxyOutputStream(sockOutputStream);
+		} else {
+			if(mvt == null) mvt = new MultiValueTable<String,String>();
+			mvt.put("transfer-encoding", "chunked");
+			os = new ChunkedOutputStream(sockOutputStream);
+		}
+		sendReplyHeaders(code, desc, mvt, mimeType, -1, forceDisableJavascript);
+		os = new BufferedOutputStream(os, CHUNK_SIZE);
+		if(gzip)
+			os = new GZIPOutputStream(os, CHUNK_SIZE);
+		return os;
+	}
+
+	/** Buffer size, and therefore roughly the chunk size, for sendReplyHeadersChunked(). */
+	private static final int CHUNK_SIZE = 16384;
+
 	@Override
 	public void writeData(byte[] data, int offset, int length) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
@@ -812,6 +904,12 @@ public class ToadletContextImpl implements ToadletContext {
 		return bf;
 	}
 
+	@Override
+	public boolean shouldCompress(String mimeType, long length) {
+		return length >= HTTPCompression.MIN_COMPRESS_LENGTH && container.isCompressionEnabled() &&
+			HTTPCompression.isCompressible(mimeType) && HTTPCompression.acceptsGzip(headers.get("accept-encoding"));
+	}
+
 	@Override
 	public HTMLNode addFormChild(HTMLNode parentNode, String target, String name) {
 		return container.addFormChild(parentNode, target, name);
@@ -821,6 +919,11 @@ public class ToadletContextImpl implements ToadletContext {
 	public boolean isAllowedFullAccess() {
 		return container.isAllowedFullAccess(remoteAddr);
 	}
+
+	@Override
+	public boolean isAllowedMetricsAccess() {
+		return container.isAllowedMetricsAccess(remoteAddr);
+	}
 	
 	@Override
 	public boolean isAdvancedModeEnabled() {
@@ -837,6 +940,24 @@ public class ToadletContextImpl implements ToadletContext {
 		this.shouldDisconnect = true;
 	}
 
+	boolean shouldDisconnect() {
+		return shouldDisconnect;
+	}
+
+	@Override
+	public boolean parkRequest() {
+		if(connection == null) return false;
+		parked = true;
+		connection.park(this);
+		return true;
+	}
+
+	@Override
+	public void finishParkedRequest() {
+		if(!parked) throw new IllegalStateException("Not parked");
+		connection.parkedRequestFinished(this);
+	}
+
 	@Override
 	public ToadletContainer getContainer() {
 		return container;
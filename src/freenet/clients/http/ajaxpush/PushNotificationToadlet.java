@@ -15,7 +15,7 @@ import freenet.support.Base64;
 import freenet.support.Logger;
 import freenet.support.api.HTTPRequest;
 
-/** This toadlet provides notifications for clients. It will block until one is present. It requires the requestId parameter. */
+/** This toadlet provides notifications for clients. It will wait until one is present, parking the request if the connection supports it, otherwise blocking. It requires the requestId parameter. */
 public class PushNotificationToadlet extends Toadlet {
 
 	private static volatile boolean	logMINOR;
@@ -28,9 +28,35 @@ public class PushNotificationToadlet extends Toadlet {
 		super(client);
 	}
 
-	public void handleMethodGET(URI uri, HTTPRequest req, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
-		String requestId = req.getParam("requestId");
-		PushDataManager.UpdateEvent event = ((SimpleToadletServer) ctx.getContainer()).pushDataManager.getNextNotification(requestId);
+	public void handleMethodGET(URI uri, HTTPRequest req, final ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
+		final String requestId = req.getParam("requestId");
+		final PushDataManager pushDataManager = ((SimpleToadletServer) ctx.getContainer()).pushDataManager;
+		if (!pushDataManager.awaitNotification(requestId, null) && ctx.parkRequest()) {
+			// Don't hold a thread until there is something to say.
+			Runnable check = new Runnable() {
+				@Override
+				public void run() {
+					if (!pushDataManager.awaitNotification(requestId, this)) {
+						return;
+					}
+					try {
+						reply(ctx, pushDataManager.getNextNotification(requestId));
+					} catch (ToadletContextClosedException e) {
+						ctx.forceDisconnect();
+					} catch (IOException e) {
+						ctx.forceDisconnect();
+					} finally {
+						ctx.finishParkedRequest();
+					}
+				}
+			};
+			check.run();
+			return;
+		}
+		reply(ctx, pushDataManager.getNextNotification(requestId));
+	}
+
+	private void reply(ToadletContext ctx, PushDataManager.UpdateEvent event) throws ToadletContextClosedException, IOException {
 		if (event != null) {
 			String elementRequestId = event.getRequestId();
 			String elementId = event.getElementId();
@@ -41,6 +41,9 @@ public class PushDataManager {
 	/** The Cleaner only runs when needed. If this field is true, then the Cleaner is scheduled to run */
 	private boolean										isScheduled				= false;
 
+	/** Parked notification polls to wake up, see awaitNotification() */
+	private List<Runnable>								waiters					= new ArrayList<Runnable>();
+
 	public PushDataManager(Ticker ticker) {
 		cleaner = ticker;
 	}
@@ -86,6 +89,7 @@ public class PushDataManager {
 				Logger.minor(this, "Waking up notification polls");
 			}
 			notifyAll();
+			wakeWaiters();
 		}
 	}
 
@@ -169,6 +173,7 @@ public class PushDataManager {
 				Logger.minor(this, "copied " + awaitingNotifications.get(newRequestId).size() + " notification:" + awaitingNotifications.get(newRequestId));
 			}
 			notifyAll();
+			wakeWaiters();
 			return true;
 		} else {
 			if (logMINOR) {
@@ -210,6 +215,7 @@ public class PushDataManager {
 		isKeepaliveReceived.put(requestId, true);
 		isFirstKeepaliveReceived.put(requestId, true);
 		notifyAll();
+		wakeWaiters();
 		return true;
 	}
 
@@ -224,8 +230,7 @@ public class PushDataManager {
 		if (logMINOR) {
 			Logger.minor(this, "Polling for notification:" + requestId);
 		}
-		while (awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() == 0 || // No notifications 
-				(awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() != 0 && isFirstKeepaliveReceived.containsKey(awaitingNotifications.get(requestId).get(0).requestId)==false)) { // Not asked us yet
+		while (!isNotificationReady(requestId)) {
 			try {
 				wait();
 			} catch (InterruptedException ie) {
@@ -241,6 +246,45 @@ public class PushDataManager {
 		return awaitingNotifications.get(requestId).remove(0);
 	}
 
+	/** Would getNextNotification() return immediately? */
+	private boolean isNotificationReady(String requestId) {
+		List<UpdateEvent> notifications = awaitingNotifications.get(requestId);
+		if (notifications == null) return true; // Request gone
+		if (notifications.size() == 0) return false; // No notifications
+		return isFirstKeepaliveReceived.containsKey(notifications.get(0).requestId); // Not asked us yet
+	}
+
+	/**
+	 * Non-blocking alternative to waiting in getNextNotification(), for a poll which has been
+	 * parked rather than holding a thread.
+	 * 
+	 * @param requestId
+	 *            - The id of the request
+	 * @param callback
+	 *            - Run once, on the ticker, the next time a notification may have become
+	 *            available. It should call this method again. Null to just check.
+	 * @return True if getNextNotification() would return immediately. If false, the callback
+	 *         has been registered.
+	 */
+	public synchronized boolean awaitNotification(String requestId, Runnable callback) {
+		if (isNotificationReady(requestId)) {
+			return true;
+		}
+		if (callback != null) {
+			waiters.add(callback);
+		}
+		return false;
+	}
+
+	/** Runs the parked polls' callbacks. Called with notifyAll(). */
+	private void wakeWaiters() {
+		if (waiters.isEmpty()) return;
+		for (Runnable r : waiters) {
+			cleaner.queueTimedJob(r, 0);
+		}
+		waiters = new ArrayList<Runnable>();
+	}
+
 	/** Returns the cleaner's delay in ms */
 	private int getDelayInMs() {
 		return (int) (UpdaterConstants.KEEPALIVE_INTERVAL_SECONDS * 1000 * 2.1);
@@ -288,6 +332,9 @@ public class PushDataManager {
 			}
 		}
 		awaitingNotifications.remove(requestId);
+		// Polls waiting for it can now fail.
+		notifyAll();
+		wakeWaiters();
 		return true;
 	}
 
@@ -0,0 +1,67 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+
+/**
+ * Verifies DSA signatures for a single group, with the powers of the generator precomputed.
+ * Half of the work of a DSA verification is raising the generator to a power, and since
+ * Freenet only uses one group for SSKs, we can do that with a FixedBaseModPow table. Gives
+ * exactly the same results as Bouncy Castle's DSASigner, including how it converts the
+ * message to a number.
+ */
+public final class DSAVerifier {
+
+	/** Bits of exponent per table lookup. */
+	private static final int WINDOW_BITS = 6;
+
+	private final BigInteger p;
+	private final BigInteger q;
+	private final FixedBaseModPow generator;
+
+	public DSAVerifier(DSAGroup group) {
+		p = group.getP();
+		q = group.getQ();
+		generator = new FixedBaseModPow(group.getG(), p, q.bitLength(), WINDOW_BITS);
+	}
+
+	/** Built on first use, since it takes a little while. */
+	private static class GroupBigAHolder {
+		static final DSAVerifier VERIFIER = new DSAVerifier(Global.DSAgroupBigA);
+	}
+
+	/** The verifier for Global.DSAgroupBigA, the group used by SSKs. */
+	public static DSAVerifier getGroupBigA() {
+		return GroupBigAHolder.VERIFIER;
+	}
+
+	/**
+	 * @param y The public key.
+	 * @param message The hash which was signed. Truncated to the size of q if necessary.
+	 * @param r The signature's r.
+	 * @param s The signature's s.
+	 * @return True if the signature is valid.
+	 */
+	public boolean verify(BigInteger y, byte[] message, BigInteger r, BigInteger s) {
+		if(r.signum() <= 0 || r.compareTo(q) >= 0) return false;
+		if(s.signum() <= 0 || s.compareTo(q) >= 0) return false;
+		BigInteger m = toNumber(message);
+		BigInteger w = s.modInverse(q);
+		BigInteger u1 = m.multiply(w).mod(q);
+		BigInteger u2 = r.multiply(w).mod(q);
+		BigInteger v = generator.pow(u1).multiply(y.modPow(u2, p)).mod(p).mod(q);
+		return v.equals(r);
+	}
+
+	private BigInteger toNumber(byte[] message) {
+		int bits = q.bitLength();
+		if(bits >= message.length * 8)
+			return new BigInteger(1, message);
+		byte[] truncated = new byte[bits / 8];
+		System.arraycopy(message, 0, truncated, 0, truncated.length);
+		return new BigInteger(1, truncated);
+	}
+
+}
@@ -0,0 +1,103 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+
+/**
+ * Modular exponentiation of a fixed base, e.g. a DSA group generator, using precomputed tables.
+ * The exponent is split into windows of w bits, and the table holds base^(d * 2^(i*w)) for
+ * every window i and digit d, so an exponentiation is one modular multiplication per non-zero
+ * window and no squarings. Multiplications are reduced with Barrett reduction, which is
+ * cheaper than BigInteger.mod().
+ *
+ * The table takes (maxExponentBits / w) * 2^w residues, so with a 2048-bit modulus, 256-bit
+ * exponents and w=6 it is about 700KB. Immutable once constructed, so thread-safe.
+ */
+public final class FixedBaseModPow {
+
+	private final BigInteger base;
+	private final BigInteger modulus;
+	private final int windowBits;
+	private final int maxExponentBits;
+	/** table[i][d] = base^(d * 2^(i*windowBits)) mod modulus, for d > 0. */
+	private final BigInteger[][] table;
+	/** Barrett reduction: k is the modulus's bit length, mu = floor(2^(2k) / modulus). */
+	private final int k;
+	private final BigInteger mu;
+
+	/**
+	 * @param base The base. Must be less than the modulus.
+	 * @param modulus The modulus. Must be odd and greater than 1.
+	 * @param maxExponentBits The largest exponent the table covers. Larger exponents still
+	 * work, but use BigInteger.modPow().
+	 * @param windowBits Bits of exponent per table lookup.
+	 */
+	public FixedBaseModPow(BigInteger base, BigInteger modulus, int maxExponentBits, int windowBits) {
+		if(modulus.signum() <= 0 || !modulus.testBit(0) || modulus.equals(BigInteger.ONE))
+			throw new IllegalArgumentException("Bad modulus");
+		if(base.signum() < 0 || base.compareTo(modulus) >= 0)
+			throw new IllegalArgumentException("Base out of range");
+		if(windowBits < 1 || windowBits > 16)
+			throw new IllegalArgumentException("Bad window size "+windowBits);
+		this.base = base;
+		this.modulus = modulus;
+		this.windowBits = windowBits;
+		this.maxExponentBits = maxExponentBits;
+		k = modulus.bitLength();
+		mu = BigInteger.ONE.shiftLeft(2 * k).divide(modulus);
+		int windows = (maxExponentBits + windowBits - 1) / windowBits;
+		int digits = 1 << windowBits;
+		table = new BigInteger[windows][digits];
+		BigInteger power = base;
+		for(int i=0;i<windows;i++) {
+			table[i][1] = power;
+			for(int d=2;d<digits;d++)
+				table[i][d] = reduce(table[i][d-1].multiply(power));
+			power = reduce(table[i][digits-1].multiply(power));
+		}
+	}
+
+	/** @return base^exponent mod modulus. */
+	public BigInteger pow(BigInteger exponent) {
+		if(exponent.signum() < 0 || exponent.bitLength() > maxExponentBits)
+			return base.modPow(exponent, modulus);
+		byte[] e = exponent.toByteArray();
+		BigInteger result = null;
+		for(int i=0;i<table.length;i++) {
+			int digit = digit(e, i * windowBits);
+			if(digit == 0) continue;
+			if(result == null)
+				result = table[i][digit];
+			else
+				result = reduce(result.multiply(table[i][digit]));
+		}
+		return result == null ? BigInteger.ONE : result;
+	}
+
+	/** The windowBits bits of a big-endian number starting at the given bit, least significant
+	 * first. */
+	private int digit(byte[] e, int firstBit) {
+		int digit = 0;
+		for(int b=0;b<windowBits;b++) {
+			int bit = firstBit + b;
+			int index = e.length - 1 - (bit >>> 3);
+			if(index < 0) break;
+			if((e[index] >>> (bit & 7) & 1) != 0)
+				digit |= 1 << b;
+		}
+		return digit;
+	}
+
+	/** x mod modulus, for 0 <= x < modulus^2. */
+	private BigInteger reduce(BigInteger x) {
+		BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+		BigInteger r = x.subtract(q.multiply(modulus));
+		// At most twice.
+		while(r.compareTo(modulus) >= 0)
+			r = r.subtract(modulus);
+		return r;
+	}
+
+}
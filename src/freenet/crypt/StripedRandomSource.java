@@ -0,0 +1,347 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.Ticker;
+
+/**
+ * A RandomSource which many threads can use at once without contending on a single lock, in
+ * front of a Yarrow.
+ *
+ * Entropy events (e.g. the timing of every incoming packet) are appended to one of a number of
+ * striped buffers, chosen by thread, and folded into the Yarrow's pools in batches, so Yarrow's
+ * lock is taken once per batch rather than once per event.
+ *
+ * Random output comes from a generator per thread: AES-256 in counter mode, keyed from the
+ * Yarrow. Apart from seeding and reseeding it, which is rare, a thread never touches the
+ * Yarrow to get random bytes.
+ *
+ * Security properties:
+ * <ul>
+ * <li>Entropy accounting is unchanged: Each event is estimated and credited by Yarrow exactly
+ * as if it had been passed directly, in the same order as far as each stripe is concerned. For
+ * timer events we buffer the time of the event, and Yarrow works out the delta from the 
+ * source's state when the batch is folded, as it would have when the event arrived. It
+ * only reaches the pools later: After at most BATCH_SIZE events on its stripe or MAX_BATCH_AGE.
+ * The age is checked when an event arrives, and every FLUSH_INTERVAL by a job on the Ticker
+ * passed to start(), so events on a stripe which goes quiet are not held indefinitely. Until
+ * start() has been called, they are held until the next event on the stripe, write_seed() or
+ * close(). Buffered events are only in memory, which is no worse than the pools themselves.</li>
+ * <li>Each thread's generator is seeded with 384 bits of Yarrow output, so the threads'
+ * streams are independent of each other and of Yarrow's own output.</li>
+ * <li>Backtracking resistance: After every buffer of output, the generator rekeys itself with
+ * keystream that is never output, and output bytes are wiped from the buffer as they are
+ * used. So compromising a generator's state does not reveal output it has already produced.</li>
+ * <li>Bounded prediction resistance: Each generator reseeds from the Yarrow after
+ * RESEED_BYTES of output or RESEED_INTERVAL, whichever is first. So once the Yarrow has
+ * reseeded from new entropy, every thread's output depends on it within that bound.</li>
+ * <li>Each key is used for one buffer, far below the point at which counter mode becomes
+ * distinguishable from random.</li>
+ * </ul>
+ */
+public class StripedRandomSource extends RandomSource implements PersistentRandomSource {
+
+	private static final long serialVersionUID = -1;
+
+	/** Number of events a stripe buffers before folding them into the pools. */
+	static final int BATCH_SIZE = 64;
+	/** Fold a stripe's events if the oldest has been waiting this long. */
+	static final long MAX_BATCH_AGE = SECONDS.toMillis(1);
+	/** How often to fold the events on stripes which have gone quiet. Folds batches older than
+	 * this, so no event waits longer than MAX_BATCH_AGE. */
+	static final long FLUSH_INTERVAL = MAX_BATCH_AGE / 2;
+	/** Bytes of output per generator key. */
+	static final int BUFFER_SIZE = 4096;
+	/** Reseed a thread's generator from the Yarrow after this many bytes. */
+	static final long RESEED_BYTES = 1024 * 1024;
+	/** Reseed a thread's generator from the Yarrow after this long. */
+	static final long RESEED_INTERVAL = MINUTES.toMillis(1);
+	private static final int KEY_LENGTH = 32;
+	private static final int IV_LENGTH = 16;
+
+	private final Yarrow pool;
+	private final Stripe[] stripes;
+	private final ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+		@Override
+		protected Generator initialValue() {
+			return new Generator();
+		}
+	};
+
+	public StripedRandomSource(Yarrow pool) {
+		this.pool = pool;
+		int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+		stripes = new Stripe[count];
+		for(int i=0;i<count;i++)
+			stripes[i] = new Stripe();
+	}
+
+	/** Entropy events waiting to be folded into the pools. */
+	private static final class Batch {
+		final EntropySource[] sources = new EntropySource[BATCH_SIZE];
+		/** For timer events, the time of the event. */
+		final long[] data = new long[BATCH_SIZE];
+		final boolean[] timers = new boolean[BATCH_SIZE];
+		final int[] entropyGuesses = new int[BATCH_SIZE];
+		final double[] biases = new double[BATCH_SIZE];
+		int count;
+		long firstEventTime;
+
+		void clear() {
+			Arrays.fill(sources, 0, count, null);
+			Arrays.fill(data, 0, count, 0);
+			count = 0;
+		}
+	}
+
+	private static final class Stripe {
+		Batch current = new Batch();
+		/** A batch which has been folded, to reuse. */
+		Batch spare;
+	}
+
+	private void addEvent(EntropySource source, long data, boolean timer, int entropyGuess, double bias, long now) {
+		Stripe stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+		Batch full = null;
+		synchronized(stripe) {
+			Batch batch = stripe.current;
+			if(batch.count == 0)
+				batch.firstEventTime = now;
+			int i = batch.count++;
+			batch.sources[i] = source;
+			batch.data[i] = data;
+			batch.timers[i] = timer;
+			batch.entropyGuesses[i] = entropyGuess;
+			batch.biases[i] = bias;
+			if(batch.count == BATCH_SIZE || now - batch.firstEventTime >= MAX_BATCH_AGE) {
+				full = batch;
+				stripe.current = stripe.spare != null ? stripe.spare : new Batch();
+				stripe.spare = null;
+			}
+		}
+		if(full != null)
+			fold(stripe, full);
+	}
+
+	private void fold(Stripe stripe, Batch batch) {
+		pool.acceptEntropyBatch(batch.sources, batch.data, batch.timers, batch.entropyGuesses, batch.biases, batch.count);
+		batch.clear();
+		synchronized(stripe) {
+			stripe.spare = batch;
+		}
+	}
+
+	/** Fold the events on stripes which have gone quiet every FLUSH_INTERVAL, from now on. */
+	public void start(final Ticker ticker) {
+		ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				flushEntropy(System.currentTimeMillis() - FLUSH_INTERVAL);
+				ticker.queueTimedJob(this, "Fold buffered entropy", FLUSH_INTERVAL, false, true);
+			}
+
+		}, "Fold buffered entropy", FLUSH_INTERVAL, false, true);
+	}
+
+	/** Fold all buffered entropy into the pools now. */
+	public void flushEntropy() {
+		flushEntropy(Long.MAX_VALUE);
+	}
+
+	/** Fold the buffered entropy on stripes whose oldest event is no newer than the given time. */
+	private void flushEntropy(long oldestBefore) {
+		for(Stripe stripe : stripes) {
+			Batch batch;
+			synchronized(stripe) {
+				batch = stripe.current;
+				if(batch.count == 0 || batch.firstEventTime > oldestBefore) continue;
+				stripe.current = stripe.spare != null ? stripe.spare : new Batch();
+				stripe.spare = null;
+			}
+			fold(stripe, batch);
+		}
+	}
+
+	/**
+	 * The entropy is credited when the batch is folded into the pools, so this returns 0.
+	 */
+	@Override
+	public int acceptEntropy(EntropySource source, long data, int entropyGuess) {
+		addEvent(source, data, false, entropyGuess, 1.0, System.currentTimeMillis());
+		return 0;
+	}
+
+	@Override
+	public int acceptTimerEntropy(EntropySource timer) {
+		return acceptTimerEntropy(timer, 1.0);
+	}
+
+	/**
+	 * The entropy is credited when the batch is folded into the pools, so this returns 0. The
+	 * time since the timer's last value is worked out then too, since that is when it is updated.
+	 */
+	@Override
+	public int acceptTimerEntropy(EntropySource timer, double bias) {
+		long now = System.currentTimeMillis();
+		addEvent(timer, now, true, 32, bias, now);
+		return 0;
+	}
+
+	@Override
+	public int acceptEntropyBytes(EntropySource source, byte[] buf, int offset, int length, double bias) {
+		return pool.acceptEntropyBytes(source, buf, offset, length, bias);
+	}
+
+	@Override
+	public void waitForEntropy(int bits) {
+		pool.waitForEntropy(bits);
+	}
+
+	@Override
+	public void write_seed(boolean force) {
+		flushEntropy();
+		pool.write_seed(force);
+	}
+
+	@Override
+	public void close() {
+		flushEntropy();
+		pool.close();
+	}
+
+	@Override
+	protected int next(int bits) {
+		return generators.get().nextInt() >>> (32 - bits);
+	}
+
+	@Override
+	public int nextInt() {
+		return generators.get().nextInt();
+	}
+
+	@Override
+	public long nextLong() {
+		Generator generator = generators.get();
+		return ((long) generator.nextInt() << 32) + generator.nextInt();
+	}
+
+	@Override
+	public void nextBytes(byte[] bytes) {
+		generators.get().nextBytes(bytes, 0, bytes.length);
+	}
+
+	/** AES-256 in counter mode. Only used by one thread. */
+	private final class Generator {
+		private final Cipher cipher;
+		private final CTRBlockCipher fallback;
+		/** Keystream. Bytes before bufferPtr have been output and wiped. */
+		private final byte[] buffer = new byte[BUFFER_SIZE + KEY_LENGTH + IV_LENGTH];
+		private int bufferPtr;
+		private long bytesSinceReseed;
+		private long lastReseed;
+
+		Generator() {
+			if(Rijndael.AesCtrProvider != null) {
+				try {
+					cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+				} catch (GeneralSecurityException e) {
+					throw new Error(e); // Impossible, we checked when choosing the provider.
+				}
+				fallback = null;
+			} else {
+				cipher = null;
+				try {
+					fallback = new CTRBlockCipher(new Rijndael(256, 128));
+				} catch (UnsupportedCipherException e) {
+					throw new Error(e); // Impossible
+				}
+			}
+			reseed();
+		}
+
+		/** Key from the pool, and generate a buffer. */
+		private void reseed() {
+			byte[] seed = new byte[KEY_LENGTH + IV_LENGTH];
+			pool.nextBytes(seed);
+			bytesSinceReseed = 0;
+			lastReseed = System.currentTimeMillis();
+			generate(seed, 0);
+			Arrays.fill(seed, (byte) 0);
+		}
+
+		/** Key with the given seed, generate a buffer of keystream and then rekey with the end
+		 * of it, so the key which generated the buffer is gone. */
+		private void generate(byte[] seed, int offset) {
+			Arrays.fill(buffer, (byte) 0);
+			if(cipher != null) {
+				try {
+					cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, offset, KEY_LENGTH, "AES"),
+							new IvParameterSpec(seed, offset + KEY_LENGTH, IV_LENGTH));
+					cipher.update(buffer, 0, buffer.length, buffer, 0);
+				} catch (GeneralSecurityException e) {
+					throw new Error(e); // Impossible
+				}
+			} else {
+				fallback.getUnderlyingCipher().initialize(Arrays.copyOfRange(seed, offset, offset + KEY_LENGTH));
+				fallback.init(seed, offset + KEY_LENGTH, IV_LENGTH);
+				fallback.processBytes(buffer, 0, buffer.length, buffer, 0);
+			}
+			bufferPtr = 0;
+		}
+
+		private void refill() {
+			long now = System.currentTimeMillis();
+			if(bytesSinceReseed >= RESEED_BYTES || now - lastReseed >= RESEED_INTERVAL) {
+				reseed();
+			} else {
+				// The new key is at the end of the buffer, and will be overwritten.
+				byte[] seed = Arrays.copyOfRange(buffer, BUFFER_SIZE, buffer.length);
+				generate(seed, 0);
+				Arrays.fill(seed, (byte) 0);
+			}
+		}
+
+		void nextBytes(byte[] buf, int offset, int length) {
+			while(length > 0) {
+				if(bufferPtr == BUFFER_SIZE) refill();
+				int chunk = Math.min(length, BUFFER_SIZE - bufferPtr);
+				System.arraycopy(buffer, bufferPtr, buf, offset, chunk);
+				Arrays.fill(buffer, bufferPtr, bufferPtr + chunk, (byte) 0);
+				bufferPtr += chunk;
+				offset += chunk;
+				length -= chunk;
+				bytesSinceReseed += chunk;
+			}
+		}
+
+		int nextInt() {
+			if(bufferPtr > BUFFER_SIZE - 4) {
+				// Not worth keeping the last few bytes.
+				Arrays.fill(buffer, bufferPtr, BUFFER_SIZE, (byte) 0);
+				bufferPtr = BUFFER_SIZE;
+				refill();
+			}
+			int i = bufferPtr;
+			int ret = (buffer[i] & 0xFF) << 24 | (buffer[i + 1] & 0xFF) << 16 |
+				(buffer[i + 2] & 0xFF) << 8 | (buffer[i + 3] & 0xFF);
+			buffer[i] = buffer[i + 1] = buffer[i + 2] = buffer[i + 3] = 0;
+			bufferPtr += 4;
+			bytesSinceReseed += 4;
+			return ret;
+		}
+	}
+
+}
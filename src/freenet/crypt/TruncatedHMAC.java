@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import freenet.support.Logger;
+
+/**
+ * An HMAC which is keyed once and then used for many messages, computing and checking MACs
+ * truncated to a fixed length directly on a range of a buffer. Unlike HMAC.mac(), this doesn't
+ * look up the provider, set up the key, or copy the data and the result, for every message, so
+ * it is suitable for authenticating every packet of a connection.
+ *
+ * Generating and verifying each have their own Mac, so a thread sending packets and a thread
+ * receiving them don't contend. Each is synchronized, since Mac's are not thread-safe.
+ */
+public final class TruncatedHMAC {
+
+	private final int length;
+	private final Mac generator;
+	private final byte[] generated;
+	private final Mac verifier;
+	private final byte[] verified;
+
+	/**
+	 * @param hash The hash function.
+	 * @param key The key. Must be the same size as the hash's output.
+	 * @param length The number of bytes of the MAC to use.
+	 */
+	public TruncatedHMAC(HMAC hash, byte[] key, int length) {
+		if(key.length != hash.digestSize)
+			throw new IllegalArgumentException("Wrong keysize! We're not doing key stretching "+
+					key.length+" expected "+hash.digestSize);
+		if(length <= 0 || length > hash.digestSize)
+			throw new IllegalArgumentException("Bad MAC length "+length);
+		this.length = length;
+		SecretKeySpec signingKey = new SecretKeySpec(key, hash.algo);
+		generator = create(hash, signingKey);
+		verifier = create(hash, signingKey);
+		generated = new byte[hash.digestSize];
+		verified = new byte[hash.digestSize];
+	}
+
+	private static Mac create(HMAC hash, SecretKeySpec key) {
+		Mac mac;
+		try {
+			mac = Mac.getInstance(hash.algo);
+		} catch (NoSuchAlgorithmException e) {
+			Logger.error(TruncatedHMAC.class, "No such AlgorithmException", e);
+			throw new Error(e);
+		}
+		try {
+			mac.init(key);
+		} catch (InvalidKeyException e) {
+			Logger.error(TruncatedHMAC.class, "Impossible InvalidKeyException", e);
+			throw new Error(e);
+		}
+		return mac;
+	}
+
+	/** The length of the truncated MAC in bytes. */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Compute the truncated MAC of some data.
+	 * @param out Where to write the MAC. May be the same buffer as the data, but must not
+	 * overlap it.
+	 */
+	public void mac(byte[] data, int offset, int len, byte[] out, int outOffset) {
+		synchronized(generator) {
+			doFinal(generator, data, offset, len, generated);
+			System.arraycopy(generated, 0, out, outOffset, length);
+		}
+	}
+
+	/**
+	 * Check the truncated MAC of some data, in constant time.
+	 * @param mac The buffer containing the MAC to check.
+	 * @return True if it matches.
+	 */
+	public boolean verify(byte[] data, int offset, int len, byte[] mac, int macOffset) {
+		int diff = 0;
+		synchronized(verifier) {
+			doFinal(verifier, data, offset, len, verified);
+			for(int i=0;i<length;i++)
+				diff |= verified[i] ^ mac[macOffset + i];
+		}
+		return diff == 0;
+	}
+
+	private static void doFinal(Mac mac, byte[] data, int offset, int len, byte[] output) {
+		mac.update(data, offset, len);
+		try {
+			mac.doFinal(output, 0);
+		} catch (ShortBufferException e) {
+			throw new Error(e); // Impossible
+		}
+	}
+
+}
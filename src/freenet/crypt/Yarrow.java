@@ -501,6 +501,62 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 
 	private int accept_entropy(long data, EntropySource source, int actualEntropy) {
 
+		boolean performedPoolReseed;
+		synchronized(this) {
+			performedPoolReseed = addToPool(data, source, actualEntropy);
+		}
+		if(performedPoolReseed)
+			maybeWriteSeed();
+
+		return actualEntropy;
+	}
+
+	/**
+	 * Accept a batch of entropy events, taking the lock only once. Each event is estimated and
+	 * credited exactly as if it had been passed to acceptEntropy() on its own, in order.
+	 * @param sources The source of each event. Its entropy estimator state is updated.
+	 * @param data The data for each event.
+	 * @param timers Which events are timer events, as for acceptTimerEntropy(). For these, data
+	 * is the time of the event, and we use the time since the source's last value, as of when we
+	 * get to the event, so it is the same as if it had been passed on its own.
+	 * @param entropyGuesses The caller's estimate of the entropy of each event.
+	 * @param biases Value by which we multiply the entropy of each event.
+	 * @param count The number of events.
+	 * @return The total entropy credited.
+	 */
+	int acceptEntropyBatch(EntropySource[] sources, long[] data, boolean[] timers, int[] entropyGuesses, double[] biases, int count) {
+		int total = 0;
+		boolean performedPoolReseed = false;
+		synchronized(this) {
+			for(int i=0;i<count;i++) {
+				long value = timers[i] ? data[i] - sources[i].lastVal : data[i];
+				int actualEntropy = (int) (biases[i] * Math.min(32,
+						Math.min(estimateEntropy(sources[i], value), entropyGuesses[i])));
+				total += actualEntropy;
+				if(addToPool(value, sources[i], actualEntropy))
+					performedPoolReseed = true;
+			}
+		}
+		if(performedPoolReseed)
+			maybeWriteSeed();
+		return total;
+	}
+
+	private void maybeWriteSeed() {
+		if(seedfile != null) {
+			//Dont do this while synchronized on 'this' since
+			//opening a file seems to be suprisingly slow on windows
+			if(logMINOR)
+				Logger.minor(this, "Writing seedfile");
+			write_seed(seedfile);
+			if(logMINOR)
+				Logger.minor(this, "Written seedfile");
+		}
+	}
+
+	/** Add one event to alternate pools, and reseed if needed. Caller must hold the lock.
+	 * @return True if we reseeded. */
+	private boolean addToPool(long data, EntropySource source, int actualEntropy) {
 		boolean performedPoolReseed = false;
 		byte[] b = new byte[] {
 				(byte) data,
@@ -513,63 +569,51 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 				(byte) (data >> 56)
 		};
 
-		synchronized(this) {
-			fast_select = !fast_select;
-			MessageDigest pool = (fast_select ? fast_pool : slow_pool);
-			pool.update(b);
-
-			if(fast_select) {
-				fast_entropy += actualEntropy;
-				if(fast_entropy > FAST_THRESHOLD) {
-					fast_pool_reseed();
-					performedPoolReseed = true;
-				}
-			} else {
-				slow_entropy += actualEntropy;
-
-				if(source != null) {
-					int[] contributedEntropy = entropySeen.get(source);
-					if(contributedEntropy == null) {
-						contributedEntropy = new int[] { actualEntropy };
-						entropySeen.put(source, contributedEntropy);
-					} else
-						contributedEntropy[0]+=actualEntropy;
-
-					if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
-						int kc = 0;
-						for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
-							EntropySource key = e.getKey();
-							int[] v = e.getValue();
-							if(DEBUG)
-								Logger.normal(this, "Key: <" + key + "> " + v);
-							if(v[0] > SLOW_THRESHOLD) {
-								kc++;
-								if(kc >= SLOW_K) {
-									slow_pool_reseed();
-									performedPoolReseed = true;
-									break;
-								}
+		fast_select = !fast_select;
+		MessageDigest pool = (fast_select ? fast_pool : slow_pool);
+		pool.update(b);
+
+		if(fast_select) {
+			fast_entropy += actualEntropy;
+			if(fast_entropy > FAST_THRESHOLD) {
+				fast_pool_reseed();
+				performedPoolReseed = true;
+			}
+		} else {
+			slow_entropy += actualEntropy;
+
+			if(source != null) {
+				int[] contributedEntropy = entropySeen.get(source);
+				if(contributedEntropy == null) {
+					contributedEntropy = new int[] { actualEntropy };
+					entropySeen.put(source, contributedEntropy);
+				} else
+					contributedEntropy[0]+=actualEntropy;
+
+				if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
+					int kc = 0;
+					for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
+						EntropySource key = e.getKey();
+						int[] v = e.getValue();
+						if(DEBUG)
+							Logger.normal(this, "Key: <" + key + "> " + v);
+						if(v[0] > SLOW_THRESHOLD) {
+							kc++;
+							if(kc >= SLOW_K) {
+								slow_pool_reseed();
+								performedPoolReseed = true;
+								break;
 							}
 						}
 					}
 				}
 			}
-			if(DEBUG)
-				//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
-				// "+slow_entropy, LogLevel.NORMAL);
-				System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
 		}
-		if(performedPoolReseed && (seedfile != null)) {
-			//Dont do this while synchronized on 'this' since
-			//opening a file seems to be suprisingly slow on windows
-			if(logMINOR)
-				Logger.minor(this, "Writing seedfile");
-			write_seed(seedfile);
-			if(logMINOR)
-				Logger.minor(this, "Written seedfile");
-		}
-
-		return actualEntropy;
+		if(DEBUG)
+			//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
+			// "+slow_entropy, LogLevel.NORMAL);
+			System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
+		return performedPoolReseed;
 	}
 
 	private int estimateEntropy(EntropySource source, long newVal) {
@@ -25,6 +25,9 @@ import freenet.support.Logger;
  */
 public class Rijndael implements BlockCipher {
 	private Object sessionKey;
+	/** If the block size is 256 bits, the key schedule for the specialised implementation,
+	 * which doesn't need any locking. */
+	private volatile Rijndael256 cipher256;
 	private final int keysize, blocksize;
 
 	public static final Provider AesCtrProvider = getAesCtrProvider();
@@ -157,7 +160,10 @@ public class Rijndael implements BlockCipher {
 		try {
 			byte[] nkey=new byte[keysize>>3];
 			System.arraycopy(key, 0, nkey, 0, nkey.length);
-			sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
+			if(blocksize == 256)
+				cipher256 = new Rijndael256(nkey);
+			else
+				sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
 			Logger.error(this,"Invalid key");
@@ -165,16 +171,28 @@ public class Rijndael implements BlockCipher {
 	}
 
 	@Override
-	public synchronized final void encipher(byte[] block, byte[] result) {
+	public final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
+		if(blocksize == 256) {
+			cipher256.encrypt(block, 0, result, 0);
+			return;
+		}
+		synchronized(this) {
+			Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
+		}
 	}
 
 	@Override
-	public synchronized final void decipher(byte[] block, byte[] result) {
+	public final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
+		if(blocksize == 256) {
+			cipher256.decrypt(block, 0, result, 0);
+			return;
+		}
+		synchronized(this) {
+			Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
+		}
 	}
 }
@@ -0,0 +1,186 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt.ciphers;
+
+import java.security.InvalidKeyException;
+
+/**
+ * Rijndael with a 256-bit block, which is what Freenet uses for connection level crypto and
+ * older keys. This is not AES, so we can't use JCA (or AES-NI) for it. Same tables and key
+ * schedule as Rijndael_Algorithm, but specialised for Nb=8: The round keys are expanded once,
+ * into flat arrays, the state is kept in locals and the rounds are unrolled two at a time, so
+ * there is no copying between rounds, and nothing is allocated per block.
+ *
+ * Immutable once constructed, so may be used by any number of threads at once.
+ */
+final class Rijndael256 {
+
+	/** The block size in bytes. */
+	static final int BLOCK_SIZE = 32;
+	/** With Nb=8, there are 14 rounds whatever the key size. */
+	private static final int ROUNDS = 14;
+
+	private static final byte[] S = Rijndael_Algorithm.S;
+	private static final byte[] Si = Rijndael_Algorithm.Si;
+	private static final int[] T1 = Rijndael_Algorithm.T1;
+	private static final int[] T2 = Rijndael_Algorithm.T2;
+	private static final int[] T3 = Rijndael_Algorithm.T3;
+	private static final int[] T4 = Rijndael_Algorithm.T4;
+	private static final int[] T5 = Rijndael_Algorithm.T5;
+	private static final int[] T6 = Rijndael_Algorithm.T6;
+	private static final int[] T7 = Rijndael_Algorithm.T7;
+	private static final int[] T8 = Rijndael_Algorithm.T8;
+
+	/** Encryption round keys, 8 words per round. */
+	private final int[] ke;
+	/** Decryption round keys, 8 words per round. */
+	private final int[] kd;
+
+	/**
+	 * @param key A 128, 192 or 256-bit key.
+	 * @throws InvalidKeyException If the key is the wrong size.
+	 */
+	Rijndael256(byte[] key) throws InvalidKeyException {
+		Object[] sessionKey = (Object[]) Rijndael_Algorithm.makeKey(key, BLOCK_SIZE);
+		ke = flatten((int[][]) sessionKey[0]);
+		kd = flatten((int[][]) sessionKey[1]);
+	}
+
+	private static int[] flatten(int[][] roundKeys) {
+		assert(roundKeys.length == ROUNDS + 1);
+		int[] flat = new int[(ROUNDS + 1) * 8];
+		for(int r=0;r<=ROUNDS;r++)
+			System.arraycopy(roundKeys[r], 0, flat, r * 8, 8);
+		return flat;
+	}
+
+	/**
+	 * Encrypt one block. The input and output may be the same buffer.
+	 */
+	void encrypt(byte[] in, int inOffset, byte[] out, int outOffset) {
+		final int[] ke = this.ke;
+		int t0 = get(in, inOffset) ^ ke[0];
+		int t1 = get(in, inOffset + 4) ^ ke[1];
+		int t2 = get(in, inOffset + 8) ^ ke[2];
+		int t3 = get(in, inOffset + 12) ^ ke[3];
+		int t4 = get(in, inOffset + 16) ^ ke[4];
+		int t5 = get(in, inOffset + 20) ^ ke[5];
+		int t6 = get(in, inOffset + 24) ^ ke[6];
+		int t7 = get(in, inOffset + 28) ^ ke[7];
+		int a0, a1, a2, a3, a4, a5, a6, a7;
+		int k = 8;
+		// Rounds 1 to 12, two at a time, then round 13.
+		for(int r=1;r<ROUNDS-1;r+=2) {
+			a0 = T1[t0 >>> 24] ^ T2[(t1 >>> 16) & 0xFF] ^ T3[(t3 >>> 8) & 0xFF] ^ T4[t4 & 0xFF] ^ ke[k];
+			a1 = T1[t1 >>> 24] ^ T2[(t2 >>> 16) & 0xFF] ^ T3[(t4 >>> 8) & 0xFF] ^ T4[t5 & 0xFF] ^ ke[k + 1];
+			a2 = T1[t2 >>> 24] ^ T2[(t3 >>> 16) & 0xFF] ^ T3[(t5 >>> 8) & 0xFF] ^ T4[t6 & 0xFF] ^ ke[k + 2];
+			a3 = T1[t3 >>> 24] ^ T2[(t4 >>> 16) & 0xFF] ^ T3[(t6 >>> 8) & 0xFF] ^ T4[t7 & 0xFF] ^ ke[k + 3];
+			a4 = T1[t4 >>> 24] ^ T2[(t5 >>> 16) & 0xFF] ^ T3[(t7 >>> 8) & 0xFF] ^ T4[t0 & 0xFF] ^ ke[k + 4];
+			a5 = T1[t5 >>> 24] ^ T2[(t6 >>> 16) & 0xFF] ^ T3[(t0 >>> 8) & 0xFF] ^ T4[t1 & 0xFF] ^ ke[k + 5];
+			a6 = T1[t6 >>> 24] ^ T2[(t7 >>> 16) & 0xFF] ^ T3[(t1 >>> 8) & 0xFF] ^ T4[t2 & 0xFF] ^ ke[k + 6];
+			a7 = T1[t7 >>> 24] ^ T2[(t0 >>> 16) & 0xFF] ^ T3[(t2 >>> 8) & 0xFF] ^ T4[t3 & 0xFF] ^ ke[k + 7];
+			k += 8;
+			t0 = T1[a0 >>> 24] ^ T2[(a1 >>> 16) & 0xFF] ^ T3[(a3 >>> 8) & 0xFF] ^ T4[a4 & 0xFF] ^ ke[k];
+			t1 = T1[a1 >>> 24] ^ T2[(a2 >>> 16) & 0xFF] ^ T3[(a4 >>> 8) & 0xFF] ^ T4[a5 & 0xFF] ^ ke[k + 1];
+			t2 = T1[a2 >>> 24] ^ T2[(a3 >>> 16) & 0xFF] ^ T3[(a5 >>> 8) & 0xFF] ^ T4[a6 & 0xFF] ^ ke[k + 2];
+			t3 = T1[a3 >>> 24] ^ T2[(a4 >>> 16) & 0xFF] ^ T3[(a6 >>> 8) & 0xFF] ^ T4[a7 & 0xFF] ^ ke[k + 3];
+			t4 = T1[a4 >>> 24] ^ T2[(a5 >>> 16) & 0xFF] ^ T3[(a7 >>> 8) & 0xFF] ^ T4[a0 & 0xFF] ^ ke[k + 4];
+			t5 = T1[a5 >>> 24] ^ T2[(a6 >>> 16) & 0xFF] ^ T3[(a0 >>> 8) & 0xFF] ^ T4[a1 & 0xFF] ^ ke[k + 5];
+			t6 = T1[a6 >>> 24] ^ T2[(a7 >>> 16) & 0xFF] ^ T3[(a1 >>> 8) & 0xFF] ^ T4[a2 & 0xFF] ^ ke[k + 6];
+			t7 = T1[a7 >>> 24] ^ T2[(a0 >>> 16) & 0xFF] ^ T3[(a2 >>> 8) & 0xFF] ^ T4[a3 & 0xFF] ^ ke[k + 7];
+			k += 8;
+		}
+		a0 = T1[t0 >>> 24] ^ T2[(t1 >>> 16) & 0xFF] ^ T3[(t3 >>> 8) & 0xFF] ^ T4[t4 & 0xFF] ^ ke[k];
+		a1 = T1[t1 >>> 24] ^ T2[(t2 >>> 16) & 0xFF] ^ T3[(t4 >>> 8) & 0xFF] ^ T4[t5 & 0xFF] ^ ke[k + 1];
+		a2 = T1[t2 >>> 24] ^ T2[(t3 >>> 16) & 0xFF] ^ T3[(t5 >>> 8) & 0xFF] ^ T4[t6 & 0xFF] ^ ke[k + 2];
+		a3 = T1[t3 >>> 24] ^ T2[(t4 >>> 16) & 0xFF] ^ T3[(t6 >>> 8) & 0xFF] ^ T4[t7 & 0xFF] ^ ke[k + 3];
+		a4 = T1[t4 >>> 24] ^ T2[(t5 >>> 16) & 0xFF] ^ T3[(t7 >>> 8) & 0xFF] ^ T4[t0 & 0xFF] ^ ke[k + 4];
+		a5 = T1[t5 >>> 24] ^ T2[(t6 >>> 16) & 0xFF] ^ T3[(t0 >>> 8) & 0xFF] ^ T4[t1 & 0xFF] ^ ke[k + 5];
+		a6 = T1[t6 >>> 24] ^ T2[(t7 >>> 16) & 0xFF] ^ T3[(t1 >>> 8) & 0xFF] ^ T4[t2 & 0xFF] ^ ke[k + 6];
+		a7 = T1[t7 >>> 24] ^ T2[(t0 >>> 16) & 0xFF] ^ T3[(t2 >>> 8) & 0xFF] ^ T4[t3 & 0xFF] ^ ke[k + 7];
+		k += 8;
+		// The last round has no MixColumn.
+		put(out, outOffset, box(S, a0 >>> 24, a1 >>> 16, a3 >>> 8, a4) ^ ke[k]);
+		put(out, outOffset + 4, box(S, a1 >>> 24, a2 >>> 16, a4 >>> 8, a5) ^ ke[k + 1]);
+		put(out, outOffset + 8, box(S, a2 >>> 24, a3 >>> 16, a5 >>> 8, a6) ^ ke[k + 2]);
+		put(out, outOffset + 12, box(S, a3 >>> 24, a4 >>> 16, a6 >>> 8, a7) ^ ke[k + 3]);
+		put(out, outOffset + 16, box(S, a4 >>> 24, a5 >>> 16, a7 >>> 8, a0) ^ ke[k + 4]);
+		put(out, outOffset + 20, box(S, a5 >>> 24, a6 >>> 16, a0 >>> 8, a1) ^ ke[k + 5]);
+		put(out, outOffset + 24, box(S, a6 >>> 24, a7 >>> 16, a1 >>> 8, a2) ^ ke[k + 6]);
+		put(out, outOffset + 28, box(S, a7 >>> 24, a0 >>> 16, a2 >>> 8, a3) ^ ke[k + 7]);
+	}
+
+	/**
+	 * Decrypt one block. The input and output may be the same buffer.
+	 */
+	void decrypt(byte[] in, int inOffset, byte[] out, int outOffset) {
+		final int[] kd = this.kd;
+		int t0 = get(in, inOffset) ^ kd[0];
+		int t1 = get(in, inOffset + 4) ^ kd[1];
+		int t2 = get(in, inOffset + 8) ^ kd[2];
+		int t3 = get(in, inOffset + 12) ^ kd[3];
+		int t4 = get(in, inOffset + 16) ^ kd[4];
+		int t5 = get(in, inOffset + 20) ^ kd[5];
+		int t6 = get(in, inOffset + 24) ^ kd[6];
+		int t7 = get(in, inOffset + 28) ^ kd[7];
+		int a0, a1, a2, a3, a4, a5, a6, a7;
+		int k = 8;
+		for(int r=1;r<ROUNDS-1;r+=2) {
+			a0 = T5[t0 >>> 24] ^ T6[(t7 >>> 16) & 0xFF] ^ T7[(t5 >>> 8) & 0xFF] ^ T8[t4 & 0xFF] ^ kd[k];
+			a1 = T5[t1 >>> 24] ^ T6[(t0 >>> 16) & 0xFF] ^ T7[(t6 >>> 8) & 0xFF] ^ T8[t5 & 0xFF] ^ kd[k + 1];
+			a2 = T5[t2 >>> 24] ^ T6[(t1 >>> 16) & 0xFF] ^ T7[(t7 >>> 8) & 0xFF] ^ T8[t6 & 0xFF] ^ kd[k + 2];
+			a3 = T5[t3 >>> 24] ^ T6[(t2 >>> 16) & 0xFF] ^ T7[(t0 >>> 8) & 0xFF] ^ T8[t7 & 0xFF] ^ kd[k + 3];
+			a4 = T5[t4 >>> 24] ^ T6[(t3 >>> 16) & 0xFF] ^ T7[(t1 >>> 8) & 0xFF] ^ T8[t0 & 0xFF] ^ kd[k + 4];
+			a5 = T5[t5 >>> 24] ^ T6[(t4 >>> 16) & 0xFF] ^ T7[(t2 >>> 8) & 0xFF] ^ T8[t1 & 0xFF] ^ kd[k + 5];
+			a6 = T5[t6 >>> 24] ^ T6[(t5 >>> 16) & 0xFF] ^ T7[(t3 >>> 8) & 0xFF] ^ T8[t2 & 0xFF] ^ kd[k + 6];
+			a7 = T5[t7 >>> 24] ^ T6[(t6 >>> 16) & 0xFF] ^ T7[(t4 >>> 8) & 0xFF] ^ T8[t3 & 0xFF] ^ kd[k + 7];
+			k += 8;
+			t0 = T5[a0 >>> 24] ^ T6[(a7 >>> 16) & 0xFF] ^ T7[(a5 >>> 8) & 0xFF] ^ T8[a4 & 0xFF] ^ kd[k];
+			t1 = T5[a1 >>> 24] ^ T6[(a0 >>> 16) & 0xFF] ^ T7[(a6 >>> 8) & 0xFF] ^ T8[a5 & 0xFF] ^ kd[k + 1];
+			t2 = T5[a2 >>> 24] ^ T6[(a1 >>> 16) & 0xFF] ^ T7[(a7 >>> 8) & 0xFF] ^ T8[a6 & 0xFF] ^ kd[k + 2];
+			t3 = T5[a3 >>> 24] ^ T6[(a2 >>> 16) & 0xFF] ^ T7[(a0 >>> 8) & 0xFF] ^ T8[a7 & 0xFF] ^ kd[k + 3];
+			t4 = T5[a4 >>> 24] ^ T6[(a3 >>> 16) & 0xFF] ^ T7[(a1 >>> 8) & 0xFF] ^ T8[a0 & 0xFF] ^ kd[k + 4];
+			t5 = T5[a5 >>> 24] ^ T6[(a4 >>> 16) & 0xFF] ^ T7[(a2 >>> 8) & 0xFF] ^ T8[a1 & 0xFF] ^ kd[k + 5];
+			t6 = T5[a6 >>> 24] ^ T6[(a5 >>> 16) & 0xFF] ^ T7[(a3 >>> 8) & 0xFF] ^ T8[a2 & 0xFF] ^ kd[k + 6];
+			t7 = T5[a7 >>> 24] ^ T6[(a6 >>> 16) & 0xFF] ^ T7[(a4 >>> 8) & 0xFF] ^ T8[a3 & 0xFF] ^ kd[k + 7];
+			k += 8;
+		}
+		a0 = T5[t0 >>> 24] ^ T6[(t7 >>> 16) & 0xFF] ^ T7[(t5 >>> 8) & 0xFF] ^ T8[t4 & 0xFF] ^ kd[k];
+		a1 = T5[t1 >>> 24] ^ T6[(t0 >>> 16) & 0xFF] ^ T7[(t6 >>> 8) & 0xFF] ^ T8[t5 & 0xFF] ^ kd[k + 1];
+		a2 = T5[t2 >>> 24] ^ T6[(t1 >>> 16) & 0xFF] ^ T7[(t7 >>> 8) & 0xFF] ^ T8[t6 & 0xFF] ^ kd[k + 2];
+		a3 = T5[t3 >>> 24] ^ T6[(t2 >>> 16) & 0xFF] ^ T7[(t0 >>> 8) & 0xFF] ^ T8[t7 & 0xFF] ^ kd[k + 3];
+		a4 = T5[t4 >>> 24] ^ T6[(t3 >>> 16) & 0xFF] ^ T7[(t1 >>> 8) & 0xFF] ^ T8[t0 & 0xFF] ^ kd[k + 4];
+		a5 = T5[t5 >>> 24] ^ T6[(t4 >>> 16) & 0xFF] ^ T7[(t2 >>> 8) & 0xFF] ^ T8[t1 & 0xFF] ^ kd[k + 5];
+		a6 = T5[t6 >>> 24] ^ T6[(t5 >>> 16) & 0xFF] ^ T7[(t3 >>> 8) & 0xFF] ^ T8[t2 & 0xFF] ^ kd[k + 6];
+		a7 = T5[t7 >>> 24] ^ T6[(t6 >>> 16) & 0xFF] ^ T7[(t4 >>> 8) & 0xFF] ^ T8[t3 & 0xFF] ^ kd[k + 7];
+		k += 8;
+		put(out, outOffset, box(Si, a0 >>> 24, a7 >>> 16, a5 >>> 8, a4) ^ kd[k]);
+		put(out, outOffset + 4, box(Si, a1 >>> 24, a0 >>> 16, a6 >>> 8, a5) ^ kd[k + 1]);
+		put(out, outOffset + 8, box(Si, a2 >>> 24, a1 >>> 16, a7 >>> 8, a6) ^ kd[k + 2]);
+		put(out, outOffset + 12, box(Si, a3 >>> 24, a2 >>> 16, a0 >>> 8, a7) ^ kd[k + 3]);
+		put(out, outOffset + 16, box(Si, a4 >>> 24, a3 >>> 16, a1 >>> 8, a0) ^ kd[k + 4]);
+		put(out, outOffset + 20, box(Si, a5 >>> 24, a4 >>> 16, a2 >>> 8, a1) ^ kd[k + 5]);
+		put(out, outOffset + 24, box(Si, a6 >>> 24, a5 >>> 16, a3 >>> 8, a2) ^ kd[k + 6]);
+		put(out, outOffset + 28, box(Si, a7 >>> 24, a6 >>> 16, a4 >>> 8, a3) ^ kd[k + 7]);
+	}
+
+	private static int get(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) << 24 | (buf[offset + 1] & 0xFF) << 16 |
+			(buf[offset + 2] & 0xFF) << 8 | (buf[offset + 3] & 0xFF);
+	}
+
+	private static void put(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >>> 24);
+		buf[offset + 1] = (byte) (value >>> 16);
+		buf[offset + 2] = (byte) (value >>> 8);
+		buf[offset + 3] = (byte) value;
+	}
+
+	/** Look up four bytes in an S-box and pack them into a word. */
+	private static int box(byte[] box, int b0, int b1, int b2, int b3) {
+		return (box[b0 & 0xFF] & 0xFF) << 24 | (box[b1 & 0xFF] & 0xFF) << 16 |
+			(box[b2 & 0xFF] & 0xFF) << 8 | (box[b3 & 0xFF] & 0xFF);
+	}
+
+}
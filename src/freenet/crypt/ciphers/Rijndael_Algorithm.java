@@ -66,16 +66,17 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	private static final int[] alog = new int[256];
 	private static final int[] log = new int[256];
 
-	private static final byte[] S = new byte[256];
-	private static final byte[] Si = new byte[256];
-	private static final int[] T1 = new int[256];
-	private static final int[] T2 = new int[256];
-	private static final int[] T3 = new int[256];
-	private static final int[] T4 = new int[256];
-	private static final int[] T5 = new int[256];
-	private static final int[] T6 = new int[256];
-	private static final int[] T7 = new int[256];
-	private static final int[] T8 = new int[256];
+	// S-boxes and T-boxes are shared with Rijndael256.
+	static final byte[] S = new byte[256];
+	static final byte[] Si = new byte[256];
+	static final int[] T1 = new int[256];
+	static final int[] T2 = new int[256];
+	static final int[] T3 = new int[256];
+	static final int[] T4 = new int[256];
+	static final int[] T5 = new int[256];
+	static final int[] T6 = new int[256];
+	static final int[] T7 = new int[256];
+	static final int[] T8 = new int[256];
 	private static final int[] U1 = new int[256];
 	private static final int[] U2 = new int[256];
 	private static final int[] U3 = new int[256];
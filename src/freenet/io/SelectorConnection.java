@@ -0,0 +1,280 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import freenet.support.Logger;
+import freenet.support.io.FileRegionWriter;
+
+/**
+ * A non-blocking socket registered with a {@link SelectorLoop}, with blocking streams on top, so
+ * that existing protocol code can be used unchanged. The selector thread reads into a buffer
+ * whenever there is room, and the InputStream takes data from the buffer, waiting if it is empty.
+ * The OutputStream writes directly to the channel, waiting for the selector if the socket's send
+ * buffer is full. It can also send files with FileChannel.transferTo().
+ *
+ * The point is that the reader doesn't have to keep a thread while the connection is idle: At a
+ * message boundary it calls suspendReaderIfIdle(), and if that returns true, it returns its
+ * thread, and the Callback will be called when more data arrives (or the other side closes the
+ * connection). Similarly, the writer only needs a thread while it has something to send.
+ *
+ * LOCKING: Synchronizes on itself, only briefly. Never held while calling the callback.
+ */
+public class SelectorConnection {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(SelectorConnection.class);
+	}
+
+	public interface Callback {
+		/** Called on the selector thread when data arrives, or the connection is closed, after
+		 * the reader has suspended itself. Must not block; typically this schedules the reader
+		 * on an executor. */
+		void onReadable();
+	}
+
+	static final int BUFFER_SIZE = 16384;
+
+	private final SelectorLoop loop;
+	final SocketChannel channel;
+	private final Callback callback;
+	/** Only accessed by the selector thread. */
+	SelectionKey key;
+	/** Data read from the socket, in write mode, i.e. position() is the number of bytes which
+	 * can be read by the InputStream. */
+	private final ByteBuffer inBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	/** The other side has closed its end, or there was an error. */
+	private boolean eof;
+	private IOException error;
+	private boolean closed;
+	/** The reader is not running and must be woken up by the callback when data arrives. */
+	private boolean readerSuspended;
+	/** A writer is waiting for the socket to become writable. */
+	private boolean waitingForWrite;
+	private final InputStream is = new ConnectionInputStream();
+	private final OutputStream os = new ConnectionOutputStream();
+
+	SelectorConnection(SelectorLoop loop, SocketChannel channel, Callback callback) {
+		this.loop = loop;
+		this.channel = channel;
+		this.callback = callback;
+	}
+
+	/** @return A blocking stream which reads data received by the selector. */
+	public InputStream getInputStream() {
+		return is;
+	}
+
+	/** @return A blocking stream which writes to the socket. Must only be used by one thread at
+	 * a time. */
+	public OutputStream getOutputStream() {
+		return os;
+	}
+
+	/**
+	 * Called by the reader when it has finished a message. If there is no more data yet, the
+	 * reader is suspended until there is.
+	 * @return True if the reader should return its thread now; the callback will be called when
+	 * there is data to read. False if there is data (or EOF) to read already, and the reader
+	 * should carry on.
+	 */
+	public synchronized boolean suspendReaderIfIdle() {
+		if(inBuffer.position() > 0 || eof || closed) return false;
+		readerSuspended = true;
+		return true;
+	}
+
+	/** Close the channel. Anyone waiting for the streams will get an IOException. */
+	public void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		loop.onClosed(this);
+	}
+
+	synchronized int interestOps() {
+		int ops = 0;
+		if(!eof && !closed && inBuffer.hasRemaining())
+			ops |= SelectionKey.OP_READ;
+		if(waitingForWrite && !closed)
+			ops |= SelectionKey.OP_WRITE;
+		return ops;
+	}
+
+	/** Called on the selector thread. */
+	void onReadable() {
+		boolean wakeReader = false;
+		synchronized(this) {
+			if(closed) return;
+			try {
+				if(channel.read(inBuffer) < 0) eof = true;
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Caught "+e+" reading from "+channel, e);
+				error = e;
+				eof = true;
+			}
+			notifyAll();
+			if(readerSuspended && (inBuffer.position() > 0 || eof)) {
+				readerSuspended = false;
+				wakeReader = true;
+			}
+		}
+		// Stop reading if the buffer is full or we've reached EOF.
+		loop.update(this);
+		if(wakeReader) callback.onReadable();
+	}
+
+	/** Called on the selector thread. */
+	void onWritable() {
+		synchronized(this) {
+			waitingForWrite = false;
+			notifyAll();
+		}
+		loop.update(this);
+	}
+
+	/** Called on the selector thread if the channel has been closed under us. */
+	void onSelectorError(IOException e) {
+		boolean wakeReader;
+		synchronized(this) {
+			if(error == null) error = e;
+			eof = true;
+			waitingForWrite = false;
+			notifyAll();
+			wakeReader = readerSuspended;
+			readerSuspended = false;
+		}
+		if(wakeReader) callback.onReadable();
+	}
+
+	private class ConnectionInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int x = read(buf, 0, 1);
+			if(x < 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			boolean wasFull;
+			int read;
+			synchronized(SelectorConnection.this) {
+				while(inBuffer.position() == 0) {
+					if(closed) throw new IOException("Closed");
+					if(error != null) throw error;
+					if(eof) return -1;
+					try {
+						SelectorConnection.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				wasFull = !inBuffer.hasRemaining();
+				inBuffer.flip();
+				read = Math.min(length, inBuffer.remaining());
+				inBuffer.get(buf, offset, read);
+				inBuffer.compact();
+			}
+			// The selector stopped reading when the buffer filled up.
+			if(wasFull) loop.update(SelectorConnection.this);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			synchronized(SelectorConnection.this) {
+				return inBuffer.position();
+			}
+		}
+
+		@Override
+		public void close() {
+			SelectorConnection.this.close();
+		}
+
+	}
+
+	private class ConnectionOutputStream extends OutputStream implements FileRegionWriter {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			ByteBuffer data = ByteBuffer.wrap(buf, offset, length);
+			while(data.hasRemaining()) {
+				synchronized(SelectorConnection.this) {
+					if(closed) throw new IOException("Closed");
+				}
+				if(channel.write(data) == 0)
+					awaitWritable();
+			}
+		}
+
+		@Override
+		public void writeFileRegion(FileChannel fc, long position, long length) throws IOException {
+			while(length > 0) {
+				synchronized(SelectorConnection.this) {
+					if(closed) throw new IOException("Closed");
+				}
+				long moved = fc.transferTo(position, length, channel);
+				if(moved == 0) {
+					if(position >= fc.size())
+						throw new EOFException("File too short: wanted "+length+" more bytes at "+position);
+					awaitWritable();
+				}
+				position += moved;
+				length -= moved;
+			}
+		}
+
+		private void awaitWritable() throws IOException {
+			synchronized(SelectorConnection.this) {
+				waitingForWrite = true;
+			}
+			loop.update(SelectorConnection.this);
+			synchronized(SelectorConnection.this) {
+				while(waitingForWrite) {
+					if(closed) throw new IOException("Closed");
+					if(error != null) throw error;
+					try {
+						SelectorConnection.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			SelectorConnection.this.close();
+		}
+
+	}
+
+}
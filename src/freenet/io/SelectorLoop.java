@@ -0,0 +1,151 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * A single thread running a Selector for many stream connections (e.g. FCP clients). It only
+ * moves bytes between the sockets and each {@link SelectorConnection}'s buffers; the protocol
+ * code reads and writes the connection's blocking streams on threads from an executor, and only
+ * while there is something to do. So an idle connection costs a buffer and a SelectionKey rather
+ * than a couple of threads.
+ *
+ * Callbacks are run on the selector thread and must not block.
+ */
+public class SelectorLoop implements Runnable {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(SelectorLoop.class);
+	}
+
+	private final String name;
+	private final Selector selector;
+	/** Connections which need to be registered or have their interest ops changed. */
+	private final Queue<SelectorConnection> pending = new ConcurrentLinkedQueue<SelectorConnection>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private Thread thread;
+	private volatile boolean shutdown;
+
+	public SelectorLoop(String name) throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+	}
+
+	public synchronized void start() {
+		if(thread != null) return;
+		thread = new NativeThread(this, name, NativeThread.HIGH_PRIORITY, true);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void shutdown() {
+		shutdown = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Take over a connected channel. It will be switched to non-blocking mode, so from now on it
+	 * must only be accessed through the returned SelectorConnection's streams.
+	 * @param callback Called when data arrives for a reader which has suspended itself.
+	 */
+	public SelectorConnection register(SocketChannel channel, SelectorConnection.Callback callback) throws IOException {
+		channel.configureBlocking(false);
+		SelectorConnection conn = new SelectorConnection(this, channel, callback);
+		connections.incrementAndGet();
+		pending.add(conn);
+		selector.wakeup();
+		return conn;
+	}
+
+	/** @return The number of connections registered and not yet closed. */
+	public int countConnections() {
+		return connections.get();
+	}
+
+	/** Called by a connection when its interest ops need to change. */
+	void update(SelectorConnection conn) {
+		if(Thread.currentThread() == thread) {
+			apply(conn);
+		} else {
+			pending.add(conn);
+			selector.wakeup();
+		}
+	}
+
+	void onClosed(SelectorConnection conn) {
+		connections.decrementAndGet();
+	}
+
+	private void apply(SelectorConnection conn) {
+		SelectionKey key = conn.key;
+		try {
+			if(key == null) {
+				conn.key = conn.channel.register(selector, conn.interestOps(), conn);
+			} else if(key.isValid()) {
+				key.interestOps(conn.interestOps());
+			}
+		} catch (ClosedChannelException e) {
+			conn.onSelectorError(e);
+		} catch (CancelledKeyException e) {
+			conn.onSelectorError(new ClosedChannelException());
+		}
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		while(!shutdown) {
+			try {
+				SelectorConnection conn;
+				while((conn = pending.poll()) != null)
+					apply(conn);
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					conn = (SelectorConnection) key.attachment();
+					try {
+						if(key.isReadable())
+							conn.onReadable();
+						if(key.isValid() && key.isWritable())
+							conn.onWritable();
+					} catch (CancelledKeyException e) {
+						conn.onSelectorError(new ClosedChannelException());
+					}
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Caught "+e+" in "+name, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" in "+name, t);
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Shutting down "+name);
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+name;
+	}
+
+}
@@ -34,6 +34,7 @@ import freenet.node.PeerNode;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.NonBlockingRunnable;
 import freenet.support.Ticker;
 import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
@@ -96,7 +97,9 @@ public class MessageCore {
     	synchronized(this) {
     		startedTime = System.currentTimeMillis();
     	}
-    	ticker.queueTimedJob(new Runnable() {
+    	// Only takes the filters lock briefly, and fast callbacks must not block anyway since 
+    	// they are also called on the receive thread, so this runs on the carrier threads.
+    	ticker.queueTimedJob(new NonBlockingRunnable() {
 
 			@Override
 			public void run() {
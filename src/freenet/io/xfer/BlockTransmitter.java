@@ -39,6 +39,7 @@ import freenet.support.BitArray;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.NonBlockingRunnable;
 import freenet.support.Ticker;
 import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
@@ -111,7 +112,8 @@ public class BlockTransmitter {
 	
 	static int runningBlockTransmits = 0;
 	
-	class BlockSenderJob implements PrioRunnable {
+	/** Only queues packets on the peer, so it runs on the carrier threads. */
+	class BlockSenderJob implements PrioRunnable, NonBlockingRunnable {
 		
 		private boolean running = false;
 		
@@ -3,18 +3,18 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.keys;
 
-import org.bouncycastle.crypto.params.DSAPublicKeyParameters;
-import org.bouncycastle.crypto.signers.DSASigner;
-
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
 import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSAVerifier;
 import freenet.crypt.Global;
 import freenet.crypt.SHA256;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
+import freenet.support.LRUMap;
 import freenet.support.Logger;
 
 /**
@@ -32,6 +32,13 @@ public class SSKBlock implements KeyBlock {
 	// SSKBlocks equal - necessary because the last 64 bytes need not
 	// be the same for the same data and the same key (see comments below)
 	private static final int HEADER_COMPARE_TO = 71;
+	/** Number of recently verified blocks to remember. Popular SSKs, e.g. USK editions being
+	 * polled, arrive again and again, and checking the signature is most of the cost. */
+	private static final int VERIFIED_CACHE_SIZE = 4096;
+	/** H(H(pubkey) + headers + H(data)) for blocks whose signature has been verified. Everything
+	 * the signature covers is in there, so a block which matches can't be a forgery. */
+	private static final LRUMap<ByteArrayWrapper, Boolean> verified =
+		LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
 	final byte[] data;
 	final byte[] headers;
 	/** The index of the first byte of encrypted fields in the headers, after E(H(docname)) */
@@ -140,6 +147,7 @@ public class SSKBlock implements KeyBlock {
 
 			MessageDigest md = null;
 			byte[] overallHash;
+			ByteArrayWrapper verifiedKey;
 			try {
 				md = SHA256.getMessageDigest();
 				md.update(data);
@@ -150,25 +158,42 @@ public class SSKBlock implements KeyBlock {
 				md.update(dataHash);
 				// Makes the implicit overall hash
 				overallHash = md.digest();
+				// The pubkey hash, all the headers including the signature, and the data hash
+				md.update(nodeKey.getPubKeyHash());
+				md.update(headers);
+				md.update(dataHash);
+				verifiedKey = new ByteArrayWrapper(md.digest());
 			} finally {
 				SHA256.returnMessageDigest(md);
 			}
 			
-			// Now verify it
-			BigInteger r = new BigInteger(1, bufR);
-			BigInteger s = new BigInteger(1, bufS);
-			DSASigner dsa = new DSASigner();
-			dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
-
-			// We probably don't need to try both here...
-			// but that's what the legacy code was doing...
-			// @see comments in Global before touching it
-			if(!(dsa.verifySignature(Global.truncateHash(overallHash), r, s) ||
-			     dsa.verifySignature(overallHash, r, s))
-			  ) {
-				if (dontVerify)
-					Logger.error(this, "DSA verification failed with dontVerify!!!!");
-				throw new SSKVerifyException("Signature verification failed for node-level SSK");
+			boolean alreadyVerified;
+			synchronized(verified) {
+				alreadyVerified = verified.containsKey(verifiedKey);
+				if(alreadyVerified)
+					verified.push(verifiedKey, Boolean.TRUE);
+			}
+			if(!alreadyVerified) {
+				// Now verify it
+				BigInteger r = new BigInteger(1, bufR);
+				BigInteger s = new BigInteger(1, bufS);
+				DSAVerifier dsa = DSAVerifier.getGroupBigA();
+				
+				// We probably don't need to try both here...
+				// but that's what the legacy code was doing...
+				// @see comments in Global before touching it
+				if(!(dsa.verify(pubKey.getY(), Global.truncateHash(overallHash), r, s) ||
+				     dsa.verify(pubKey.getY(), overallHash, r, s))
+				  ) {
+					if (dontVerify)
+						Logger.error(this, "DSA verification failed with dontVerify!!!!");
+					throw new SSKVerifyException("Signature verification failed for node-level SSK");
+				}
+				synchronized(verified) {
+					verified.push(verifiedKey, Boolean.TRUE);
+					while(verified.size() > VERIFIED_CACHE_SIZE)
+						verified.popKey();
+				}
 			}
 		} // x isn't verified otherwise so no need to += SIG_R_LENGTH + SIG_S_LENGTH
 		if(!Arrays.equals(ehDocname, nodeKey.encryptedHashedDocname))
@@ -27,6 +27,8 @@ import freenet.keys.CHKVerifyException;
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
 import freenet.support.io.NativeThread;
+import freenet.support.jfr.InsertEvent;
+import freenet.support.jfr.JFR;
 
 public final class CHKInsertSender extends BaseSender implements PrioRunnable, AnyInsertSender, ByteCounter {
 	
@@ -788,6 +790,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     	// If there is an InsertReply, it always happens before the transfer completion notice.
     	// So we do NOT need to removeRoutingTo().
     	
+        boolean finished = false;
         synchronized(this) {
         	if(allTransfersCompleted) return; // Already called. Doesn't prevent race condition resulting in the next bit running but that's not really a problem.
         	if((code == ROUTE_NOT_FOUND) && !hasForwarded)
@@ -801,11 +804,18 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
         			throw new IllegalStateException("finish() called with "+code+" when was already "+status);
         	} else {
                 status = code;
+                finished = true;
         	}
         	
         	notifyAll();
         	if(logMINOR) Logger.minor(this, "Set status code: "+getStatusString()+" on "+uid);
         }
+        
+        if(finished)
+        	node.metrics.insertTime(source == null, code).observeMillis(System.currentTimeMillis() - startTime);
+        if(finished && JFR.AVAILABLE)
+        	InsertEvent.record(key.getRoutingKey(), realTimeFlag, source == null, origHTL, htl,
+        			getStatusString(), System.currentTimeMillis() - startTime);
 		
         boolean failedRecv = false; // receiveFailed is protected by backgroundTransfers but status by this
         // Now wait for transfers, or for downstream transfer notifications.
@@ -893,6 +903,10 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
      */
     @Override
     public synchronized String getStatusString() {
+        return getStatusString(status);
+    }
+
+    static String getStatusString(int status) {
         if(status == SUCCESS)
             return "SUCCESS";
         if(status == ROUTE_NOT_FOUND)
@@ -41,7 +41,7 @@ import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
-import freenet.support.SerialExecutor;
+import freenet.support.NonBlockingRunnable;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.io.FileUtil;
@@ -146,7 +146,6 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		for(int i=0;i<DH_CONTEXT_BUFFER_SIZE;i++) {
 			_fillJFKECDHFIFO();
 		}
-		this.authHandlingThread.start(node.executor, "FNP incoming auth packet handler thread");
 	}
 
 	/**
@@ -490,7 +489,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Therefore, we can only get packets of phase 1 and 3 here.
 
 		if(packetType == 0 || packetType == 2) {
-			this.authHandlingThread.execute(new Runnable() {
+			node.handshakeExecutor.execute(new Runnable() {
 
 				@Override
 				public void run() {
@@ -503,7 +502,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 					}
 				}
 				
-			});
+			}, replyTo, crypto.isOpennet, packetType == 0);
 		} else {
 			Logger.error(this, "Invalid phase "+packetType+" for anonymous-initiator (we are the responder) from "+replyTo);
 		}
@@ -550,7 +549,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		// Therefore, we can only get packets of phase 2 and 4 here.
 
 		if(packetType == 1 || packetType == 3) {
-			authHandlingThread.execute(new Runnable() {
+			node.handshakeExecutor.execute(new Runnable() {
 				
 				@Override
 				public void run() {
@@ -563,15 +562,13 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 					}
 				}
 				
-			});
+			}, replyTo, crypto.isOpennet, false);
 		} else {
 			Logger.error(this, "Invalid phase "+packetType+" for anonymous-initiator (we are the initiator) from "+replyTo);
 		}
 		
 	}
 	
-	private final SerialExecutor authHandlingThread = new SerialExecutor(NativeThread.HIGH_PRIORITY, 1000);
-
 	/**
 	 * Process a decrypted, authenticated auth packet.
 	 * @param payload The packet payload, after it has been decrypted.
@@ -644,7 +641,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			if(packetType<0 || packetType>3) {
 				Logger.error(this,"Unknown PacketType" + packetType + "from" + replyTo + "from" +pn);
 				return ;
-			} else authHandlingThread.execute(new Runnable() {
+			} else node.handshakeExecutor.execute(new Runnable() {
 
 				@Override
 				public void run() {
@@ -681,7 +678,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 						processJFKMessage4(payload, 3, pn, replyTo, oldOpennetPeer, false, -1, negType);
 					}
 				}
-			});
+			}, replyTo, crypto.isOpennet, packetType == 0);
 		} else {
 			Logger.error(this, "Decrypted auth packet but unknown negotiation type "+negType+" from "+replyTo+" possibly from "+pn);
 			return;
@@ -2064,21 +2061,26 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
         return ctx;
     }
 
+    /** Generating and signing a context only uses the CPU, so it runs on the carrier threads. */
+    private class ECDHContextGenerator implements PrioRunnable, NonBlockingRunnable {
+        @Override
+        public void run() {
+            _fillJFKECDHFIFO();
+        }
+        @Override
+        public int getPriority() {
+            return NativeThread.MIN_PRIORITY;
+        }
+    }
+
     private void _fillJFKECDHFIFOOffThread() {
         // do it off-thread
-        node.executor.execute(new PrioRunnable() {
-            @Override
-            public void run() {
-                _fillJFKECDHFIFO();
-            }
-            @Override
-            public int getPriority() {
-                return NativeThread.MIN_PRIORITY;
-            }
-        }, "ECDH exponential signing");
+        node.executor.execute(new ECDHContextGenerator(), "ECDH exponential signing");
     }
     
 	private void _fillJFKECDHFIFO() {
+        // Generate and sign it before taking the lock, so handshakes don't wait for it.
+        ECDHLightContext ctx = _genECDHLightContext();
         synchronized (ecdhContextFIFO) {
             int size = ecdhContextFIFO.size();
             if((size > 0) && (size + 1 > DH_CONTEXT_BUFFER_SIZE)) {
@@ -2094,7 +2096,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
                 ecdhContextFIFO.remove(ecdhContextToBePrunned = result);
             }
 
-            ecdhContextFIFO.addLast(_genECDHLightContext());
+            ecdhContextFIFO.addLast(ctx);
         }
     }
 	
@@ -0,0 +1,179 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.io.comm.Peer;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.SerialExecutor;
+import freenet.support.io.NativeThread;
+import freenet.support.math.BootstrappingDecayingRunningAverage;
+
+/**
+ * Processes incoming connection setup (JFK) messages for all the FNPPacketManglers, off the
+ * thread which reads packets from the socket. This means ECDH key agreement and ECDSA signing and
+ * verification, which is slow enough that a burst of new peers, e.g. on a seednode, would hold up
+ * every other packet if it was done inline.
+ *
+ * Darknet and opennet have separate lanes, so a flood of opennet handshakes, e.g. on a seednode,
+ * can't delay handshakes with our darknet peers. Messages are spread over each network's lanes by
+ * the address they came from. Each lane handles its messages in order on one thread, so messages
+ * from one address are handled in the order they arrived, and different addresses are handled in
+ * parallel. Each lane has a bounded queue, and we shed load rather than falling further and
+ * further behind:
+ * <ul>
+ * <li>A new handshake (JFK(1)) is dropped if its lane is more than half full. Handshakes which are
+ * already in progress can use the rest of the queue.</li>
+ * <li>Anything is dropped if its lane is full.</li>
+ * <li>A message which has waited longer than Node.HANDSHAKE_TIMEOUT is dropped when it reaches
+ * the front of the queue. The other side will have given up on it and resent.</li>
+ * </ul>
+ * Dropping an auth packet is no worse than it being lost on the network.
+ */
+public class HandshakeExecutor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(HandshakeExecutor.class);
+	}
+
+	/** Maximum number of messages queued in each lane. */
+	static final int QUEUE_SIZE = 256;
+
+	private final SerialExecutor[] darknetLanes;
+	private final SerialExecutor[] opennetLanes;
+	private final long maxQueueTime;
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong droppedNew = new AtomicLong();
+	private final AtomicLong droppedFull = new AtomicLong();
+	private final AtomicLong droppedStale = new AtomicLong();
+	/** Time messages spent queued, in milliseconds. */
+	private final BootstrappingDecayingRunningAverage queueTime =
+		new BootstrappingDecayingRunningAverage(0, 0, Double.MAX_VALUE, 1000, null);
+	/** Time taken to process a message, in milliseconds. */
+	private final BootstrappingDecayingRunningAverage processingTime =
+		new BootstrappingDecayingRunningAverage(0, 0, Double.MAX_VALUE, 1000, null);
+
+	/** Create with a lane for every four cores for each of darknet and opennet, and at least one
+	 * each. */
+	public HandshakeExecutor(Executor executor) {
+		this(executor, Math.max(1, Runtime.getRuntime().availableProcessors() / 4), Node.HANDSHAKE_TIMEOUT);
+	}
+
+	/**
+	 * @param executor Provides the threads.
+	 * @param threads The number of lanes for each of darknet and opennet, i.e. the maximum number
+	 * of threads processing handshakes for each at once.
+	 * @param maxQueueTime Drop messages which have waited longer than this.
+	 */
+	HandshakeExecutor(Executor executor, int threads, long maxQueueTime) {
+		if(threads < 1) throw new IllegalArgumentException();
+		this.maxQueueTime = maxQueueTime;
+		darknetLanes = createLanes(executor, threads, "darknet");
+		opennetLanes = createLanes(executor, threads, "opennet");
+	}
+
+	private static SerialExecutor[] createLanes(Executor executor, int threads, String type) {
+		SerialExecutor[] lanes = new SerialExecutor[threads];
+		for(int i=0;i<threads;i++) {
+			lanes[i] = new SerialExecutor(NativeThread.HIGH_PRIORITY, QUEUE_SIZE);
+			lanes[i].start(executor, "FNP incoming auth packet handler thread ("+type+") "+i);
+		}
+		return lanes;
+	}
+
+	/**
+	 * Queue a connection setup message.
+	 * @param job Processes the message.
+	 * @param replyTo The address it came from.
+	 * @param opennet True if it is for the opennet FNPPacketMangler, false for darknet.
+	 * @param newHandshake True if it starts a new handshake, i.e. is a JFK(1) and we are the
+	 * responder. These are dropped first when we are overloaded.
+	 * @return False if we are overloaded and have dropped it.
+	 */
+	public boolean execute(final Runnable job, Peer replyTo, boolean opennet, boolean newHandshake) {
+		SerialExecutor[] lanes = opennet ? opennetLanes : darknetLanes;
+		SerialExecutor lane = lanes[(replyTo.hashCode() & Integer.MAX_VALUE) % lanes.length];
+		if(newHandshake && lane.getQueueSize() >= QUEUE_SIZE / 2) {
+			droppedNew.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Too busy, dropping new handshake from "+replyTo);
+			return false;
+		}
+		final long queued = System.currentTimeMillis();
+		boolean accepted = lane.tryExecute(new Runnable() {
+
+			@Override
+			public void run() {
+				long start = System.currentTimeMillis();
+				queueTime.report(start - queued);
+				if(start - queued > maxQueueTime) {
+					droppedStale.incrementAndGet();
+					if(logMINOR) Logger.minor(this, "Dropping auth packet after waiting "+(start - queued)+"ms");
+					return;
+				}
+				try {
+					job.run();
+				} finally {
+					processingTime.report(System.currentTimeMillis() - start);
+					processed.incrementAndGet();
+				}
+			}
+
+		}, "FNP auth packet");
+		if(!accepted) {
+			droppedFull.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Too busy, dropping auth packet from "+replyTo);
+		}
+		return accepted;
+	}
+
+	/** @return The number of messages waiting to be processed. */
+	public int getQueueSize() {
+		int total = 0;
+		for(SerialExecutor lane : darknetLanes)
+			total += lane.getQueueSize();
+		for(SerialExecutor lane : opennetLanes)
+			total += lane.getQueueSize();
+		return total;
+	}
+
+	/** @return The number of threads which can process messages at once. */
+	public int getThreads() {
+		return darknetLanes.length + opennetLanes.length;
+	}
+
+	/** @return The number of messages processed. */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/** @return The number of new handshakes dropped because their lane was half full. */
+	public long getDroppedNew() {
+		return droppedNew.get();
+	}
+
+	/** @return The number of messages dropped because their lane was full. */
+	public long getDroppedFull() {
+		return droppedFull.get();
+	}
+
+	/** @return The number of messages dropped because they had waited too long. */
+	public long getDroppedStale() {
+		return droppedStale.get();
+	}
+
+	/** @return The average time messages waited to be processed, in milliseconds. */
+	public double getAverageQueueTime() {
+		return queueTime.currentValue();
+	}
+
+	/** @return The average time taken to process a message, in milliseconds. */
+	public double getAverageProcessingTime() {
+		return processingTime.currentValue();
+	}
+
+}
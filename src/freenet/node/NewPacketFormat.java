@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -13,7 +12,6 @@ import java.util.List;
 import java.util.Map;
 
 import freenet.crypt.BlockCipher;
-import freenet.crypt.HMAC;
 import freenet.crypt.PCFBMode;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
@@ -26,12 +24,15 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SparseBitmap;
+import freenet.support.jfr.JFR;
+import freenet.support.jfr.PacketReceivedEvent;
+import freenet.support.jfr.PacketSentEvent;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class NewPacketFormat implements PacketFormat {
 
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
@@ -120,6 +121,7 @@ public class NewPacketFormat implements PacketFormat {
 
 	@Override
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
+		PacketReceivedEvent event = JFR.AVAILABLE ? PacketReceivedEvent.start() : null;
 		NPFPacket packet = null;
 		SessionKey s = null;
 		for(int i = 0; i < 3; i++) {
@@ -139,6 +141,7 @@ public class NewPacketFormat implements PacketFormat {
 		}
 		if(packet == null) {
 			if(logMINOR) Logger.minor(this, "Could not decrypt received packet");
+			if(event != null) event.finish(pn.shortToString(), length, false, 0);
 			return false;
 		}
 
@@ -156,6 +159,7 @@ public class NewPacketFormat implements PacketFormat {
 		}
 		group.complete();
 
+		if(event != null) event.finish(pn.shortToString(), length, true, finished.size());
 		return true;
 	}
 
@@ -384,6 +388,14 @@ public class NewPacketFormat implements PacketFormat {
 
 	/** Must NOT modify buf contents. */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
+		if (!sessionKey.packetHMAC.verify(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH, buf, offset)) {
+			if (logMINOR) {
+				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
+			}
+
+			return null;
+		}
+
 		BlockCipher ivCipher = sessionKey.ivCipher;
 
 		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
@@ -396,15 +408,6 @@ public class NewPacketFormat implements PacketFormat {
 		ivCipher.encipher(IV, IV);
 
 		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
-		if (!MessageDigest.isEqual(hash, localHash)) {
-			if (logMINOR) {
-				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
-			}
-
-			return null;
-		}
 
 		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
 		payloadCipher.blockDecipher(payload, 0, payload.length);
@@ -474,6 +477,7 @@ public class NewPacketFormat implements PacketFormat {
 	throws BlockedTooLongException {
 		int maxPacketSize = pn.getMaxPacketSize();
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		PacketSentEvent event = JFR.AVAILABLE ? PacketSentEvent.start() : null;
 
 		NPFPacket packet = createPacket(maxPacketSize - HMAC_LENGTH, pn.getMessageQueue(), sessionKey, ackOnly);
 		if(packet == null) return false;
@@ -510,12 +514,7 @@ public class NewPacketFormat implements PacketFormat {
 		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
 
 		//Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
-
-		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		sessionKey.packetHMAC.mac(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH, data, 0);
 
 		try {
 			if(logMINOR) {
@@ -559,6 +558,9 @@ public class NewPacketFormat implements PacketFormat {
 			}
 		}
 
+		if(event != null)
+			event.finish(pn.shortToString(), data.length, packet.getSequenceNumber(),
+					packet.getFragments().size(), packet.getAcks().size());
 		return true;
 	}
 
@@ -31,6 +31,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
@@ -51,6 +52,7 @@ import freenet.crypt.ECDH;
 import freenet.crypt.MasterSecret;
 import freenet.crypt.PersistentRandomSource;
 import freenet.crypt.RandomSource;
+import freenet.crypt.StripedRandomSource;
 import freenet.crypt.Yarrow;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
@@ -122,11 +124,12 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.PooledExecutor;
-import freenet.support.PrioritizedTicker;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
+import freenet.support.TimingWheelTicker;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -641,8 +644,12 @@ public class Node implements TimeSkewDetectorCallback {
 	// General stuff
 
 	public final Executor executor;
+	/** Processes incoming connection setup messages for both darknet and opennet. */
+	public final HandshakeExecutor handshakeExecutor;
+	/** Metrics for monitoring, served by MetricsToadlet. */
+	public final NodeMetrics metrics;
 	public final PacketSender ps;
-	public final PrioritizedTicker ticker;
+	public final TimingWheelTicker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
@@ -653,6 +660,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private long amountOfDataToCheckCompressionRatio;
 	private int minimumCompressionPercentage;
 	private int maxTimeForSingleCompressor;
+	private boolean sampleCompressionRatio;
 	private boolean connectionSpeedDetection;
 	boolean inputLimitDefault;
 	final boolean enableARKs;
@@ -933,7 +941,8 @@ public class Node implements TimeSkewDetectorCallback {
 	 * @param config The Config object for this node.
 	 * @param r The random number generator for this node. Passed in because we may want
 	 * to use a non-secure RNG for e.g. one-JVM live-code simulations. Should be a Yarrow in
-	 * a production node. Yarrow will be used if that parameter is null
+	 * a production node. A StripedRandomSource in front of a Yarrow will be used if that parameter
+	 * is null
 	 * @param weakRandom The fast random number generator the node will use. If null a MT
 	 * instance will be used, seeded from the secure PRNG.
 	 * @param lc logging config Handler
@@ -950,6 +959,8 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println(tmp);
 		collector = new IOStatisticCollector();
 		this.executor = executor;
+		handshakeExecutor = new HandshakeExecutor(executor);
+		metrics = new NodeMetrics(this);
 		nodeStarter=ns;
 		if(logConfigHandler != lc)
 			logConfigHandler=lc;
@@ -1084,7 +1095,7 @@ public class Node implements TimeSkewDetectorCallback {
 			FileUtil.setOwnerRW(seed);
 			entropyGatheringThread.start();
 			// Can block.
-			this.random = new Yarrow(seed);
+			this.random = new StripedRandomSource(new Yarrow(seed));
 			// http://bugs.sun.com/view_bug.do;jsessionid=ff625daf459fdffffffffcd54f1c775299e0?bug_id=4705093
 			// This might block on /dev/random while doing new SecureRandom(). Once it's created, it won't block.
 			ECDH.blockingInit();
@@ -1475,8 +1486,10 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
-		if(executor instanceof PooledExecutor)
+		ticker = new TimingWheelTicker(executor, getDarknetPortNumber());
+		if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).setTicker(ticker);
+		else if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
 
 		Logger.normal(Node.class, "Creating node...");
@@ -1640,6 +1653,23 @@ public class Node implements TimeSkewDetectorCallback {
 
 		maxTimeForSingleCompressor = nodeConfig.getInt("maxTimeForSingleCompressor");
 
+		nodeConfig.register("sampleCompressionRatio", false, sortOrder++,
+				true, true, "Node.sampleCompressionRatio",
+				"Node.sampleCompressionRatioLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return sampleCompressionRatio;
+			}
+			@Override
+			public void set(Boolean val) {
+				synchronized(Node.this) {
+					sampleCompressionRatio = val;
+				}
+			}
+		});
+
+		sampleCompressionRatio = nodeConfig.getBoolean("sampleCompressionRatio");
+
 		nodeConfig.register("connectionSpeedDetection", true, sortOrder++,
 			true, true, "Node.connectionSpeedDetection",
 			"Node.connectionSpeedDetectionLong", new BooleanCallback() {
@@ -3107,6 +3137,8 @@ public class Node implements TimeSkewDetectorCallback {
 			opennet.start();
 		ps.start(nodeStats);
 		ticker.start();
+		if(random instanceof StripedRandomSource)
+			((StripedRandomSource) random).start(ticker);
 		scheduleVersionTransition();
 		usm.start(ticker);
 
@@ -3608,6 +3640,121 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Fetch many keys from the local stores at once, e.g. to check for all the blocks of a
+	 * splitfile before requesting them. Same semantics as calling fetch(Key, ...) for each key,
+	 * but the CHKs are looked up in each store in a single batch, which the salted-hash store 
+	 * does in slot order rather than with one random seek per key. SSKs are looked up one at a 
+	 * time.
+	 * @return The blocks, in the same order as keys, with null for each key not found.
+	 */
+	public KeyBlock[] fetchAll(Key[] keys, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		KeyBlock[] found = new KeyBlock[keys.length];
+		ArrayList<NodeCHK> chkList = new ArrayList<NodeCHK>(keys.length);
+		ArrayList<Integer> chkIndexes = new ArrayList<Integer>(keys.length);
+		for(int i=0;i<keys.length;i++) {
+			if(keys[i] instanceof NodeCHK) {
+				chkList.add((NodeCHK)keys[i]);
+				chkIndexes.add(i);
+			} else {
+				found[i] = fetch(keys[i], canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR, null);
+			}
+		}
+		if(chkList.isEmpty()) return found;
+		NodeCHK[] chks = chkList.toArray(new NodeCHK[chkList.size()]);
+		KeyBlock[] chkBlocks = new KeyBlock[chks.length];
+		double myLoc = lm.getLocation();
+		// Same order and statistics as fetch(NodeCHK, ...).
+		if(canReadClientCache) {
+			try {
+				boolean[] hits = fetchAllFrom(chkClientcache, chks, chkBlocks, !canWriteClientCache, false);
+				for(int i=0;i<chks.length;i++) {
+					if(!hits[i]) continue;
+					double loc = chks[i].toNormalizedDouble();
+					double dist = Location.distance(myLoc, loc);
+					nodeStats.avgClientCacheCHKSuccess.report(loc);
+					if (dist > nodeStats.furthestClientCacheCHKSuccess)
+						nodeStats.furthestClientCacheCHKSuccess=dist;
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from client cache: "+e, e);
+			}
+		}
+		if(forULPR || useSlashdotCache || canReadClientCache) {
+			try {
+				boolean[] hits = fetchAllFrom(chkSlashdotcache, chks, chkBlocks, false, false);
+				for(int i=0;i<chks.length;i++) {
+					if(!hits[i]) continue;
+					double loc = chks[i].toNormalizedDouble();
+					double dist = Location.distance(myLoc, loc);
+					nodeStats.avgSlashdotCacheCHKSucess.report(loc);
+					if (dist > nodeStats.furthestSlashdotCacheCHKSuccess)
+						nodeStats.furthestSlashdotCacheCHKSuccess=dist;
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+			}
+		}
+		boolean ignoreOldBlocks = !writeLocalToDatastore;
+		if(canReadClientCache) ignoreOldBlocks = false;
+		if(logMINOR) dumpStoreHits();
+		try {
+			for(int i=0;i<chks.length;i++) {
+				if(chkBlocks[i] == null)
+					nodeStats.avgRequestLocation.report(chks[i].toNormalizedDouble());
+			}
+			boolean[] hits = fetchAllFrom(chkDatastore, chks, chkBlocks, !canWriteDatastore, ignoreOldBlocks);
+			boolean[] oldHits = fetchAllFrom(oldCHK, chks, chkBlocks, !canWriteDatastore, ignoreOldBlocks);
+			for(int i=0;i<chks.length;i++) {
+				if(!(hits[i] || oldHits[i])) continue;
+				double loc = chks[i].toNormalizedDouble();
+				double dist = Location.distance(myLoc, loc);
+				nodeStats.avgStoreCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestStoreCHKSuccess)
+					nodeStats.furthestStoreCHKSuccess=dist;
+			}
+			hits = fetchAllFrom(chkDatacache, chks, chkBlocks, !canWriteDatastore, ignoreOldBlocks);
+			oldHits = fetchAllFrom(oldCHKCache, chks, chkBlocks, !canWriteDatastore, ignoreOldBlocks);
+			for(int i=0;i<chks.length;i++) {
+				if(!(hits[i] || oldHits[i])) continue;
+				double loc = chks[i].toNormalizedDouble();
+				double dist = Location.distance(myLoc, loc);
+				nodeStats.avgCacheCHKSuccess.report(loc);
+				if (dist > nodeStats.furthestCacheCHKSuccess)
+					nodeStats.furthestCacheCHKSuccess=dist;
+			}
+		} catch (IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+		}
+		for(int i=0;i<chks.length;i++)
+			found[chkIndexes.get(i)] = chkBlocks[i];
+		return found;
+	}
+
+	/** Look up the CHKs which have not been found yet in a single store, for fetchAll().
+	 * @param store The store. May be null, e.g. if there is no old store to migrate from.
+	 * @return True for each key that was found in this store. */
+	private boolean[] fetchAllFrom(CHKStore store, NodeCHK[] chks, KeyBlock[] found, boolean dontPromote, boolean ignoreOldBlocks) throws IOException {
+		boolean[] hits = new boolean[chks.length];
+		if(store == null) return hits;
+		ArrayList<Integer> missing = new ArrayList<Integer>();
+		for(int i=0;i<chks.length;i++) {
+			if(found[i] == null) missing.add(i);
+		}
+		if(missing.isEmpty()) return hits;
+		NodeCHK[] lookup = new NodeCHK[missing.size()];
+		for(int i=0;i<lookup.length;i++)
+			lookup[i] = chks[missing.get(i)];
+		List<CHKBlock> blocks = store.fetchAll(lookup, dontPromote, ignoreOldBlocks);
+		for(int i=0;i<lookup.length;i++) {
+			CHKBlock block = blocks.get(i);
+			if(block == null) continue;
+			found[missing.get(i)] = block;
+			hits[missing.get(i)] = true;
+		}
+		return hits;
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -0,0 +1,361 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.client.async.ClientRequestScheduler;
+import freenet.node.stats.DataStoreInstanceType;
+import freenet.node.stats.DataStoreStats;
+import freenet.node.stats.StoreAccessStats;
+import freenet.support.io.NativeThread;
+import freenet.support.metrics.CallbackMetric;
+import freenet.support.metrics.Counter;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.Metric.Type;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * The node's metrics, for monitoring systems such as Prometheus, served by MetricsToadlet.
+ *
+ * The counters and histograms here are updated by the code which routes requests. Everything
+ * else is read, when the metrics are scraped, from statistics the node keeps anyway (NodeStats,
+ * the PeerManager, the stores, the executors and the client layer's schedulers), so they cost
+ * nothing unless somebody is monitoring the node.
+ */
+public class NodeMetrics {
+
+	public final MetricsRegistry registry = new MetricsRegistry();
+
+	/** Remote requests we accepted, by key type, the HTL they arrived with and outcome. */
+	final Counter remoteRequests;
+	/** Requests we rejected because of load, by reason. */
+	final Counter rejects;
+	/** How long requests we routed took, local or remote. */
+	final Histogram requestTime;
+	/** How long CHK inserts we routed took, local or remote. */
+	final Histogram insertTime;
+
+	/* The children of the metrics above which are updated for every request, looked up the first
+	 * time they are used, so we don't have to build the label values and look them up every time.
+	 * Filled in without locking: labels() always returns the same Child for the same values, so
+	 * the worst case is we look one up twice. */
+	/** remoteRequests, by [ssk][htl][outcome]. Only up to the default maximum HTL; higher values
+	 * are only possible if maxHTL has been raised, and are looked up each time. */
+	private final Counter.Child[][][] remoteRequestCounts = new Counter.Child[2][Node.DEFAULT_MAX_HTL + 1][3];
+	private static final String[] REMOTE_REQUEST_OUTCOMES = { "failure", "success_local", "success_remote" };
+	/** rejects, by reason, then indexed by rejectIndex(). */
+	private final ConcurrentHashMap<String, Counter.Child[]> rejectCounts = new ConcurrentHashMap<String, Counter.Child[]>();
+	/** requestTime, by [ssk][local][RequestSender status]. */
+	private final Histogram.Child[][][] requestTimes = new Histogram.Child[2][2][RequestSender.GET_OFFER_TRANSFER_FAILED + 1];
+	/** insertTime, by [local][CHKInsertSender status]. */
+	private final Histogram.Child[][] insertTimes = new Histogram.Child[2][CHKInsertSender.RECEIVE_FAILED + 1];
+
+	private final Node node;
+
+	NodeMetrics(Node node) {
+		this.node = node;
+		remoteRequests = registry.counter("freenet_remote_requests",
+				"Remote requests accepted, by the HTL they arrived with and outcome",
+				"type", "htl", "outcome");
+		rejects = registry.counter("freenet_request_rejects",
+				"Requests and inserts rejected because of load", "reason", "type", "source", "realtime");
+		requestTime = registry.histogram("freenet_request_duration_seconds",
+				"Time taken by requests routed by this node", Histogram.TIME_BUCKETS,
+				"type", "source", "outcome");
+		insertTime = registry.histogram("freenet_chk_insert_duration_seconds",
+				"Time taken by CHK inserts routed by this node", Histogram.TIME_BUCKETS,
+				"source", "outcome");
+		registerBandwidth();
+		registerPeers();
+		registerStores();
+		registerThreads();
+		registerClientQueues();
+	}
+
+	/** Turn a status string from e.g. RequestSender into a label value. */
+	static String outcome(String status) {
+		return status.toLowerCase(Locale.ROOT).replace(' ', '_');
+	}
+
+	static String keyType(boolean ssk) {
+		return ssk ? "ssk" : "chk";
+	}
+
+	static String source(boolean local) {
+		return local ? "local" : "remote";
+	}
+
+	/** @return The counter for a remote request we accepted and answered. */
+	Counter.Child remoteRequest(boolean ssk, short htl, boolean success, boolean local) {
+		int outcome = success ? (local ? 1 : 2) : 0;
+		if(htl < 0 || htl > Node.DEFAULT_MAX_HTL)
+			return remoteRequests.labels(keyType(ssk), Short.toString(htl), REMOTE_REQUEST_OUTCOMES[outcome]);
+		Counter.Child[] byOutcome = remoteRequestCounts[ssk ? 1 : 0][htl];
+		Counter.Child child = byOutcome[outcome];
+		if(child == null)
+			byOutcome[outcome] = child =
+				remoteRequests.labels(keyType(ssk), Short.toString(htl), REMOTE_REQUEST_OUTCOMES[outcome]);
+		return child;
+	}
+
+	/** @return The counter for a request rejected because of load. */
+	Counter.Child reject(String reason, boolean ssk, boolean insert, boolean local, boolean realTime) {
+		Counter.Child[] children = rejectCounts.get(reason);
+		if(children == null) {
+			children = new Counter.Child[16];
+			Counter.Child[] old = rejectCounts.putIfAbsent(reason, children);
+			if(old != null) children = old;
+		}
+		int i = (ssk ? 1 : 0) | (insert ? 2 : 0) | (local ? 4 : 0) | (realTime ? 8 : 0);
+		Counter.Child child = children[i];
+		if(child == null)
+			children[i] = child = rejects.labels(reason, keyType(ssk) + (insert ? "_insert" : "_request"),
+					source(local), Boolean.toString(realTime));
+		return child;
+	}
+
+	/** @return The histogram for requests which finished with the given RequestSender status. */
+	Histogram.Child requestTime(boolean ssk, boolean local, int status) {
+		if(status < 0 || status >= requestTimes[0][0].length)
+			return requestTime.labels(keyType(ssk), source(local), outcome(RequestSender.getStatusString(status)));
+		Histogram.Child[] byStatus = requestTimes[ssk ? 1 : 0][local ? 1 : 0];
+		Histogram.Child child = byStatus[status];
+		if(child == null)
+			byStatus[status] = child =
+				requestTime.labels(keyType(ssk), source(local), outcome(RequestSender.getStatusString(status)));
+		return child;
+	}
+
+	/** @return The histogram for CHK inserts which finished with the given CHKInsertSender
+	 * status. */
+	Histogram.Child insertTime(boolean local, int status) {
+		if(status < 0 || status >= insertTimes[0].length)
+			return insertTime.labels(source(local), outcome(CHKInsertSender.getStatusString(status)));
+		Histogram.Child[] byStatus = insertTimes[local ? 1 : 0];
+		Histogram.Child child = byStatus[status];
+		if(child == null)
+			byStatus[status] = child =
+				insertTime.labels(source(local), outcome(CHKInsertSender.getStatusString(status)));
+		return child;
+	}
+
+	private void registerBandwidth() {
+		registry.register(new CallbackMetric(Type.COUNTER, "freenet_network_bytes",
+				"Bytes sent and received, including overhead", "direction") {
+
+			@Override
+			protected void collect(Sink sink) {
+				long[] total = node.collector.getTotalIO();
+				sink.add(total[0], "out");
+				sink.add(total[1], "in");
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.COUNTER, "freenet_payload_sent_bytes",
+				"Bytes of payload sent, excluding overhead") {
+
+			@Override
+			protected void collect(Sink sink) {
+				sink.add(node.getTotalPayloadSent());
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_bandwidth_limit_bytes_per_second",
+				"Configured bandwidth limits", "direction") {
+
+			@Override
+			protected void collect(Sink sink) {
+				sink.add(node.getOutputBandwidthLimit(), "out");
+				sink.add(node.getInputBandwidthLimit(), "in");
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_uptime_seconds",
+				"Time since the node started") {
+
+			@Override
+			protected void collect(Sink sink) {
+				sink.add((System.currentTimeMillis() - node.startupTime) / 1000.0);
+			}
+
+		});
+	}
+
+	private void registerPeers() {
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_peers",
+				"Peers, by status and whether they are darknet or opennet", "status", "type") {
+
+			@Override
+			protected void collect(Sink sink) {
+				PeerManager peers = node.peers;
+				if(peers == null) return;
+				for(int status = PeerManager.PEER_NODE_STATUS_CONNECTED;
+						status <= PeerManager.PEER_NODE_STATUS_NO_LOAD_STATS; status++) {
+					String name = outcome(PeerNode.getPeerNodeStatusString(status));
+					int all = peers.getPeerNodeStatusSize(status, false);
+					int darknet = peers.getPeerNodeStatusSize(status, true);
+					sink.add(darknet, name, "darknet");
+					sink.add(all - darknet, name, "opennet");
+				}
+			}
+
+		});
+	}
+
+	private void registerStores() {
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_store_keys",
+				"Keys in each datastore", "key", "store") {
+
+			@Override
+			protected void collect(Sink sink) {
+				for(Map.Entry<DataStoreInstanceType, DataStoreStats> entry : storeStats().entrySet())
+					sink.add(entry.getValue().keys(), key(entry.getKey()), store(entry.getKey()));
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_store_capacity_keys",
+				"Maximum number of keys in each datastore", "key", "store") {
+
+			@Override
+			protected void collect(Sink sink) {
+				for(Map.Entry<DataStoreInstanceType, DataStoreStats> entry : storeStats().entrySet())
+					sink.add(entry.getValue().capacity(), key(entry.getKey()), store(entry.getKey()));
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.COUNTER, "freenet_store_reads",
+				"Datastore reads since the node started, by result", "key", "store", "result") {
+
+			@Override
+			protected void collect(Sink sink) {
+				for(Map.Entry<DataStoreInstanceType, DataStoreStats> entry : storeStats().entrySet()) {
+					StoreAccessStats access = entry.getValue().getSessionAccessStats();
+					String key = key(entry.getKey());
+					String store = store(entry.getKey());
+					sink.add(access.hits(), key, store, "hit");
+					sink.add(access.misses(), key, store, "miss");
+					sink.add(access.falsePos(), key, store, "false_positive");
+				}
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.COUNTER, "freenet_store_writes",
+				"Datastore writes since the node started", "key", "store") {
+
+			@Override
+			protected void collect(Sink sink) {
+				for(Map.Entry<DataStoreInstanceType, DataStoreStats> entry : storeStats().entrySet())
+					sink.add(entry.getValue().getSessionAccessStats().writes(), key(entry.getKey()), store(entry.getKey()));
+			}
+
+		});
+	}
+
+	private Map<DataStoreInstanceType, DataStoreStats> storeStats() {
+		return node.getDataStoreStats();
+	}
+
+	private static String key(DataStoreInstanceType type) {
+		return type.key.name().toLowerCase(Locale.ROOT);
+	}
+
+	private static String store(DataStoreInstanceType type) {
+		return type.store.name().toLowerCase(Locale.ROOT);
+	}
+
+	private void registerThreads() {
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_threads",
+				"Executor threads, by priority and whether they are running a job", "priority", "state") {
+
+			@Override
+			protected void collect(Sink sink) {
+				NodeStats stats = node.nodeStats;
+				if(stats == null) return;
+				int[] running = stats.getActiveThreadsByPriority();
+				int[] waiting = stats.getWaitingThreadsByPriority();
+				for(int i=0;i<running.length;i++) {
+					String priority = Integer.toString(i + NativeThread.MIN_PRIORITY);
+					sink.add(running[i], priority, "running");
+					sink.add(waiting[i], priority, "waiting");
+				}
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_thread_limit",
+				"Maximum number of threads before we reject requests") {
+
+			@Override
+			protected void collect(Sink sink) {
+				NodeStats stats = node.nodeStats;
+				if(stats == null) return;
+				sink.add(stats.getThreadLimit());
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_executor_queued_jobs",
+				"Jobs waiting for an executor thread, by priority", "priority") {
+
+			@Override
+			protected void collect(Sink sink) {
+				NodeStats stats = node.nodeStats;
+				if(stats == null) return;
+				int[] queued = stats.getQueuedJobsByPriority();
+				if(queued == null) return;
+				for(int i=0;i<queued.length;i++)
+					sink.add(queued[i], Integer.toString(i + NativeThread.MIN_PRIORITY));
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_handshake_queued_messages",
+				"Connection setup messages waiting to be processed") {
+
+			@Override
+			protected void collect(Sink sink) {
+				sink.add(node.handshakeExecutor.getQueueSize());
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.COUNTER, "freenet_handshake_messages",
+				"Connection setup messages, by whether they were processed or why they were dropped", "result") {
+
+			@Override
+			protected void collect(Sink sink) {
+				HandshakeExecutor handshakes = node.handshakeExecutor;
+				sink.add(handshakes.getProcessed(), "processed");
+				sink.add(handshakes.getDroppedNew(), "dropped_new");
+				sink.add(handshakes.getDroppedFull(), "dropped_full");
+				sink.add(handshakes.getDroppedStale(), "dropped_stale");
+			}
+
+		});
+	}
+
+	private void registerClientQueues() {
+		registry.register(new CallbackMetric(Type.GAUGE, "freenet_client_queued_requests",
+				"Requests queued by the client layer, by scheduler and priority class",
+				"type", "insert", "realtime", "priority") {
+
+			@Override
+			protected void collect(Sink sink) {
+				NodeClientCore core = node.clientCore;
+				if(core == null || core.requestStarters == null) return;
+				for(int i=0;i<8;i++) {
+					boolean ssk = (i & 1) != 0;
+					boolean insert = (i & 2) != 0;
+					boolean realTime = (i & 4) != 0;
+					ClientRequestScheduler scheduler = core.requestStarters.getScheduler(ssk, insert, realTime);
+					int[] counts = scheduler.countQueuedRequestsByPriority();
+					for(int prio=0;prio<counts.length;prio++)
+						sink.add(counts[prio], keyType(ssk), Boolean.toString(insert),
+								Boolean.toString(realTime), Integer.toString(prio));
+				}
+			}
+
+		});
+	}
+
+}
@@ -28,6 +28,7 @@ import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
 import freenet.support.ProcessPriority;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.io.NativeThread;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
@@ -137,7 +138,8 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = cfg.createSubConfig("logger");
 
-		PooledExecutor executor = new PooledExecutor();
+		// Blocking jobs get a thread each from the PooledExecutor, non-blocking jobs run on a thread per core.
+		WorkStealingExecutor executor = new WorkStealingExecutor(new PooledExecutor());
 
 		try {
 			System.out.println("Creating logger...");
@@ -32,6 +32,7 @@ import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -1624,6 +1625,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	private void rejected(String reason, boolean isLocal, boolean isInsert, boolean isSSK, boolean isOfferReply, boolean isRealTime) {
+		node.metrics.reject(reason, isSSK, isInsert, isLocal, isRealTime).inc();
 		reason += " "+(isRealTime?" (rt)":" (bulk)");
 		if(logMINOR) Logger.minor(this, "Rejecting (local="+isLocal+") isSSK="+isSSK+" isInsert="+isInsert+" : "+reason);
 		if(!isLocal) preemptiveRejectReasons.inc(reason);
@@ -1927,6 +1929,20 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return node.executor.waitingThreads();
 	}
 
+	/** @return The number of non-blocking jobs waiting for a thread at each priority, or null if
+	 * the executor doesn't queue jobs. */
+	public int[] getQueuedJobsByPriority() {
+		if(!(node.executor instanceof WorkStealingExecutor)) return null;
+		return ((WorkStealingExecutor)node.executor).queuedJobs();
+	}
+
+	/** @return The average time in milliseconds non-blocking jobs waited for a thread at each
+	 * priority, or null if the executor doesn't queue jobs. */
+	public double[] getQueueWaitTimesByPriority() {
+		if(!(node.executor instanceof WorkStealingExecutor)) return null;
+		return ((WorkStealingExecutor)node.executor).queueWaitTimes();
+	}
+
 	public int getThreadLimit() {
 		return threadLimit;
 	}
@@ -3052,6 +3068,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	void remoteRequest(boolean ssk, boolean success, boolean local, short htl, double location, boolean realTime, boolean fromOfferedKey) {
 		if(logMINOR) Logger.minor(this, "Remote request: sucess="+success+" htl="+htl+" locally answered="+local+" location of key="+location+" from offered key = "+fromOfferedKey);
+		node.metrics.remoteRequest(ssk, htl, success, local).inc();
 		if(!fromOfferedKey) {
 			if(realTime)
 				hourlyStatsRT.remoteRequest(ssk, success, local, htl, location);
@@ -5,8 +5,14 @@ import java.lang.ref.WeakReference;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.NonBlockingRunnable;
 
-class PeerNodeBackoffStatusChecker implements Runnable {
+/**
+ * Updates a peer's status, e.g. when its backoff ends or it sends us its load stats, which
+ * happens for every load stats message. Only takes short locks, and already runs on the ticker
+ * thread, so it is a NonBlockingRunnable.
+ */
+class PeerNodeBackoffStatusChecker implements NonBlockingRunnable {
 	final WeakReference<PeerNode> ref;
 	
 	private static volatile boolean logMINOR;
@@ -44,6 +44,8 @@ import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.jfr.JFR;
+import freenet.support.jfr.RequestEvent;
 import freenet.support.math.MedianMeanRunningAverage;
 
 /**
@@ -1581,6 +1583,11 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
             notifyAll();
         }
         
+        node.metrics.requestTime(isSSK, source == null, code).observeMillis(System.currentTimeMillis() - startTime);
+        if(JFR.AVAILABLE)
+        	RequestEvent.record(key.getRoutingKey(), isSSK, realTimeFlag, source == null, origHTL, htl,
+        			getStatusString(code), System.currentTimeMillis() - startTime);
+        
     	boolean shouldUnlock = doOpennet && next != null;
         
         if(status == SUCCESS) {
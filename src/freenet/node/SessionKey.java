@@ -4,6 +4,8 @@
 package freenet.node;
 
 import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.TruncatedHMAC;
 
 /**
  * Class representing a single session key.
@@ -26,6 +28,8 @@ public class SessionKey {
 	public final BlockCipher ivCipher;
 	public final byte[] ivNonce;
 	public final byte[] hmacKey;
+	/** Authenticates packets with hmacKey, keyed once for the whole session. */
+	final TruncatedHMAC packetHMAC;
 	
 	final long trackerID;
 	
@@ -42,6 +46,8 @@ public class SessionKey {
 		this.ivCipher = ivCipher;
 		this.ivNonce = ivNonce;
 		this.hmacKey = hmacKey;
+		this.packetHMAC = hmacKey == null ? null :
+			new TruncatedHMAC(HMAC.SHA2_256, hmacKey, NewPacketFormat.HMAC_LENGTH);
 		this.packetContext = context;
 		this.trackerID = trackerID;
 	}
@@ -1,6 +1,7 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.List;
 
 import freenet.crypt.DSAPublicKey;
 import freenet.keys.CHKBlock;
@@ -27,6 +28,17 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		// FIXME optimize: change API so we can just pass in the crypto algorithm rather than having to construct the full key???
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, false, false, ignoreOldBlocks, meta);
 	}
+
+	/** Fetch many keys at once. See FreenetStore.fetchAll(). */
+	public List<CHKBlock> fetchAll(NodeCHK[] chks, boolean dontPromote, boolean ignoreOldBlocks) throws IOException {
+		byte[][] routingKeys = new byte[chks.length][];
+		byte[][] fullKeys = new byte[chks.length][];
+		for(int i=0;i<chks.length;i++) {
+			routingKeys[i] = chks[i].getRoutingKey();
+			fullKeys[i] = chks[i].getFullKey();
+		}
+		return store.fetchAll(routingKeys, fullKeys, dontPromote, false, false, ignoreOldBlocks);
+	}
 	
 	public void put(CHKBlock b, boolean isOldBlock) throws IOException {
 		try {
@@ -1,6 +1,7 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.List;
 
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
@@ -29,6 +30,19 @@ public interface FreenetStore<T extends StorableBlock> {
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException;
 	
+	/**
+	 * Retrieve many blocks at once, e.g. to check the store for all the keys of a splitfile. A
+	 * disk-based store may reorder the lookups to avoid random seeks, so this can be much faster
+	 * than calling fetch() for each key. However it is not atomic: A block that is moved by a
+	 * concurrent put() may be missed.
+	 * @param routingKeys The routing keys to look up.
+	 * @param fullKeys The full keys, in the same order as routingKeys.
+	 * @return A list of the same length as routingKeys, containing the block for each key, or 
+	 * null if it cannot be found.
+	 * @throws IOException If a disk I/O error occurs.
+	 */
+	List<T> fetchAll(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException;
+	
 	/**
 	 * Store a block.
 	 * 
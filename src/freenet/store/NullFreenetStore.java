@@ -1,6 +1,8 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
@@ -20,6 +22,13 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return null;
 	}
 
+	@Override
+	public List<T> fetchAll(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		return Collections.nCopies(routingKeys.length, null);
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return 0;
@@ -1,8 +1,10 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
@@ -72,6 +74,16 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 		}
 	}
 
+	@Override
+	public synchronized List<T> fetchAll(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		// No seeks to avoid.
+		List<T> ret = new ArrayList<T>(routingKeys.length);
+		for(int i=0;i<routingKeys.length;i++)
+			ret.add(fetch(routingKeys[i], fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+		return ret;
+	}
+
 	@Override
 	public synchronized long getMaxKeys() {
 		return maxKeys;
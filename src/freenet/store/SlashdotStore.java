@@ -148,6 +148,15 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		}
 	}
 
+	@Override
+	public List<T> fetchAll(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		// The blocks are in temp buckets, usually in RAM, so there is no point sorting.
+		List<T> ret = new ArrayList<T>(routingKeys.length);
+		for(int i=0;i<routingKeys.length;i++)
+			ret.add(fetch(routingKeys[i], fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+		return ret;
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return -1;
@@ -1,6 +1,8 @@
 package freenet.store.caching;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -91,6 +93,46 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);	
 	}
 
+	@Override
+	public List<T> fetchAll(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks)
+			throws IOException {
+		List<T> ret = new ArrayList<T>(routingKeys.length);
+		// Keys which are not in the write cache, for the underlying store.
+		List<Integer> missing = new ArrayList<Integer>();
+		for(int i=0;i<routingKeys.length;i++) {
+			Block<T> block;
+			configLock.readLock().lock();
+			try {
+				block = blocksByRoutingKey.get(new ByteArrayWrapper(routingKeys[i]));
+			} finally {
+				configLock.readLock().unlock();
+			}
+			T found = null;
+			if(block != null) {
+				try {
+					found = this.callback.construct(block.data, block.header, routingKeys[i], block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, null, null);
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
+				}
+			}
+			if(found == null) missing.add(i);
+			ret.add(found);
+		}
+		if(missing.isEmpty()) return ret;
+		byte[][] missingRoutingKeys = new byte[missing.size()][];
+		byte[][] missingFullKeys = new byte[missing.size()][];
+		for(int i=0;i<missing.size();i++) {
+			missingRoutingKeys[i] = routingKeys[missing.get(i)];
+			missingFullKeys[i] = fullKeys[missing.get(i)];
+		}
+		List<T> fetched = backDatastore.fetchAll(missingRoutingKeys, missingFullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks);
+		for(int i=0;i<missing.size();i++)
+			ret.set(missing.get(i), fetched.get(i));
+		return ret;
+	}
+
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
@@ -12,10 +12,12 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
@@ -60,6 +62,9 @@ import freenet.support.io.Closer;
 import freenet.support.io.Fallocate;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.jfr.JFR;
+import freenet.support.jfr.StoreFetchEvent;
+import freenet.support.jfr.StorePutEvent;
 import freenet.support.math.MersenneTwister;
 
 /**
@@ -307,6 +312,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		if(!JFR.AVAILABLE)
+			return fetchBlock(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		StoreFetchEvent event = StoreFetchEvent.start();
+		T block = fetchBlock(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		event.finish(name, block != null);
+		return block;
+	}
+
+	private T fetchBlock(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
@@ -366,6 +380,158 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	/** Number of slots fetchAll() reads before releasing configLock, so a big batch doesn't hold up
+	 * a resize or rebuild for long. */
+	private static final int FETCH_ALL_PROBE_GROUP = 64;
+
+	/**
+	 * Fetch many keys at once. We compute all the slots each key could be in, drop those which
+	 * the slot filter rules out without touching the disk, and then read the remaining slots in 
+	 * ascending order, so a big batch becomes a mostly sequential scan of the metadata file 
+	 * rather than one random seek per slot. Each slot is only locked while we read it, so a key
+	 * which is moved by a concurrent write may be missed; that is acceptable for the callers,
+	 * which will simply fetch it from the network. configLock is only held for a group of 
+	 * FETCH_ALL_PROBE_GROUP slots at a time; if the store is resized in between, we compute the
+	 * slots again for the keys we haven't found yet.
+	 */
+	@Override
+	public List<T> fetchAll(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks) throws IOException {
+		if (logMINOR)
+			Logger.minor(this, "Fetch " + routingKeys.length + " keys for " + callback);
+		
+		List<T> ret = new ArrayList<T>(routingKeys.length);
+		for(int i=0;i<routingKeys.length;i++)
+			ret.add(null);
+
+		byte[][] digestedKeys = new byte[routingKeys.length][];
+		for(int i=0;i<routingKeys.length;i++)
+			digestedKeys[i] = cipherManager.getDigestedKey(routingKeys[i]);
+		// Slot number in the high 32 bits, index of the key in the low 32 bits, so sorting 
+		// sorts by slot.
+		long[] probes = null;
+		int probeCount = 0;
+		int probe = 0;
+		long probedStoreSize = -1;
+		long probedPrevStoreSize = -1;
+		// Keys whose slot has been found, whether or not we could use the block.
+		boolean[] done = new boolean[routingKeys.length];
+		// Keys with a slot we couldn't read, so we don't know whether they are in the store.
+		boolean[] skipped = new boolean[routingKeys.length];
+		while(true) {
+			if(!lockConfigForFetchAll()) return ret;
+			try {
+				if(storeSize != probedStoreSize || prevStoreSize != probedPrevStoreSize) {
+					// First group, or the store was resized since the last one.
+					probedStoreSize = storeSize;
+					probedPrevStoreSize = prevStoreSize;
+					if(probes == null || probes.length < routingKeys.length * OPTION_MAX_PROBE * (prevStoreSize != 0 ? 2 : 1))
+						probes = new long[routingKeys.length * OPTION_MAX_PROBE * (prevStoreSize != 0 ? 2 : 1)];
+					probeCount = 0;
+					for(int i=0;i<routingKeys.length;i++) {
+						if(done[i]) continue;
+						skipped[i] = false;
+						probeCount = addProbes(probes, probeCount, i, digestedKeys[i], storeSize);
+						if(prevStoreSize != 0)
+							probeCount = addProbes(probes, probeCount, i, digestedKeys[i], prevStoreSize);
+					}
+					Arrays.sort(probes, 0, probeCount);
+					probe = 0;
+					if (logMINOR)
+						Logger.minor(this, "Reading " + probeCount + " slots for " + routingKeys.length + " keys");
+				}
+				int end = Math.min(probe + FETCH_ALL_PROBE_GROUP, probeCount);
+				for(;probe<end;probe++) {
+					long offset = probes[probe] >>> 32;
+					int key = (int) probes[probe];
+					if(done[key]) continue;
+					if(!(storeFileOffsetReady == -1 || offset < this.storeFileOffsetReady)) {
+						skipped[key] = true;
+						continue;
+					}
+					Condition condition = lockManager.lockEntry(offset);
+					if(condition == null) {
+						if (logDEBUG)
+							Logger.debug(this, "cannot lock slot " + offset + ", shutting down?");
+						return ret;
+					}
+					try {
+						Entry entry;
+						try {
+							entry = readEntry(offset, digestedKeys[key], routingKeys[key], true);
+						} catch (EOFException e) {
+							if (prevStoreSize == 0) // may occur on store shrinking
+								Logger.error(this, "EOFException on fetchAll", e);
+							skipped[key] = true;
+							continue;
+						}
+						if(entry == null) continue;
+						done[key] = true;
+						if((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && ignoreOldBlocks) {
+							Logger.normal(this, "Ignoring old block");
+							continue;
+						}
+						T block = null;
+						try {
+							block = entry.getStorableBlock(routingKeys[key], fullKeys[key], canReadClientCache, canReadSlashdotCache, null, null);
+						} catch (KeyVerifyException e) {
+							Logger.minor(this, "key verification exception", e);
+						}
+						// Same accounting as fetch().
+						if(block == null)
+							misses.incrementAndGet();
+						else {
+							hits.incrementAndGet();
+							ret.set(key, block);
+						}
+					} finally {
+						lockManager.unlockEntry(offset, condition);
+					}
+				}
+				if(probe == probeCount) break;
+			} finally {
+				configLock.readLock().unlock();
+			}
+		}
+		for(int i=0;i<routingKeys.length;i++) {
+			if(!done[i] && !skipped[i])
+				misses.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/** Take the read lock on configLock for a group of fetchAll() probes.
+	 * @return False if we are shutting down. */
+	private boolean lockConfigForFetchAll() throws IOException {
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return false;
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+			return true;
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+	}
+	
+	/** Add the slots which may contain a key to the probes array for fetchAll(), unless the slot
+	 * filter says the key is definitely not there.
+	 * @return The new number of probes. */
+	private int addProbes(long[] probes, int probeCount, int key, byte[] digestedKey, long probeStoreSize) {
+		for(long offset : getOffsetFromDigestedKey(digestedKey, probeStoreSize)) {
+			if(offset >= Integer.MAX_VALUE) continue; // readEntry() can't read it.
+			if(USE_SLOT_FILTER && !slotFilterDisabled) {
+				int cache = slotFilter.get((int)offset);
+				if((cache & SLOT_CHECKED) != 0 && !slotCacheLikelyMatch(cache, digestedKey))
+					continue;
+			}
+			probes[probeCount++] = (offset << 32) | key;
+		}
+		return probeCount;
+	}
+
 	/**
 	 * Find and lock an entry with a specific routing key. This function would <strong>not</strong>
 	 * lock the entries.
@@ -414,6 +580,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public boolean put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
+		if(!JFR.AVAILABLE)
+			return putBlock(block, data, header, overwrite, isOldBlock, wrongStore);
+		StorePutEvent event = StorePutEvent.start();
+		try {
+			boolean ret = putBlock(block, data, header, overwrite, isOldBlock, wrongStore);
+			event.finish(name, overwrite, isOldBlock, ret, false);
+			return ret;
+		} catch (KeyCollisionException e) {
+			event.finish(name, overwrite, isOldBlock, false, true);
+			throw e;
+		}
+	}
+
+	private boolean putBlock(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 
@@ -14,6 +14,12 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -25,7 +31,9 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -49,7 +57,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		UNAME = 7;
 
 	private volatile boolean closed = false;
-	private boolean closedFinished = false;
+	/** Counted down when the writer thread has written everything and closed the files. */
+	private final CountDownLatch closedFinished = new CountDownLatch(1);
 
 	protected int INTERVAL = Calendar.MINUTE;
 	protected int INTERVAL_MULTIPLIER = 5;
@@ -109,23 +118,26 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	/** The writer thread waits until this many bytes are queued, or flushTime has passed,
+	 * before writing. */
+	protected volatile long LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Threads which log only put the arguments into a lock-free queue of preallocated records.
+	 * The lines are formatted and encoded by the writer thread. If the queue is full, or uses
+	 * more than MAX_LIST_BYTES, the message is dropped, and the writer logs how many were.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	private final LogRecordQueue queue;
+	/** Number of messages dropped since the writer last said so. */
+	private final AtomicInteger dropped = new AtomicInteger();
+	/** The writer thread, once started. */
+	private volatile Thread writerThread;
+	/** The writer thread is parked, or about to park, waiting for messages. */
+	private volatile boolean writerWaiting;
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -145,10 +157,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		MAX_LIST_BYTES = len;
+		LIST_WRITE_THRESHOLD = len / 4;
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -240,7 +250,18 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	// Unless we are writing flat out, everything will hit disk within this period.
 	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
 
+	private static final int LINE_BUFFER_SIZE = 1024;
+	/** Don't keep a buffer which had to grow for a huge message. */
+	private static final int MAX_KEPT_LINE_BUFFER = 64 * 1024;
+
 	class WriterThread extends Thread {
+		// Only used by the writer thread.
+		private StringBuilder lineBuffer = new StringBuilder(LINE_BUFFER_SIZE);
+		private ByteBuffer encodeBuffer = ByteBuffer.allocate(LINE_BUFFER_SIZE);
+		private final CharsetEncoder encoder = Charset.forName(ENCODING).newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
 		WriterThread() {
 			super("Log File Writer Thread");
 		}
@@ -298,11 +319,14 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
-			long timeWaitingForSync = -1;
 			long flush;
 			synchronized(this) {
 				flush = flushTime;
 			}
+			// When we started waiting for more messages before writing, or -1.
+			long waitingSince = -1;
+			// When to flush what has been written, or -1.
+			long flushDeadline = -1;
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -321,65 +345,29 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
-					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
+					synchronized(this) {
 						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
-						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+					}
+					boolean died = closed;
+					long wakeAt = Long.MAX_VALUE;
+					if(queue.peek() != null || dropped.get() != 0) {
+						// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
+						if(waitingSince == -1) waitingSince = thisTime;
+						if(died || queue.queuedBytes() >= LIST_WRITE_THRESHOLD || thisTime >= waitingSince + flush) {
+							writeQueued();
+							waitingSince = -1;
+							if(flushDeadline == -1) flushDeadline = thisTime + flush;
+							if(!died) continue;
+						} else {
+							wakeAt = waitingSince + flush;
 						}
 					}
-					if(timeoutFlush || died) {
+					if(flushDeadline != -1 && (died || thisTime >= flushDeadline)) {
 						// Flush to disk 
-						myWrite(logStream, null);
-				        if(altLogStream != null)
-				        	myWrite(altLogStream, null);
+						myWrite(logStream, null, 0, 0);
+						if(altLogStream != null)
+							myWrite(altLogStream, null, 0, 0);
+						flushDeadline = -1;
 					}
 					if(died) {
 						try {
@@ -394,16 +382,19 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
-							closedFinished = true;
-							list.notifyAll();
-						}
+						closedFinished.countDown();
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
+					if(flushDeadline != -1) wakeAt = Math.min(wakeAt, flushDeadline);
+					// Wait no more than 500ms so we notice rotation and closing.
+					long wait = Math.min(500L, wakeAt - thisTime);
+					if(wait > 0) {
+						writerWaiting = true;
+						// Re-check after setting writerWaiting, so we don't miss a wakeup.
+						if(waitingSince != -1 || (queue.peek() == null && !closed))
+							LockSupport.parkNanos(FileLoggerHook.this, wait * 1000 * 1000);
+						writerWaiting = false;
+					}
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -417,6 +408,53 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		/** Format and write everything in the queue. */
+		private void writeQueued() {
+			int lost = dropped.getAndSet(0);
+			if(lost != 0) {
+				lineBuffer.setLength(0);
+				lineBuffer.append("GRRR: ERROR: Logging too fast, chopped ").append(lost)
+					.append(" entries, ").append(queue.queuedBytes()).append(" bytes in memory\n");
+				writeLine();
+			}
+			LogRecordQueue.Record r;
+			while((r = queue.peek()) != null) {
+				lineBuffer.setLength(0);
+				try {
+					format(r, lineBuffer);
+				} finally {
+					queue.release();
+				}
+				writeLine();
+				if(lineBuffer.capacity() > MAX_KEPT_LINE_BUFFER)
+					lineBuffer = new StringBuilder(LINE_BUFFER_SIZE);
+			}
+		}
+
+		/** Encode lineBuffer and write it. */
+		private void writeLine() {
+			CharBuffer chars = CharBuffer.wrap(lineBuffer);
+			encoder.reset();
+			encodeBuffer.clear();
+			while(true) {
+				CoderResult result = encoder.encode(chars, encodeBuffer, true);
+				if(result.isOverflow()) {
+					ByteBuffer bigger = ByteBuffer.allocate(encodeBuffer.capacity() * 2);
+					encodeBuffer.flip();
+					bigger.put(encodeBuffer);
+					encodeBuffer = bigger;
+					continue;
+				}
+				break;
+			}
+			encoder.flush(encodeBuffer);
+			myWrite(logStream, encodeBuffer.array(), 0, encodeBuffer.position());
+			if(altLogStream != null)
+				myWrite(altLogStream, encodeBuffer.array(), 0, encodeBuffer.position());
+			if(encodeBuffer.capacity() > MAX_KEPT_LINE_BUFFER)
+				encodeBuffer = ByteBuffer.allocate(LINE_BUFFER_SIZE);
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
 	        try {
@@ -463,13 +501,13 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		 * @param b
 		 *            the bytes to write, null to flush
 		 */
-		protected void myWrite(OutputStream os, byte[] b) {
+		protected void myWrite(OutputStream os, byte[] b, int offset, int length) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
 					if (b != null)
-						os.write(b);
+						os.write(b, offset, length);
 					else
 						os.flush();
 				} catch (IOException e) {
@@ -538,7 +576,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected int runningCompressors = 0;
 	protected Object runningCompressorsSync = new Object();
 
-	private Date myDate = new Date();
+	/** Only used by the writer thread. */
+	private final Date myDate = new Date();
+	private long lastDateTime = -1;
+	private String lastDate;
 
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist
@@ -806,6 +847,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 		WriterThread wt = new WriterThread();
 		wt.setDaemon(true);
+		writerThread = wt;
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
 		wt.start();
@@ -854,7 +896,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		queue = new LogRecordQueue(MAX_LIST_SIZE);
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -923,8 +965,33 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		if (closed)
 			return;
-		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+
+		long bytes = LINE_OVERHEAD + (msg == null ? 0 : msg.length() * 2L) + (e == null ? 0 : THROWABLE_OVERHEAD);
+		enqueue(System.currentTimeMillis(), c, o, Thread.currentThread().getName(), msg, e, priority, bytes);
+	}
+
+	private void enqueue(long time, Class<?> c, Object o, String threadName, String msg, Throwable e, LogLevel priority, long bytes) {
+		if(!queue.offer(time, c, o, threadName, msg, e, priority, bytes, MAX_LIST_BYTES)) {
+			dropped.incrementAndGet();
+			wakeWriter();
+			return;
+		}
+		if(writerWaiting && queue.queuedBytes() >= LIST_WRITE_THRESHOLD)
+			wakeWriter();
+	}
+
+	private void wakeWriter() {
+		Thread writer = writerThread;
+		if(writer != null) LockSupport.unpark(writer);
+	}
+
+	/** Format a message. Only called by the writer thread. */
+	private void format(LogRecordQueue.Record r, StringBuilder sb) {
+		if(r.priority == null) {
+			// Already formatted.
+			sb.append(r.message);
+			return;
+		}
 		int sctr = 0;
 
 		for (int f: fmt) {
@@ -933,29 +1000,30 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
+					if(r.time != lastDateTime) {
+						myDate.setTime(r.time);
+						lastDate = df.format(myDate);
+						lastDateTime = r.time;
 					}
+					sb.append(lastDate);
 					break;
 				case CLASS :
-					sb.append(c == null ? "<none>" : c.getName());
+					sb.append(r.source == null ? "<none>" : r.source.getName());
 					break;
 				case HASHCODE :
-					sb.append(
-						o == null
-							? "<none>"
-							: Integer.toHexString(o.hashCode()));
+					if(r.hasObject)
+						sb.append(Integer.toHexString(r.hashCode));
+					else
+						sb.append("<none>");
 					break;
 				case THREAD :
-					sb.append(Thread.currentThread().getName());
+					sb.append(r.threadName);
 					break;
 				case PRIORITY :
-					sb.append(priority.name());
+					sb.append(r.priority.name());
 					break;
 				case MESSAGE :
-					sb.append(msg);
+					sb.append(r.message);
 					break;
 				case UNAME :
 					sb.append(uname);
@@ -965,6 +1033,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		sb.append('\n');
 
 		// Write stacktrace if available
+		Throwable e = r.throwable;
 		for(int j=0;j<20 && e != null;j++) {
 			sb.append(e.toString());
 			
@@ -987,71 +1056,22 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			if(cause != e) e = cause;
 			else break;
 		}
-
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
-		}
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
+	/** Rough size of a formatted stack trace. */
+	private static final int THROWABLE_OVERHEAD = 4096;
 	
+	/** Log a line which has already been formatted, including the trailing newline. */
 	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
-		}
+		String line = new String(b, ENCODING);
+		enqueue(System.currentTimeMillis(), null, null, null, line, null, null, LINE_OVERHEAD + b.length * 2L);
 	}
 
+	/** Estimated memory used by messages which haven't been written yet. */
 	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
-		}
+		return queue.queuedBytes();
 	}
 
 	public static int numberOf(char c) {
@@ -1078,25 +1098,19 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	@Override
 	public void close() {
 		closed = true;
+		wakeWriter();
 	}
 
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
-				closed = true;
-				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
-				while(!closedFinished) {
-					int wait = (int) (deadline - System.currentTimeMillis());
-					if(wait <= 0) return;
-					try {
-						list.wait(wait);
-					} catch (InterruptedException e) {
-						// Ok.
-					}
-				}
-				System.out.println("Completed writing logs to disk.");
+			close();
+			try {
+				if(!closedFinished.await(10, SECONDS)) return;
+			} catch (InterruptedException e) {
+				return;
 			}
+			System.out.println("Completed writing logs to disk.");
 		}
 	}
 
@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -374,23 +376,63 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 	}
 
 	public StringBuilder generate(StringBuilder tagBuffer, int indentDepth ) {
+		try {
+			generate(tagBuffer, indentDepth, null);
+		} catch (IOException e) {
+			// Impossible without a Writer.
+			throw new Error(e);
+		}
+		return tagBuffer;
+	}
+
+	/**
+	 * Render the node to a Writer a bit at a time, rather than into one huge String. Together
+	 * with {@link LazyNodes}, this means a big page (e.g. a table with thousands of rows) never
+	 * needs to be in memory all at once. Does not flush or close the Writer.
+	 */
+	public void generate(Writer out) throws IOException {
+		StringBuilder tagBuffer = new StringBuilder(STREAM_FLUSH_SIZE + 1024);
+		generate(tagBuffer, 0, out);
+		flush(tagBuffer, out);
+	}
+
+	/** When rendering to a Writer, write out the buffer each time it gets this big. */
+	static final int STREAM_FLUSH_SIZE = 16384;
+
+	private static void maybeFlush(StringBuilder tagBuffer, Writer out) throws IOException {
+		if(out != null && tagBuffer.length() >= STREAM_FLUSH_SIZE)
+			flush(tagBuffer, out);
+	}
+
+	private static void flush(StringBuilder tagBuffer, Writer out) throws IOException {
+		out.append(tagBuffer);
+		tagBuffer.setLength(0);
+	}
+
+	/**
+	 * Render the node.
+	 * @param out If not null, write out the buffer whenever it gets big. Subclasses should
+	 * pass it on to their children.
+	 */
+	protected void generate(StringBuilder tagBuffer, int indentDepth, Writer out) throws IOException {
 		if("#".equals(name)) {
 			if(content != null) {
 				HTMLEncoder.encodeToBuffer(content, tagBuffer);
-				return tagBuffer;
+				return;
 			}
 			
 			for(int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer);
+				childNode.generate(tagBuffer, 0, out);
+				maybeFlush(tagBuffer, out);
 			}
-			return tagBuffer;
+			return;
 		}
 		// Perhaps this should be something else, but since I don't know if '#' was not just arbitrary chosen, I'll just pick '%'
 		// This allows non-encoded text to be appended to the tag buffer
 		if ("%".equals(name)) {
 			tagBuffer.append(content);
-			return tagBuffer;
+			return;
 		}
 		/* start the open tag */
 		tagBuffer.append('<').append(name);
@@ -423,7 +465,8 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			}
 			for (int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer,indentDepth+1);
+				childNode.generate(tagBuffer, indentDepth+1, out);
+				maybeFlush(tagBuffer, out);
 			}
 		}
 		/* add a closing tag */
@@ -436,7 +479,6 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			tagBuffer.append('\n');
 			tagBuffer.append(indentString(indentDepth));
 		}
-		return tagBuffer;
 	}
 	
 	public String generateChildren(){
@@ -493,6 +535,39 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			return children.get(0).generate(tagBuffer);
 		}
 
+		@Override
+		public void generate(Writer out) throws IOException {
+			StringBuilder tagBuffer = new StringBuilder(STREAM_FLUSH_SIZE + 1024);
+			tagBuffer.append("<!DOCTYPE ").append(name).append(" PUBLIC \"").append(systemUri).append("\">\n");
+			children.get(0).generate(tagBuffer, 0, out);
+			flush(tagBuffer, out);
+		}
+
+	}
+
+	/**
+	 * Nodes which are only created when the page is rendered, for example the rows of a big
+	 * table. When rendering with {@link HTMLNode#generate(Writer)}, each node can be garbage
+	 * collected as soon as it has been written. The Iterable is iterated each time this node is
+	 * rendered, and its nodes are not in {@link #getChildren()}.
+	 */
+	public static class LazyNodes extends HTMLNode {
+
+		private final Iterable<? extends HTMLNode> nodes;
+
+		public LazyNodes(Iterable<? extends HTMLNode> nodes) {
+			super("#");
+			this.nodes = nodes;
+		}
+
+		@Override
+		protected void generate(StringBuilder tagBuffer, int indentDepth, Writer out) throws IOException {
+			for(HTMLNode node : nodes) {
+				node.generate(tagBuffer, indentDepth, out);
+				maybeFlush(tagBuffer, out);
+			}
+		}
+
 	}
 
 	public static HTMLNode link(String path) {
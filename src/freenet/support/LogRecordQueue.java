@@ -0,0 +1,144 @@
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Bounded, lock-free, multi-producer single-consumer queue of log records, used by
+ * FileLoggerHook. The records are allocated once and reused, and hold the raw arguments of the
+ * log call: Formatting them into a line is left to the (single) writer thread, so a thread
+ * which logs only pays for claiming a slot and copying a few references.
+ *
+ * Each slot has a sequence number (see Dmitry Vyukov's bounded MPMC queue): A producer claims
+ * the slot at the tail with a CAS when its sequence equals the tail position, fills it in, and
+ * publishes it by setting the sequence to position + 1. The consumer takes the slot at the
+ * head once it has been published, and gives it back by setting the sequence to position +
+ * capacity. Producers never wait for each other or for the consumer: If the queue is full,
+ * offer() fails and the caller drops the message.
+ */
+final class LogRecordQueue {
+
+	/** A log call, not yet formatted. Only valid between peek() and release(). */
+	static final class Record {
+		long time;
+		Class<?> source;
+		/** Hash code of the object logging, if any. */
+		int hashCode;
+		boolean hasObject;
+		String threadName;
+		String message;
+		Throwable throwable;
+		/** Null for a line which has already been formatted, in message. */
+		LogLevel priority;
+		/** Estimated memory used by the record, counted in queuedBytes. */
+		long bytes;
+
+		private void clear() {
+			source = null;
+			threadName = null;
+			message = null;
+			throwable = null;
+			priority = null;
+		}
+	}
+
+	private final Record[] records;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	/** Only changed by the consumer. */
+	private volatile long head;
+	/** Estimated memory used by queued records. */
+	private final AtomicLong queuedBytes = new AtomicLong();
+
+	/** @param minCapacity The capacity, rounded up to a power of 2. */
+	LogRecordQueue(int minCapacity) {
+		int capacity = 1;
+		while(capacity < minCapacity) capacity <<= 1;
+		records = new Record[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for(int i=0;i<capacity;i++) {
+			records[i] = new Record();
+			sequences.set(i, i);
+		}
+		mask = capacity - 1;
+	}
+
+	int capacity() {
+		return records.length;
+	}
+
+	/**
+	 * Add a record. Safe to call from any thread.
+	 * @param maxBytes Fail if the queued records would use more than this much memory.
+	 * @return False if the queue is full.
+	 */
+	boolean offer(long time, Class<?> source, Object o, String threadName, String message,
+			Throwable throwable, LogLevel priority, long bytes, long maxBytes) {
+		long total = queuedBytes.addAndGet(bytes);
+		if(total > maxBytes && total != bytes) {
+			// Always accept one record, however big.
+			queuedBytes.addAndGet(-bytes);
+			return false;
+		}
+		long pos = tail.get();
+		int index;
+		while(true) {
+			index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if(diff == 0) {
+				if(tail.compareAndSet(pos, pos + 1)) break;
+				pos = tail.get();
+			} else if(diff < 0) {
+				// Full.
+				queuedBytes.addAndGet(-bytes);
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+		Record r = records[index];
+		r.time = time;
+		r.source = source;
+		r.hasObject = o != null;
+		r.hashCode = o == null ? 0 : o.hashCode();
+		r.threadName = threadName;
+		r.message = message;
+		r.throwable = throwable;
+		r.priority = priority;
+		r.bytes = bytes;
+		sequences.lazySet(index, pos + 1);
+		return true;
+	}
+
+	/** Get the oldest record, without removing it. Only called by the consumer.
+	 * @return The record, or null if there are none ready. */
+	Record peek() {
+		int index = (int) (head & mask);
+		if(sequences.get(index) != head + 1) return null;
+		return records[index];
+	}
+
+	/** Remove the record returned by peek(). Only called by the consumer. */
+	void release() {
+		int index = (int) (head & mask);
+		Record r = records[index];
+		queuedBytes.addAndGet(-r.bytes);
+		r.clear();
+		sequences.lazySet(index, head + records.length);
+		head++;
+	}
+
+	/** Approximate number of queued records. */
+	int size() {
+		long size = tail.get() - head;
+		return (int) Math.max(0, Math.min(size, records.length));
+	}
+
+	long queuedBytes() {
+		return queuedBytes.get();
+	}
+
+}
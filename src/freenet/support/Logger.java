@@ -24,17 +24,17 @@ import freenet.support.io.Closer;
 public abstract class Logger {
 	public final static class OSThread {
 		
-		private static boolean getPIDEnabled = false;
-		private static boolean getPPIDEnabled = false;
-		private static boolean logToFileEnabled = false;
-		private static LogLevel logToFileVerbosity = LogLevel.DEBUG;
-		private static boolean logToStdOutEnabled = false;
-		private static boolean procSelfStatEnabled = false;
+		private static volatile boolean getPIDEnabled = false;
+		private static volatile boolean getPPIDEnabled = false;
+		private static volatile boolean logToFileEnabled = false;
+		private static volatile LogLevel logToFileVerbosity = LogLevel.DEBUG;
+		private static volatile boolean logToStdOutEnabled = false;
+		private static volatile boolean procSelfStatEnabled = false;
 	
 		/**
 		 * Get the thread's process ID or return -1 if it's unavailable for some reason
 		 */
-		public synchronized static int getPID(Object o) {
+		public static int getPID(Object o) {
 			if (!getPIDEnabled) {
 				return -1;
 			}
@@ -44,7 +44,7 @@ public abstract class Logger {
 		/**
 		 * Get the thread's parent process ID or return -1 if it's unavailable for some reason
 		 */
-		public synchronized static int getPPID(Object o) {
+		public static int getPPID(Object o) {
 			if (!getPPIDEnabled) {
 				return -1;
 			}
@@ -110,7 +110,7 @@ public abstract class Logger {
 		 * hack required by Java to get the OS process ID of a thread on
 		 * Linux without using JNI.
 		 */
-		public synchronized static int getPIDFromProcSelfStat(Object o) {
+		public static int getPIDFromProcSelfStat(Object o) {
 			int pid = -1;
 	
 			if (!getPIDEnabled) {
@@ -137,7 +137,7 @@ public abstract class Logger {
 		 * is ugly hack required by Java to get the OS parent process ID of
 		 * a thread on Linux without using JNI.
 		 */
-		public synchronized static int getPPIDFromProcSelfStat(Object o) {
+		public static int getPPIDFromProcSelfStat(Object o) {
 			int ppid = -1;
 	
 			if (!getPPIDEnabled) {
@@ -161,7 +161,7 @@ public abstract class Logger {
 		/**
 		 * Log the thread's process ID or return -1 if it's unavailable for some reason
 		 */
-		public synchronized static int logPID(Object o) {
+		public static int logPID(Object o) {
 			if (!getPIDEnabled) {
 				return -1;
 			}
@@ -184,7 +184,7 @@ public abstract class Logger {
 		/**
 		 * Log the thread's process ID or return -1 if it's unavailable for some reason
 		 */
-		public synchronized static int logPPID(Object o) {
+		public static int logPPID(Object o) {
 			if (!getPPIDEnabled) {
 				return -1;
 			}
@@ -252,7 +252,8 @@ public abstract class Logger {
 	/**
 	 * Single global LoggerHook.
 	 */
-	static Logger logger = new VoidLogger();
+	/** Not synchronized on: Logging happens from every thread, all the time. */
+	static volatile Logger logger = new VoidLogger();
 
 	/** Log to standard output. */
 	public synchronized static FileLoggerHook setupStdoutLogging(LogLevel level, String detail) throws InvalidThresholdException {
@@ -284,96 +285,96 @@ public abstract class Logger {
 
 	// These methods log messages at various priorities using the global logger.
 	
-	public synchronized static void debug(Class<?> c, String s) {
+	public static void debug(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.DEBUG);
 	}
 
-	public synchronized static void debug(Class<?> c, String s, Throwable t) {
+	public static void debug(Class<?> c, String s, Throwable t) {
 		logger.log(c, s, t, LogLevel.DEBUG);
 	}
 	
-	public synchronized static void debug(Object o, String s) {
+	public static void debug(Object o, String s) {
 		logger.log(o, s, LogLevel.DEBUG);
 	}
 
-	public synchronized static void debug(Object o, String s, Throwable t) {
+	public static void debug(Object o, String s, Throwable t) {
 		logger.log(o, s, t, LogLevel.DEBUG);
 	}
 
-	public synchronized static void error(Class<?> c, String s) {
+	public static void error(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.ERROR);
 	}
 
-	public synchronized static void error(Class<?> c, String s, Throwable t) {
+	public static void error(Class<?> c, String s, Throwable t) {
 		logger.log(c, s, t, LogLevel.ERROR);
 	}
 
-	public synchronized static void error(Object o, String s) {
+	public static void error(Object o, String s) {
 		logger.log(o, s, LogLevel.ERROR);
 	}
 
-	public synchronized static void error(Object o, String s, Throwable e) {
+	public static void error(Object o, String s, Throwable e) {
 		logger.log(o, s, e, LogLevel.ERROR);
 	}
 
-	public synchronized static void minor(Class<?> c, String s) {
+	public static void minor(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.MINOR);
 	}
 
-	public synchronized static void minor(Object o, String s) {
+	public static void minor(Object o, String s) {
 		logger.log(o, s, LogLevel.MINOR);
 	}
 
-	public synchronized static void minor(Object o, String s, Throwable t) {
+	public static void minor(Object o, String s, Throwable t) {
 		logger.log(o, s, t, LogLevel.MINOR);
 	}
 
-	public synchronized static void minor(Class<?> class1, String string, Throwable t) {
+	public static void minor(Class<?> class1, String string, Throwable t) {
 		logger.log(class1, string, t, LogLevel.MINOR);
 	}
 
-	public synchronized static void normal(Object o, String s) {
+	public static void normal(Object o, String s) {
 		logger.log(o, s, LogLevel.NORMAL);
 	}
 
-	public synchronized static void normal(Object o, String s, Throwable t) {
+	public static void normal(Object o, String s, Throwable t) {
 		logger.log(o, s, t, LogLevel.NORMAL);
 	}
 
-	public synchronized static void normal(Class<?> c, String s) {
+	public static void normal(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.NORMAL);
 	}
 
-	public synchronized static void normal(Class<?> c, String s, Throwable t) {
+	public static void normal(Class<?> c, String s, Throwable t) {
 		logger.log(c, s, t, LogLevel.NORMAL);
 	}
 
-	public synchronized static void warning(Class<?> c, String s) {
+	public static void warning(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.WARNING);
 	}
 
-	public synchronized static void warning(Class<?> c, String s, Throwable t) {
+	public static void warning(Class<?> c, String s, Throwable t) {
 		logger.log(c, s, t, LogLevel.WARNING);
 	}
 
-	public synchronized static void warning(Object o, String s) {
+	public static void warning(Object o, String s) {
 		logger.log(o, s, LogLevel.WARNING);
 	}
 
-	public synchronized static void warning(Object o, String s, Throwable e) {
+	public static void warning(Object o, String s, Throwable e) {
 		logger.log(o, s, e, LogLevel.WARNING);
 	}
 
-	public synchronized static void logStatic(Object o, String s, LogLevel prio) {
+	public static void logStatic(Object o, String s, LogLevel prio) {
 		logger.log(o, s, prio);
 	}
 	
-	public synchronized static void logStatic(Object o, String s, Throwable e, LogLevel prio) {
+	public static void logStatic(Object o, String s, Throwable e, LogLevel prio) {
 		logger.log(o, s, e, prio);
 	}
 	
 	@Deprecated
-	public synchronized static void logStatic(Object o, String s, int prio) {
+	public static void logStatic(Object o, String s, int prio) {
 		logStatic(o, s, LogLevel.fromOrdinal(prio));
 	}
 
@@ -4,6 +4,8 @@ package freenet.support;
 public abstract class MemoryLimitedJob {
     
     protected final long initialAllocation;
+    /** When the job was given to MemoryLimitedJobRunner.queueJob(). */
+    long queuedTime;
     
     public MemoryLimitedJob(long initial) {
         this.initialAllocation = initial;
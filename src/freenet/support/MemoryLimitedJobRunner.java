@@ -5,6 +5,8 @@ import java.util.Deque;
 
 import freenet.node.PrioRunnable;
 import freenet.support.io.NativeThread;
+import freenet.support.jfr.JFR;
+import freenet.support.jfr.MemoryLimitedJobEvent;
 
 /** Start jobs as long as there is sufficient memory (or other limited resource) available, then 
  * queue them. FIXME I bet there is something like this in the standard libraries?
@@ -46,6 +48,7 @@ public class MemoryLimitedJobRunner {
         if(shutdown) return;
         if(job.initialAllocation > capacity) throw new IllegalArgumentException("Job size "+job.initialAllocation+" > capacity "+capacity);
         if(logMINOR) Logger.minor(this, "Queueing job "+job+" at priority "+job.getPriority());
+        job.queuedTime = System.currentTimeMillis();
         jobs[job.getPriority()].add(job);
         maybeStartJobs();
     }
@@ -87,9 +90,12 @@ public class MemoryLimitedJobRunner {
 
             @Override
             public void run() {
+                MemoryLimitedJobEvent event = JFR.AVAILABLE ? MemoryLimitedJobEvent.start() : null;
                 MemoryLimitedChunk chunk = new MemoryLimitedChunk(MemoryLimitedJobRunner.this, job.initialAllocation);
                 if(job.start(chunk))
                     chunk.release();
+                if(event != null)
+                    event.finish(job.getClass(), job.initialAllocation, System.currentTimeMillis() - job.queuedTime);
             }
             
             @Override
@@ -0,0 +1,17 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * A job which never blocks: It doesn't wait for the network, the disk, another thread, or a
+ * lock which may be held for long. WorkStealingExecutor runs these on a small fixed set of
+ * threads instead of creating a thread for them. Everything else goes to the elastic pool.
+ *
+ * To migrate a job, implement this as well as PrioRunnable if it has a priority. Jobs which
+ * are safe to run on the ticker thread, and jobs which only use the CPU, are good candidates. If
+ * it turns out to block, WorkStealingExecutor logs a warning when it takes too long.
+ */
+public interface NonBlockingRunnable extends Runnable {
+
+}
@@ -18,6 +18,7 @@ import freenet.client.async.RequestSelectionTreeNode;
  * 
  * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
  * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * getWakeupTime() doesn't lock, as on SectoredRandomGrabArray.
  * 
  * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
  * Memory usage was an issue but probably isn't now given that the individual items are now quite 
@@ -46,7 +47,8 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private final int hashCode;
 	private RemoveRandomParent parent;
 	protected ClientRequestSelector root;
-	private long wakeupTime;
+	/** Only written with the lock held. A time in the past means the same as 0. */
+	private volatile long wakeupTime;
 
 	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
 		this.blocks = new Block[] { new Block() };
@@ -484,10 +486,8 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
-        }
+        long wakeupTime = this.wakeupTime;
+        return wakeupTime < now ? 0 : wakeupTime;
     }
     
     /** Set the wakeup time, and update parents recursively if it is reduced. If it is increased
@@ -12,6 +12,10 @@ import freenet.client.async.RequestSelectionTreeNode;
  * 
  * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
  * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * The exceptions are getWakeupTime(), isEmpty() and size(), which don't lock, so that 
+ * ClientRequestSelector.choosePriority() can check every priority without waiting for a thread 
+ * that is walking the tree. The arrays are copy-on-write and the wakeup time is volatile; both
+ * are only written with the lock held.
  * 
  * A lot of this is over-complicated and over-expensive because of db4o. A lot of it is O(n).
  * This is all kept in RAM now so we can change it at will, plus there is only one object 
@@ -25,11 +29,14 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		Logger.registerClass(SectoredRandomGrabArray.class);
 	}
 
-	private RemoveRandomWithObject<T>[] grabArrays;
-	private T[] grabClients;
+	/** Copy-on-write: Replaced, never changed in place. */
+	private volatile RemoveRandomWithObject<T>[] grabArrays;
+	/** Copy-on-write: Replaced, never changed in place. */
+	private volatile T[] grabClients;
 	private RemoveRandomParent parent;
 	protected final ClientRequestSelector root;
-	private long wakeupTime;
+	/** Only written with the lock held. A time in the past means the same as 0. */
+	private volatile long wakeupTime;
 
 	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
 		grabClients = newClientArray(0);
@@ -375,15 +382,11 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
 		return grabArrays.length == 0;
-	    }
 	}
 	
 	public int size() {
-	    synchronized(root) {
 		return grabArrays.length;
-	    }
 	}
 	
 	@Override
@@ -435,10 +438,8 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
-        }
+        long wakeupTime = this.wakeupTime;
+        return wakeupTime < now ? 0 : wakeupTime;
     }
     
     @Override
@@ -0,0 +1,385 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Ticker using a hierarchical timing wheel, so scheduling and cancelling a job is O(1) however
+ * many are queued, and doesn't allocate anything beyond the job's entry.
+ *
+ * There are LEVELS wheels of 64 slots. A slot on level 0 holds the jobs due in one tick (1ms), a
+ * slot on level 1 those due in 64 ticks, and so on, so the 5 levels cover about 12 days. Jobs
+ * further out are kept in the last slot they can reach and re-inserted when it comes round. Each
+ * slot is a doubly linked list of entries, which is how a job is removed in constant time. When
+ * the wheel on a level comes back to slot 0, the current slot of the next level up is emptied
+ * into the lower levels ("cascading"). The ticker thread advances the wheel to the current time,
+ * collects everything that is due while holding the lock once, and then hands the batch to the
+ * Executor (or runs FastRunnable's in-line, as PrioritizedTicker does). It sleeps until the next
+ * occupied slot, which it finds from a bitmap per level, or at most MAX_SLEEP_TIME.
+ *
+ * Time is measured with System.nanoTime(), so changes to the clock don't make jobs run early or
+ * late. Jobs scheduled for an absolute time are converted to an offset when they are queued.
+ */
+public class TimingWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int MAX_SLEEP_TIME = 200;
+	/** Bits per level, i.e. 64 slots. */
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	static final int LEVELS = 5;
+	/** Jobs due further out than this are re-inserted when their slot comes round. */
+	static final long MAX_SPAN = 1L << (SLOT_BITS * LEVELS);
+
+	/**
+	 * A queued job. Returned by schedule(), so it can be cancelled without looking it up.
+	 */
+	public final class Timeout {
+		final Runnable job;
+		final String name;
+		/** The tick at which to run it. */
+		final long deadline;
+		// Position in the wheel, protected by the lock. level is -1 when not queued.
+		private int level = -1;
+		private int slot;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable job, String name, long deadline) {
+			this.job = job;
+			this.name = name;
+			this.deadline = deadline;
+		}
+
+		/** Remove the job, if it hasn't started yet.
+		 * @return True if it was removed, false if it has already run or been cancelled. */
+		public boolean cancel() {
+			synchronized(lock) {
+				if(level < 0) return false;
+				unlink(this);
+				if(byJob.get(job) == this) byJob.remove(job);
+				return true;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + ":" + name + ":" + job;
+		}
+	}
+
+	private final Object lock = new Object();
+	private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+	/** Bit n is set if slot n on that level is not empty. */
+	private final long[] occupied = new long[LEVELS];
+	/** The last tick we have run the jobs for. */
+	private long currentTick;
+	private int queued;
+	/** The latest entry for each job, for noDupes and removeQueuedJob(). */
+	private final IdentityHashMap<Runnable, Timeout> byJob = new IdentityHashMap<Runnable, Timeout>();
+	/** The tick at which the ticker thread will next wake up. */
+	private long sleepingUntil;
+	private final long startTime = System.nanoTime();
+
+	final NativeThread myThread;
+	final Executor executor;
+	/** Only used by the ticker thread. */
+	private final List<Timeout> expired = new ArrayList<Timeout>();
+
+	public TimingWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		currentTick = nowTick();
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	/** The current time in ticks. */
+	long nowTick() {
+		return NANOSECONDS.toMillis(System.nanoTime() - startTime);
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in ticker: " + t, t);
+				System.err.println("Caught in ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void realRun() {
+		long sleepTime = runDueJobs();
+		if(sleepTime > 0) {
+			if(logMINOR)
+				Logger.minor(this, "Sleeping for " + sleepTime);
+			LockSupport.parkNanos(this, MILLISECONDS.toNanos(sleepTime));
+		}
+	}
+
+	/** Run or start everything that is due.
+	 * @return How long to sleep for in milliseconds. */
+	long runDueJobs() {
+		long sleepTime;
+		try {
+			synchronized(lock) {
+				long now = nowTick();
+				advance(now, expired);
+				sleepTime = ticksUntilNext();
+				sleepingUntil = now + sleepTime;
+			}
+			for(Timeout t : expired)
+				runJob(t);
+		} finally {
+			expired.clear();
+		}
+		return sleepTime;
+	}
+
+	private void runJob(Timeout t) {
+		if(logMINOR)
+			Logger.minor(this, "Running " + t);
+		if(t.job instanceof FastRunnable) {
+			// Run in-line
+			try {
+				t.job.run();
+			} catch(Throwable e) {
+				Logger.error(this, "Caught " + e + " running " + t, e);
+			}
+		} else {
+			try {
+				executor.execute(t.job, t.name, true);
+			} catch(Throwable e) {
+				Logger.error(this, "Caught in ticker: " + e, e);
+				System.err.println("Caught in ticker: " + e);
+				e.printStackTrace();
+				System.err.println("Will retry above failed operation...");
+				queueTimedJob(t.job, t.name, 200, true, false);
+			}
+		}
+	}
+
+	/** Advance the wheel to the given tick, removing everything that is due. Caller must hold
+	 * the lock. Skips straight to the next tick at which something happens, so it doesn't matter
+	 * how long it has been since the last call. */
+	void advance(long now, List<Timeout> due) {
+		while(currentTick < now) {
+			long next = nextEventTick();
+			if(next > now) {
+				currentTick = now;
+				return;
+			}
+			currentTick = next;
+			int index = (int) (currentTick & SLOT_MASK);
+			if(index == 0) cascade();
+			Timeout t = slots[0][index];
+			while(t != null) {
+				Timeout following = t.next;
+				unlink(t);
+				if(byJob.get(t.job) == t) byJob.remove(t.job);
+				due.add(t);
+				t = following;
+			}
+		}
+	}
+
+	/** We have wrapped around on level 0. Move the jobs in the current slot of the levels
+	 * above down, starting with the highest level which has also wrapped around. */
+	private void cascade() {
+		int top = 1;
+		while(top < LEVELS - 1 && ((currentTick >>> (SLOT_BITS * top)) & SLOT_MASK) == 0)
+			top++;
+		for(int level = top; level >= 1; level--) {
+			int index = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+			Timeout t = slots[level][index];
+			while(t != null) {
+				Timeout next = t.next;
+				unlink(t);
+				insert(t, true);
+				t = next;
+			}
+		}
+	}
+
+	/** Add an entry to the right slot for its deadline. Caller must hold the lock.
+	 * @param cascading If true, we are about to run the jobs in the current slot on level 0, so
+	 * an entry which is due now can go there. Otherwise it goes in the next one. */
+	private void insert(Timeout t, boolean cascading) {
+		long deadline = t.deadline;
+		if(deadline < currentTick || (deadline == currentTick && !cascading))
+			deadline = currentTick + (cascading ? 0 : 1);
+		long delta = deadline - currentTick;
+		if(delta >= MAX_SPAN) {
+			deadline = currentTick + MAX_SPAN - 1;
+			delta = MAX_SPAN - 1;
+		}
+		int level = 0;
+		while(delta >= (1L << (SLOT_BITS * (level + 1))))
+			level++;
+		int index = (int) ((deadline >>> (SLOT_BITS * level)) & SLOT_MASK);
+		t.level = level;
+		t.slot = index;
+		t.prev = null;
+		t.next = slots[level][index];
+		if(t.next != null) t.next.prev = t;
+		slots[level][index] = t;
+		occupied[level] |= 1L << index;
+		queued++;
+	}
+
+	/** Remove an entry from its slot. Caller must hold the lock. */
+	private void unlink(Timeout t) {
+		if(t.prev != null)
+			t.prev.next = t.next;
+		else {
+			slots[t.level][t.slot] = t.next;
+			if(t.next == null) occupied[t.level] &= ~(1L << t.slot);
+		}
+		if(t.next != null) t.next.prev = t.prev;
+		t.prev = null;
+		t.next = null;
+		t.level = -1;
+		queued--;
+	}
+
+	/** How long until the next job is due, at most MAX_SLEEP_TIME. Caller must hold the lock,
+	 * and have just called advance(). */
+	long ticksUntilNext() {
+		return Math.min(MAX_SLEEP_TIME, nextEventTick() - currentTick);
+	}
+
+	/** The next tick at which an occupied slot on level 0 is due, or an occupied slot on a
+	 * higher level needs cascading, or Long.MAX_VALUE if nothing is queued. Caller must hold the
+	 * lock. */
+	private long nextEventTick() {
+		long next = Long.MAX_VALUE;
+		for(int level = 0; level < LEVELS; level++) {
+			long bits = occupied[level];
+			if(bits == 0) continue;
+			int shift = SLOT_BITS * level;
+			long base = currentTick >>> shift;
+			// The next occupied slot after the current one, 1 to 64 slots on.
+			int k = Long.numberOfTrailingZeros(Long.rotateRight(bits, (int) ((base + 1) & SLOT_MASK))) + 1;
+			next = Math.min(next, (base + k) << shift);
+		}
+		return next;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/**
+	 * Queue a job at a specific time (offset in milliseconds from "now").
+	 * @see PrioritizedTicker#queueTimedJob(Runnable, String, long, boolean, boolean)
+	 */
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		if(offset < 0) offset = 0;
+		queueTimedJobInner(runner, name, offset, runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public void queueTimedJobAbsolute(Runnable runner, String name, long time,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		queueTimedJobInner(runner, name, time - System.currentTimeMillis(), runOnTickerAnyway, noDupes);
+	}
+
+	/**
+	 * Queue a job, and return a handle which can be used to cancel it cheaply. Unlike
+	 * removeQueuedJob(), this only cancels this particular run of the job.
+	 * @param offset The delay in milliseconds.
+	 * @return The handle, or null if the job was run immediately.
+	 */
+	public Timeout schedule(Runnable runner, String name, long offset, boolean runOnTickerAnyway) {
+		return queueTimedJobInner(runner, name, offset, runOnTickerAnyway, false);
+	}
+
+	private Timeout queueTimedJobInner(Runnable runner, String name, long offset,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) runOnTickerAnyway = true;
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return null;
+		}
+		boolean wake;
+		Timeout t;
+		synchronized(lock) {
+			long deadline = nowTick() + Math.max(0, offset);
+			if(noDupes) {
+				Timeout old = byJob.get(runner);
+				if(old != null) {
+					if(old.deadline <= deadline) {
+						Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+						return old;
+					}
+					// Delete the existing job because the new job will run first.
+					unlink(old);
+				}
+			}
+			t = new Timeout(runner, name, deadline);
+			insert(t, false);
+			byJob.put(runner, t);
+			wake = deadline < sleepingUntil;
+		}
+		if(wake) LockSupport.unpark(myThread);
+		return t;
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		synchronized(lock) {
+			Timeout t = byJob.remove(runnable);
+			if(t != null && t.level >= 0)
+				unlink(t);
+		}
+	}
+
+	int queuedJobs() {
+		synchronized(lock) {
+			return queued;
+		}
+	}
+
+}
@@ -0,0 +1,302 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import freenet.support.math.BootstrappingDecayingRunningAverage;
+
+/**
+ * Executor which runs jobs that never block (NonBlockingRunnable) on a fixed set of carrier
+ * threads, one per core, and everything else on an elastic pool (normally PooledExecutor), which
+ * creates a thread per concurrent job.
+ *
+ * Each carrier has a deque of waiting jobs per priority. Jobs submitted by a carrier go to its own
+ * deques, others are spread round robin. A carrier runs the oldest job at the highest priority
+ * it can find, taking it from another carrier if its own deque at that priority is empty, so the
+ * priorities are respected across the pool. Idle carriers park, and are woken when a job is
+ * queued. Submitting a job doesn't take a lock.
+ *
+ * The carriers run at NORM_PRIORITY: Priorities only decide the order in which queued jobs run,
+ * they can't change the OS priority of a carrier for each job.
+ *
+ * Jobs run on the carriers at present: BlockTransmitter's block sender (queues the packets of a
+ * block transfer on the peer as they arrive), MessageCore's filter timeout job,
+ * PeerNodeBackoffStatusChecker, and FNPPacketMangler's ECDH context generator.
+ *
+ * Everything else still goes to the elastic pool. This includes all request and insert handlers
+ * and senders, which wait for replies from other nodes, completion callbacks such as
+ * BlockTransmitter's and BulkTransmitter's, slow message filter callbacks, handshake processing
+ * (which has its own executor) and the client layer. Some packet-path work doesn't use an
+ * executor at all: The PacketSender and the UDP receive thread have their own threads, and acks
+ * and fast message filter callbacks run inline on them.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(WorkStealingExecutor.class);
+	}
+
+	/** Log a warning if a non-blocking job runs for longer than this. It probably blocks. */
+	static final long SLOW_JOB_TIME = SECONDS.toNanos(1);
+
+	private static final int PRIORITIES = NativeThread.JAVA_PRIORITY_RANGE + 1;
+
+	private final Executor blockingExecutor;
+	private final Carrier[] carriers;
+	private final AtomicInteger nextCarrier = new AtomicInteger();
+	private volatile boolean started;
+
+	/** Jobs queued per priority. */
+	private final AtomicInteger[] queued = new AtomicInteger[PRIORITIES];
+	/** Carriers running a job, per priority. */
+	private final AtomicInteger[] busy = new AtomicInteger[PRIORITIES];
+	/** Time jobs spent queued, in milliseconds, per priority. */
+	private final BootstrappingDecayingRunningAverage[] queueWait =
+		new BootstrappingDecayingRunningAverage[PRIORITIES];
+
+	/** Create with one carrier per core. */
+	public WorkStealingExecutor(Executor blockingExecutor) {
+		this(blockingExecutor, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param blockingExecutor The elastic pool, which runs everything that isn't a
+	 * NonBlockingRunnable.
+	 * @param carrierThreads The number of threads running non-blocking jobs.
+	 */
+	public WorkStealingExecutor(Executor blockingExecutor, int carrierThreads) {
+		if(carrierThreads < 1) throw new IllegalArgumentException();
+		this.blockingExecutor = blockingExecutor;
+		for(int i=0;i<PRIORITIES;i++) {
+			queued[i] = new AtomicInteger();
+			busy[i] = new AtomicInteger();
+			queueWait[i] = new BootstrappingDecayingRunningAverage(0, 0, Double.MAX_VALUE, 1000, null);
+		}
+		carriers = new Carrier[carrierThreads];
+		for(int i=0;i<carrierThreads;i++)
+			carriers[i] = new Carrier(i);
+	}
+
+	/** Start the carriers. Until then, all jobs run on the elastic pool. */
+	public synchronized void start() {
+		if(started) return;
+		if(blockingExecutor instanceof PooledExecutor)
+			((PooledExecutor)blockingExecutor).start();
+		for(Carrier c : carriers)
+			c.start();
+		started = true;
+	}
+
+	public void setTicker(Ticker ticker) {
+		if(blockingExecutor instanceof PooledExecutor)
+			((PooledExecutor)blockingExecutor).setTicker(ticker);
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName, boolean fromTicker) {
+		if(!(started && job instanceof NonBlockingRunnable)) {
+			blockingExecutor.execute(job, jobName, fromTicker);
+			return;
+		}
+		int prio = NativeThread.NORM_PRIORITY;
+		if(job instanceof PrioRunnable)
+			prio = ((PrioRunnable) job).getPriority();
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+		if(logMINOR)
+			Logger.minor(this, "Queueing " + job + " as " + jobName + " at prio " + prio);
+
+		Task task = new Task(job, jobName, prio);
+		Thread current = Thread.currentThread();
+		Carrier target;
+		if(current instanceof Carrier && ((Carrier)current).executor() == this)
+			target = (Carrier) current;
+		else
+			target = carriers[(nextCarrier.getAndIncrement() & Integer.MAX_VALUE) % carriers.length];
+		queued[prio - 1].incrementAndGet();
+		target.deques[prio - 1].addLast(task);
+		signalWork(target);
+	}
+
+	/** Wake the carrier we queued a job on, or any other idle one which can take it. */
+	private void signalWork(Carrier target) {
+		if(target.parked) {
+			LockSupport.unpark(target);
+			return;
+		}
+		for(Carrier c : carriers) {
+			if(c.parked) {
+				LockSupport.unpark(c);
+				return;
+			}
+		}
+	}
+
+	/** Take the oldest job at the highest priority, preferring our own deques. */
+	private Task findTask(Carrier self) {
+		for(int p = PRIORITIES - 1; p >= 0; p--) {
+			if(queued[p].get() == 0) continue;
+			Task t = self.deques[p].pollFirst();
+			if(t == null) {
+				for(int i=1;i<carriers.length;i++) {
+					Carrier victim = carriers[(self.index + i) % carriers.length];
+					t = victim.deques[p].pollFirst();
+					if(t != null) break;
+				}
+			}
+			if(t != null) {
+				queued[p].decrementAndGet();
+				return t;
+			}
+		}
+		return null;
+	}
+
+	private static class Task {
+		final Runnable runnable;
+		final String name;
+		final int priority;
+		final long queuedTime;
+
+		Task(Runnable runnable, String name, int priority) {
+			this.runnable = runnable;
+			this.name = name;
+			this.priority = priority;
+			this.queuedTime = System.nanoTime();
+		}
+	}
+
+	/** So we can have an array of them without an unchecked conversion. */
+	private static class TaskDeque extends ConcurrentLinkedDeque<Task> {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private class Carrier extends NativeThread {
+		final int index;
+		final TaskDeque[] deques = new TaskDeque[PRIORITIES];
+		/** Set before parking, and checked by threads queueing a job. */
+		volatile boolean parked;
+
+		Carrier(int index) {
+			super("Carrier thread " + index, NativeThread.NORM_PRIORITY, true);
+			this.index = index;
+			for(int i=0;i<PRIORITIES;i++)
+				deques[i] = new TaskDeque();
+			setDaemon(true);
+		}
+
+		WorkStealingExecutor executor() {
+			return WorkStealingExecutor.this;
+		}
+
+		@Override
+		public void realRun() {
+			while(true) {
+				Task task = findTask(this);
+				if(task == null) {
+					parked = true;
+					// Check again, in case a job was queued before it saw we were parked.
+					task = findTask(this);
+					if(task == null) {
+						LockSupport.parkNanos(this, SECONDS.toNanos(1));
+						parked = false;
+						continue;
+					}
+					parked = false;
+				}
+				run(task);
+			}
+		}
+
+		private void run(Task task) {
+			int p = task.priority - 1;
+			long start = System.nanoTime();
+			queueWait[p].report((double)(start - task.queuedTime) / MILLISECONDS.toNanos(1));
+			busy[p].incrementAndGet();
+			try {
+				task.runnable.run();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " running job " + task.name, t);
+			} finally {
+				busy[p].decrementAndGet();
+			}
+			long time = System.nanoTime() - start;
+			if(time > SLOW_JOB_TIME)
+				Logger.warning(this, "Non-blocking job " + task.name + " (" + task.runnable + ") ran for " +
+						NANOSECONDS.toMillis(time) + "ms, should it run on the elastic pool?");
+		}
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = blockingExecutor.runningThreads();
+		for(int i=0;i<result.length;i++)
+			result[i] += busy[i].get();
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = blockingExecutor.waitingThreads();
+		result[NativeThread.NORM_PRIORITY - 1] += idleCarriers();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return blockingExecutor.getWaitingThreadsCount() + idleCarriers();
+	}
+
+	private int idleCarriers() {
+		if(!started) return 0;
+		int running = 0;
+		for(AtomicInteger b : busy)
+			running += b.get();
+		return Math.max(0, carriers.length - running);
+	}
+
+	/** The number of carrier threads. */
+	public int carrierThreads() {
+		return carriers.length;
+	}
+
+	/** The number of non-blocking jobs waiting for a carrier, at each priority level. */
+	public int[] queuedJobs() {
+		int[] result = new int[PRIORITIES];
+		for(int i=0;i<PRIORITIES;i++)
+			result[i] = queued[i].get();
+		return result;
+	}
+
+	/** The average time non-blocking jobs waited for a carrier in milliseconds, at each
+	 * priority level. */
+	public double[] queueWaitTimes() {
+		double[] result = new double[PRIORITIES];
+		for(int i=0;i<PRIORITIES;i++)
+			result[i] = queueWait[i].currentValue();
+		return result;
+	}
+
+}
@@ -0,0 +1,56 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output stream for a compression attempt which is racing against other codecs. The limit may
+ * be lowered at any time by another thread, e.g. when a codec which is preferred to this one has
+ * produced a smaller result. As soon as we have written more than the current limit we throw a
+ * CompressionOutputSizeException, so the compressor gives up without compressing the rest of the
+ * data.
+ */
+public class LimitedCompressionOutputStream extends FilterOutputStream {
+
+	private final AtomicLong limit;
+	private long written;
+
+	public LimitedCompressionOutputStream(OutputStream os, AtomicLong limit) {
+		super(os);
+		this.limit = limit;
+	}
+
+	@Override
+	public void write(int x) throws IOException {
+		checkLimit(1);
+		out.write(x);
+		written++;
+	}
+
+	@Override
+	public void write(byte[] buf) throws IOException {
+		write(buf, 0, buf.length);
+	}
+
+	@Override
+	public void write(byte[] buf, int offset, int length) throws IOException {
+		checkLimit(length);
+		out.write(buf, offset, length);
+		written += length;
+	}
+
+	private void checkLimit(int length) throws CompressionOutputSizeException {
+		if(written + length > limit.get())
+			throw new CompressionOutputSizeException(written + length);
+	}
+
+	public long written() {
+		return written;
+	}
+
+}
@@ -3,9 +3,13 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support.compress;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 
@@ -80,6 +84,48 @@ public class RealCompressor {
         }
     }
 
+    /**
+     * Run several parts of a compression job, e.g. one trial per codec, in parallel. Must be
+     * called from a job running on our pool. The trials are queued on the pool so that idle
+     * compressor threads can pick them up, but the calling thread also runs any trial which has
+     * not been started yet, in order. So this works, serially, with a single compressor thread,
+     * and cannot deadlock waiting for a thread which is busy with another job. Returns when all
+     * the trials have finished. The trials must catch their own exceptions.
+     */
+    public void runInParallel(List<? extends Runnable> trials) {
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(trials.size());
+        for(Runnable r : trials)
+            tasks.add(new FutureTask<Void>(r, null));
+        // The first one will be run by the caller immediately.
+        for(int i=1;i<tasks.size();i++) {
+            if(executorService.isShutdown()) break;
+            try {
+                executorService.execute(tasks.get(i));
+            } catch (RejectedExecutionException e) {
+                // We'll run it ourselves.
+                break;
+            }
+        }
+        // FutureTask.run() does nothing if the task has already been started by another thread.
+        for(FutureTask<Void> task : tasks)
+            task.run();
+        boolean interrupted = false;
+        for(FutureTask<Void> task : tasks) {
+            while(true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Logger.error(this, "Compression trial failed: "+e.getCause(), e.getCause());
+                    break;
+                }
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
     private static int getMaxRunningCompressionThreads() {
         int maxRunningThreads = 1;
 
@@ -2,6 +2,8 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -306,11 +308,17 @@ public class BucketTools {
 	/** Copy the given quantity of data from the given bucket to the given OutputStream. 
 	 * @throws IOException If there was an error reading from the bucket or writing to the stream. */
 	public static long copyTo(Bucket decodedData, OutputStream os, long truncateLength) throws IOException {
+		return copyTo(decodedData, os, truncateLength, BUFFER_SIZE);
+	}
+
+	/** Copy the given quantity of data from the given bucket to the given OutputStream, reading
+	 * (and e.g. decrypting) up to bufferSize bytes at a time.
+	 * @throws IOException If there was an error reading from the bucket or writing to the stream. */
+	public static long copyTo(Bucket decodedData, OutputStream os, long truncateLength, int bufferSize) throws IOException {
 		if(truncateLength == 0) return 0;
 		if(truncateLength < 0) truncateLength = Long.MAX_VALUE;
 		InputStream is = decodedData.getInputStreamUnbuffered();
 		try {
-			int bufferSize = BUFFER_SIZE;
 			if(truncateLength > 0 && truncateLength < bufferSize) bufferSize = (int) truncateLength;
 			byte[] buf = new byte[bufferSize];
 			long moved = 0;
@@ -337,6 +345,51 @@ public class BucketTools {
 		}
 	}
 
+	/**
+	 * If the bucket's data is stored unencrypted in a file, write it directly from the file,
+	 * e.g. with FileChannel.transferTo() to a socket.
+	 * @return False if the bucket is not simply a file (e.g. it is in RAM or encrypted), in which
+	 * case nothing has been written, and the caller should copy it with a stream.
+	 */
+	public static boolean writeFileRegion(Bucket bucket, FileRegionWriter out, long length) throws IOException {
+		File file = getPlaintextFile(bucket);
+		if(file == null) return false;
+		if(logMINOR) Logger.minor(BucketTools.class, "Writing "+length+" bytes directly from "+file+" for "+bucket);
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			out.writeFileRegion(fis.getChannel(), 0, length);
+		} finally {
+			fis.close();
+		}
+		return true;
+	}
+
+	/** @return The file containing exactly the bucket's data, from the start of the file, or null
+	 * if the data is not stored like that, e.g. if it is encrypted or in memory. */
+	private static File getPlaintextFile(Bucket bucket) {
+		while(true) {
+			if(bucket instanceof BaseFileBucket)
+				return ((BaseFileBucket) bucket).getFile();
+			else if(bucket instanceof DelayedFreeBucket)
+				bucket = ((DelayedFreeBucket) bucket).getUnderlying();
+			else if(bucket instanceof DelayedFreeRandomAccessBucket)
+				bucket = ((DelayedFreeRandomAccessBucket) bucket).getUnderlying();
+			else if(bucket instanceof NoFreeBucket)
+				bucket = ((NoFreeBucket) bucket).proxy;
+			else if(bucket instanceof TempBucketFactory.TempBucket)
+				bucket = ((TempBucketFactory.TempBucket) bucket).getFileBucket();
+			else if(bucket instanceof RAFBucket) {
+				LockableRandomAccessBuffer raf = ((RAFBucket) bucket).underlying;
+				if(raf instanceof PooledFileRandomAccessBuffer)
+					return ((PooledFileRandomAccessBuffer) raf).file;
+				if(raf instanceof FileRandomAccessBuffer)
+					return ((FileRandomAccessBuffer) raf).file;
+				return null;
+			} else
+				return null;
+		}
+	}
+
 	/** Copy data from an InputStream into a Bucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
 		OutputStream os = bucket.getOutputStreamUnbuffered();
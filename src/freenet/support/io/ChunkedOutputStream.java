@@ -0,0 +1,48 @@
+package freenet.support.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an HTTP/1.1 message body with chunked transfer encoding (RFC 7230 section 4.1), for
+ * replies whose length isn't known when the headers are sent. Every write() is one chunk, so
+ * callers should buffer. close() writes the last chunk and flushes, but does not close the
+ * underlying stream, which is usually a persistent connection.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+	private boolean closed;
+
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buf, int offset, int length) throws IOException {
+		if(closed) throw new IOException("Already closed");
+		// A zero length chunk would end the body.
+		if(length == 0) return;
+		out.write(Integer.toHexString(length).getBytes("US-ASCII"));
+		out.write(CRLF);
+		out.write(buf, offset, length);
+		out.write(CRLF);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		out.write(LAST_CHUNK);
+		out.flush();
+	}
+
+}
@@ -0,0 +1,46 @@
+package freenet.support.io;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A BufferedOutputStream which can also send regions of files without copying them through
+ * the buffer. If the stream underneath is itself a FileRegionWriter, e.g. a non-blocking 
+ * SelectorConnection, we pass them on to it, and it uses FileChannel.transferTo(), which on most
+ * systems means the kernel sends the file without copying it into the JVM at all. Otherwise we 
+ * read the file in large chunks and write them straight to the stream underneath.
+ */
+public class FileRegionOutputStream extends BufferedOutputStream implements FileRegionWriter {
+
+	/**
+	 * @param os The stream to write to.
+	 * @param size The buffer size.
+	 */
+	public FileRegionOutputStream(OutputStream os, int size) {
+		super(os, size);
+	}
+
+	@Override
+	public void writeFileRegion(FileChannel fc, long position, long length) throws IOException {
+		flush();
+		if(out instanceof FileRegionWriter) {
+			((FileRegionWriter) out).writeFileRegion(fc, position, length);
+		} else {
+			ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, 65536));
+			while(length > 0) {
+				buf.clear();
+				if(buf.remaining() > length) buf.limit((int) length);
+				int read = fc.read(buf, position);
+				if(read < 0) throw new EOFException("File too short: wanted "+length+" more bytes at "+position);
+				out.write(buf.array(), 0, read);
+				position += read;
+				length -= read;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+package freenet.support.io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Something, usually an OutputStream to a socket, which can take data directly from a file, e.g.
+ * with FileChannel.transferTo(), so that it doesn't have to be copied through user space.
+ * @see BucketTools#writeFileRegion(freenet.support.api.Bucket, FileRegionWriter, long)
+ */
+public interface FileRegionWriter {
+
+	/** Write part of a file. Anything written before must be sent first, so a buffered stream
+	 * must flush before sending the file.
+	 * @param position The offset in the file to start from.
+	 * @param length The number of bytes to write. The file must be at least position + length
+	 * bytes long. */
+	void writeFileRegion(FileChannel channel, long position, long length) throws IOException;
+
+}
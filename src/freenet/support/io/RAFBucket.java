@@ -15,7 +15,7 @@ import freenet.support.api.RandomAccessBucket;
 
 public class RAFBucket implements Bucket, RandomAccessBucket {
     
-    private final LockableRandomAccessBuffer underlying;
+    final LockableRandomAccessBuffer underlying;
     final long size;
 
     public RAFBucket(LockableRandomAccessBuffer underlying) throws IOException {
@@ -202,6 +202,13 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			return true;
 		}
 		
+		/** @return The bucket on disk we are currently using, or null if we are in RAM or have
+		 * been freed. Once we are on disk we don't move again. */
+		synchronized RandomAccessBucket getFileBucket() {
+			if(hasBeenFreed || isRAMBucket()) return null;
+			return currentBucket;
+		}
+
 		public synchronized final boolean isRAMBucket() {
 			return (currentBucket instanceof ArrayBucket);
 		}
@@ -0,0 +1,48 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Writing a checkpoint of the persistent client layer (PersistentJobRunnerImpl). Persistent jobs
+ * are held back while it runs.
+ */
+@Name("freenet.Checkpoint")
+@Label("Client Checkpoint")
+@Category({ "Freenet", "Client" })
+@Description("A checkpoint of the persistent downloads and uploads")
+@Enabled(false)
+public class CheckpointEvent extends Event {
+
+	@Label("Shutdown")
+	@Description("The final checkpoint before shutting down")
+	public boolean shutdown;
+
+	@Label("Queued Jobs")
+	@Description("Jobs which had to wait for the checkpoint")
+	public int queuedJobs;
+
+	/** @return A new event, timing from now. */
+	public static CheckpointEvent start() {
+		CheckpointEvent event = new CheckpointEvent();
+		event.begin();
+		return event;
+	}
+
+	/** Record the event, if it is enabled and took long enough. */
+	public void finish(boolean shutdown, int queuedJobs) {
+		end();
+		if(!shouldCommit()) return;
+		this.shutdown = shutdown;
+		this.queuedJobs = queuedJobs;
+		commit();
+	}
+
+}
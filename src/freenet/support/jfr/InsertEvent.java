@@ -0,0 +1,65 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import freenet.support.HexUtil;
+
+/**
+ * A CHK insert (CHKInsertSender) which this node routed, recorded when it finishes.
+ */
+@Name("freenet.Insert")
+@Label("Insert")
+@Category({ "Freenet", "Routing" })
+@Description("A CHK insert routed by this node")
+@Enabled(false)
+@StackTrace(false)
+public class InsertEvent extends Event {
+
+	@Label("Routing Key")
+	public String routingKey;
+
+	@Label("Realtime")
+	public boolean realTime;
+
+	@Label("Local")
+	@Description("Started by this node rather than a peer")
+	public boolean local;
+
+	@Label("Initial HTL")
+	public short initialHTL;
+
+	@Label("Final HTL")
+	public short finalHTL;
+
+	@Label("Outcome")
+	public String outcome;
+
+	@Label("Latency")
+	@Timespan(Timespan.MILLISECONDS)
+	public long latency;
+
+	public static void record(byte[] routingKey, boolean realTime, boolean local,
+			short initialHTL, short finalHTL, String outcome, long latency) {
+		InsertEvent event = new InsertEvent();
+		if(!event.isEnabled()) return;
+		event.routingKey = HexUtil.bytesToHex(routingKey);
+		event.realTime = realTime;
+		event.local = local;
+		event.initialHTL = initialHTL;
+		event.finalHTL = finalHTL;
+		event.outcome = outcome;
+		event.latency = latency;
+		event.commit();
+	}
+
+}
@@ -0,0 +1,29 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+/**
+ * Whether Java Flight Recorder events can be used.
+ */
+public final class JFR {
+
+	/** True if this JVM has the JFR event API. If not, the event classes can't be loaded, so
+	 * code must check this before touching them. A constant, so the check is free once
+	 * compiled. */
+	public static final boolean AVAILABLE = isAvailable();
+
+	private JFR() {}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Running a job on a MemoryLimitedJobRunner, e.g. FEC encoding or decoding a splitfile segment.
+ */
+@Name("freenet.MemoryLimitedJob")
+@Label("Memory Limited Job")
+@Category({ "Freenet", "Client" })
+@Description("A memory-limited job such as FEC encoding or decoding")
+@Enabled(false)
+@StackTrace(false)
+public class MemoryLimitedJobEvent extends Event {
+
+	@Label("Job Type")
+	public Class<?> jobType;
+
+	@Label("Memory")
+	@DataAmount
+	public long memory;
+
+	@Label("Queue Time")
+	@Description("How long the job waited for memory and a thread")
+	@Timespan(Timespan.MILLISECONDS)
+	public long queueTime;
+
+	/** @return A new event, timing from now. */
+	public static MemoryLimitedJobEvent start() {
+		MemoryLimitedJobEvent event = new MemoryLimitedJobEvent();
+		event.begin();
+		return event;
+	}
+
+	/** Record the event, if it is enabled and took long enough. */
+	public void finish(Class<?> jobType, long memory, long queueTime) {
+		end();
+		if(!shouldCommit()) return;
+		this.jobType = jobType;
+		this.memory = memory;
+		this.queueTime = queueTime;
+		commit();
+	}
+
+}
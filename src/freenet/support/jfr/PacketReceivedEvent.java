@@ -0,0 +1,59 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Decrypting a packet from a peer and handling the messages in it (NewPacketFormat).
+ */
+@Name("freenet.PacketReceived")
+@Label("Packet Received")
+@Category({ "Freenet", "Network" })
+@Description("A packet from a peer decrypted and its messages handled")
+@Enabled(false)
+@StackTrace(false)
+public class PacketReceivedEvent extends Event {
+
+	@Label("Peer")
+	public String peer;
+
+	@Label("Size")
+	@DataAmount
+	public int size;
+
+	@Label("Decrypted")
+	@Description("False if it could not be decrypted with any of the peer's keys")
+	public boolean decrypted;
+
+	@Label("Messages")
+	@Description("Messages completed by this packet")
+	public int messages;
+
+	/** @return A new event, timing from now. */
+	public static PacketReceivedEvent start() {
+		PacketReceivedEvent event = new PacketReceivedEvent();
+		event.begin();
+		return event;
+	}
+
+	/** Record the event, if it is enabled and took long enough. */
+	public void finish(String peer, int size, boolean decrypted, int messages) {
+		end();
+		if(!shouldCommit()) return;
+		this.peer = peer;
+		this.size = size;
+		this.decrypted = decrypted;
+		this.messages = messages;
+		commit();
+	}
+
+}
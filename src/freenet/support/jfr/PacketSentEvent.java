@@ -0,0 +1,61 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Building, encrypting and sending a packet to a peer (NewPacketFormat).
+ */
+@Name("freenet.PacketSent")
+@Label("Packet Sent")
+@Category({ "Freenet", "Network" })
+@Description("A packet built, encrypted and sent to a peer")
+@Enabled(false)
+@StackTrace(false)
+public class PacketSentEvent extends Event {
+
+	@Label("Peer")
+	public String peer;
+
+	@Label("Size")
+	@DataAmount
+	public int size;
+
+	@Label("Sequence Number")
+	public int sequenceNumber;
+
+	@Label("Fragments")
+	public int fragments;
+
+	@Label("Acks")
+	public int acks;
+
+	/** @return A new event, timing from now. */
+	public static PacketSentEvent start() {
+		PacketSentEvent event = new PacketSentEvent();
+		event.begin();
+		return event;
+	}
+
+	/** Record the event, if it is enabled and took long enough. */
+	public void finish(String peer, int size, int sequenceNumber, int fragments, int acks) {
+		end();
+		if(!shouldCommit()) return;
+		this.peer = peer;
+		this.size = size;
+		this.sequenceNumber = sequenceNumber;
+		this.fragments = fragments;
+		this.acks = acks;
+		commit();
+	}
+
+}
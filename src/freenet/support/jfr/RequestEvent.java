@@ -0,0 +1,69 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import freenet.support.HexUtil;
+
+/**
+ * A request (RequestSender) which this node routed, recorded when it finishes.
+ */
+@Name("freenet.Request")
+@Label("Request")
+@Category({ "Freenet", "Routing" })
+@Description("A CHK or SSK request routed by this node")
+@Enabled(false)
+@StackTrace(false)
+public class RequestEvent extends Event {
+
+	@Label("Routing Key")
+	public String routingKey;
+
+	@Label("Key Type")
+	public String keyType;
+
+	@Label("Realtime")
+	public boolean realTime;
+
+	@Label("Local")
+	@Description("Started by this node rather than a peer")
+	public boolean local;
+
+	@Label("Initial HTL")
+	public short initialHTL;
+
+	@Label("Final HTL")
+	public short finalHTL;
+
+	@Label("Outcome")
+	public String outcome;
+
+	@Label("Latency")
+	@Timespan(Timespan.MILLISECONDS)
+	public long latency;
+
+	public static void record(byte[] routingKey, boolean ssk, boolean realTime, boolean local,
+			short initialHTL, short finalHTL, String outcome, long latency) {
+		RequestEvent event = new RequestEvent();
+		if(!event.isEnabled()) return;
+		event.routingKey = HexUtil.bytesToHex(routingKey);
+		event.keyType = ssk ? "SSK" : "CHK";
+		event.realTime = realTime;
+		event.local = local;
+		event.initialHTL = initialHTL;
+		event.finalHTL = finalHTL;
+		event.outcome = outcome;
+		event.latency = latency;
+		event.commit();
+	}
+
+}
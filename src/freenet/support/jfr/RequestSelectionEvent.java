@@ -0,0 +1,61 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Choosing the next block to fetch or insert (ClientRequestScheduler).
+ */
+@Name("freenet.RequestSelection")
+@Label("Request Selection")
+@Category({ "Freenet", "Client" })
+@Description("The client layer scheduler choosing the next block to fetch or insert")
+@Enabled(false)
+@StackTrace(false)
+public class RequestSelectionEvent extends Event {
+
+	@Label("Realtime")
+	public boolean realTime;
+
+	@Label("Insert")
+	public boolean insert;
+
+	@Label("SSK")
+	public boolean ssk;
+
+	@Label("Found")
+	@Description("False if there was nothing to send")
+	public boolean found;
+
+	@Label("Priority")
+	@Description("Priority class of the chosen request")
+	public short priority;
+
+	/** @return A new event, timing from now. */
+	public static RequestSelectionEvent start() {
+		RequestSelectionEvent event = new RequestSelectionEvent();
+		event.begin();
+		return event;
+	}
+
+	/** Record the event, if it is enabled and took long enough. */
+	public void finish(boolean realTime, boolean insert, boolean ssk, boolean found, short priority) {
+		end();
+		if(!shouldCommit()) return;
+		this.realTime = realTime;
+		this.insert = insert;
+		this.ssk = ssk;
+		this.found = found;
+		this.priority = priority;
+		commit();
+	}
+
+}
@@ -0,0 +1,47 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Looking up a key in a datastore (SaltedHashFreenetStore).
+ */
+@Name("freenet.StoreFetch")
+@Label("Store Fetch")
+@Category({ "Freenet", "Datastore" })
+@Description("A lookup in a salted hash datastore")
+@Enabled(false)
+@StackTrace(false)
+public class StoreFetchEvent extends Event {
+
+	@Label("Store")
+	public String store;
+
+	@Label("Found")
+	public boolean found;
+
+	/** @return A new event, timing from now. */
+	public static StoreFetchEvent start() {
+		StoreFetchEvent event = new StoreFetchEvent();
+		event.begin();
+		return event;
+	}
+
+	/** Record the event, if it is enabled and took long enough. */
+	public void finish(String store, boolean found) {
+		end();
+		if(!shouldCommit()) return;
+		this.store = store;
+		this.found = found;
+		commit();
+	}
+
+}
@@ -0,0 +1,62 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Writing a block to a datastore (SaltedHashFreenetStore).
+ */
+@Name("freenet.StorePut")
+@Label("Store Put")
+@Category({ "Freenet", "Datastore" })
+@Description("A write to a salted hash datastore")
+@Enabled(false)
+@StackTrace(false)
+public class StorePutEvent extends Event {
+
+	@Label("Store")
+	public String store;
+
+	@Label("Overwrite")
+	public boolean overwrite;
+
+	@Label("Old Block")
+	@Description("The block was stored a long time ago, e.g. it is being moved between stores")
+	public boolean oldBlock;
+
+	@Label("Result")
+	@Description("What put() returned: false if it was already stored or there was no room in the other store")
+	public boolean result;
+
+	@Label("Collision")
+	@Description("A different block with the same key was already stored")
+	public boolean collision;
+
+	/** @return A new event, timing from now. */
+	public static StorePutEvent start() {
+		StorePutEvent event = new StorePutEvent();
+		event.begin();
+		return event;
+	}
+
+	/** Record the event, if it is enabled and took long enough. */
+	public void finish(String store, boolean overwrite, boolean oldBlock, boolean result, boolean collision) {
+		end();
+		if(!shouldCommit()) return;
+		this.store = store;
+		this.overwrite = overwrite;
+		this.oldBlock = oldBlock;
+		this.result = result;
+		this.collision = collision;
+		commit();
+	}
+
+}
@@ -0,0 +1,14 @@
+/**
+ * Java Flight Recorder events for the node: requests and inserts, packets, datastore accesses,
+ * client layer checkpoints, memory-limited (FEC) jobs and request selection. They tie a
+ * recording's CPU samples, locks and I/O back to keys, peers and request types.
+ *
+ * All the events are disabled by default, and cost next to nothing until they are turned on.
+ * To turn them on, start a recording with the bundled profile, freenet.jfc in this package,
+ * which also enables the JDK's own sampling and I/O events, e.g.:
+ * <pre>jcmd &lt;pid&gt; JFR.start settings=/path/to/freenet.jfc filename=freenet.jfr</pre>
+ *
+ * The event API is only present on Java 8u262 and later, so everything which uses these classes
+ * must check JFR.AVAILABLE first.
+ */
+package freenet.support.jfr;
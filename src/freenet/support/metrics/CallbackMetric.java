@@ -0,0 +1,51 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A counter or gauge whose values are read when the metrics are written, from statistics which
+ * are kept anyway (e.g. the number of peers with each status, or the bytes sent so far). Costs
+ * nothing until it is scraped.
+ */
+public abstract class CallbackMetric extends Metric {
+
+	/** Receives the samples. */
+	public interface Sink {
+		/**
+		 * @param value The value of the sample.
+		 * @param labelValues The labels, in the same order as the label names.
+		 */
+		void add(double value, String... labelValues);
+	}
+
+	/**
+	 * @param type Metric.Type.COUNTER or Metric.Type.GAUGE.
+	 */
+	public CallbackMetric(Type type, String name, String help, String... labelNames) {
+		super(name, help, type, labelNames);
+		if(type == Type.HISTOGRAM)
+			throw new IllegalArgumentException("Use Histogram");
+	}
+
+	/** Add the current values to the sink. Called when the metrics are scraped, from the thread
+	 * serving the request. */
+	protected abstract void collect(Sink sink);
+
+	@Override
+	void writeSamples(final OpenMetricsWriter out) {
+		final String suffix = type == Type.COUNTER ? "_total" : "";
+		collect(new Sink() {
+
+			@Override
+			public void add(double value, String... labelValues) {
+				checkLabels(labelValues);
+				out.sample(name, suffix, labelNames, Arrays.asList(labelValues), null, null, value);
+			}
+
+		});
+	}
+
+}
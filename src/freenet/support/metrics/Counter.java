@@ -0,0 +1,83 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count of events which only goes up, e.g. requests completed. Cheap to increment from many
+ * threads at once. If the counter has labels, get the Child for each combination of label values
+ * with labels(), and keep it if it is used often.
+ */
+public final class Counter extends Metric {
+
+	private final ConcurrentHashMap<List<String>, Child> children = new ConcurrentHashMap<List<String>, Child>();
+	/** The only child, if there are no labels. */
+	private final Child noLabels;
+
+	Counter(String name, String help, String[] labelNames) {
+		super(name, help, Type.COUNTER, labelNames);
+		noLabels = labelNames.length == 0 ? labels() : null;
+	}
+
+	public static final class Child {
+		private final LongAdder value = new LongAdder();
+
+		public void inc() {
+			value.increment();
+		}
+
+		public void inc(long amount) {
+			if(amount < 0) throw new IllegalArgumentException("Counters can't go down");
+			value.add(amount);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	/** @return The counter for the given label values, in the same order as the label names. */
+	public Child labels(String... labelValues) {
+		checkLabels(labelValues);
+		List<String> key = Arrays.asList(labelValues);
+		Child child = children.get(key);
+		if(child != null) return child;
+		Child created = new Child();
+		child = children.putIfAbsent(key, created);
+		return child == null ? created : child;
+	}
+
+	/** Increment a counter with no labels. */
+	public void inc() {
+		noLabels().inc();
+	}
+
+	/** Add to a counter with no labels. */
+	public void inc(long amount) {
+		noLabels().inc(amount);
+	}
+
+	/** @return The value of a counter with no labels. */
+	public long get() {
+		return noLabels().get();
+	}
+
+	private Child noLabels() {
+		if(noLabels == null) throw new IllegalStateException(name+" has labels");
+		return noLabels;
+	}
+
+	@Override
+	void writeSamples(OpenMetricsWriter out) {
+		for(Map.Entry<List<String>, Child> entry : OpenMetricsWriter.sorted(children)) {
+			out.sample(name, "_total", labelNames, entry.getKey(), null, null, entry.getValue().get());
+		}
+	}
+
+}
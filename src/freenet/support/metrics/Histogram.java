@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The distribution of some value, e.g. how long requests take, as counts of observations in
+ * fixed buckets plus their sum. Cheap to update from many threads at once. Labels work as for
+ * Counter.
+ */
+public final class Histogram extends Metric {
+
+	/** Bucket upper bounds, in seconds, suitable for request and transfer times. */
+	public static final double[] TIME_BUCKETS = new double[] {
+		0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300
+	};
+
+	/** Upper bounds, ascending, not including +Inf. */
+	private final double[] buckets;
+	private final ConcurrentHashMap<List<String>, Child> children = new ConcurrentHashMap<List<String>, Child>();
+	private final Child noLabels;
+
+	Histogram(String name, String help, double[] buckets, String[] labelNames) {
+		super(name, help, Type.HISTOGRAM, labelNames);
+		if(buckets.length == 0)
+			throw new IllegalArgumentException("No buckets");
+		for(int i=1;i<buckets.length;i++) {
+			if(!(buckets[i] > buckets[i-1]))
+				throw new IllegalArgumentException("Buckets must be in increasing order");
+		}
+		if(Double.isNaN(buckets[0]) || Double.isInfinite(buckets[buckets.length-1]))
+			throw new IllegalArgumentException("Bad bucket");
+		this.buckets = buckets.clone();
+		noLabels = labelNames.length == 0 ? labels() : null;
+	}
+
+	public final class Child {
+		/** counts[i] is the number of observations in bucket i but not in bucket i-1. The last
+		 * is for observations above all the buckets. */
+		private final LongAdder[] counts;
+		private final DoubleAdder sum = new DoubleAdder();
+
+		private Child() {
+			counts = new LongAdder[buckets.length + 1];
+			for(int i=0;i<counts.length;i++)
+				counts[i] = new LongAdder();
+		}
+
+		public void observe(double value) {
+			int i = Arrays.binarySearch(buckets, value);
+			// If not found, i = -(insertion point) - 1; the insertion point is the first bucket
+			// whose bound is greater than the value.
+			if(i < 0) i = -i - 1;
+			counts[i].increment();
+			sum.add(value);
+		}
+
+		/** Observe a time, given in milliseconds, in seconds. */
+		public void observeMillis(long millis) {
+			observe(millis / 1000.0);
+		}
+
+		/** @return The number of observations. */
+		public long getCount() {
+			long total = 0;
+			for(LongAdder count : counts)
+				total += count.sum();
+			return total;
+		}
+
+		public double getSum() {
+			return sum.sum();
+		}
+
+		private void write(OpenMetricsWriter out, List<String> labelValues) {
+			// Read the sum first, so the counts are at least as up to date as the sum.
+			double total = sum.sum();
+			long cumulative = 0;
+			for(int i=0;i<buckets.length;i++) {
+				cumulative += counts[i].sum();
+				out.sample(name, "_bucket", labelNames, labelValues, "le", OpenMetricsWriter.format(buckets[i]), cumulative);
+			}
+			cumulative += counts[buckets.length].sum();
+			out.sample(name, "_bucket", labelNames, labelValues, "le", "+Inf", cumulative);
+			out.sample(name, "_count", labelNames, labelValues, null, null, cumulative);
+			out.sample(name, "_sum", labelNames, labelValues, null, null, total);
+		}
+	}
+
+	/** @return The histogram for the given label values, in the same order as the label names. */
+	public Child labels(String... labelValues) {
+		checkLabels(labelValues);
+		List<String> key = Arrays.asList(labelValues);
+		Child child = children.get(key);
+		if(child != null) return child;
+		Child created = new Child();
+		child = children.putIfAbsent(key, created);
+		return child == null ? created : child;
+	}
+
+	/** Record a value in a histogram with no labels. */
+	public void observe(double value) {
+		if(noLabels == null) throw new IllegalStateException(name+" has labels");
+		noLabels.observe(value);
+	}
+
+	@Override
+	void writeSamples(OpenMetricsWriter out) {
+		for(Map.Entry<List<String>, Child> entry : OpenMetricsWriter.sorted(children)) {
+			entry.getValue().write(out, entry.getKey());
+		}
+	}
+
+}
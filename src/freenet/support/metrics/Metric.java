@@ -0,0 +1,64 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.regex.Pattern;
+
+/**
+ * A metric family: a name, a type, and any number of samples distinguished by the values of its
+ * labels. Registered with a MetricsRegistry, which writes it out in the OpenMetrics text format.
+ */
+public abstract class Metric {
+
+	public enum Type {
+		COUNTER("counter"),
+		GAUGE("gauge"),
+		HISTOGRAM("histogram");
+
+		final String name;
+
+		Type(String name) {
+			this.name = name;
+		}
+	}
+
+	private static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+	private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+	final String name;
+	final String help;
+	final Type type;
+	final String[] labelNames;
+
+	Metric(String name, String help, Type type, String[] labelNames) {
+		if(!NAME.matcher(name).matches())
+			throw new IllegalArgumentException("Bad metric name "+name);
+		if(type == Type.COUNTER && name.endsWith("_total"))
+			throw new IllegalArgumentException("Counter names must not end in _total: "+name);
+		for(String label : labelNames) {
+			if(!LABEL_NAME.matcher(label).matches() || label.startsWith("__") || label.equals("le"))
+				throw new IllegalArgumentException("Bad label name "+label);
+		}
+		this.name = name;
+		this.help = help;
+		this.type = type;
+		this.labelNames = labelNames.clone();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** Write the samples, but not the TYPE and HELP lines. */
+	abstract void writeSamples(OpenMetricsWriter out);
+
+	void checkLabels(String[] labelValues) {
+		if(labelValues.length != labelNames.length)
+			throw new IllegalArgumentException("Expected "+labelNames.length+" labels for "+name+
+					" but got "+labelValues.length);
+		for(String value : labelValues)
+			if(value == null) throw new NullPointerException();
+	}
+
+}
@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.support.Logger;
+
+/**
+ * A set of metrics for monitoring, which can be written out in the OpenMetrics text format for
+ * Prometheus and similar systems to scrape.
+ *
+ * Components either update a Counter or Histogram as things happen, which is cheap and doesn't
+ * lock, or register a CallbackMetric which reads statistics they keep anyway when the metrics
+ * are scraped. Metric names should start with "freenet_", and follow the Prometheus conventions:
+ * base units (seconds, bytes), and a unit suffix.
+ */
+public class MetricsRegistry {
+
+	/** The MIME type of toOpenMetrics()'s output. */
+	public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+	private final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+
+	/**
+	 * Add a metric.
+	 * @throws IllegalArgumentException If there is already a metric with the same name.
+	 */
+	public synchronized <T extends Metric> T register(T metric) {
+		if(metrics.containsKey(metric.name))
+			throw new IllegalArgumentException("Already registered: "+metric.name);
+		metrics.put(metric.name, metric);
+		return metric;
+	}
+
+	public synchronized void unregister(Metric metric) {
+		if(metrics.get(metric.name) == metric)
+			metrics.remove(metric.name);
+	}
+
+	/**
+	 * Create and register a counter.
+	 * @param name The name, without the "_total" suffix, which is added when it is written.
+	 */
+	public Counter counter(String name, String help, String... labelNames) {
+		return register(new Counter(name, help, labelNames));
+	}
+
+	/**
+	 * Create and register a histogram.
+	 * @param buckets The upper bounds of the buckets, in increasing order, e.g.
+	 * Histogram.TIME_BUCKETS.
+	 */
+	public Histogram histogram(String name, String help, double[] buckets, String... labelNames) {
+		return register(new Histogram(name, help, buckets, labelNames));
+	}
+
+	/** @return All the metrics, in the OpenMetrics text format. */
+	public String toOpenMetrics() {
+		List<Metric> list;
+		synchronized(this) {
+			list = new ArrayList<Metric>(metrics.values());
+		}
+		StringBuilder sb = new StringBuilder(list.size() * 200);
+		OpenMetricsWriter out = new OpenMetricsWriter(sb);
+		StringBuilder samples = new StringBuilder();
+		OpenMetricsWriter sampleOut = new OpenMetricsWriter(samples);
+		for(Metric metric : list) {
+			// A callback which throws must not leave half a metric family behind.
+			samples.setLength(0);
+			try {
+				metric.writeSamples(sampleOut);
+			} catch (Throwable t) {
+				Logger.error(this, "Failed to collect "+metric.name+": "+t, t);
+				continue;
+			}
+			out.header(metric);
+			sb.append(samples);
+		}
+		out.end();
+		return sb.toString();
+	}
+
+}
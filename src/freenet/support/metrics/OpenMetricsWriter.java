@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes metrics in the OpenMetrics text format, which Prometheus understands.
+ * @see <a href="https://github.com/OpenObservability/OpenMetrics/blob/main/specification/OpenMetrics.md">
+ * The OpenMetrics specification</a>
+ */
+final class OpenMetricsWriter {
+
+	private final StringBuilder sb;
+
+	OpenMetricsWriter(StringBuilder sb) {
+		this.sb = sb;
+	}
+
+	void header(Metric metric) {
+		sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type.name).append('\n');
+		if(metric.help != null) {
+			sb.append("# HELP ").append(metric.name).append(' ');
+			escape(metric.help, false);
+			sb.append('\n');
+		}
+	}
+
+	/**
+	 * Write one sample.
+	 * @param extraLabel An extra label which isn't one of the metric's labels, e.g. "le" for
+	 * histogram buckets, or null.
+	 */
+	void sample(String name, String suffix, String[] labelNames, List<String> labelValues,
+			String extraLabel, String extraValue, double value) {
+		sb.append(name).append(suffix);
+		if(labelNames.length > 0 || extraLabel != null) {
+			sb.append('{');
+			for(int i=0;i<labelNames.length;i++) {
+				if(i > 0) sb.append(',');
+				sb.append(labelNames[i]).append("=\"");
+				escape(labelValues.get(i), true);
+				sb.append('"');
+			}
+			if(extraLabel != null) {
+				if(labelNames.length > 0) sb.append(',');
+				sb.append(extraLabel).append("=\"").append(extraValue).append('"');
+			}
+			sb.append('}');
+		}
+		sb.append(' ').append(format(value)).append('\n');
+	}
+
+	void end() {
+		sb.append("# EOF\n");
+	}
+
+	private void escape(String s, boolean quotes) {
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c == '\\')
+				sb.append("\\\\");
+			else if(c == '\n')
+				sb.append("\\n");
+			else if(c == '"' && quotes)
+				sb.append("\\\"");
+			else
+				sb.append(c);
+		}
+	}
+
+	static String format(double value) {
+		if(Double.isNaN(value)) return "NaN";
+		if(value == Double.POSITIVE_INFINITY) return "+Inf";
+		if(value == Double.NEGATIVE_INFINITY) return "-Inf";
+		if(value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	private static final Comparator<Map.Entry<List<String>, ?>> BY_LABELS = new Comparator<Map.Entry<List<String>, ?>>() {
+
+		@Override
+		public int compare(Map.Entry<List<String>, ?> a, Map.Entry<List<String>, ?> b) {
+			List<String> x = a.getKey();
+			List<String> y = b.getKey();
+			for(int i=0;i<x.size();i++) {
+				int cmp = x.get(i).compareTo(y.get(i));
+				if(cmp != 0) return cmp;
+			}
+			return 0;
+		}
+
+	};
+
+	/** @return The entries of a metric's children, sorted by label values, so the output is
+	 * stable. */
+	static <V> List<Map.Entry<List<String>, V>> sorted(Map<List<String>, V> children) {
+		List<Map.Entry<List<String>, V>> list = new ArrayList<Map.Entry<List<String>, V>>(children.entrySet());
+		Collections.sort(list, BY_LABELS);
+		return list;
+	}
+
+}
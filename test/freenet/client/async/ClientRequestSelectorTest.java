@@ -1,9 +1,15 @@
 package freenet.client.async;
 
+import static org.mockito.Mockito.mock;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -18,6 +24,7 @@ import freenet.client.async.SplitFileInserterSegmentStorage.MissingKeyException;
 import freenet.client.async.SplitFileInserterStorage.Status;
 import freenet.client.async.SplitFileInserterStorageTest.MyCallback;
 import freenet.client.async.SplitFileInserterStorageTest.MyKeysFetchingLocally;
+import freenet.client.async.ClientRequestSelector.SelectorReturn;
 import freenet.client.events.SimpleEventProducer;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
@@ -27,11 +34,13 @@ import freenet.crypt.HashType;
 import freenet.crypt.MultiHashInputStream;
 import freenet.crypt.RandomSource;
 import freenet.keys.ClientKey;
+import freenet.keys.ClientCHK;
 import freenet.keys.FreenetURI;
 import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.LowLevelPutException;
 import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestSender;
@@ -39,6 +48,9 @@ import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.PooledExecutor;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.WaitableExecutor;
 import freenet.support.api.BucketFactory;
@@ -375,4 +387,150 @@ public class ClientRequestSelectorTest extends TestCase {
 
 
     
+    public void testKeysFetchingConcurrent() throws InterruptedException, MalformedURLException {
+        final ClientRequestSelector selector = new ClientRequestSelector(false, false, false, mock(ClientRequestScheduler.class));
+        final Random r = new Random(2323);
+        final Key[] keys = new Key[100];
+        for(int i=0;i<keys.length;i++)
+            keys[i] = new ClientCHK(FreenetURI.generateRandomCHK(r)).getNodeCHK();
+        final AtomicInteger added = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for(int i=0;i<threads.length;i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for(Key key : keys) {
+                        if(selector.addToFetching(key))
+                            added.incrementAndGet();
+                        assertTrue(selector.hasKey(key, null));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        // Each key added exactly once.
+        assertEquals(keys.length, added.get());
+        for(Key key : keys) {
+            selector.removeFetchingKey(key);
+            assertFalse(selector.hasKey(key, null));
+        }
+    }
+
+    /** A request in the benchmark. Always has something to send. */
+    class BenchmarkInsert extends NullSendableInsert {
+        
+        final RequestClient client;
+        final ClientRequestSchedulerGroup group;
+        final short prio;
+
+        BenchmarkInsert(RequestClient client, ClientRequestSchedulerGroup group, short prio) {
+            super(false, false);
+            this.client = client;
+            this.group = group;
+            this.prio = prio;
+        }
+        
+        @Override
+        public RequestClient getClient() {
+            return client;
+        }
+        
+        @Override
+        public ClientRequestSchedulerGroup getSchedulerGroup() {
+            return group;
+        }
+        
+        @Override
+        public short getPriorityClass() {
+            return prio;
+        }
+        
+    }
+
+    // ant -Dtest.skip=false -Dtest.class=freenet.client.async.ClientRequestSelectorTest -Dtest.benchmark=true unit
+    public void testBenchmarkConcurrentSelection() throws InterruptedException {
+        if(!TestProperty.BENCHMARK) return;
+        final int clients = 100, groupsPerClient = 10, requestsPerGroup = 100;
+        final ClientRequestSelector selector = new ClientRequestSelector(true, false, false, mock(ClientRequestScheduler.class));
+        final ClientContext context = new ClientContext(0, null, executor, null, null, null, null, null, null, null, new Random(1234), ticker, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+        final RandomGrabArrayItemExclusionList notExcluded = new RandomGrabArrayItemExclusionList() {
+
+            @Override
+            public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+                return 0;
+            }
+            
+        };
+        final List<BenchmarkInsert> inserts = new ArrayList<BenchmarkInsert>();
+        for(int i=0;i<clients;i++) {
+            RequestClient client = new RequestClient() {
+
+                @Override
+                public boolean persistent() {
+                    return false;
+                }
+
+                @Override
+                public boolean realTimeFlag() {
+                    return false;
+                }
+                
+            };
+            short prio = (short) (RequestStarter.MAXIMUM_PRIORITY_CLASS + 
+                    (i % (RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS - RequestStarter.MAXIMUM_PRIORITY_CLASS + 1)));
+            for(int j=0;j<groupsPerClient;j++) {
+                ClientRequestSchedulerGroup group = new ClientRequestSchedulerGroup() {};
+                for(int k=0;k<requestsPerGroup;k++)
+                    inserts.add(new BenchmarkInsert(client, group, prio));
+            }
+        }
+        long start = System.currentTimeMillis();
+        for(BenchmarkInsert insert : inserts)
+            selector.innerRegister(insert, context, null);
+        System.out.println("Registered "+inserts.size()+" requests in "+(System.currentTimeMillis()-start)+"ms");
+        final int selectionsPerThread = 100000;
+        for(int threadCount = 1; threadCount <= 8; threadCount *= 2) {
+            Thread[] threads = new Thread[threadCount];
+            final AtomicInteger chosen = new AtomicInteger();
+            for(int i=0;i<threadCount;i++) {
+                final RandomSource random = new DummyRandomSource(i);
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for(int j=0;j<selectionsPerThread;j++) {
+                            SelectorReturn ret = selector.chooseRequestInner(-1, random, null, notExcluded, false, context, System.currentTimeMillis());
+                            if(ret.req != null) chosen.incrementAndGet();
+                        }
+                    }
+                };
+            }
+            // Keep registering (and removing) requests while selecting, like new FCP clients.
+            final BenchmarkInsert[] extra = new BenchmarkInsert[1000];
+            final RequestClient extraClient = inserts.get(0).client;
+            Thread registerer = new Thread() {
+                @Override
+                public void run() {
+                    for(int i=0;i<extra.length;i++) {
+                        extra[i] = new BenchmarkInsert(extraClient, new ClientRequestSchedulerGroup() {}, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+                        selector.innerRegister(extra[i], context, null);
+                    }
+                }
+            };
+            start = System.nanoTime();
+            for(Thread t : threads)
+                t.start();
+            registerer.start();
+            for(Thread t : threads)
+                t.join();
+            registerer.join();
+            long time = System.nanoTime() - start;
+            assertEquals(threadCount * selectionsPerThread, chosen.get());
+            System.out.println(threadCount+" selector threads: "+(threadCount * selectionsPerThread)+
+                    " selections in "+(time / 1000000)+"ms = "+
+                    (threadCount * selectionsPerThread * 1000000000L / time)+" per second");
+        }
+    }
+    
 }
@@ -472,6 +472,20 @@ public class SplitFileFetcherStorageTest extends TestCase {
             assertTrue(failed);
         }
         
+        public synchronized void waitForClosed() {
+            while(!closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+        
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+        
         public void waitForFree(SplitFileFetcherStorage storage) {
             synchronized(this) {
                 while(!closed) {
@@ -821,6 +835,266 @@ public class SplitFileFetcherStorageTest extends TestCase {
         cb.checkFailed();
     }
 
+    public void testStreamingMultiSegment() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        long size = 32768*9-1;
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(size, new int[] { 3, 3, 3 }, 
+                new int[] { 4, 4, 4 }, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        FetchContext ctx = test.makeFetchContext();
+        ctx.streamingCallback = new StreamingFetchCallback() {
+
+            @Override
+            public void onStreamStart(SplitFileFetcherStream stream) {
+                // Called by SplitFileFetcher, not the storage.
+            }
+            
+        };
+        SplitFileFetcherStorage storage = test.createStorage(cb, ctx);
+        SplitFileFetcherStream stream = storage.stream;
+        assertNotNull(stream);
+        assertEquals(size, stream.size());
+        // Fetches the first segment first.
+        for(int i=0;i<7;i++) {
+            SplitFileFetcherStorage.MyKey key = storage.chooseRandomKey();
+            assertEquals(0, key.segmentNumber);
+            int block = key.blockNumber < 3 ? key.blockNumber : 9 + key.blockNumber - 3;
+            test.fetchingKeys.add(test.getCHK(block));
+        }
+        // All of the first segment's keys are being fetched, so move on to the next.
+        assertEquals(1, storage.chooseRandomKey().segmentNumber);
+        test.fetchingKeys.clear();
+        InputStream is = stream.getInputStream();
+        assertEquals(0, stream.countReadableSegments());
+        assertEquals(-1, stream.getTimeToFirstSegment());
+        // The second segment completes first. Still nothing to read.
+        for(int i=3;i<6;i++)
+            assertTrue(storage.segments[1].onGotKey(test.getCHK(i), test.encodeBlock(i)));
+        waitForDecode(storage.segments[1]);
+        assertEquals(0, stream.countReadableSegments());
+        for(int i=0;i<3;i++)
+            assertTrue(storage.segments[0].onGotKey(test.getCHK(i), test.encodeBlock(i)));
+        // Can read the first two segments before the last one has been fetched.
+        byte[] original = BucketTools.toByteArray(test.originalData);
+        DataInputStream dis = new DataInputStream(is);
+        byte[] buf = new byte[6*BLOCK_SIZE];
+        dis.readFully(buf);
+        assertTrue(Arrays.equals(buf, Arrays.copyOf(original, buf.length)));
+        assertEquals(2, stream.countReadableSegments());
+        assertTrue(stream.getTimeToFirstSegment() >= 0);
+        for(int i=6;i<9;i++)
+            assertTrue(storage.segments[2].onGotKey(test.getCHK(i), test.encodeBlock(i)));
+        buf = new byte[(int)size - 6*BLOCK_SIZE];
+        dis.readFully(buf);
+        assertTrue(Arrays.equals(buf, Arrays.copyOfRange(original, 6*BLOCK_SIZE, (int)size)));
+        assertEquals(-1, dis.read());
+        cb.waitForFinished();
+        cb.checkFailed();
+        test.verifyOutput(storage);
+        storage.finishedFetcher();
+        for(SplitFileFetcherSegmentStorage segment : storage.segments)
+            waitForFinished(segment);
+        // Not freed while the stream is open.
+        assertFalse(cb.isClosed());
+        dis.close();
+        cb.waitForClosed();
+        cb.checkFailed();
+        test.free();
+    }
+    
+    public void testStreamingRange() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        long size = 32768*9-1;
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(size, new int[] { 3, 3, 3 }, 
+                new int[] { 4, 4, 4 }, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        FetchContext ctx = test.makeFetchContext();
+        ctx.streamingCallback = new StreamingFetchCallback() {
+
+            @Override
+            public void onStreamStart(SplitFileFetcherStream stream) {
+                // Ignore.
+            }
+            
+        };
+        SplitFileFetcherStorage storage = test.createStorage(cb, ctx);
+        SplitFileFetcherStream stream = storage.stream;
+        // A range in the middle of the last segment.
+        long start = 7*BLOCK_SIZE + 100;
+        long length = BLOCK_SIZE;
+        assertFalse(stream.isRangeReadable(start, length));
+        InputStream is = stream.getInputStream(start, length);
+        // Nothing is wanted until the reader blocks.
+        assertFalse(stream.hasWantedSegments());
+        assertEquals(0, storage.chooseRandomKey().segmentNumber);
+        StreamReader reader = new StreamReader(is, (int)length);
+        reader.start();
+        waitForWanted(stream);
+        // The segment covering the range is fetched first.
+        for(int i=0;i<7;i++) {
+            SplitFileFetcherStorage.MyKey key = storage.chooseRandomKey();
+            assertEquals(2, key.segmentNumber);
+            int block = key.blockNumber < 3 ? 6 + key.blockNumber : 9 + 8 + key.blockNumber - 3;
+            test.fetchingKeys.add(test.getCHK(block));
+        }
+        // Then the rest in order.
+        assertEquals(0, storage.chooseRandomKey().segmentNumber);
+        test.fetchingKeys.clear();
+        for(int i=6;i<9;i++)
+            assertTrue(storage.segments[2].onGotKey(test.getCHK(i), test.encodeBlock(i)));
+        // Readable before the earlier segments.
+        stream.awaitRange(start, length);
+        assertTrue(stream.isRangeReadable(start, length));
+        assertFalse(stream.isRangeReadable(0, 1));
+        assertEquals(0, stream.countReadableSegments());
+        assertTrue(Arrays.equals(new boolean[] { false, false, true }, stream.getReadableSegments()));
+        byte[] original = BucketTools.toByteArray(test.originalData);
+        assertTrue(Arrays.equals(reader.getData(), Arrays.copyOfRange(original, (int)start, (int)(start+length))));
+        assertEquals(-1, is.read());
+        // Nobody is waiting for a range now.
+        assertEquals(0, storage.chooseRandomKey().segmentNumber);
+        is.close();
+        storage.cancel();
+        cb.waitForClosed();
+        test.free();
+    }
+    
+    public void testStreamingSeekPriority() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        long size = 32768*9-1;
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(size, new int[] { 3, 3, 3 }, 
+                new int[] { 4, 4, 4 }, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        FetchContext ctx = test.makeFetchContext();
+        ctx.streamingCallback = new StreamingFetchCallback() {
+
+            @Override
+            public void onStreamStart(SplitFileFetcherStream stream) {
+                // Ignore.
+            }
+            
+        };
+        SplitFileFetcherStorage storage = test.createStorage(cb, ctx);
+        SplitFileFetcherStream stream = storage.stream;
+        // A whole-file reader which has been opened but isn't reading yet, e.g. held by FProxy.
+        InputStream idle = stream.getInputStream();
+        assertFalse(stream.hasWantedSegments());
+        assertEquals(0, storage.chooseRandomKey().segmentNumber);
+        // Seek into the middle segment and read to the end.
+        long start = 3*BLOCK_SIZE + 100;
+        long length = size - start;
+        InputStream is = stream.getInputStream(start, length);
+        StreamReader reader = new StreamReader(is, (int)length);
+        reader.start();
+        waitForWanted(stream);
+        // The segment the reader is blocked on is fetched first.
+        for(int i=0;i<7;i++) {
+            SplitFileFetcherStorage.MyKey key = storage.chooseRandomKey();
+            assertEquals(1, key.segmentNumber);
+            int block = key.blockNumber < 3 ? 3 + key.blockNumber : 9 + 4 + key.blockNumber - 3;
+            test.fetchingKeys.add(test.getCHK(block));
+        }
+        // Then the readahead, before the start of the file.
+        assertEquals(2, storage.chooseRandomKey().segmentNumber);
+        test.fetchingKeys.clear();
+        for(int i=3;i<9;i++)
+            assertTrue(storage.segments[i/3].onGotKey(test.getCHK(i), test.encodeBlock(i)));
+        byte[] original = BucketTools.toByteArray(test.originalData);
+        assertTrue(Arrays.equals(reader.getData(), Arrays.copyOfRange(original, (int)start, (int)size)));
+        is.close();
+        // Only the idle reader is left, and it doesn't want anything.
+        assertFalse(stream.hasWantedSegments());
+        assertEquals(0, storage.chooseRandomKey().segmentNumber);
+        idle.close();
+        storage.cancel();
+        cb.waitForClosed();
+        test.free();
+    }
+    
+    /** Reads a stream in the background, so the test can check what is fetched while it blocks. */
+    private static class StreamReader extends Thread {
+        
+        private final InputStream is;
+        private final byte[] buf;
+        private IOException error;
+        private boolean finished;
+        
+        StreamReader(InputStream is, int length) {
+            this.is = is;
+            this.buf = new byte[length];
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                new DataInputStream(is).readFully(buf);
+            } catch (IOException e) {
+                synchronized(this) {
+                    error = e;
+                }
+            } finally {
+                synchronized(this) {
+                    finished = true;
+                    notifyAll();
+                }
+            }
+        }
+        
+        synchronized byte[] getData() throws IOException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while(!finished) {
+                long wait = deadline - System.currentTimeMillis();
+                assertTrue("Reader did not finish", wait > 0);
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            if(error != null) throw error;
+            return buf;
+        }
+        
+    }
+    
+    private void waitForWanted(SplitFileFetcherStream stream) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!stream.hasWantedSegments()) {
+            assertTrue("Reader did not block", System.currentTimeMillis() < deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+    }
+    
+    public void testStreamingFailure() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        int dataBlocks = 3, checkBlocks = 3;
+        TestSplitfile test = TestSplitfile.constructSingleSegment(dataBlocks*BLOCK_SIZE, checkBlocks, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        FetchContext ctx = test.makeFetchContext();
+        ctx.maxSplitfileBlockRetries = 0;
+        ctx.streamingCallback = new StreamingFetchCallback() {
+
+            @Override
+            public void onStreamStart(SplitFileFetcherStream stream) {
+                // Ignore.
+            }
+            
+        };
+        SplitFileFetcherStorage storage = test.createStorage(cb, ctx);
+        InputStream is = storage.stream.getInputStream();
+        boolean[] tried = new boolean[dataBlocks+checkBlocks];
+        innerChooseKeyTest(dataBlocks, checkBlocks, storage.segments[0], tried, test, false);
+        cb.waitForFailed();
+        try {
+            is.read();
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // Expected.
+        }
+        is.close();
+    }
+
     private void printChosenBlocks(boolean[] hits) {
         StringBuilder sb = new StringBuilder();
         sb.append("Blocks: ");
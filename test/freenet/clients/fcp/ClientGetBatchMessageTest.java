@@ -0,0 +1,101 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import freenet.clients.fcp.ClientGet.ReturnType;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.support.SimpleFieldSet;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ClientGetBatchMessage}.
+ */
+public class ClientGetBatchMessageTest {
+
+    private static final String CHK = "CHK@Jt3dYl9f1cXmtmCZrBB7CqUvF0RaRAv1xaFnzvbIMD0,mpSvBGsgYtdvwwkx6JOjD2ecQnVzEifiz1z2AZAkPG8,AAMC--8";
+
+    private static SimpleFieldSet batch(int count) {
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.putSingle("Identifier", "batch");
+        fs.putSingle("ReturnType", "none");
+        fs.put("MaxSize", 1000);
+        fs.putSingle("Persistence", "connection");
+        for (int i = 0; i < count; i++) {
+            fs.putSingle("Request." + i + ".URI", CHK);
+        }
+        return fs;
+    }
+
+    @Test
+    public void sharedOptionsApplyToEveryRequest() throws MessageInvalidException {
+        ClientGetBatchMessage msg = new ClientGetBatchMessage(batch(3));
+        assertEquals(3, msg.requests.length);
+        for (int i = 0; i < 3; i++) {
+            ClientGetMessage request = msg.requests[i];
+            assertEquals("batch-" + i, request.identifier);
+            assertEquals(ReturnType.NONE, request.returnType);
+            assertEquals(1000, request.maxSize);
+            assertEquals(Persistence.CONNECTION, request.persistence);
+        }
+    }
+
+    @Test
+    public void perRequestFieldsOverrideShared() throws MessageInvalidException {
+        SimpleFieldSet fs = batch(2);
+        fs.putSingle("ClientToken", "shared");
+        fs.putSingle("Request.1.Identifier", "mine");
+        fs.putSingle("Request.1.ClientToken", "own");
+        // Not allowed per request, so ignored.
+        fs.putSingle("Request.1.MaxSize", "5");
+        ClientGetBatchMessage msg = new ClientGetBatchMessage(fs);
+        assertEquals("shared", msg.requests[0].clientToken);
+        assertEquals("mine", msg.requests[1].identifier);
+        assertEquals("own", msg.requests[1].clientToken);
+        assertEquals(1000, msg.requests[1].maxSize);
+    }
+
+    @Test
+    public void invalidRequestDoesNotFailBatch() throws MessageInvalidException {
+        SimpleFieldSet fs = batch(3);
+        fs.putOverwrite("Request.1.URI", "not a uri");
+        ClientGetBatchMessage msg = new ClientGetBatchMessage(fs);
+        assertNotNull(msg.requests[0]);
+        assertNull(msg.requests[1]);
+        assertEquals(ProtocolErrorMessage.FREENET_URI_PARSE_ERROR, msg.errors[1].protocolCode);
+        assertEquals("batch-1", msg.requestIdentifiers[1]);
+        assertNotNull(msg.requests[2]);
+    }
+
+    @Test
+    public void emptyBatchIsRejected() {
+        try {
+            new ClientGetBatchMessage(batch(0));
+            fail();
+        } catch (MessageInvalidException e) {
+            assertEquals(ProtocolErrorMessage.MISSING_FIELD, e.protocolCode);
+        }
+    }
+
+    @Test
+    public void streamIsRejected() {
+        SimpleFieldSet fs = batch(1);
+        fs.put("Stream", true);
+        try {
+            new ClientGetBatchMessage(fs);
+            fail();
+        } catch (MessageInvalidException e) {
+            assertEquals(ProtocolErrorMessage.NOT_SUPPORTED, e.protocolCode);
+        }
+    }
+
+    @Test
+    public void createdByName() throws MessageInvalidException {
+        FCPMessage msg = FCPMessage.create(ClientGetBatchMessage.NAME, batch(1));
+        assertEquals(ClientGetBatchMessage.class, msg.getClass());
+    }
+
+}
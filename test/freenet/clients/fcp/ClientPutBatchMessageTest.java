@@ -0,0 +1,105 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ClientPutBatchMessage}.
+ */
+public class ClientPutBatchMessageTest {
+
+    private static SimpleFieldSet batch(int... lengths) {
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.putSingle("Identifier", "batch");
+        fs.putSingle("Persistence", "connection");
+        fs.putSingle("Metadata.ContentType", "text/plain");
+        for (int i = 0; i < lengths.length; i++) {
+            fs.putSingle("Request." + i + ".URI", "CHK@");
+            fs.put("Request." + i + ".DataLength", lengths[i]);
+        }
+        return fs;
+    }
+
+    private static byte[] data(int length, int value) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) value;
+        }
+        return data;
+    }
+
+    @Test
+    public void dataIsSplitBetweenRequests() throws Exception {
+        SimpleFieldSet fs = batch(10, 0, 20);
+        fs.putSingle("Request.2.Metadata.ContentType", "text/html");
+        ClientPutBatchMessage msg = new ClientPutBatchMessage(fs);
+        assertEquals(30, msg.dataLength());
+        assertEquals("text/plain", msg.requests[0].contentType);
+        assertEquals("text/html", msg.requests[2].contentType);
+        byte[] all = new byte[30];
+        System.arraycopy(data(10, 1), 0, all, 0, 10);
+        System.arraycopy(data(20, 2), 0, all, 10, 20);
+        msg.readFrom(new ByteArrayInputStream(all), new ArrayBucketFactory(), null);
+        assertArrayEquals(data(10, 1), BucketTools.toByteArray(msg.requests[0].getRandomAccessBucket()));
+        assertEquals(0, msg.requests[1].getRandomAccessBucket().size());
+        assertArrayEquals(data(20, 2), BucketTools.toByteArray(msg.requests[2].getRandomAccessBucket()));
+    }
+
+    @Test
+    public void dataForInvalidRequestIsSkipped() throws Exception {
+        SimpleFieldSet fs = batch(10, 5, 20);
+        fs.putOverwrite("Request.1.TargetFilename", "a/b");
+        ClientPutBatchMessage msg = new ClientPutBatchMessage(fs);
+        assertNull(msg.requests[1]);
+        assertEquals(ProtocolErrorMessage.INVALID_FIELD, msg.errors[1].protocolCode);
+        byte[] all = new byte[35];
+        System.arraycopy(data(10, 1), 0, all, 0, 10);
+        System.arraycopy(data(5, 9), 0, all, 10, 5);
+        System.arraycopy(data(20, 2), 0, all, 15, 20);
+        msg.readFrom(new ByteArrayInputStream(all), new ArrayBucketFactory(), null);
+        assertArrayEquals(data(10, 1), BucketTools.toByteArray(msg.requests[0].getRandomAccessBucket()));
+        assertArrayEquals(data(20, 2), BucketTools.toByteArray(msg.requests[2].getRandomAccessBucket()));
+    }
+
+    @Test
+    public void totalDataLengthMustMatch() throws IOException {
+        SimpleFieldSet fs = batch(10, 20);
+        fs.put("DataLength", 31);
+        try {
+            new ClientPutBatchMessage(fs);
+            fail();
+        } catch (MessageInvalidException e) {
+            assertEquals(ProtocolErrorMessage.INVALID_FIELD, e.protocolCode);
+        }
+        fs.putOverwrite("DataLength", "30");
+        try {
+            new ClientPutBatchMessage(fs);
+        } catch (MessageInvalidException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void missingDataLengthIsRejected() {
+        SimpleFieldSet fs = batch(10);
+        fs.putSingle("Request.1.URI", "CHK@");
+        try {
+            new ClientPutBatchMessage(fs);
+            fail();
+        } catch (MessageInvalidException e) {
+            assertEquals(ProtocolErrorMessage.MISSING_FIELD, e.protocolCode);
+        }
+    }
+
+}
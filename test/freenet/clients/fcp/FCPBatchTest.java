@@ -0,0 +1,140 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TrivialTicker;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link FCPBatch} and {@link BatchResultMessage}.
+ */
+public class FCPBatchTest {
+
+    private final List<BatchResultMessage> sent = new ArrayList<BatchResultMessage>();
+    private volatile boolean closed;
+
+    private FCPBatch batch(int count) {
+        PooledExecutor executor = new PooledExecutor();
+        executor.start();
+        return new FCPBatch(null, new TrivialTicker(executor), "batch", false, count, true) {
+            @Override
+            void send(BatchResultMessage msg) {
+                synchronized (sent) {
+                    sent.add(msg);
+                    sent.notifyAll();
+                }
+            }
+
+            @Override
+            boolean isClosed() {
+                return closed;
+            }
+        };
+    }
+
+    private static FCPMessage found(int i, long length) {
+        return new DataFoundMessage(length, "text/plain", "req" + i, false, 0, 0);
+    }
+
+    @Test
+    public void resultsAreCoalesced() {
+        FCPBatch batch = batch(600);
+        for (int i = 0; i < 600; i++) {
+            assertTrue(batch.onFinished(found(i, 0), null));
+        }
+        assertEquals(3, sent.size());
+        assertEquals(FCPBatch.MAX_RESULTS, sent.get(0).count());
+        assertEquals(FCPBatch.MAX_RESULTS, sent.get(1).count());
+        assertEquals(600 - 2 * FCPBatch.MAX_RESULTS, sent.get(2).count());
+        assertFalse(sent.get(0).getFieldSet().getBoolean("Finished", true));
+        assertTrue(sent.get(2).getFieldSet().getBoolean("Finished", false));
+    }
+
+    @Test
+    public void messagesAreBoundedByData() {
+        FCPBatch batch = batch(10);
+        int size = (int) (FCPBatch.MAX_DATA / 3);
+        for (int i = 0; i < 10; i++) {
+            batch.onFinished(found(i, size), new ArrayBucket(new byte[size]));
+        }
+        int total = 0;
+        for (BatchResultMessage msg : sent) {
+            assertTrue(msg.dataLength() <= FCPBatch.MAX_DATA);
+            total += msg.count();
+        }
+        assertEquals(10, total);
+        assertEquals(4, sent.size());
+    }
+
+    @Test
+    public void partialResultsAreFlushedAfterDelay() throws InterruptedException {
+        FCPBatch batch = batch(10);
+        batch.onFinished(found(0, 0), null);
+        batch.onFinished(found(1, 0), null);
+        synchronized (sent) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (sent.isEmpty() && System.currentTimeMillis() < deadline) {
+                sent.wait(100);
+            }
+        }
+        assertEquals(1, sent.size());
+        assertEquals(2, sent.get(0).count());
+        assertFalse(sent.get(0).getFieldSet().getBoolean("Finished", true));
+    }
+
+    @Test
+    public void errorsCountTowardsCompletion() {
+        FCPBatch batch = batch(2);
+        batch.onNotStarted(new IdentifierCollisionMessage("req0", false));
+        batch.onFinished(found(1, 0), null);
+        assertEquals(1, sent.size());
+        SimpleFieldSet fs = sent.get(0).getFieldSet();
+        assertTrue(fs.getBoolean("Finished", false));
+        assertEquals("IdentifierCollision", fs.get("Result.0.Type"));
+        assertEquals("req0", fs.get("Result.0.Identifier"));
+        assertEquals("DataFound", fs.get("Result.1.Type"));
+        assertEquals(null, fs.get("Result.1.Global"));
+    }
+
+    @Test
+    public void closedConnectionIsNotUsed() {
+        FCPBatch batch = batch(2);
+        closed = true;
+        assertFalse(batch.onFinished(found(0, 0), null));
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void dataFollowsMessageInOrder() throws Exception {
+        FCPBatch batch = batch(2);
+        Bucket a = new ArrayBucket(new byte[] { 1, 2, 3 });
+        Bucket b = new ArrayBucket(new byte[] { 4, 5 });
+        batch.onFinished(found(0, 3), a);
+        batch.onFinished(found(1, 2), b);
+        BatchResultMessage msg = sent.get(0);
+        SimpleFieldSet fs = msg.getFieldSet();
+        assertEquals(5, fs.getLong("DataLength"));
+        assertEquals(3, fs.getLong("Result.0.DataLength"));
+        assertEquals(2, fs.getLong("Result.1.DataLength"));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        msg.send(os);
+        byte[] out = os.toByteArray();
+        String header = new String(out, 0, out.length - 5, "UTF-8");
+        assertTrue(header.startsWith("BatchResult\n"));
+        assertTrue(header.endsWith("Data\n"));
+        assertEquals(1, out[out.length - 5]);
+        assertEquals(5, out[out.length - 1]);
+    }
+
+}
@@ -0,0 +1,202 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import freenet.clients.fcp.PagedRequestList.Entry;
+import freenet.clients.fcp.PagedRequestList.Filter;
+import freenet.clients.fcp.PagedRequestList.PageBuilder;
+import freenet.clients.fcp.PagedRequestList.Status;
+import freenet.keys.FreenetURI;
+import freenet.support.SimpleFieldSet;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link PagedRequestList} and the paging options of
+ * {@link ListPersistentRequestsMessage}.
+ */
+public class PagedRequestListTest {
+
+    private static Entry entry(String identifier, boolean global, boolean forever, int priority, Status status) {
+        return new Entry(identifier, global, forever, (short) priority, status,
+            RequestIdentifier.RequestType.GET, null, 0, 0, null);
+    }
+
+    private static List<Entry> entries(int count) {
+        List<Entry> list = new ArrayList<Entry>();
+        for (int i = 0; i < count; i++) {
+            list.add(entry(String.format("req-%04d", i), i % 5 == 0, i % 2 == 0, i % 7,
+                Status.values()[i % Status.values().length]));
+        }
+        Collections.shuffle(list, new Random(1));
+        return list;
+    }
+
+    private static Filter parse(SimpleFieldSet fs) throws MessageInvalidException {
+        return Filter.parse(fs, "list");
+    }
+
+    private static Filter all() throws MessageInvalidException {
+        return parse(new SimpleFieldSet(true));
+    }
+
+    /** Walk all the pages, checking each is in order and follows the last. */
+    private static List<Entry> walk(List<Entry> list, Filter filter, int max) throws MessageInvalidException {
+        List<Entry> seen = new ArrayList<Entry>();
+        Entry cursor = null;
+        while (true) {
+            PageBuilder builder = new PageBuilder(filter, cursor, max);
+            for (Entry e : list) {
+                builder.add(e);
+            }
+            List<Entry> page = builder.getPage();
+            assertTrue(page.size() <= max);
+            for (Entry e : page) {
+                if (!seen.isEmpty()) {
+                    assertTrue(PagedRequestList.ORDER.compare(seen.get(seen.size() - 1), e) < 0);
+                }
+                seen.add(e);
+            }
+            if (!builder.hasMore()) {
+                return seen;
+            }
+            assertEquals(max, page.size());
+            cursor = Entry.parseCursor(page.get(page.size() - 1).getCursor(), "list");
+        }
+    }
+
+    @Test
+    public void testPagesCoverEverythingOnce() throws MessageInvalidException {
+        List<Entry> list = entries(1000);
+        assertEquals(1000, walk(list, all(), 37).size());
+        assertEquals(1000, walk(list, all(), 1000).size());
+    }
+
+    @Test
+    public void testSameIdentifierOnDifferentQueues() throws MessageInvalidException {
+        List<Entry> list = new ArrayList<Entry>();
+        list.add(entry("a", true, true, 2, Status.RUNNING));
+        list.add(entry("a", false, true, 2, Status.RUNNING));
+        list.add(entry("a", false, false, 2, Status.RUNNING));
+        List<Entry> seen = walk(list, all(), 1);
+        assertEquals(3, seen.size());
+        assertFalse(seen.get(0).global);
+        assertFalse(seen.get(0).forever);
+        assertFalse(seen.get(1).global);
+        assertTrue(seen.get(1).forever);
+        assertTrue(seen.get(2).global);
+    }
+
+    @Test
+    public void testFilters() throws MessageInvalidException {
+        List<Entry> list = entries(1000);
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.putSingle("Status", "finished,pending");
+        fs.put("MinPriorityClass", 1);
+        fs.put("MaxPriorityClass", 3);
+        fs.putSingle("IdentifierPrefix", "req-01");
+        fs.putSingle("Persistence", "forever");
+        Filter filter = parse(fs);
+        int expected = 0;
+        for (Entry e : list) {
+            boolean match = e.status != Status.RUNNING && e.priorityClass >= 1 &&
+                e.priorityClass <= 3 && e.identifier.startsWith("req-01") && e.forever;
+            assertEquals(match, filter.matches(e));
+            if (match) {
+                expected++;
+            }
+        }
+        assertTrue(expected > 0);
+        assertEquals(expected, walk(list, filter, 5).size());
+        assertFalse(filter.wantPersistence(ClientRequest.Persistence.REBOOT));
+        assertTrue(filter.wantPersistence(ClientRequest.Persistence.FOREVER));
+    }
+
+    @Test
+    public void testInvalidFilters() {
+        String[][] bad = {
+            { "Status", "sleeping" },
+            { "MinPriorityClass", "7" },
+            { "MaxPriorityClass", "x" },
+            { "Persistence", "connection" },
+        };
+        for (String[] kv : bad) {
+            SimpleFieldSet fs = new SimpleFieldSet(true);
+            fs.putSingle(kv[0], kv[1]);
+            try {
+                parse(fs);
+                fail("Accepted " + kv[0] + "=" + kv[1]);
+            } catch (MessageInvalidException e) {
+                assertEquals(ProtocolErrorMessage.INVALID_FIELD, e.protocolCode);
+            }
+        }
+    }
+
+    @Test
+    public void testCursor() throws MessageInvalidException {
+        Entry e = entry("my request", true, false, 2, Status.RUNNING);
+        Entry cursor = Entry.parseCursor(e.getCursor(), "list");
+        assertEquals(0, PagedRequestList.ORDER.compare(e, cursor));
+        try {
+            Entry.parseCursor("X", "list");
+            fail();
+        } catch (MessageInvalidException ex) {
+            assertEquals(ProtocolErrorMessage.INVALID_FIELD, ex.protocolCode);
+        }
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        FreenetURI uri = new FreenetURI("KSK@test");
+        Entry e = new Entry("my request", false, true, (short) 2, Status.RUNNING,
+            RequestIdentifier.RequestType.PUTDIR, uri, 12, 40, null);
+        assertEquals("PutDir forever false 2 running 12/40 " + uri.toString(false, false) + " my request",
+            e.toCompactString());
+        List<Entry> list = new ArrayList<Entry>();
+        list.add(e);
+        SimpleFieldSet fs = new PersistentRequestSummariesMessage("list", list).getFieldSet();
+        assertEquals("list", fs.get("Identifier"));
+        assertEquals(1, fs.getInt("Count"));
+        assertEquals(e.toCompactString(), fs.get("Request.0"));
+    }
+
+    @Test
+    public void testMessage() throws MessageInvalidException {
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.putSingle("Identifier", "list");
+        assertFalse(new ListPersistentRequestsMessage(fs).paged);
+        fs.putSingle("Compact", "true");
+        ListPersistentRequestsMessage msg = new ListPersistentRequestsMessage(fs);
+        assertTrue(msg.paged);
+        assertTrue(msg.compact);
+        assertEquals(PagedRequestList.DEFAULT_MAX_RESULTS, msg.maxResults);
+        assertNull(msg.cursor);
+        fs.put("MaxResults", PagedRequestList.MAX_MAX_RESULTS + 1);
+        try {
+            new ListPersistentRequestsMessage(fs);
+            fail();
+        } catch (MessageInvalidException e) {
+            assertEquals(ProtocolErrorMessage.INVALID_FIELD, e.protocolCode);
+        }
+    }
+
+    @Test
+    public void testEndMessage() {
+        SimpleFieldSet fs = new EndListPersistentRequestsMessage("list").getFieldSet();
+        assertNull(fs.get("Count"));
+        assertNull(fs.get("NextCursor"));
+        fs = new EndListPersistentRequestsMessage("list", 10, "CFabc").getFieldSet();
+        assertEquals("10", fs.get("Count"));
+        assertEquals("CFabc", fs.get("NextCursor"));
+    }
+
+}
@@ -0,0 +1,106 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.support.SimpleFieldSet;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ProgressCoalescer}.
+ */
+public class ProgressCoalescerTest {
+
+    private static final long INTERVAL = 1000;
+
+    private static SimpleProgressMessage progress(String identifier, boolean global, int succeeded) {
+        return new SimpleProgressMessage(identifier, global,
+            new SplitfileProgressEvent(100, succeeded, null, 0, 0, null, 50, 0, true));
+    }
+
+    private static int succeeded(FCPMessage msg) throws Exception {
+        return msg.getFieldSet().getInt("Succeeded");
+    }
+
+    @Test
+    public void testQueuedProgressIsReplaced() throws Exception {
+        ProgressCoalescer pc = new ProgressCoalescer();
+        FCPMessage slot = pc.offer(progress("a", false, 1), 0, INTERVAL);
+        assertNotNull(slot);
+        assertNull(pc.offer(progress("a", false, 2), 0, INTERVAL));
+        assertNull(pc.offer(progress("a", false, 3), 0, INTERVAL));
+        // Different request.
+        assertNotNull(pc.offer(progress("a", true, 1), 0, INTERVAL));
+        FCPMessage sent = pc.onDequeue(slot, 10);
+        assertTrue(sent instanceof SimpleProgressMessage);
+        assertEquals(3, succeeded(sent));
+        assertFalse(pc.hasHeld());
+    }
+
+    @Test
+    public void testInterval() throws Exception {
+        ProgressCoalescer pc = new ProgressCoalescer();
+        pc.onDequeue(pc.offer(progress("a", false, 1), 0, INTERVAL), 0);
+        // Too soon: Held back.
+        assertNull(pc.offer(progress("a", false, 2), 100, INTERVAL));
+        assertNull(pc.offer(progress("a", false, 3), 200, INTERVAL));
+        assertTrue(pc.hasHeld());
+        List<FCPMessage> out = new ArrayList<FCPMessage>();
+        pc.flush(500, INTERVAL, out);
+        assertTrue(out.isEmpty());
+        pc.flush(1000, INTERVAL, out);
+        assertEquals(1, out.size());
+        assertFalse(pc.hasHeld());
+        assertEquals(3, succeeded(pc.onDequeue(out.get(0), 1000)));
+        // With no interval, nothing is held back.
+        assertNotNull(pc.offer(progress("a", false, 4), 1001, 0));
+    }
+
+    @Test
+    public void testHeldProgressGoesBeforeOtherMessages() throws Exception {
+        ProgressCoalescer pc = new ProgressCoalescer();
+        pc.onDequeue(pc.offer(progress("a", false, 1), 0, INTERVAL), 0);
+        assertNull(pc.offer(progress("a", false, 2), 100, INTERVAL));
+        List<FCPMessage> out = new ArrayList<FCPMessage>();
+        pc.beforeOther(out);
+        assertEquals(1, out.size());
+        assertEquals(2, succeeded(out.get(0)));
+        assertFalse(pc.hasHeld());
+        // Now queued, so newer progress replaces it.
+        assertNull(pc.offer(progress("a", false, 3), 200, INTERVAL));
+        assertEquals(3, succeeded(pc.onDequeue(out.get(0), 300)));
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        ProgressCoalescer pc = new ProgressCoalescer();
+        pc.setSnapshots(true);
+        for (int i = 0; i < 10; i++) {
+            assertNull(pc.offer(progress("a", false, i), i, INTERVAL));
+            assertNull(pc.offer(progress("b", true, 2 * i), i, INTERVAL));
+        }
+        List<FCPMessage> out = new ArrayList<FCPMessage>();
+        pc.flush(1000, INTERVAL, out);
+        assertEquals(1, out.size());
+        ProgressSnapshotMessage snapshot = (ProgressSnapshotMessage) out.get(0);
+        assertSame(snapshot, pc.onDequeue(snapshot, 1000));
+        SimpleFieldSet fs = snapshot.getFieldSet();
+        assertEquals(2, fs.getInt("Count"));
+        assertEquals("a", fs.get("Progress.0.Identifier"));
+        assertEquals(9, fs.getInt("Progress.0.Succeeded"));
+        assertEquals("b", fs.get("Progress.1.Identifier"));
+        assertEquals("true", fs.get("Progress.1.Global"));
+        assertEquals(18, fs.getInt("Progress.1.Succeeded"));
+        assertFalse(pc.hasHeld());
+    }
+
+}
@@ -0,0 +1,176 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import freenet.client.async.SplitFileFetcherStream;
+import freenet.support.SpeedyTicker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link StreamedDataSender}. The connection is simulated by a queue which the test
+ * writes one message at a time, as the output handler does.
+ */
+public class StreamedDataSenderTest {
+
+    private static final int CHUNK = (int) StreamedDataSender.CHUNK_SIZE;
+    private static final int TOTAL = CHUNK * 5 / 2;
+
+    private final byte[] data = new byte[TOTAL];
+    private final Deque<FCPMessage> queue = new ArrayDeque<FCPMessage>();
+    /** The messages written, in order. */
+    private final List<FCPMessage> written = new ArrayList<FCPMessage>();
+    private final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    private final List<Runnable> retries = new ArrayList<Runnable>();
+    private SplitFileFetcherStream stream;
+    private boolean dataClosed;
+    private boolean finished;
+    private boolean queueHalfFull;
+    private StreamedDataSender sender;
+
+    @Before
+    public void setUp() {
+        new Random(1).nextBytes(data);
+        stream = mock(SplitFileFetcherStream.class);
+        when(stream.size()).thenReturn((long) TOTAL);
+        when(stream.getMIMEType()).thenReturn("video/ogg");
+        ByteArrayInputStream is = new ByteArrayInputStream(data) {
+            @Override
+            public void close() {
+                dataClosed = true;
+            }
+        };
+        SpeedyTicker ticker = new SpeedyTicker() {
+            @Override
+            public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+                retries.add(job);
+            }
+        };
+        sender = new StreamedDataSender(stream, is, null, ticker, "stream", false, 0, null) {
+            @Override
+            void send(FCPMessage msg) {
+                queue.add(msg);
+            }
+
+            @Override
+            boolean isQueueHalfFull() {
+                return queueHalfFull;
+            }
+
+            @Override
+            boolean isConnectionClosed() {
+                return false;
+            }
+
+            @Override
+            void onFinished() {
+                finished = true;
+            }
+        };
+    }
+
+    private void setReadable(long length) {
+        when(stream.getReadableLength()).thenReturn(length);
+    }
+
+    /** Write the next message, as the connection's output handler would. */
+    private FCPMessage writeNext() throws IOException {
+        FCPMessage msg = queue.removeFirst();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        msg.send(os);
+        if(msg instanceof StreamedAllDataMessage) {
+            StreamedAllDataMessage chunk = (StreamedAllDataMessage) msg;
+            assertEquals(streamed.size(), chunk.offset);
+            assertEquals(TOTAL, chunk.totalLength);
+            byte[] buf = os.toByteArray();
+            streamed.write(buf, buf.length - (int) chunk.dataLength, (int) chunk.dataLength);
+        }
+        written.add(msg);
+        return msg;
+    }
+
+    private static FCPMessage reply(String identifier) {
+        return new DataFoundMessage(1, "text/plain", identifier, false, 0, 0);
+    }
+
+    @Test
+    public void otherRequestsRepliedWhileStreaming() throws IOException {
+        setReadable(0);
+        sender.start();
+        // Nothing can be read yet, so nothing is queued, and other messages go straight out.
+        assertTrue(queue.isEmpty());
+        queue.add(reply("first"));
+        writeNext();
+        setReadable(CHUNK * 3 / 2);
+        sender.onReadable();
+        assertEquals(1, queue.size());
+        // Another request finishes while the first chunk is queued.
+        queue.add(reply("second"));
+        writeNext();
+        // The next chunk is queued after the reply.
+        assertEquals(2, queue.size());
+        assertTrue(writeNext() instanceof DataFoundMessage);
+        assertEquals(CHUNK / 2, ((StreamedAllDataMessage) writeNext()).dataLength);
+        // Waiting for the download: Nothing queued, the connection is free.
+        assertTrue(queue.isEmpty());
+        queue.add(reply("third"));
+        writeNext();
+        assertFalse(finished);
+        setReadable(TOTAL);
+        sender.onReadable();
+        writeNext();
+        assertTrue(queue.isEmpty());
+        assertTrue(finished);
+        assertTrue(dataClosed);
+        assertArrayEquals(data, streamed.toByteArray());
+        assertEquals(6, written.size());
+    }
+
+    @Test
+    public void waitsWhileQueueHalfFull() throws IOException {
+        setReadable(TOTAL);
+        queueHalfFull = true;
+        sender.start();
+        assertTrue(queue.isEmpty());
+        assertEquals(1, retries.size());
+        queueHalfFull = false;
+        retries.remove(0).run();
+        assertEquals(1, queue.size());
+        while(!queue.isEmpty())
+            writeNext();
+        assertTrue(finished);
+        assertArrayEquals(data, streamed.toByteArray());
+    }
+
+    @Test
+    public void closeFinishesQueuedChunk() throws IOException {
+        setReadable(CHUNK * 2);
+        sender.start();
+        assertEquals(1, queue.size());
+        // The download failed.
+        sender.close();
+        assertFalse(dataClosed);
+        writeNext();
+        assertTrue(dataClosed);
+        assertTrue(queue.isEmpty());
+        assertFalse(finished);
+        assertArrayEquals(Arrays.copyOf(data, CHUNK), streamed.toByteArray());
+    }
+
+}
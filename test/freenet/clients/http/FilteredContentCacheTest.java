@@ -0,0 +1,146 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+
+import junit.framework.TestCase;
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.client.filter.LinkFilterExceptionProvider;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+public class FilteredContentCacheTest extends TestCase {
+
+	private static final REFILTER_POLICY POLICY = REFILTER_POLICY.RE_FILTER;
+
+	private static class TestLinkFilter implements LinkFilterExceptionProvider {
+		int version;
+
+		@Override
+		public boolean isLinkExcepted(URI link) {
+			return false;
+		}
+
+		@Override
+		public int getExceptionsVersion() {
+			return version;
+		}
+	}
+
+	private final TestLinkFilter linkFilter = new TestLinkFilter();
+
+	private static class FreeCountingBucket extends ArrayBucket {
+		private static final long serialVersionUID = 1L;
+		int frees;
+
+		FreeCountingBucket(int size) {
+			super(new byte[size]);
+		}
+
+		@Override
+		public void free() {
+			frees++;
+			super.free();
+		}
+	}
+
+	private FreenetURI uri(String name) throws MalformedURLException {
+		return new FreenetURI("KSK@" + name);
+	}
+
+	private FetchContext fctx(String charset) {
+		FetchContext fctx = mock(FetchContext.class);
+		fctx.filterData = true;
+		fctx.charset = charset;
+		return fctx;
+	}
+
+	public void testPutAndGet() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache();
+		FetchContext fctx = fctx(null);
+		FreeCountingBucket data = new FreeCountingBucket(100);
+		Bucket b = cache.put(uri("page"), fctx, POLICY, linkFilter, "text/html", data);
+		assertNotSame(data, b);
+		assertEquals(1, cache.size());
+		b.free();
+		b.free(); // Only counts once.
+
+		FetchResult result = cache.get(uri("page"), fctx(null), POLICY, linkFilter);
+		assertNotNull(result);
+		assertEquals("text/html", result.getMimeType());
+		assertEquals(100, BucketTools.toByteArray(result.asBucket()).length);
+		result.asBucket().free();
+		assertEquals(0, data.frees);
+
+		assertNull(cache.get(uri("page"), fctx("ISO-8859-1"), POLICY, linkFilter));
+		assertNull(cache.get(uri("other"), fctx, POLICY, linkFilter));
+		FetchContext unfiltered = fctx(null);
+		unfiltered.filterData = false;
+		assertNull(cache.get(uri("page"), unfiltered, POLICY, linkFilter));
+	}
+
+	public void testNotCached() throws MalformedURLException {
+		FilteredContentCache cache = new FilteredContentCache();
+		// Didn't need filtering.
+		Bucket data = new ArrayBucket(new byte[100]);
+		assertSame(data, cache.put(uri("text"), fctx(null), POLICY, linkFilter, "text/plain", data));
+		// Too big.
+		data = new ArrayBucket(new byte[(int)FilteredContentCache.MAX_ENTRY_SIZE + 1]);
+		assertSame(data, cache.put(uri("big"), fctx(null), POLICY, linkFilter, "text/html", data));
+		assertEquals(0, cache.size());
+	}
+
+	public void testEviction() throws MalformedURLException {
+		FilteredContentCache cache = new FilteredContentCache();
+		int size = (int) FilteredContentCache.MAX_ENTRY_SIZE;
+		int count = (int) (FilteredContentCache.MAX_TOTAL_SIZE / size);
+		FreeCountingBucket first = new FreeCountingBucket(size);
+		Bucket firstCached = cache.put(uri("0"), fctx(null), POLICY, linkFilter, "text/html", first);
+		for(int i=1;i<count;i++)
+			cache.put(uri(Integer.toString(i)), fctx(null), POLICY, linkFilter, "text/html", new FreeCountingBucket(size)).free();
+		assertEquals(count, cache.size());
+		// Evicts the least recently used, which is still in use.
+		cache.put(uri("last"), fctx(null), POLICY, linkFilter, "text/html", new FreeCountingBucket(size)).free();
+		assertEquals(count, cache.size());
+		assertTrue(cache.totalSize() <= FilteredContentCache.MAX_TOTAL_SIZE);
+		assertNull(cache.get(uri("0"), fctx(null), POLICY, linkFilter));
+		assertEquals(0, first.frees);
+		firstCached.free();
+		assertEquals(1, first.frees);
+	}
+
+	public void testFilterSettingsInKey() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache();
+		cache.put(uri("page"), fctx(null), POLICY, linkFilter, "text/html", new ArrayBucket(new byte[100])).free();
+		FetchResult result = cache.get(uri("page"), fctx(null), POLICY, linkFilter);
+		assertNotNull(result);
+		result.asBucket().free();
+		// Different MIME type override.
+		FetchContext override = fctx(null);
+		override.overrideMIME = "text/plain";
+		assertNull(cache.get(uri("page"), override, POLICY, linkFilter));
+		// Different refilter policy.
+		assertNull(cache.get(uri("page"), fctx(null), REFILTER_POLICY.ACCEPT_OLD, linkFilter));
+		// Different link filter.
+		assertNull(cache.get(uri("page"), fctx(null), POLICY, new TestLinkFilter()));
+		assertNull(cache.get(uri("page"), fctx(null), POLICY, null));
+		// Not filtered at all, e.g. ?forcedownload.
+		FetchContext unfiltered = fctx(null);
+		unfiltered.filterData = false;
+		assertNull(cache.get(uri("page"), unfiltered, POLICY, linkFilter));
+		// The link filter exceptions have changed, e.g. a plugin has been loaded.
+		linkFilter.version++;
+		assertNull(cache.get(uri("page"), fctx(null), POLICY, linkFilter));
+	}
+
+}
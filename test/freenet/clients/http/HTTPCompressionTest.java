@@ -0,0 +1,90 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+import freenet.support.MultiValueTable;
+import freenet.support.TimeUtil;
+
+public class HTTPCompressionTest extends TestCase {
+
+	public void testAcceptsGzip() {
+		assertFalse(HTTPCompression.acceptsGzip(null));
+		assertFalse(HTTPCompression.acceptsGzip(""));
+		assertFalse(HTTPCompression.acceptsGzip("identity"));
+		assertTrue(HTTPCompression.acceptsGzip("gzip"));
+		assertTrue(HTTPCompression.acceptsGzip("gzip, deflate, br"));
+		assertTrue(HTTPCompression.acceptsGzip("deflate, GZIP;q=0.5"));
+		assertTrue(HTTPCompression.acceptsGzip("x-gzip"));
+		assertTrue(HTTPCompression.acceptsGzip("*"));
+		assertFalse(HTTPCompression.acceptsGzip("gzip;q=0"));
+		assertFalse(HTTPCompression.acceptsGzip("gzip;q=0.0, *"));
+		assertFalse(HTTPCompression.acceptsGzip("*;q=0"));
+		assertFalse(HTTPCompression.acceptsGzip("gzip;q=junk"));
+	}
+
+	public void testIsCompressible() {
+		assertTrue(HTTPCompression.isCompressible("text/html; charset=utf-8"));
+		assertTrue(HTTPCompression.isCompressible("text/css"));
+		assertTrue(HTTPCompression.isCompressible("application/javascript"));
+		assertTrue(HTTPCompression.isCompressible("image/svg+xml"));
+		assertFalse(HTTPCompression.isCompressible("image/png"));
+		assertFalse(HTTPCompression.isCompressible("application/zip"));
+		assertFalse(HTTPCompression.isCompressible(null));
+	}
+
+	public void testGzipRoundTrip() throws IOException {
+		byte[] data = new byte[10000];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) ('a' + (i % 7));
+		byte[] compressed = HTTPCompression.gzip(data, 100, 5000);
+		assertTrue(compressed.length < 5000);
+		GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int r;
+		while((r = gis.read(buf)) != -1)
+			baos.write(buf, 0, r);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 100, 5100), baos.toByteArray()));
+	}
+
+	public void testAddGzipHeaders() {
+		MultiValueTable<String, String> headers = HTTPCompression.addGzipHeaders(null);
+		assertEquals("gzip", headers.get("content-encoding"));
+		assertEquals("Accept-Encoding", headers.get("vary"));
+	}
+
+	public void testIsNotModified() {
+		String etag = "\"0123abcd\"";
+		Date mTime = new Date(1400000000123L);
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		assertFalse(StaticToadlet.isNotModified(headers, etag, mTime));
+
+		headers.put("if-none-match", "\"other\", W/\"0123abcd\"");
+		assertTrue(StaticToadlet.isNotModified(headers, etag, mTime));
+		// The gzip'ed variant has a different tag.
+		assertFalse(StaticToadlet.isNotModified(headers, "\"0123abcd-gz\"", mTime));
+
+		// If-None-Match takes precedence.
+		headers.put("if-modified-since", TimeUtil.makeHTTPDate(mTime.getTime()));
+		assertFalse(StaticToadlet.isNotModified(headers, "\"other2\"", mTime));
+
+		headers = new MultiValueTable<String, String>();
+		headers.put("if-modified-since", TimeUtil.makeHTTPDate(mTime.getTime()));
+		assertTrue(StaticToadlet.isNotModified(headers, etag, mTime));
+		assertFalse(StaticToadlet.isNotModified(headers, etag, new Date(mTime.getTime() + 1000)));
+
+		headers = new MultiValueTable<String, String>();
+		headers.put("if-modified-since", "garbage");
+		assertFalse(StaticToadlet.isNotModified(headers, etag, mTime));
+	}
+
+}
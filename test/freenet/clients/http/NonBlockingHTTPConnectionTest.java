@@ -0,0 +1,343 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import freenet.config.PersistentConfig;
+import freenet.io.SelectorLoop;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Ticker;
+import freenet.support.api.HTTPRequest;
+import freenet.support.io.ArrayBucketFactory;
+
+/**
+ * Tests NonBlockingHTTPConnection: Parked requests, the limit on the number of connections being
+ * handled at once, and closing idle connections.
+ */
+public class NonBlockingHTTPConnectionTest extends TestCase {
+
+	private ServerSocketChannel serverSocket;
+	private SelectorLoop loop;
+	private SimpleToadletServer server;
+	private final ManualTicker ticker = new ManualTicker();
+	private final List<Socket> clients = new ArrayList<Socket>();
+	/** Requests parked by the ParkToadlet. */
+	private final LinkedBlockingQueue<ToadletContext> parked = new LinkedBlockingQueue<ToadletContext>();
+	/** Requests to /block/ wait for this. */
+	private CountDownLatch unblock;
+	private CountDownLatch blocked;
+
+	/** Runs timed jobs when the test says so, rather than after a delay. */
+	private static class ManualTicker implements Ticker {
+
+		private final List<Runnable> jobs = new ArrayList<Runnable>();
+
+		@Override
+		public synchronized void queueTimedJob(Runnable job, long offset) {
+			jobs.add(job);
+		}
+
+		@Override
+		public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+			queueTimedJob(job, offset);
+		}
+
+		@Override
+		public Executor getExecutor() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public synchronized void removeQueuedJob(Runnable job) {
+			jobs.remove(job);
+		}
+
+		@Override
+		public void queueTimedJobAbsolute(Runnable job, String name, long time, boolean runOnTickerAnyway, boolean noDupes) {
+			queueTimedJob(job, time - System.currentTimeMillis());
+		}
+
+		synchronized int countJobs() {
+			return jobs.size();
+		}
+
+		/** Run all the queued jobs, as if the timeout had passed. */
+		void runAll() {
+			List<Runnable> run;
+			synchronized(this) {
+				run = new ArrayList<Runnable>(jobs);
+				jobs.clear();
+			}
+			for(Runnable job : run)
+				job.run();
+		}
+
+	}
+
+	private class HelloToadlet extends Toadlet {
+
+		HelloToadlet() {
+			super(null);
+		}
+
+		@Override
+		public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+			writeTextReply(ctx, 200, "OK", "hello");
+		}
+
+		@Override
+		public String path() {
+			return "/hello/";
+		}
+
+	}
+
+	private class ParkToadlet extends Toadlet {
+
+		ParkToadlet() {
+			super(null);
+		}
+
+		@Override
+		public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+			assertTrue(ctx.parkRequest());
+			parked.add(ctx);
+		}
+
+		@Override
+		public String path() {
+			return "/park/";
+		}
+
+		void finish(ToadletContext ctx, String reply) throws ToadletContextClosedException, IOException {
+			writeTextReply(ctx, 200, "OK", reply);
+			ctx.finishParkedRequest();
+		}
+
+	}
+
+	private class BlockToadlet extends Toadlet {
+
+		BlockToadlet() {
+			super(null);
+		}
+
+		@Override
+		public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+			blocked.countDown();
+			try {
+				unblock.await();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+			writeTextReply(ctx, 200, "OK", "unblocked");
+		}
+
+		@Override
+		public String path() {
+			return "/block/";
+		}
+
+	}
+
+	private ParkToadlet parkToadlet;
+
+	@Override
+	protected void setUp() throws Exception {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("fproxy.enabled", "false");
+		fs.putSingle("fproxy.enablePersistentConnections", "true");
+		fs.putSingle("fproxy.maxFproxyConnections", "1");
+		server = new SimpleToadletServer(new PersistentConfig(fs).createSubConfig("fproxy"),
+				new ArrayBucketFactory(), new PooledExecutor(), null);
+		server.register(new HelloToadlet(), null, "/hello/", true, false);
+		parkToadlet = new ParkToadlet();
+		server.register(parkToadlet, null, "/park/", true, false);
+		server.register(new BlockToadlet(), null, "/block/", true, false);
+		unblock = new CountDownLatch(1);
+		blocked = new CountDownLatch(1);
+		serverSocket = ServerSocketChannel.open();
+		serverSocket.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		loop = new SelectorLoop("Test selector");
+		loop.start();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		unblock.countDown();
+		for(Socket s : clients)
+			s.close();
+		loop.shutdown();
+		serverSocket.close();
+	}
+
+	/** Connect a client, and accept it as the server would with fproxy.nio. */
+	private Socket connect() throws IOException {
+		Socket client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.socket().getLocalPort());
+		client.setSoTimeout(10000);
+		clients.add(client);
+		Socket sock = serverSocket.accept().socket();
+		server.dispatch(new NonBlockingHTTPConnection(server, sock, loop, ticker));
+		return client;
+	}
+
+	private void get(Socket client, String path) throws IOException {
+		client.getOutputStream().write(request(path));
+	}
+
+	private static byte[] request(String path) throws IOException {
+		return ("GET "+path+" HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes("ISO-8859-1");
+	}
+
+	/** Read one reply and return its body. */
+	private static String readReply(Socket client) throws IOException {
+		InputStream is = client.getInputStream();
+		long length = -1;
+		String line = readLine(is);
+		assertTrue(line, line.startsWith("HTTP/1.1 200"));
+		while(!(line = readLine(is)).isEmpty()) {
+			if(line.toLowerCase().startsWith("content-length:"))
+				length = Long.parseLong(line.substring("content-length:".length()).trim());
+		}
+		assertTrue(length >= 0);
+		byte[] body = new byte[(int) length];
+		new DataInputStream(is).readFully(body);
+		return new String(body, "UTF-8");
+	}
+
+	private static String readLine(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		while(true) {
+			int b = is.read();
+			if(b < 0) throw new IOException("Connection closed");
+			if(b == '\n') break;
+			if(b != '\r') baos.write(b);
+		}
+		return baos.toString("ISO-8859-1");
+	}
+
+	/** @return True if nothing arrives on the connection for a while. */
+	private static boolean isQuiet(Socket client) throws IOException {
+		client.setSoTimeout(200);
+		try {
+			client.getInputStream().read();
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} finally {
+			client.setSoTimeout(10000);
+		}
+	}
+
+	private void waitForIdleJobs(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(ticker.countJobs() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, ticker.countJobs());
+	}
+
+	public void testKeepAlive() throws IOException {
+		Socket client = connect();
+		for(int i=0;i<3;i++) {
+			get(client, "/hello/");
+			assertEquals("hello", readReply(client));
+		}
+	}
+
+	public void testIdleClose() throws Exception {
+		Socket client = connect();
+		// Idle until the first request.
+		waitForIdleJobs(1);
+		get(client, "/hello/");
+		assertEquals("hello", readReply(client));
+		waitForIdleJobs(2);
+		// The connection was used again before the timeout, so it stays open.
+		get(client, "/hello/");
+		assertEquals("hello", readReply(client));
+		waitForIdleJobs(3);
+		// Only the last timeout counts.
+		ticker.runAll();
+		assertEquals(-1, client.getInputStream().read());
+	}
+
+	public void testParkedRequest() throws Exception {
+		Socket client = connect();
+		waitForIdleJobs(1);
+		get(client, "/park/");
+		ToadletContext ctx = parked.poll(10, TimeUnit.SECONDS);
+		assertNotNull(ctx);
+		assertTrue(isQuiet(client));
+		// Not idle while parked, so the idle timeout doesn't close the connection.
+		assertEquals(1, ticker.countJobs());
+		ticker.runAll();
+		parkToadlet.finish(ctx, "parked");
+		assertEquals("parked", readReply(client));
+		// And carry on as usual.
+		get(client, "/hello/");
+		assertEquals("hello", readReply(client));
+	}
+
+	public void testPipelinedAfterParked() throws Exception {
+		Socket client = connect();
+		waitForIdleJobs(1);
+		// Both requests arrive before the first is parked.
+		ByteArrayOutputStream both = new ByteArrayOutputStream();
+		both.write(request("/park/"));
+		both.write(request("/hello/"));
+		client.getOutputStream().write(both.toByteArray());
+		ToadletContext ctx = parked.poll(10, TimeUnit.SECONDS);
+		assertNotNull(ctx);
+		// The second request must not be answered before the first.
+		assertTrue(isQuiet(client));
+		assertEquals(1, ticker.countJobs());
+		parkToadlet.finish(ctx, "parked");
+		assertEquals("parked", readReply(client));
+		assertEquals("hello", readReply(client));
+	}
+
+	public void testDispatchLimit() throws Exception {
+		// maxFproxyConnections is 1.
+		Socket first = connect();
+		get(first, "/block/");
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+		Socket second = connect();
+		get(second, "/hello/");
+		// Waits for the first connection to give up its thread.
+		assertTrue(isQuiet(second));
+		unblock.countDown();
+		assertEquals("unblocked", readReply(first));
+		assertEquals("hello", readReply(second));
+	}
+
+	public void testParkedDoesNotCountTowardsLimit() throws Exception {
+		Socket first = connect();
+		get(first, "/park/");
+		ToadletContext ctx = parked.poll(10, TimeUnit.SECONDS);
+		assertNotNull(ctx);
+		Socket second = connect();
+		get(second, "/hello/");
+		assertEquals("hello", readReply(second));
+		parkToadlet.finish(ctx, "parked");
+		assertEquals("parked", readReply(first));
+	}
+
+}
@@ -0,0 +1,70 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.clients.fcp.RequestStatus;
+import freenet.clients.http.RequestStatusSorter.SortBy;
+
+public class RequestStatusSorterTest extends TestCase {
+
+	private static RequestStatus status(String identifier, short priority, int fetched, int min, boolean finalized, Date lastSuccess) {
+		RequestStatus status = mock(RequestStatus.class);
+		when(status.getIdentifier()).thenReturn(identifier);
+		when(status.getPriority()).thenReturn(priority);
+		when(status.getFetchedBlocks()).thenReturn(fetched);
+		when(status.getMinBlocks()).thenReturn(min);
+		when(status.getTotalBlocks()).thenReturn(min);
+		when(status.isTotalFinalized()).thenReturn(finalized);
+		when(status.getLastSuccess()).thenReturn(lastSuccess);
+		return status;
+	}
+
+	private final RequestStatus a = status("a", (short)2, 5, 10, true, new Date(3000));
+	private final RequestStatus b = status("B", (short)1, 9, 10, false, null);
+	private final RequestStatus c = status("c", (short)2, 1, 20, false, new Date(1000));
+
+	private List<RequestStatus> sort(SortBy sortBy, boolean reversed) {
+		List<RequestStatus> list = new ArrayList<RequestStatus>(Arrays.asList(c, a, b));
+		new RequestStatusSorter(sortBy, reversed).sort(list);
+		return list;
+	}
+
+	public void testSort() {
+		assertEquals(Arrays.asList(b, a, c), sort(SortBy.DEFAULT, false));
+		assertEquals(Arrays.asList(c, a, b), sort(SortBy.DEFAULT, true));
+		assertEquals(Arrays.asList(a, b, c), sort(SortBy.ID, false));
+		assertEquals(Arrays.asList(a, b, c), sort(SortBy.SIZE, false));
+		// Not finalized first, then by fraction fetched.
+		assertEquals(Arrays.asList(c, b, a), sort(SortBy.PROGRESS, false));
+		// Never is the oldest.
+		assertEquals(Arrays.asList(b, c, a), sort(SortBy.LAST_ACTIVITY, false));
+		assertEquals(Arrays.asList(a, c, b), sort(SortBy.LAST_ACTIVITY, true));
+	}
+
+	public void testSortIsStable() {
+		// a and b have the same size.
+		List<RequestStatus> list = new ArrayList<RequestStatus>(Arrays.asList(b, c, a));
+		new RequestStatusSorter(SortBy.SIZE, false).sort(list);
+		assertEquals(Arrays.asList(b, a, c), list);
+	}
+
+	public void testQueryString() {
+		assertEquals("", new RequestStatusSorter(SortBy.DEFAULT, false).toQueryString());
+		assertEquals("reversed", new RequestStatusSorter(SortBy.DEFAULT, true).toQueryString());
+		assertEquals("sortBy=lastActivity&reversed", new RequestStatusSorter(SortBy.LAST_ACTIVITY, true).toQueryString());
+		for(SortBy sortBy : SortBy.values())
+			assertEquals(sortBy, SortBy.fromParam(sortBy.param));
+		assertEquals(SortBy.DEFAULT, SortBy.fromParam("nonsense"));
+	}
+
+}
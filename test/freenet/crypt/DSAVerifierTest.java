@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.DSAPrivateKeyParameters;
+import org.bouncycastle.crypto.params.DSAPublicKeyParameters;
+import org.bouncycastle.crypto.signers.DSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class DSAVerifierTest extends TestCase {
+
+	private final RandomSource random = new DummyRandomSource(0xCCCCCCCCL);
+	private final Random weak = new Random(0xCCCCCCCC);
+
+	private BigInteger[] sign(DSAPrivateKey privKey, byte[] message) {
+		DSASigner dsa = new DSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+		dsa.init(true, new DSAPrivateKeyParameters(privKey.getX(), Global.getDSAgroupBigAParameters()));
+		return dsa.generateSignature(message);
+	}
+
+	private boolean verifyBC(DSAPublicKey pubKey, byte[] message, BigInteger r, BigInteger s) {
+		DSASigner dsa = new DSASigner();
+		dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
+		return dsa.verifySignature(message, r, s);
+	}
+
+	public void testMatchesBouncyCastle() {
+		DSAGroup g = Global.DSAgroupBigA;
+		DSAVerifier verifier = DSAVerifier.getGroupBigA();
+		BigInteger q = g.getQ();
+		for(int i=0;i<10;i++) {
+			DSAPrivateKey privKey = new DSAPrivateKey(g, random);
+			DSAPublicKey pubKey = new DSAPublicKey(g, privKey);
+			byte[] hash = new byte[32];
+			weak.nextBytes(hash);
+			// Both forms SSKBlock tries: truncateHash() may add a leading zero.
+			for(byte[] message : new byte[][] { hash, Global.truncateHash(hash) }) {
+				BigInteger[] sig = sign(privKey, message);
+				BigInteger r = sig[0];
+				BigInteger s = sig[1];
+				assertTrue(verifyBC(pubKey, message, r, s));
+				assertTrue(verifier.verify(pubKey.getY(), message, r, s));
+				byte[] tampered = message.clone();
+				tampered[weak.nextInt(tampered.length)] ^= 1 << weak.nextInt(8);
+				assertEquals(verifyBC(pubKey, tampered, r, s), verifier.verify(pubKey.getY(), tampered, r, s));
+				BigInteger[][] badSigs = new BigInteger[][] {
+					{ r.add(BigInteger.ONE), s },
+					{ r, s.add(BigInteger.ONE) },
+					{ s, r },
+					{ BigInteger.ZERO, s },
+					{ r, BigInteger.ZERO },
+					{ r.add(q), s },
+					{ r, s.add(q) },
+					{ r.negate(), s },
+				};
+				for(BigInteger[] bad : badSigs) {
+					assertFalse(verifyBC(pubKey, message, bad[0], bad[1]));
+					assertFalse(verifier.verify(pubKey.getY(), message, bad[0], bad[1]));
+				}
+				DSAPublicKey otherKey = new DSAPublicKey(g, new DSAPrivateKey(g, random));
+				assertFalse(verifier.verify(otherKey.getY(), message, r, s));
+			}
+		}
+	}
+
+	public void testBenchmarkVerify() {
+		// ant -Dtest.skip=false -Dtest.class=freenet.crypt.DSAVerifierTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		DSAGroup g = Global.DSAgroupBigA;
+		DSAPrivateKey privKey = new DSAPrivateKey(g, random);
+		DSAPublicKey pubKey = new DSAPublicKey(g, privKey);
+		byte[] message = new byte[32];
+		weak.nextBytes(message);
+		BigInteger[] sig = sign(privKey, message);
+		DSAVerifier verifier = DSAVerifier.getGroupBigA();
+		final int iterations = 2000;
+		for(int round=0;round<3;round++) {
+			long start = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				assertTrue(verifyBC(pubKey, message, sig[0], sig[1]));
+			long bc = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<iterations;i++)
+				assertTrue(verifier.verify(pubKey.getY(), message, sig[0], sig[1]));
+			long fixed = System.nanoTime() - start;
+			System.out.println("DSASigner: "+(iterations * 1000000000L / bc)+" verifications/sec, "+
+					"DSAVerifier: "+(iterations * 1000000000L / fixed)+" verifications/sec");
+		}
+	}
+
+}
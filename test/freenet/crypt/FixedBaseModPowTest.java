@@ -0,0 +1,59 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FixedBaseModPowTest extends TestCase {
+
+	private final Random random = new Random(0xBBBBBBBB);
+
+	public void testMatchesModPow() {
+		DSAGroup group = Global.DSAgroupBigA;
+		BigInteger g = group.getG();
+		BigInteger p = group.getP();
+		int bits = group.getQ().bitLength();
+		for(int w : new int[] { 1, 4, 6, 7 }) {
+			FixedBaseModPow pow = new FixedBaseModPow(g, p, bits, w);
+			for(int i=0;i<20;i++) {
+				BigInteger e = new BigInteger(bits, random);
+				assertEquals(g.modPow(e, p), pow.pow(e));
+			}
+			assertEquals(BigInteger.ONE, pow.pow(BigInteger.ZERO));
+			assertEquals(g, pow.pow(BigInteger.ONE));
+			BigInteger max = BigInteger.ONE.shiftLeft(bits).subtract(BigInteger.ONE);
+			assertEquals(g.modPow(max, p), pow.pow(max));
+			// Too big for the table
+			BigInteger big = BigInteger.ONE.shiftLeft(bits + 10).add(BigInteger.TEN);
+			assertEquals(g.modPow(big, p), pow.pow(big));
+		}
+	}
+
+	public void testSmallModulus() {
+		BigInteger p = BigInteger.valueOf(1000003);
+		BigInteger g = BigInteger.valueOf(2);
+		FixedBaseModPow pow = new FixedBaseModPow(g, p, 20, 3);
+		for(int e=0;e<(1<<20);e+=997)
+			assertEquals(g.modPow(BigInteger.valueOf(e), p), pow.pow(BigInteger.valueOf(e)));
+	}
+
+	public void testBadParameters() {
+		try {
+			new FixedBaseModPow(BigInteger.TEN, BigInteger.valueOf(1000), 20, 4);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// This is expected
+		}
+		try {
+			new FixedBaseModPow(BigInteger.valueOf(2000), BigInteger.valueOf(1001), 20, 4);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// This is expected
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import freenet.support.SpeedyTicker;
+import freenet.support.TestProperty;
+
+public class StripedRandomSourceTest extends TestCase {
+
+	/** Counts the events folded into it. */
+	private static class CountingYarrow extends Yarrow {
+		private static final long serialVersionUID = -1;
+		int batches;
+		int events;
+
+		CountingYarrow() {
+			super(new File("/dev/urandom"), "SHA1", "Rijndael", false, false, false);
+		}
+
+		@Override
+		synchronized int acceptEntropyBatch(EntropySource[] sources, long[] data, boolean[] timers, int[] entropyGuesses, double[] biases, int count) {
+			batches++;
+			events += count;
+			return super.acceptEntropyBatch(sources, data, timers, entropyGuesses, biases, count);
+		}
+	}
+
+	public void testEntropyBatched() {
+		CountingYarrow yarrow = new CountingYarrow();
+		StripedRandomSource random = new StripedRandomSource(yarrow);
+		EntropySource source = new EntropySource();
+		for(int i=0;i<StripedRandomSource.BATCH_SIZE - 1;i++)
+			assertEquals(0, random.acceptTimerEntropy(source, 0.5));
+		assertEquals(0, yarrow.events);
+		random.acceptEntropy(source, 12345, 16);
+		assertEquals(1, yarrow.batches);
+		assertEquals(StripedRandomSource.BATCH_SIZE, yarrow.events);
+		random.acceptTimerEntropy(source);
+		assertEquals(1, yarrow.batches);
+		random.flushEntropy();
+		assertEquals(2, yarrow.batches);
+		assertEquals(StripedRandomSource.BATCH_SIZE + 1, yarrow.events);
+		random.flushEntropy();
+		assertEquals(2, yarrow.batches);
+	}
+
+	/** The delta for a timer event must be taken from the source's state when the batch is 
+	 * folded, after the events before it, not when the event was buffered. */
+	public void testTimerDeltasFromFold() {
+		StripedRandomSource random = new StripedRandomSource(new CountingYarrow());
+		EntropySource source = new EntropySource();
+		random.acceptTimerEntropy(source);
+		random.acceptTimerEntropy(source);
+		assertEquals(0, source.lastVal);
+		random.flushEntropy();
+		// Yarrow stores the delta as the last value. The first event's is the time, so the 
+		// second is a few milliseconds. If both had been taken from the state when they were
+		// buffered, the last value would be the time of the second event.
+		assertTrue(source.lastVal >= 0 && source.lastVal < 1000);
+	}
+
+	public void testQuietStripeFolded() throws InterruptedException {
+		CountingYarrow yarrow = new CountingYarrow();
+		StripedRandomSource random = new StripedRandomSource(yarrow);
+		final List<Runnable> jobs = new ArrayList<Runnable>();
+		random.start(new SpeedyTicker() {
+			@Override
+			public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+				assertEquals(StripedRandomSource.FLUSH_INTERVAL, offset);
+				jobs.add(job);
+			}
+		});
+		assertEquals(1, jobs.size());
+		random.acceptEntropy(new EntropySource(), 12345, 16);
+		// Not old enough yet.
+		jobs.remove(0).run();
+		assertEquals(0, yarrow.events);
+		assertEquals(1, jobs.size());
+		Thread.sleep(StripedRandomSource.FLUSH_INTERVAL + 10);
+		// No more events on the stripe, but the job folds it anyway.
+		jobs.remove(0).run();
+		assertEquals(1, yarrow.batches);
+		assertEquals(1, yarrow.events);
+		assertEquals(1, jobs.size());
+	}
+
+	public void testOutput() {
+		StripedRandomSource random = new StripedRandomSource(new CountingYarrow());
+		// Across several buffers and a reseed, in odd sizes.
+		int total = 0;
+		Set<Long> seen = new HashSet<Long>();
+		while(total < StripedRandomSource.RESEED_BYTES + 3 * StripedRandomSource.BUFFER_SIZE) {
+			byte[] buf = new byte[1 + total % 5000];
+			random.nextBytes(buf);
+			total += buf.length;
+			for(int i=0;i+8<=buf.length;i+=8) {
+				long l = 0;
+				for(int j=0;j<8;j++)
+					l = (l << 8) | (buf[i + j] & 0xFF);
+				assertTrue(seen.add(l));
+			}
+			assertTrue(seen.add(random.nextLong()));
+			assertTrue(seen.add(random.nextLong()));
+		}
+		int[] counts = new int[10];
+		for(int i=0;i<100000;i++)
+			counts[random.nextInt(10)]++;
+		for(int count : counts)
+			assertTrue(count > 9000 && count < 11000);
+	}
+
+	public void testThreadsIndependent() throws InterruptedException {
+		final StripedRandomSource random = new StripedRandomSource(new CountingYarrow());
+		final Set<Long> seen = Collections.synchronizedSet(new HashSet<Long>());
+		final int perThread = 10000;
+		Thread[] threads = new Thread[4];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<perThread;j++)
+						seen.add(random.nextLong());
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(threads.length * perThread, seen.size());
+	}
+
+	/** One timer entropy event and a random long per iteration, as on the packet receive path,
+	 * from several threads, on Yarrow and on StripedRandomSource. */
+	public void testBenchmarkContention() throws InterruptedException {
+		// ant -Dtest.skip=false -Dtest.class=freenet.crypt.StripedRandomSourceTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		final int iterations = 200000;
+		for(int threadCount : new int[] { 1, 2, 4, 8, 16 }) {
+			for(int mode=0;mode<2;mode++) {
+				Yarrow yarrow = new Yarrow(new File("/dev/urandom"), "SHA1", "Rijndael", false, false, false);
+				final RandomSource random = mode == 0 ? yarrow : new StripedRandomSource(yarrow);
+				final CountDownLatch go = new CountDownLatch(1);
+				Thread[] threads = new Thread[threadCount];
+				for(int i=0;i<threadCount;i++) {
+					threads[i] = new Thread() {
+						@Override
+						public void run() {
+							EntropySource source = new EntropySource();
+							try {
+								go.await();
+							} catch (InterruptedException e) {
+								return;
+							}
+							for(int j=0;j<iterations;j++) {
+								random.acceptTimerEntropy(source, 0.25);
+								random.nextLong();
+							}
+						}
+					};
+					threads[i].start();
+				}
+				long start = System.nanoTime();
+				go.countDown();
+				for(Thread t : threads)
+					t.join();
+				long time = System.nanoTime() - start;
+				System.out.println((mode == 0 ? "Yarrow" : "StripedRandomSource")+", "+threadCount+" threads: "+
+						(threadCount * (long) iterations * 1000 * 1000 * 1000 / time)+" per second");
+			}
+		}
+	}
+
+}
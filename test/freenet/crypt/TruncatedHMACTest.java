@@ -0,0 +1,68 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TruncatedHMACTest extends TestCase {
+
+	private final Random random = new Random(0xAAAAAAAA);
+
+	public void testMatchesHMAC() {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		TruncatedHMAC mac = new TruncatedHMAC(HMAC.SHA2_256, key, 10);
+		for(int len : new int[] { 0, 1, 63, 64, 1280 }) {
+			byte[] buf = new byte[len + 20];
+			random.nextBytes(buf);
+			byte[] data = Arrays.copyOfRange(buf, 10, 10 + len);
+			byte[] expected = Arrays.copyOf(HMAC.macWithSHA256(key, data), 10);
+			// Write the MAC in front of the data, as NewPacketFormat does.
+			mac.mac(buf, 10, len, buf, 0);
+			assertTrue(Arrays.equals(expected, Arrays.copyOf(buf, 10)));
+			// And again, to check the Mac was reset.
+			byte[] out = new byte[12];
+			mac.mac(buf, 10, len, out, 2);
+			assertTrue(Arrays.equals(expected, Arrays.copyOfRange(out, 2, 12)));
+			assertTrue(mac.verify(buf, 10, len, buf, 0));
+		}
+	}
+
+	public void testVerifyRejects() {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		TruncatedHMAC mac = new TruncatedHMAC(HMAC.SHA2_256, key, 10);
+		byte[] buf = new byte[100];
+		random.nextBytes(buf);
+		mac.mac(buf, 10, 90, buf, 0);
+		for(int i=0;i<buf.length;i++) {
+			buf[i] ^= 1;
+			assertFalse(mac.verify(buf, 10, 90, buf, 0));
+			buf[i] ^= 1;
+		}
+		assertTrue(mac.verify(buf, 10, 90, buf, 0));
+		byte[] otherKey = key.clone();
+		otherKey[0] ^= 1;
+		assertFalse(new TruncatedHMAC(HMAC.SHA2_256, otherKey, 10).verify(buf, 10, 90, buf, 0));
+	}
+
+	public void testBadParameters() {
+		try {
+			new TruncatedHMAC(HMAC.SHA2_256, new byte[31], 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// This is expected
+		}
+		try {
+			new TruncatedHMAC(HMAC.SHA2_256, new byte[32], 33);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// This is expected
+		}
+	}
+
+}
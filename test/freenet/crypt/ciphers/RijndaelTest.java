@@ -19,9 +19,12 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 import junit.framework.TestCase;
+import freenet.crypt.BlockCipher;
 import freenet.crypt.CTRBlockCipherTest;
+import freenet.crypt.PCFBMode;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.support.HexUtil;
+import freenet.support.TestProperty;
 import freenet.support.io.Closer;
 
 /**
@@ -2011,4 +2014,85 @@ public class RijndaelTest extends TestCase {
 			}
 		}
 	}
+
+	/** Rijndael256 against the generic implementation, for every key size, including in place
+	 * and at an offset. */
+	public void testRijndael256MatchesGeneric() throws InvalidKeyException {
+		for(int keySize : new int[] { 128, 192, 256 }) {
+			for(int i=0;i<100;i++) {
+				byte[] key = new byte[keySize / 8];
+				rand.nextBytes(key);
+				Object sessionKey = Rijndael_Algorithm.makeKey(key, 32);
+				Rijndael256 cipher = new Rijndael256(key);
+				byte[] plain = new byte[32];
+				rand.nextBytes(plain);
+				byte[] expected = new byte[32];
+				Rijndael_Algorithm.blockEncrypt(plain, expected, 0, sessionKey, 32);
+				byte[] buf = new byte[40];
+				System.arraycopy(plain, 0, buf, 5, 32);
+				cipher.encrypt(buf, 5, buf, 5);
+				assertTrue(Arrays.equals(expected, Arrays.copyOfRange(buf, 5, 37)));
+				cipher.decrypt(buf, 5, buf, 5);
+				assertTrue(Arrays.equals(plain, Arrays.copyOfRange(buf, 5, 37)));
+				byte[] decrypted = new byte[32];
+				Rijndael_Algorithm.blockDecrypt(expected, decrypted, 0, sessionKey, 32);
+				assertTrue(Arrays.equals(plain, decrypted));
+			}
+		}
+	}
+
+	/** PCFB over 256-bit Rijndael, as used for packets and the store, on the generic
+	 * implementation and on Rijndael256. */
+	public void testBenchmarkPCFB256() throws UnsupportedCipherException, InvalidKeyException {
+		// ant -Dtest.skip=false -Dtest.class=freenet.crypt.ciphers.RijndaelTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		final Object sessionKey = Rijndael_Algorithm.makeKey(key, 32);
+		BlockCipher generic = new BlockCipher() {
+			@Override
+			public void initialize(byte[] key) {
+				throw new UnsupportedOperationException();
+			}
+			@Override
+			public int getKeySize() {
+				return 256;
+			}
+			@Override
+			public int getBlockSize() {
+				return 256;
+			}
+			@Override
+			public synchronized void encipher(byte[] block, byte[] result) {
+				Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, 32);
+			}
+			@Override
+			public synchronized void decipher(byte[] block, byte[] result) {
+				Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, 32);
+			}
+		};
+		Rijndael specialised = new Rijndael(256, 256);
+		specialised.initialize(key);
+		byte[] iv = new byte[32];
+		rand.nextBytes(iv);
+		for(int size : new int[] { 1024, 32768 }) {
+			byte[] buf = new byte[size];
+			rand.nextBytes(buf);
+			int count = 64 * 1024 * 1024 / size;
+			for(int round=0;round<3;round++) {
+				for(BlockCipher cipher : new BlockCipher[] { generic, specialised }) {
+					long start = System.nanoTime();
+					for(int i=0;i<count;i++)
+						PCFBMode.create(cipher, iv).blockEncipher(buf, 0, size);
+					long encrypted = System.nanoTime();
+					for(int i=0;i<count;i++)
+						PCFBMode.create(cipher, iv).blockDecipher(buf, 0, size);
+					long decrypted = System.nanoTime();
+					System.out.println((cipher == generic ? "Rijndael_Algorithm" : "Rijndael256")+" "+size+" bytes: encipher "+
+							(count * (long)size * 1000 / (encrypted - start))+"MB/s, decipher "+
+							(count * (long)size * 1000 / (decrypted - encrypted))+"MB/s");
+				}
+			}
+		}
+	}
 }
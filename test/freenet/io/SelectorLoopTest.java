@@ -0,0 +1,318 @@
+package freenet.io;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+import freenet.support.io.FileRegionWriter;
+
+/**
+ * Tests SelectorLoop and SelectorConnection: Blocking streams over a shared selector, readers
+ * which give up their thread while idle, and flow control in both directions.
+ */
+public class SelectorLoopTest extends TestCase {
+
+	private ServerSocketChannel server;
+	private SelectorLoop loop;
+	private ExecutorService executor;
+	private final List<Socket> clients = new ArrayList<Socket>();
+
+	@Override
+	protected void setUp() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2048);
+		loop = new SelectorLoop("Test selector");
+		loop.start();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		for(Socket s : clients)
+			s.close();
+		executor.shutdownNow();
+		loop.shutdown();
+		server.close();
+	}
+
+	private Socket connect() throws IOException {
+		Socket s = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+		s.setTcpNoDelay(true);
+		clients.add(s);
+		return s;
+	}
+
+	/** Echoes everything back, only using a thread while there is data. */
+	private class Echo implements SelectorConnection.Callback, Runnable {
+		SelectorConnection conn;
+		final AtomicInteger wakeups = new AtomicInteger();
+		volatile boolean gotEOF;
+
+		@Override
+		public void onReadable() {
+			wakeups.incrementAndGet();
+			executor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			byte[] buf = new byte[4096];
+			try {
+				InputStream is = conn.getInputStream();
+				OutputStream os = conn.getOutputStream();
+				while(!conn.suspendReaderIfIdle()) {
+					int read = is.read(buf, 0, Math.max(1, Math.min(buf.length, is.available())));
+					if(read < 0) {
+						gotEOF = true;
+						conn.close();
+						return;
+					}
+					os.write(buf, 0, read);
+				}
+			} catch (IOException e) {
+				conn.close();
+			}
+		}
+	}
+
+	private Echo acceptEcho() throws IOException {
+		SocketChannel sc = server.accept();
+		Echo echo = new Echo();
+		echo.conn = loop.register(sc, echo);
+		executor.execute(echo);
+		return echo;
+	}
+
+	public void testEcho() throws IOException {
+		Socket client = connect();
+		acceptEcho();
+		byte[] msg = "ClientHello\nEndMessage\n".getBytes("UTF-8");
+		client.getOutputStream().write(msg);
+		byte[] reply = new byte[msg.length];
+		new DataInputStream(client.getInputStream()).readFully(reply);
+		assertTrue(Arrays.equals(msg, reply));
+		assertEquals(1, loop.countConnections());
+	}
+
+	public void testSuspendAndResume() throws Exception {
+		Socket client = connect();
+		SocketChannel sc = server.accept();
+		final CountDownLatch woken = new CountDownLatch(1);
+		SelectorConnection conn = loop.register(sc, new SelectorConnection.Callback() {
+			@Override
+			public void onReadable() {
+				woken.countDown();
+			}
+		});
+		assertTrue(conn.suspendReaderIfIdle());
+		client.getOutputStream().write(42);
+		assertTrue(woken.await(10, TimeUnit.SECONDS));
+		assertFalse(conn.suspendReaderIfIdle());
+		assertEquals(42, conn.getInputStream().read());
+	}
+
+	public void testEOFWakesSuspendedReader() throws Exception {
+		Socket client = connect();
+		Echo echo = acceptEcho();
+		client.getOutputStream().write(1);
+		assertEquals(1, client.getInputStream().read());
+		client.shutdownOutput();
+		assertEquals(-1, client.getInputStream().read());
+		assertTrue(echo.gotEOF);
+		long deadline = System.currentTimeMillis() + 10000;
+		while(loop.countConnections() != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, loop.countConnections());
+	}
+
+	/** Much more data than fits in the buffers: Both the selector and the writer have to wait. */
+	public void testLargeTransfer() throws Exception {
+		final Socket client = connect();
+		acceptEcho();
+		final byte[] data = new byte[4*1024*1024];
+		new Random(1).nextBytes(data);
+		final IOException[] writeError = new IOException[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream os = client.getOutputStream();
+					for(int i=0;i<data.length;i+=10000)
+						os.write(data, i, Math.min(10000, data.length - i));
+				} catch (IOException e) {
+					writeError[0] = e;
+				}
+			}
+		};
+		writer.start();
+		byte[] reply = new byte[data.length];
+		new DataInputStream(client.getInputStream()).readFully(reply);
+		writer.join();
+		assertNull(writeError[0]);
+		assertTrue(Arrays.equals(data, reply));
+	}
+
+	/** Send a file much bigger than the socket buffers with transferTo() on the non-blocking
+	 * channel. */
+	public void testFileRegion() throws Exception {
+		Socket client = connect();
+		SocketChannel sc = server.accept();
+		final SelectorConnection conn = loop.register(sc, new SelectorConnection.Callback() {
+			@Override
+			public void onReadable() {
+				// Not reading.
+			}
+		});
+		final byte[] data = new byte[4*1024*1024];
+		new Random(2).nextBytes(data);
+		File f = File.createTempFile("selectorlooptest", ".tmp");
+		f.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(data);
+		fos.close();
+		final RandomAccessFile raf = new RandomAccessFile(f, "r");
+		final IOException[] writeError = new IOException[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					conn.getOutputStream().write(1);
+					((FileRegionWriter) conn.getOutputStream()).writeFileRegion(raf.getChannel(), 0, data.length);
+				} catch (IOException e) {
+					writeError[0] = e;
+				}
+			}
+		};
+		writer.start();
+		DataInputStream dis = new DataInputStream(client.getInputStream());
+		assertEquals(1, dis.read());
+		byte[] reply = new byte[data.length];
+		dis.readFully(reply);
+		writer.join();
+		raf.close();
+		f.delete();
+		assertNull(writeError[0]);
+		assertTrue(Arrays.equals(data, reply));
+	}
+
+	/** Compare a thread per connection (FCP uses two by default) with a selector, for 1000
+	 * connections, most of them idle. The heap figure doesn't include the threads' stacks. */
+	public void testBenchmarkIdleAndActiveConnections() throws Exception {
+		// ant -Dtest.skip=false -Dtest.class=freenet.io.SelectorLoopTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		int connections = 1000;
+		int active = 100;
+		int messages = 200;
+		for(int mode=0;mode<2;mode++) {
+			boolean threaded = mode == 0;
+			int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+			long memBefore = usedMemory();
+			final List<Socket> conns = new ArrayList<Socket>();
+			final List<Socket> serverSide = new ArrayList<Socket>();
+			for(int i=0;i<connections;i++) {
+				conns.add(connect());
+				SocketChannel sc = server.accept();
+				if(threaded) {
+					serverSide.add(sc.socket());
+					startThreadedEcho(sc.socket());
+				} else {
+					Echo echo = new Echo();
+					echo.conn = loop.register(sc, echo);
+					executor.execute(echo);
+				}
+			}
+			Thread.sleep(1000);
+			int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+			long mem = usedMemory() - memBefore;
+
+			// Now some of them send a burst of small messages, like FCP progress updates.
+			final byte[] msg = new byte[200];
+			long start = System.nanoTime();
+			List<Thread> senders = new ArrayList<Thread>();
+			for(int i=0;i<active;i++) {
+				final Socket s = conns.get(i);
+				final int count = messages;
+				Thread t = new Thread() {
+					@Override
+					public void run() {
+						try {
+							DataInputStream dis = new DataInputStream(s.getInputStream());
+							byte[] reply = new byte[msg.length];
+							for(int j=0;j<count;j++) {
+								s.getOutputStream().write(msg);
+								dis.readFully(reply);
+							}
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				};
+				t.start();
+				senders.add(t);
+			}
+			for(Thread t : senders)
+				t.join();
+			long elapsed = System.nanoTime() - start;
+			System.out.println((threaded ? "Threaded" : "Selector")+": "+connections+" connections: "+
+					threads+" extra threads, ~"+(mem/1024)+"KiB heap; "+(active*messages)+
+					" round trips on "+active+" active connections in "+
+					TimeUnit.NANOSECONDS.toMillis(elapsed)+"ms ("+
+					(active*messages*1000000000L/elapsed)+" per second)");
+			for(Socket s : conns) {
+				s.close();
+				clients.remove(s);
+			}
+			for(Socket s : serverSide)
+				s.close();
+			Thread.sleep(1000);
+		}
+	}
+
+	private void startThreadedEcho(final Socket s) {
+		new Thread() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[4096];
+				try {
+					InputStream is = s.getInputStream();
+					OutputStream os = s.getOutputStream();
+					while(true) {
+						int read = is.read(buf);
+						if(read < 0) return;
+						os.write(buf, 0, read);
+					}
+				} catch (IOException e) {
+					// Closed.
+				}
+			}
+		}.start();
+	}
+
+	private static long usedMemory() {
+		Runtime r = Runtime.getRuntime();
+		for(int i=0;i<3;i++) System.gc();
+		return r.totalMemory() - r.freeMemory();
+	}
+
+}
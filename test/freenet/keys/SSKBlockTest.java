@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DSAGroup;
+import freenet.crypt.DSAPrivateKey;
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.Global;
+import freenet.crypt.RandomSource;
+import freenet.crypt.SHA256;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor;
+import freenet.support.compress.InvalidCompressionCodecException;
+
+public class SSKBlockTest extends TestCase {
+
+	private final RandomSource random = new DummyRandomSource(0xDDDDDDDDL);
+
+	private SSKBlock makeBlock(String docName, String content) throws SSKEncodeException, IOException, InvalidCompressionCodecException {
+		byte[] ckey = new byte[32];
+		random.nextBytes(ckey);
+		DSAGroup g = Global.DSAgroupBigA;
+		DSAPrivateKey privKey = new DSAPrivateKey(g, random);
+		DSAPublicKey pubKey = new DSAPublicKey(g, privKey);
+		byte[] pkHash = SHA256.digest(pubKey.asBytes());
+		InsertableClientSSK ik = new InsertableClientSSK(docName, pkHash, pubKey, privKey, ckey, Key.ALGO_AES_PCFB_256_SHA256);
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(content.getBytes("UTF-8"));
+		ClientSSKBlock block = ik.encode(bucket, false, false, (short)-1, bucket.size(), random, Compressor.DEFAULT_COMPRESSORDESCRIPTOR);
+		return (SSKBlock) block.getBlock();
+	}
+
+	public void testVerify() throws Exception {
+		SSKBlock block = makeBlock("testVerify", "test");
+		// Twice, so the second time is from the cache.
+		for(int i=0;i<2;i++)
+			new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+	}
+
+	public void testTamperedRejected() throws Exception {
+		SSKBlock block = makeBlock("testTamperedRejected", "test");
+		// Make sure the original is in the cache.
+		new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+		int[] headerBytes = new int[] {
+			4, // E(H(docname))
+			SSKBlock.E_H_DOCNAME_LENGTH + 4, // Encrypted headers
+			SSKBlock.TOTAL_HEADERS_LENGTH - SSKBlock.SIG_S_LENGTH - 1, // R
+			SSKBlock.TOTAL_HEADERS_LENGTH - 1, // S
+		};
+		for(int index : headerBytes) {
+			byte[] headers = block.getRawHeaders().clone();
+			headers[index] ^= 1;
+			assertRejected(block.getRawData(), headers, block.getKey());
+			// Again, in case it was cached anyway.
+			assertRejected(block.getRawData(), headers, block.getKey());
+		}
+		byte[] data = block.getRawData().clone();
+		data[100] ^= 1;
+		assertRejected(data, block.getRawHeaders(), block.getKey());
+		// Signed by a different key.
+		SSKBlock other = makeBlock("testTamperedRejected", "test");
+		assertRejected(other.getRawData(), other.getRawHeaders(), block.getKey());
+	}
+
+	private void assertRejected(byte[] data, byte[] headers, NodeSSK key) {
+		try {
+			new SSKBlock(data, headers, key, false);
+			fail();
+		} catch (SSKVerifyException e) {
+			// This is expected
+		}
+	}
+
+	public void testBenchmarkVerify() throws Exception {
+		// ant -Dtest.skip=false -Dtest.class=freenet.keys.SSKBlockTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		final int count = 500;
+		SSKBlock[] blocks = new SSKBlock[count];
+		for(int i=0;i<count;i++)
+			blocks[i] = makeBlock("testBenchmarkVerify", Integer.toString(i));
+		long start = System.nanoTime();
+		for(SSKBlock block : blocks)
+			new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+		long first = System.nanoTime() - start;
+		start = System.nanoTime();
+		for(int j=0;j<10;j++)
+			for(SSKBlock block : blocks)
+				new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+		long again = System.nanoTime() - start;
+		System.out.println("New blocks: "+(count * 1000000000L / first)+" verifications/sec, "+
+				"seen before: "+(count * 10 * 1000000000L / again)+" verifications/sec");
+	}
+
+}
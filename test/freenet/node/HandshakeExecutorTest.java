@@ -0,0 +1,166 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import freenet.io.comm.Peer;
+import freenet.support.PooledExecutor;
+
+public class HandshakeExecutorTest extends TestCase {
+
+	private Peer peer(int i) throws UnknownHostException {
+		return new Peer(InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }), 12345);
+	}
+
+	/** Occupies a lane's thread until released. */
+	private static class Blocker implements Runnable {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+	}
+
+	public void testOrderedPerAddress() throws Exception {
+		HandshakeExecutor exec = new HandshakeExecutor(new PooledExecutor(), 3, Node.HANDSHAKE_TIMEOUT);
+		final int count = 100;
+		final CountDownLatch done = new CountDownLatch(count * 4);
+		final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+		for(int p=0;p<4;p++)
+			seen.add(new ArrayList<Integer>());
+		for(int i=0;i<count;i++) {
+			for(int p=0;p<seen.size();p++) {
+				final List<Integer> list = seen.get(p);
+				final int value = i;
+				assertTrue(exec.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						synchronized(list) {
+							list.add(value);
+						}
+						done.countDown();
+					}
+
+				}, peer(p), false, false));
+			}
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for(List<Integer> list : seen) {
+			synchronized(list) {
+				assertEquals(count, list.size());
+				for(int i=0;i<count;i++)
+					assertEquals(i, (int) list.get(i));
+			}
+		}
+		// The last job counts down before it is counted as processed.
+		long deadline = System.currentTimeMillis() + 10000;
+		while(exec.getProcessed() < count * 4 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count * 4, exec.getProcessed());
+	}
+
+	public void testShedsNewHandshakesFirst() throws Exception {
+		HandshakeExecutor exec = new HandshakeExecutor(new PooledExecutor(), 1, Node.HANDSHAKE_TIMEOUT);
+		Blocker blocker = new Blocker();
+		Peer peer = peer(1);
+		assertTrue(exec.execute(blocker, peer, false, false));
+		assertTrue(blocker.started.await(10, TimeUnit.SECONDS));
+		final int size = HandshakeExecutor.QUEUE_SIZE;
+		Runnable nothing = new Runnable() {
+
+			@Override
+			public void run() {
+				// Do nothing
+			}
+
+		};
+		for(int i=0;i<size/2;i++)
+			assertTrue(exec.execute(nothing, peer, false, true));
+		// Half full: no more new handshakes, but messages for handshakes in progress are fine.
+		assertFalse(exec.execute(nothing, peer, false, true));
+		for(int i=size/2;i<size;i++)
+			assertTrue(exec.execute(nothing, peer, false, false));
+		assertEquals(size, exec.getQueueSize());
+		// Full.
+		assertFalse(exec.execute(nothing, peer, false, false));
+		assertEquals(1, exec.getDroppedNew());
+		assertEquals(1, exec.getDroppedFull());
+		blocker.release.countDown();
+		long deadline = System.currentTimeMillis() + 10000;
+		while(exec.getProcessed() < size + 1 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(size + 1, exec.getProcessed());
+		assertEquals(0, exec.getQueueSize());
+	}
+
+	public void testOpennetDoesNotDelayDarknet() throws Exception {
+		HandshakeExecutor exec = new HandshakeExecutor(new PooledExecutor(), 1, Node.HANDSHAKE_TIMEOUT);
+		Blocker blocker = new Blocker();
+		Peer peer = peer(1);
+		assertTrue(exec.execute(blocker, peer, true, false));
+		assertTrue(blocker.started.await(10, TimeUnit.SECONDS));
+		Runnable nothing = new Runnable() {
+
+			@Override
+			public void run() {
+				// Do nothing
+			}
+
+		};
+		// Flood of new opennet handshakes.
+		for(int i=0;i<HandshakeExecutor.QUEUE_SIZE/2;i++)
+			assertTrue(exec.execute(nothing, peer, true, true));
+		assertFalse(exec.execute(nothing, peer, true, true));
+		// Darknet handshakes are still accepted and processed.
+		final CountDownLatch ran = new CountDownLatch(1);
+		assertTrue(exec.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+
+		}, peer, false, true));
+		assertTrue(ran.await(10, TimeUnit.SECONDS));
+		blocker.release.countDown();
+	}
+
+	public void testDropsStale() throws Exception {
+		HandshakeExecutor exec = new HandshakeExecutor(new PooledExecutor(), 1, 50);
+		Blocker blocker = new Blocker();
+		Peer peer = peer(1);
+		assertTrue(exec.execute(blocker, peer, false, false));
+		assertTrue(blocker.started.await(10, TimeUnit.SECONDS));
+		final CountDownLatch ran = new CountDownLatch(1);
+		assertTrue(exec.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+
+		}, peer, false, false));
+		Thread.sleep(200);
+		blocker.release.countDown();
+		assertFalse(ran.await(500, TimeUnit.MILLISECONDS));
+		assertEquals(1, exec.getDroppedStale());
+		assertEquals(1, exec.getProcessed());
+	}
+
+}
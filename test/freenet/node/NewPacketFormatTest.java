@@ -18,6 +18,7 @@ import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Message;
 import freenet.io.comm.Peer;
 import freenet.support.MutableBoolean;
+import freenet.support.TestProperty;
 
 public class NewPacketFormatTest extends TestCase {
 	@Override
@@ -447,4 +448,113 @@ public class NewPacketFormatTest extends TestCase {
 		assertTrue(Arrays.equals(message, copyOfMessage));
 		assertTrue(Arrays.equals(message, receiverNode.decryptedMessages.get(0)));
 	}
+
+	/** Sender and receiver sides of a connection, with real keys, as after a handshake. */
+	private static class EncryptedConnection {
+		final NullBasePeerNode senderNode = new NullBasePeerNode();
+		final NullBasePeerNode receiverNode = new NullBasePeerNode();
+		final NewPacketFormat senderNPF;
+		final NewPacketFormat receiverNPF;
+		final SessionKey senderKey;
+		final PeerMessageQueue senderQueue = new PeerMessageQueue();
+
+		EncryptedConnection(Random random) throws Exception {
+			byte[] outgoingKey = new byte[32];
+			random.nextBytes(outgoingKey);
+			BlockCipher outgoingCipher = new Rijndael();
+			outgoingCipher.initialize(outgoingKey);
+			byte[] incomingKey = new byte[32];
+			random.nextBytes(incomingKey);
+			BlockCipher incomingCipher = new Rijndael();
+			incomingCipher.initialize(incomingKey);
+			BlockCipher ivCipher = new Rijndael();
+			byte[] ivKey = new byte[32];
+			random.nextBytes(ivKey);
+			ivCipher.initialize(ivKey);
+			byte[] ivNonce = new byte[16];
+			random.nextBytes(ivNonce);
+			byte[] hmacKey = new byte[32];
+			random.nextBytes(hmacKey);
+			senderKey = new SessionKey(null, outgoingCipher, outgoingKey, incomingCipher, incomingKey,
+					ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 0);
+			SessionKey receiverKey = new SessionKey(null, incomingCipher, incomingKey, outgoingCipher, outgoingKey,
+					ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 0);
+			senderNode.currentKey = senderKey;
+			receiverNode.currentKey = receiverKey;
+			senderNode.messageQueue = senderQueue;
+			receiverNode.decryptedMessages = new ArrayList<byte[]>();
+			senderNPF = new NewPacketFormat(senderNode, 0, 0);
+			receiverNPF = new NewPacketFormat(receiverNode, 0, 0);
+		}
+
+		/** Send a message too big to wait to be coalesced with others, and return the packets
+		 * it was sent in. */
+		List<byte[]> send(byte[] message) throws BlockedTooLongException {
+			senderQueue.queueAndEstimateSize(new MessageItem(message, null, false, null, (short) 0, false, false), message.length);
+			List<byte[]> packets = new ArrayList<byte[]>();
+			while(senderNPF.maybeSendPacket(false, senderKey))
+				packets.add(senderNode.sentEncryptedPacket);
+			return packets;
+		}
+
+		boolean receive(byte[] data) throws UnknownHostException {
+			return receiverNPF.handleReceivedPacket(data, 0, data.length, System.currentTimeMillis(),
+					new Peer(new FreenetInetAddress("127.0.0.1", true), 1234));
+		}
+	}
+
+	public void testCorruptedPacketRejected() throws Exception {
+		Random random = new Random(120117);
+		EncryptedConnection connection = new EncryptedConnection(random);
+		byte[] message = new byte[2000];
+		random.nextBytes(message);
+		List<byte[]> packets = connection.send(message);
+		assertEquals(2, packets.size());
+		byte[] data = packets.get(0);
+		// The MAC, the encrypted sequence number, and the payload.
+		for(int i : new int[] { 0, 9, 10, 14, data.length - 1 }) {
+			byte[] corrupted = data.clone();
+			corrupted[i] ^= 1;
+			assertFalse(connection.receive(corrupted));
+		}
+		for(byte[] packet : packets)
+			assertTrue(connection.receive(packet));
+		assertEquals(1, connection.receiverNode.decryptedMessages.size());
+		assertTrue(Arrays.equals(message, connection.receiverNode.decryptedMessages.get(0)));
+	}
+
+	/** Encrypting, authenticating, checking and decrypting full size packets. */
+	public void testBenchmarkEncodeDecode() throws Exception {
+		// ant -Dtest.skip=false -Dtest.class=freenet.node.NewPacketFormatTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		Random random = new Random(120118);
+		// Two nearly full packets each.
+		byte[] message = new byte[2400];
+		random.nextBytes(message);
+		// Nothing is acked, so use a new connection before filling the send buffer.
+		int messagesPerConnection = 100;
+		int connections = 100;
+		for(int round=0;round<3;round++) {
+			long encodeTime = 0;
+			long decodeTime = 0;
+			int packets = 0;
+			for(int c=0;c<connections;c++) {
+				EncryptedConnection connection = new EncryptedConnection(random);
+				List<byte[]> sent = new ArrayList<byte[]>();
+				long start = System.nanoTime();
+				for(int i=0;i<messagesPerConnection;i++)
+					sent.addAll(connection.send(message));
+				long encoded = System.nanoTime();
+				for(byte[] packet : sent)
+					assertTrue(connection.receive(packet));
+				long decoded = System.nanoTime();
+				assertEquals(messagesPerConnection, connection.receiverNode.decryptedMessages.size());
+				encodeTime += encoded - start;
+				decodeTime += decoded - encoded;
+				packets += sent.size();
+			}
+			System.out.println("Encode: "+(packets * 1000L * 1000 * 1000 / encodeTime)+" packets/sec, decode: "+
+					(packets * 1000L * 1000 * 1000 / decodeTime)+" packets/sec");
+		}
+	}
 }
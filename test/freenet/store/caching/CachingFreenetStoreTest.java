@@ -30,6 +30,7 @@ import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
 import freenet.keys.KeyDecodeException;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
@@ -115,6 +116,43 @@ public class CachingFreenetStoreTest extends TestCase {
 
 	/* Check that if the size limit is 0 (and therefore presumably if it is smaller than the key being
 	 * cached), we will pass through immediately. */
+	/* Batch lookup of keys in the cache, in the underlying store, and in neither */
+	public void testFetchAllCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, KeyCollisionException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreFetchAllCHK", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore, tracker);
+		cachingStore.start(null, true);
+
+		final int keys = 9;
+		ClientCHK[] clientKeys = new ClientCHK[keys];
+		NodeCHK[] nodeKeys = new NodeCHK[keys];
+		for(int i=0;i<keys;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			clientKeys[i] = block.getClientKey();
+			nodeKeys[i] = clientKeys[i].getNodeCHK();
+			CHKBlock chk = block.getBlock();
+			if(i % 3 == 0)
+				store.put(chk, false); // Cache
+			else if(i % 3 == 1)
+				saltStore.put(chk, chk.getRawData(), chk.getRawHeaders(), false, false); // Underlying store
+		}
+
+		List<CHKBlock> found = store.fetchAll(nodeKeys, false, false);
+		assertEquals(keys, found.size());
+		for(int i=0;i<keys;i++) {
+			if(i % 3 == 2)
+				assertNull(found.get(i));
+			else
+				assertEquals("test" + i, decodeBlockCHK(found.get(i), clientKeys[i]));
+		}
+
+		cachingStore.close();
+	}
+
 	public void testZeroSize() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		File f = new File(tempDir, "saltstore");
 		FileUtil.removeAll(f);
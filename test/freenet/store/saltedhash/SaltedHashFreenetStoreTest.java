@@ -2,6 +2,7 @@ package freenet.store.saltedhash;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -24,6 +25,7 @@ import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
 import freenet.keys.KeyDecodeException;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
@@ -96,6 +98,46 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 
+	/* Batch lookup of present and absent CHKs, with and without the slot filter */
+	public void testFetchAllCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		for(boolean useSlotFilter : new boolean[] { false, true }) {
+			File f = new File(tempDir, "saltstore");
+			FileUtil.removeAll(f);
+
+			CHKStore store = new CHKStore();
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreFetchAllCHK", store, weakPRNG, 40, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(null, true);
+
+			final int keys = 12;
+			ClientCHK[] clientKeys = new ClientCHK[keys];
+			NodeCHK[] nodeKeys = new NodeCHK[keys];
+			for(int i=0;i<keys;i++) {
+				ClientCHKBlock block = encodeBlockCHK("test" + i);
+				clientKeys[i] = block.getClientKey();
+				nodeKeys[i] = clientKeys[i].getNodeCHK();
+				// Only store the even ones.
+				if(i % 2 == 0)
+					store.put(block.getBlock(), false);
+			}
+
+			long hits = saltStore.hits();
+			long misses = saltStore.misses();
+			List<CHKBlock> found = store.fetchAll(nodeKeys, false, false);
+			assertEquals(keys, found.size());
+			for(int i=0;i<keys;i++) {
+				if(i % 2 == 0)
+					assertEquals("test" + i, decodeBlockCHK(found.get(i), clientKeys[i]));
+				else
+					assertNull(found.get(i));
+			}
+			// One hit or miss per key, not per slot read.
+			assertEquals(keys / 2, saltStore.hits() - hits);
+			assertEquals(keys / 2, saltStore.misses() - misses);
+
+			saltStore.close();
+		}
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
 		File f = new File(tempDir, "saltstore");
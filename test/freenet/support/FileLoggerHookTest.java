@@ -0,0 +1,157 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import freenet.support.Logger.LogLevel;
+
+public class FileLoggerHookTest extends TestCase {
+
+	/** Collects the log, and lets us wait for the writer thread to close it. */
+	private static class ClosingStream extends ByteArrayOutputStream {
+		final CountDownLatch closed = new CountDownLatch(1);
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			closed.countDown();
+		}
+
+		String waitForLog() throws InterruptedException {
+			assertTrue(closed.await(10, SECONDS));
+			return new String(toByteArray());
+		}
+	}
+
+	private static FileLoggerHook hook(OutputStream os) throws Exception {
+		FileLoggerHook hook = new FileLoggerHook(os, "p c t: m", "HH:mm:ss", LogLevel.NORMAL, false);
+		hook.setMaxBacklogNotBusy(10);
+		return hook;
+	}
+
+	public void testFormat() throws Exception {
+		ClosingStream os = new ClosingStream();
+		FileLoggerHook hook = hook(os);
+		hook.start();
+		hook.log(this, FileLoggerHookTest.class, "Hello", null, LogLevel.ERROR);
+		hook.log(this, FileLoggerHookTest.class, "Not logged", null, LogLevel.MINOR);
+		hook.log(this, FileLoggerHookTest.class, "Failed", new Exception("Oops"), LogLevel.WARNING);
+		hook.logString("Already formatted\n".getBytes("UTF-8"));
+		hook.close();
+		String log = os.waitForLog();
+		String thread = Thread.currentThread().getName();
+		String[] lines = log.split("\n");
+		assertEquals("ERROR freenet.support.FileLoggerHookTest "+thread+": Hello", lines[0]);
+		assertEquals("WARNING freenet.support.FileLoggerHookTest "+thread+": Failed", lines[1]);
+		assertEquals("java.lang.Exception: Oops", lines[2]);
+		assertTrue(lines[3].startsWith("\tat freenet.support.FileLoggerHookTest.testFormat"));
+		assertEquals("Already formatted", lines[lines.length-1]);
+		assertFalse(log.contains("Not logged"));
+		assertEquals(0, hook.listBytes());
+	}
+
+	public void testConcurrentLogging() throws Exception {
+		ClosingStream os = new ClosingStream();
+		final FileLoggerHook hook = hook(os);
+		hook.start();
+		final int threads = 4;
+		final int messages = 2000;
+		Thread[] loggers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final int id = i;
+			loggers[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<messages;j++) {
+						hook.log(null, FileLoggerHookTest.class, "thread "+id+" message "+j, null, LogLevel.NORMAL);
+						// The queue only holds 10000 messages, give the writer a chance.
+						if(j % 100 == 0) Thread.yield();
+					}
+				}
+			};
+			loggers[i].start();
+		}
+		for(Thread t : loggers) t.join();
+		hook.close();
+		String log = os.waitForLog();
+		assertFalse(log.contains("chopped"));
+		String[] lines = log.split("\n");
+		assertEquals(threads * messages, lines.length);
+		// Each thread's messages are in order.
+		int[] next = new int[threads];
+		for(String line : lines) {
+			String msg = line.substring(line.indexOf(": ")+2);
+			String[] words = msg.split(" ");
+			int id = Integer.parseInt(words[1]);
+			assertEquals(next[id]++, Integer.parseInt(words[3]));
+		}
+	}
+
+	public void testDropsWhenFull() throws Exception {
+		ClosingStream os = new ClosingStream();
+		FileLoggerHook hook = hook(os);
+		// Only room for one message, and the writer isn't running yet.
+		hook.setMaxListBytes(1);
+		for(int i=0;i<10;i++)
+			hook.log(null, FileLoggerHookTest.class, "message "+i, null, LogLevel.NORMAL);
+		hook.start();
+		hook.close();
+		String log = os.waitForLog();
+		assertTrue(log.startsWith("GRRR: ERROR: Logging too fast, chopped 9 entries"));
+		assertTrue(log.contains("message 0\n"));
+		assertFalse(log.contains("message 1\n"));
+	}
+
+	/** Throughput of several threads logging at once, with the writer formatting everything. */
+	public void testBenchmarkConcurrentLogging() throws Exception {
+		// ant -Dtest.skip=false -Dtest.class=freenet.support.FileLoggerHookTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		final int messages = 200000;
+		for(int threads=1;threads<=16;threads*=2) {
+			final FileLoggerHook hook = new FileLoggerHook(new OutputStream() {
+				@Override
+				public void write(int b) {
+					// Discard.
+				}
+				@Override
+				public void write(byte[] buf, int offset, int length) {
+					// Discard.
+				}
+			}, "d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.NORMAL, false);
+			hook.start();
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] loggers = new Thread[threads];
+			for(int i=0;i<threads;i++) {
+				loggers[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						for(int j=0;j<messages;j++)
+							hook.log(this, FileLoggerHookTest.class, "Benchmark message", null, LogLevel.NORMAL);
+					}
+				};
+				loggers[i].start();
+			}
+			long startTime = System.nanoTime();
+			start.countDown();
+			for(Thread t : loggers) t.join();
+			long time = System.nanoTime() - startTime;
+			hook.close();
+			System.out.println(threads+" threads: "+(threads * (long)messages * 1000 * 1000 * 1000 / time)+" messages/sec logged, "+
+					(time / messages)+"ns per call per thread");
+		}
+	}
+
+}
@@ -15,6 +15,12 @@
  */
 package freenet.support;
 
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -713,4 +719,72 @@ public class HTMLNodeTest extends TestCase {
 		
 	}
 
+
+	/**
+	 * Tests generate(Writer) gives the same output as generate(),
+	 * for a page big enough to be written out in several pieces.
+	 */
+	public void testGenerate_Writer() throws IOException {
+		HTMLNode methodHTMLNodeDoc = new HTMLNode.HTMLDoctype("html", "-//W3C//DTD XHTML 1.1//EN");
+		HTMLNode html = methodHTMLNodeDoc.addChild("html");
+		HTMLNode table = html.addChild("body").addChild("div").addChild("table");
+		for(int i=0;i<2000;i++) {
+			HTMLNode row = table.addChild("tr");
+			row.addChild("td", "class", "row", "Row "+i+" <&>");
+			row.addChild("#", "text");
+		}
+		StringWriter sw = new StringWriter();
+		CountingWriter counting = new CountingWriter(sw);
+		methodHTMLNodeDoc.generate(counting);
+		assertEquals(methodHTMLNodeDoc.generate(), sw.toString());
+		assertTrue(counting.writes > 1);
+	}
+
+	/**
+	 * Tests HTMLNode.LazyNodes renders its nodes where they are
+	 * in the tree, each time it is generated.
+	 */
+	public void testLazyNodes() throws IOException {
+		final int[] created = new int[1];
+		Iterable<HTMLNode> rows = new Iterable<HTMLNode>() {
+			@Override
+			public Iterator<HTMLNode> iterator() {
+				List<HTMLNode> list = new ArrayList<HTMLNode>();
+				for(int i=0;i<3;i++) {
+					created[0]++;
+					HTMLNode row = new HTMLNode("tr");
+					row.addChild("td", Integer.toString(i));
+					list.add(row);
+				}
+				return list.iterator();
+			}
+		};
+		HTMLNode eager = new HTMLNode("table");
+		for(int i=0;i<3;i++)
+			eager.addChild("tr").addChild("td", Integer.toString(i));
+		HTMLNode lazy = new HTMLNode("table");
+		lazy.addChild(new HTMLNode.LazyNodes(rows));
+		assertEquals(0, created[0]);
+		assertEquals(eager.generate(), lazy.generate());
+		assertEquals(3, created[0]);
+		StringWriter sw = new StringWriter();
+		lazy.generate(sw);
+		assertEquals(eager.generate(), sw.toString());
+		assertEquals(6, created[0]);
+	}
+
+	private static class CountingWriter extends FilterWriter {
+		int writes;
+
+		CountingWriter(Writer out) {
+			super(out);
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			writes++;
+			super.write(str, off, len);
+		}
+	}
+
 }
@@ -0,0 +1,234 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.node.FastRunnable;
+
+public class TimingWheelTickerTest extends TestCase {
+
+	/** A ticker whose clock only moves when we say so. Not started. */
+	private static class FakeClockTicker extends TimingWheelTicker {
+		long now;
+
+		FakeClockTicker() {
+			super(new PooledExecutor(), 0);
+		}
+
+		@Override
+		long nowTick() {
+			return now;
+		}
+
+		/** Move the clock on, and run whatever is due. */
+		void advanceTo(long time) {
+			now = time;
+			runDueJobs();
+		}
+	}
+
+	/** Records when it ran, in-line on the ticker. */
+	private static class TimedJob implements FastRunnable {
+		final FakeClockTicker ticker;
+		final long due;
+		long ranAt = -1;
+		int runs;
+
+		TimedJob(FakeClockTicker ticker, long due) {
+			this.ticker = ticker;
+			this.due = due;
+		}
+
+		@Override
+		public void run() {
+			ranAt = ticker.now;
+			runs++;
+		}
+	}
+
+	public void testRunsOnTime() {
+		FakeClockTicker ticker = new FakeClockTicker();
+		Random random = new Random(1234);
+		List<TimedJob> jobs = new ArrayList<TimedJob>();
+		// Offsets on every level, and some beyond the end of the wheel.
+		long[] ranges = new long[] { 64, 4096, 262144, 16777216, TimingWheelTicker.MAX_SPAN, TimingWheelTicker.MAX_SPAN * 3 };
+		for(long range : ranges) {
+			for(int i=0;i<200;i++) {
+				long offset = (long) (random.nextDouble() * range);
+				TimedJob job = new TimedJob(ticker, offset);
+				ticker.queueTimedJob(job, "test", offset, true, false);
+				jobs.add(job);
+			}
+		}
+		// Exactly on the boundaries between levels.
+		for(int level=1;level<TimingWheelTicker.LEVELS;level++) {
+			long offset = 1L << (6 * level);
+			TimedJob job = new TimedJob(ticker, offset);
+			ticker.queueTimedJob(job, "test", offset, true, false);
+			jobs.add(job);
+		}
+		assertEquals(jobs.size(), ticker.queuedJobs());
+		long end = TimingWheelTicker.MAX_SPAN * 3;
+		while(ticker.now < end) {
+			// Sometimes a tick at a time, sometimes a long way.
+			long step = random.nextInt(4) == 0 ? 1 : (long) (random.nextDouble() * random.nextDouble() * 100000000);
+			ticker.advanceTo(ticker.now + step);
+			for(TimedJob job : jobs) {
+				if(job.due <= ticker.now) {
+					// Ran exactly once, in the first step which reached its time.
+					assertEquals(1, job.runs);
+					assertTrue(job.ranAt >= job.due);
+				} else {
+					assertEquals(0, job.runs);
+				}
+			}
+		}
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testEveryTick() {
+		FakeClockTicker ticker = new FakeClockTicker();
+		List<TimedJob> jobs = new ArrayList<TimedJob>();
+		for(int i=0;i<5000;i++) {
+			TimedJob job = new TimedJob(ticker, i);
+			ticker.queueTimedJob(job, "test", i, true, false);
+			jobs.add(job);
+		}
+		for(long t=0;t<5000;t++) {
+			ticker.advanceTo(t);
+			assertEquals(t == 0 ? 5000 : 5000 - t - 1, ticker.queuedJobs());
+		}
+		for(TimedJob job : jobs)
+			assertEquals(Math.max(1, job.due), job.ranAt);
+	}
+
+	public void testCancel() {
+		FakeClockTicker ticker = new FakeClockTicker();
+		TimedJob a = new TimedJob(ticker, 100);
+		TimedJob b = new TimedJob(ticker, 100000);
+		TimingWheelTicker.Timeout ta = ticker.schedule(a, "a", 100, true);
+		ticker.queueTimedJob(b, "b", 100000, true, false);
+		assertEquals(2, ticker.queuedJobs());
+		assertTrue(ta.cancel());
+		assertFalse(ta.cancel());
+		ticker.removeQueuedJob(b);
+		assertEquals(0, ticker.queuedJobs());
+		ticker.advanceTo(200000);
+		assertEquals(0, a.runs);
+		assertEquals(0, b.runs);
+	}
+
+	public void testNoDupes() {
+		FakeClockTicker ticker = new FakeClockTicker();
+		TimedJob job = new TimedJob(ticker, 100);
+		ticker.queueTimedJob(job, "test", 1000, false, true);
+		// Later: Ignored.
+		ticker.queueTimedJob(job, "test", 2000, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		// Earlier: Replaces it.
+		ticker.queueTimedJob(job, "test", 100, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.advanceTo(100);
+		assertEquals(1, job.runs);
+		ticker.advanceTo(5000);
+		assertEquals(1, job.runs);
+		// Without noDupes, both run.
+		ticker.queueTimedJob(job, "test", 100, true, false);
+		ticker.queueTimedJob(job, "test", 200, true, false);
+		ticker.advanceTo(6000);
+		assertEquals(3, job.runs);
+	}
+
+	public void testRealTime() throws InterruptedException {
+		TimingWheelTicker ticker = new TimingWheelTicker(new PooledExecutor(), 0);
+		ticker.start();
+		final CountDownLatch done = new CountDownLatch(3);
+		final long start = System.currentTimeMillis();
+		final AtomicInteger early = new AtomicInteger();
+		for(final int delay : new int[] { 0, 50, 300 }) {
+			ticker.queueTimedJob(new Runnable() {
+				@Override
+				public void run() {
+					if(System.currentTimeMillis() - start < delay - 1) early.incrementAndGet();
+					done.countDown();
+				}
+			}, "test", delay, true, false);
+		}
+		assertTrue(done.await(10, SECONDS));
+		assertEquals(0, early.get());
+	}
+
+	/** Many threads scheduling request timeouts and cancelling most of them before they are due,
+	 * on PrioritizedTicker and on TimingWheelTicker. */
+	public void testBenchmarkScheduleAndCancel() throws InterruptedException {
+		// ant -Dtest.skip=false -Dtest.class=freenet.support.TimingWheelTickerTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		final int threads = 4;
+		final int jobsPerThread = 200000;
+		for(int mode=0;mode<3;mode++) {
+			final Ticker ticker;
+			if(mode == 0) {
+				PrioritizedTicker t = new PrioritizedTicker(new PooledExecutor(), 0);
+				t.start();
+				ticker = t;
+			} else {
+				TimingWheelTicker t = new TimingWheelTicker(new PooledExecutor(), 0);
+				t.start();
+				ticker = t;
+			}
+			final boolean handles = mode == 2;
+			Thread[] workers = new Thread[threads];
+			final CountDownLatch go = new CountDownLatch(1);
+			for(int i=0;i<threads;i++) {
+				workers[i] = new Thread() {
+					@Override
+					public void run() {
+						Random random = new Random();
+						Runnable[] jobs = new Runnable[jobsPerThread];
+						for(int j=0;j<jobsPerThread;j++) {
+							jobs[j] = new Runnable() {
+								@Override
+								public void run() {
+									// Do nothing.
+								}
+							};
+						}
+						try {
+							go.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						for(int j=0;j<jobsPerThread;j++) {
+							long offset = 10000 + random.nextInt(50000);
+							if(handles) {
+								TimingWheelTicker.Timeout t = ((TimingWheelTicker)ticker).schedule(jobs[j], "timeout", offset, true);
+								if(j % 10 != 0) t.cancel();
+							} else {
+								ticker.queueTimedJob(jobs[j], "timeout", offset, true, false);
+								if(j % 10 != 0) ticker.removeQueuedJob(jobs[j]);
+							}
+						}
+					}
+				};
+				workers[i].start();
+			}
+			long start = System.nanoTime();
+			go.countDown();
+			for(Thread t : workers) t.join();
+			long time = System.nanoTime() - start;
+			String name = mode == 0 ? "PrioritizedTicker" : handles ? "TimingWheelTicker (handles)" : "TimingWheelTicker";
+			System.out.println(name+": "+(threads * (long)jobsPerThread * 1000 * 1000 * 1000 / time)+
+					" schedules per second, 90% cancelled, "+threads+" threads");
+		}
+	}
+
+}
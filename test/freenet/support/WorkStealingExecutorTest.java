@@ -0,0 +1,181 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+public class WorkStealingExecutorTest extends TestCase {
+
+	private abstract static class Job implements NonBlockingRunnable, PrioRunnable {
+		private final int priority;
+
+		Job(int priority) {
+			this.priority = priority;
+		}
+
+		@Override
+		public int getPriority() {
+			return priority;
+		}
+	}
+
+	/** Occupies a carrier until released. */
+	private static class Blocker extends Job {
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		Blocker() {
+			super(NativeThread.NORM_PRIORITY);
+		}
+
+		@Override
+		public void run() {
+			running.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+	}
+
+	private static boolean onCarrier() {
+		return Thread.currentThread().getName().startsWith("Carrier thread");
+	}
+
+	private WorkStealingExecutor executor(int carriers) {
+		WorkStealingExecutor executor = new WorkStealingExecutor(new PooledExecutor(), carriers);
+		executor.start();
+		return executor;
+	}
+
+	public void testBlockingJobsUseElasticPool() throws InterruptedException {
+		WorkStealingExecutor executor = executor(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final boolean[] carrier = new boolean[1];
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				carrier[0] = onCarrier();
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(10, SECONDS));
+		assertFalse(carrier[0]);
+	}
+
+	public void testNonBlockingJobs() throws InterruptedException {
+		WorkStealingExecutor executor = executor(2);
+		final int count = 1000;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicInteger notOnCarrier = new AtomicInteger();
+		for(int i=0;i<count;i++) {
+			executor.execute(new Job(NativeThread.MIN_PRIORITY + i % NativeThread.MAX_PRIORITY) {
+				@Override
+				public void run() {
+					if(!onCarrier()) notOnCarrier.incrementAndGet();
+					done.countDown();
+				}
+			}, "test");
+		}
+		assertTrue(done.await(10, SECONDS));
+		assertEquals(0, notOnCarrier.get());
+		for(int queued : executor.queuedJobs())
+			assertEquals(0, queued);
+	}
+
+	public void testPriorityOrder() throws InterruptedException {
+		WorkStealingExecutor executor = executor(1);
+		Blocker blocker = new Blocker();
+		executor.execute(blocker);
+		assertTrue(blocker.running.await(10, SECONDS));
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(4);
+		int[] priorities = new int[] { NativeThread.LOW_PRIORITY, NativeThread.MAX_PRIORITY,
+				NativeThread.NORM_PRIORITY, NativeThread.MAX_PRIORITY };
+		for(final int prio : priorities) {
+			executor.execute(new Job(prio) {
+				@Override
+				public void run() {
+					order.add(prio);
+					done.countDown();
+				}
+			});
+		}
+		int[] queued = executor.queuedJobs();
+		assertEquals(2, queued[NativeThread.MAX_PRIORITY - 1]);
+		assertEquals(1, queued[NativeThread.LOW_PRIORITY - 1]);
+		assertEquals(1, executor.runningThreads()[NativeThread.NORM_PRIORITY - 1]);
+		blocker.release.countDown();
+		assertTrue(done.await(10, SECONDS));
+		assertEquals(Integer.valueOf(NativeThread.MAX_PRIORITY), order.get(0));
+		assertEquals(Integer.valueOf(NativeThread.MAX_PRIORITY), order.get(1));
+		assertEquals(Integer.valueOf(NativeThread.NORM_PRIORITY), order.get(2));
+		assertEquals(Integer.valueOf(NativeThread.LOW_PRIORITY), order.get(3));
+	}
+
+	public void testStealing() throws InterruptedException {
+		final WorkStealingExecutor executor = executor(2);
+		final CountDownLatch done = new CountDownLatch(2);
+		final Blocker blocker = new Blocker() {
+			@Override
+			public void run() {
+				// Queued on this carrier, so the other one has to steal them.
+				for(int i=0;i<2;i++) {
+					executor.execute(new Job(NativeThread.NORM_PRIORITY) {
+						@Override
+						public void run() {
+							done.countDown();
+						}
+					});
+				}
+				super.run();
+			}
+		};
+		executor.execute(blocker);
+		assertTrue(done.await(10, SECONDS));
+		blocker.release.countDown();
+	}
+
+	/** Jobs which don't block on a carrier per core, versus a thread each from PooledExecutor. */
+	public void testBenchmarkShortJobs() throws InterruptedException {
+		// ant -Dtest.skip=false -Dtest.class=freenet.support.WorkStealingExecutorTest -Dtest.benchmark=true unit
+		if(!TestProperty.BENCHMARK) return;
+		final int jobs = 200000;
+		for(int mode=0;mode<2;mode++) {
+			boolean carriers = mode == 1;
+			Executor executor = carriers ? executor(Runtime.getRuntime().availableProcessors()) : new PooledExecutor();
+			final CountDownLatch done = new CountDownLatch(jobs);
+			Runnable job = carriers ? new Job(NativeThread.NORM_PRIORITY) {
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			} : new Runnable() {
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			};
+			long start = System.nanoTime();
+			for(int i=0;i<jobs;i++)
+				executor.execute(job, "benchmark");
+			assertTrue(done.await(60, SECONDS));
+			long time = System.nanoTime() - start;
+			System.out.println((carriers ? "WorkStealingExecutor: " : "PooledExecutor: ")+(time / jobs)+"ns per job, "+
+					Thread.activeCount()+" threads");
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.compress.RealCompressor} and
+ * {@link freenet.support.compress.LimitedCompressionOutputStream}.
+ */
+public class RealCompressorTest extends TestCase {
+
+	private static class CountingTrial implements Runnable {
+		private final AtomicInteger runs = new AtomicInteger();
+		Thread thread;
+
+		@Override
+		public void run() {
+			runs.incrementAndGet();
+			thread = Thread.currentThread();
+		}
+	}
+
+	private void checkRunInParallel(RealCompressor rc, boolean callerOnly) {
+		List<CountingTrial> trials = new ArrayList<CountingTrial>();
+		for(int i=0;i<10;i++)
+			trials.add(new CountingTrial());
+		rc.runInParallel(trials);
+		for(CountingTrial trial : trials) {
+			assertEquals(1, trial.runs.get());
+			if(callerOnly)
+				assertEquals(Thread.currentThread(), trial.thread);
+		}
+	}
+
+	public void testRunInParallel() {
+		RealCompressor rc = new RealCompressor();
+		try {
+			checkRunInParallel(rc, false);
+		} finally {
+			rc.shutdown();
+		}
+	}
+
+	/** If the pool can't take the trials, the caller runs them all itself. */
+	public void testRunInParallelAfterShutdown() {
+		RealCompressor rc = new RealCompressor();
+		rc.shutdown();
+		checkRunInParallel(rc, true);
+	}
+
+	public void testLimitedOutputAbortsWhenLimitLowered() throws Exception {
+		byte[] data = new byte[1024*1024];
+		new Random(0).nextBytes(data);
+		AtomicLong limit = new AtomicLong(Long.MAX_VALUE);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		LimitedCompressionOutputStream os = new LimitedCompressionOutputStream(baos, limit);
+		Compressor.COMPRESSOR_TYPE.BZIP2.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE, Long.MAX_VALUE, 0);
+		long size = os.written();
+		assertEquals(size, baos.size());
+		assertTrue(size > 0);
+
+		// Another codec has done better.
+		limit.set(size / 2);
+		baos = new ByteArrayOutputStream();
+		os = new LimitedCompressionOutputStream(baos, limit);
+		try {
+			Compressor.COMPRESSOR_TYPE.BZIP2.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE, Long.MAX_VALUE, 0);
+			fail("Should have given up");
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+		assertTrue(baos.size() <= size / 2);
+	}
+
+}
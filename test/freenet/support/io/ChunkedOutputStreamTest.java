@@ -0,0 +1,36 @@
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class ChunkedOutputStreamTest extends TestCase {
+
+	public void testChunks() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ChunkedOutputStream cos = new ChunkedOutputStream(baos);
+		cos.write("Hello".getBytes("US-ASCII"));
+		cos.write(new byte[0]);
+		cos.write(' ');
+		byte[] big = new byte[300];
+		for(int i=0;i<big.length;i++) big[i] = 'x';
+		cos.write(big, 10, 26);
+		cos.close();
+		cos.close();
+		assertEquals("5\r\nHello\r\n1\r\n \r\n1a\r\nxxxxxxxxxxxxxxxxxxxxxxxxxx\r\n0\r\n\r\n",
+				new String(baos.toByteArray(), "US-ASCII"));
+	}
+
+	public void testWriteAfterClose() throws IOException {
+		ChunkedOutputStream cos = new ChunkedOutputStream(new NullOutputStream());
+		cos.close();
+		try {
+			cos.write(1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.api.Bucket;
+
+/**
+ * Tests {@link FileRegionOutputStream} and {@link BucketTools#writeFileRegion(Bucket, FileRegionWriter, long)}.
+ */
+public class FileRegionOutputStreamTest extends TestCase {
+
+	private File file;
+	private byte[] data;
+
+	@Override
+	protected void setUp() throws IOException {
+		data = new byte[200000];
+		new Random(1).nextBytes(data);
+		file = File.createTempFile("fileregion", ".tmp");
+		file.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	/** A stream which takes files with transferTo(), like SelectorConnection's. */
+	private static class TransferToOutputStream extends ByteArrayOutputStream implements FileRegionWriter {
+
+		private final WritableByteChannel channel = Channels.newChannel(this);
+		private int transfers;
+
+		@Override
+		public void writeFileRegion(FileChannel fc, long position, long length) throws IOException {
+			transfers++;
+			while(length > 0) {
+				long moved = fc.transferTo(position, length, channel);
+				if(moved <= 0) throw new IOException("File too short");
+				position += moved;
+				length -= moved;
+			}
+		}
+
+	}
+
+	/** Write a header, then the bucket, through a FileRegionOutputStream, over a stream which 
+	 * uses transferTo() or over an ordinary stream.
+	 * @return True if the file was written directly. */
+	private boolean checkWrite(Bucket bucket, boolean transferTo) throws IOException {
+		ByteArrayOutputStream baos = 
+			transferTo ? new TransferToOutputStream() : new ByteArrayOutputStream();
+		FileRegionOutputStream os = new FileRegionOutputStream(baos, 4096);
+		os.write("AllData\nEndMessage\n".getBytes("UTF-8"));
+		boolean direct = BucketTools.writeFileRegion(bucket, os, data.length);
+		if(!direct)
+			BucketTools.copyTo(bucket, os, data.length);
+		os.flush();
+		byte[] header = "AllData\nEndMessage\n".getBytes("UTF-8");
+		byte[] written = baos.toByteArray();
+		assertEquals(header.length + data.length, written.length);
+		assertTrue(Arrays.equals(header, Arrays.copyOf(written, header.length)));
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(written, header.length, written.length)));
+		if(transferTo)
+			assertEquals(direct ? 1 : 0, ((TransferToOutputStream) baos).transfers);
+		return direct;
+	}
+
+	public void testFileBucket() throws IOException {
+		FileBucket bucket = new FileBucket(file, true, false, false, false);
+		assertTrue(checkWrite(bucket, true));
+		assertTrue(checkWrite(bucket, false));
+	}
+
+	public void testWrappedFileBucket() throws IOException {
+		FileBucket bucket = new FileBucket(file, true, false, false, false);
+		assertTrue(checkWrite(new NoFreeBucket(bucket), true));
+	}
+
+	public void testRAFBucket() throws IOException {
+		PooledFileRandomAccessBuffer raf = new PooledFileRandomAccessBuffer(file, true, -1, null, -1, false);
+		try {
+			assertTrue(checkWrite(new RAFBucket(raf), true));
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void testArrayBucketIsCopied() throws IOException {
+		assertFalse(checkWrite(new ArrayBucket(data), true));
+	}
+
+	public void testFileTooShort() throws IOException {
+		FileBucket bucket = new FileBucket(file, true, false, false, false);
+		FileRegionOutputStream os = new FileRegionOutputStream(new ByteArrayOutputStream(), 4096);
+		try {
+			BucketTools.writeFileRegion(bucket, os, data.length + 1);
+			fail("Should have thrown");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
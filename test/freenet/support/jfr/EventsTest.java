@@ -0,0 +1,72 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.jfr;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+public class EventsTest extends TestCase {
+
+	public void testDisabledByDefault() {
+		if(!JFR.AVAILABLE) return;
+		assertFalse(new RequestEvent().isEnabled());
+		assertFalse(new StoreFetchEvent().isEnabled());
+	}
+
+	public void testRecorded() throws Exception {
+		if(!JFR.AVAILABLE) return;
+		Recording recording = new Recording();
+		recording.enable(RequestEvent.class);
+		recording.enable(StoreFetchEvent.class).withoutThreshold();
+		recording.start();
+		RequestEvent.record(new byte[] { 1, 2, 3 }, true, false, true, (short) 18, (short) 10, "SUCCESS", 123);
+		StoreFetchEvent fetch = StoreFetchEvent.start();
+		fetch.finish("CHK-store", true);
+		recording.stop();
+		File file = File.createTempFile("freenet", ".jfr");
+		try {
+			recording.dump(file.toPath());
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+			RecordedEvent request = null;
+			RecordedEvent store = null;
+			for(RecordedEvent event : events) {
+				String name = event.getEventType().getName();
+				if(name.equals("freenet.Request")) request = event;
+				else if(name.equals("freenet.StoreFetch")) store = event;
+			}
+			assertNotNull(request);
+			assertEquals("010203", request.getString("routingKey"));
+			assertEquals("SSK", request.getString("keyType"));
+			assertEquals(18, request.getShort("initialHTL"));
+			assertEquals(10, request.getShort("finalHTL"));
+			assertEquals("SUCCESS", request.getString("outcome"));
+			assertNotNull(store);
+			assertEquals("CHK-store", store.getString("store"));
+			assertTrue(store.getBoolean("found"));
+		} finally {
+			recording.close();
+			file.delete();
+		}
+	}
+
+	public void testSettingsParse() throws Exception {
+		if(!JFR.AVAILABLE) return;
+		Reader reader = new InputStreamReader(getClass().getResourceAsStream("freenet.jfc"), "UTF-8");
+		try {
+			Configuration config = Configuration.create(reader);
+			assertEquals("true", config.getSettings().get("freenet.Request#enabled"));
+		} finally {
+			reader.close();
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import junit.framework.TestCase;
+import freenet.support.metrics.Metric.Type;
+
+public class MetricsRegistryTest extends TestCase {
+
+	public void testCounter() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter plain = registry.counter("test_events", "Events");
+		plain.inc();
+		plain.inc(2);
+		Counter labelled = registry.counter("test_requests", "Requests", "type", "outcome");
+		labelled.labels("ssk", "success").inc();
+		labelled.labels("chk", "failure").inc(5);
+		labelled.labels("chk", "failure").inc();
+		assertEquals(3, plain.get());
+		assertEquals(6, labelled.labels("chk", "failure").get());
+		assertEquals(
+				"# TYPE test_events counter\n" +
+				"# HELP test_events Events\n" +
+				"test_events_total 3\n" +
+				"# TYPE test_requests counter\n" +
+				"# HELP test_requests Requests\n" +
+				"test_requests_total{type=\"chk\",outcome=\"failure\"} 6\n" +
+				"test_requests_total{type=\"ssk\",outcome=\"success\"} 1\n" +
+				"# EOF\n", registry.toOpenMetrics());
+	}
+
+	public void testHistogram() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Histogram histogram = registry.histogram("test_duration_seconds", null, new double[] { 0.5, 1, 2 });
+		histogram.observe(0.25);
+		histogram.observe(0.5);
+		histogram.observe(1.5);
+		histogram.observe(10);
+		assertEquals(
+				"# TYPE test_duration_seconds histogram\n" +
+				"test_duration_seconds_bucket{le=\"0.5\"} 2\n" +
+				"test_duration_seconds_bucket{le=\"1\"} 2\n" +
+				"test_duration_seconds_bucket{le=\"2\"} 3\n" +
+				"test_duration_seconds_bucket{le=\"+Inf\"} 4\n" +
+				"test_duration_seconds_count 4\n" +
+				"test_duration_seconds_sum 12.25\n" +
+				"# EOF\n", registry.toOpenMetrics());
+	}
+
+	public void testCallback() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.register(new CallbackMetric(Type.GAUGE, "test_peers", "Peers", "status") {
+
+			@Override
+			protected void collect(Sink sink) {
+				sink.add(3, "connected");
+				sink.add(0.5, "quote\"back\\slash\nnewline");
+			}
+
+		});
+		registry.register(new CallbackMetric(Type.COUNTER, "test_broken", "Throws") {
+
+			@Override
+			protected void collect(Sink sink) {
+				sink.add(1);
+				throw new IllegalStateException();
+			}
+
+		});
+		assertEquals(
+				"# TYPE test_peers gauge\n" +
+				"# HELP test_peers Peers\n" +
+				"test_peers{status=\"connected\"} 3\n" +
+				"test_peers{status=\"quote\\\"back\\\\slash\\nnewline\"} 0.5\n" +
+				"# EOF\n", registry.toOpenMetrics());
+	}
+
+	public void testBadNames() {
+		MetricsRegistry registry = new MetricsRegistry();
+		try {
+			registry.counter("bad name", null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.counter("test_events_total", null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.histogram("test_histogram", null, new double[] { 1 }, "le");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		registry.counter("test_events", null, "type");
+		try {
+			registry.counter("test_events", null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	public void testWrongLabels() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter counter = registry.counter("test_events", null, "type");
+		try {
+			counter.labels("a", "b");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			counter.inc();
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+}